@@ -0,0 +1,153 @@
+package org.lastbamboo.common.turn.client;
+
+/**
+ * Picks how much data to put in each Send Indication for a single remote
+ * host.  Peers sending a trickle of data, such as interactive sessions,
+ * get small chunks so their data isn't stuck behind large messages, while
+ * peers streaming bulk data get chunks as large as TURN allows so we pay
+ * per message overhead as rarely as possible.  We tell the two apart from
+ * an exponentially weighted average of how fast the peer's data arrives,
+ * and we back off to smaller chunks when the TURN session's write queue
+ * backs up, since large chunks there hold up every other peer.<p>
+ *
+ * Chunk sizes are always a whole number of TCP segments less the Send
+ * Indication overhead, so each message fills the segments it occupies.
+ */
+public class AdaptiveChunkSizer {
+
+    /**
+     * The number of bytes a Send Indication adds around its data: the STUN
+     * header plus the REMOTE-ADDRESS and DATA attribute headers, allowing
+     * for IPv6.
+     */
+    static final int SEND_INDICATION_OVERHEAD = 20 + 4 + 20 + 4;
+
+    /**
+     * The default maximum segment size we align chunks to.
+     */
+    public static final int DEFAULT_MSS = 1460;
+
+    /**
+     * Peers sending less than this many bytes per second are treated as
+     * interactive.
+     */
+    private static final double BULK_BYTES_PER_SECOND = 256 * 1024;
+
+    /**
+     * The number of segments in each chunk for interactive peers.
+     */
+    private static final int INTERACTIVE_SEGMENTS = 4;
+
+    /**
+     * How heavily we weight the most recent rate sample.
+     */
+    private static final double ALPHA = 0.2;
+
+    private final int m_mss;
+
+    private final int m_maxChunkSize;
+
+    private final int m_interactiveChunkSize;
+
+    private final int m_congestedChunkSize;
+
+    private final long m_queueHighWatermark;
+
+    private double m_bytesPerSecond;
+
+    private long m_lastDataNanos;
+
+    /**
+     * Creates a new sizer with the default segment size.
+     *
+     * @param maxChunkSize The largest chunk we may ever use.
+     * @param queueHighWatermark The number of bytes queued on the TURN
+     * session above which we stop using the largest chunks.
+     */
+    public AdaptiveChunkSizer(final int maxChunkSize,
+        final long queueHighWatermark) {
+        this(DEFAULT_MSS, maxChunkSize, queueHighWatermark);
+    }
+
+    /**
+     * Creates a new sizer.
+     *
+     * @param mss The TCP maximum segment size to align chunks to.
+     * @param maxChunkSize The largest chunk we may ever use.
+     * @param queueHighWatermark The number of bytes queued on the TURN
+     * session above which we stop using the largest chunks.
+     */
+    public AdaptiveChunkSizer(final int mss, final int maxChunkSize,
+        final long queueHighWatermark) {
+        if (mss <= SEND_INDICATION_OVERHEAD || maxChunkSize < mss) {
+            throw new IllegalArgumentException("Bad sizes: " + mss + "," +
+                maxChunkSize);
+        }
+        m_mss = mss;
+        m_maxChunkSize = align(maxChunkSize);
+        m_interactiveChunkSize =
+            Math.min(m_maxChunkSize, align(INTERACTIVE_SEGMENTS * mss));
+        m_congestedChunkSize =
+            Math.max(m_interactiveChunkSize, align(m_maxChunkSize / 4));
+        m_queueHighWatermark = queueHighWatermark;
+    }
+
+    /**
+     * Records data arriving for the remote host.
+     *
+     * @param bytes The number of bytes that arrived.
+     */
+    public synchronized void onData(final int bytes) {
+        final long now = System.nanoTime();
+        if (m_lastDataNanos != 0) {
+            // Use at least a millisecond so bursts don't look infinitely
+            // fast.
+            final long elapsed = Math.max(1000000L, now - m_lastDataNanos);
+            final double rate = bytes * 1000000000.0 / elapsed;
+            m_bytesPerSecond = ALPHA * rate + (1 - ALPHA) * m_bytesPerSecond;
+        }
+        m_lastDataNanos = now;
+    }
+
+    /**
+     * Returns the size of the next chunk to send.
+     *
+     * @param queuedBytes The number of bytes currently queued for writing on
+     * the TURN session.
+     * @return The maximum number of bytes to put in the next chunk.
+     */
+    public synchronized int getChunkSize(final long queuedBytes) {
+        if (m_bytesPerSecond < BULK_BYTES_PER_SECOND) {
+            return m_interactiveChunkSize;
+        }
+        if (queuedBytes > m_queueHighWatermark) {
+            // Keep bulk data moving, but in pieces other peers can get
+            // between.
+            return m_congestedChunkSize;
+        }
+        return m_maxChunkSize;
+    }
+
+    /**
+     * Accessor for the current estimate of the peer's data rate.
+     *
+     * @return The estimated rate in bytes per second.
+     */
+    public synchronized double getBytesPerSecond() {
+        return m_bytesPerSecond;
+    }
+
+    /**
+     * Rounds a size down so that the chunk plus the Send Indication
+     * overhead fills a whole number of segments.
+     */
+    private int align(final int size) {
+        final int segments =
+            Math.max(1, (size + SEND_INDICATION_OVERHEAD) / m_mss);
+        final int aligned = segments * m_mss - SEND_INDICATION_OVERHEAD;
+        if (aligned > size) {
+            return size;
+        }
+        return aligned;
+    }
+}
@@ -0,0 +1,228 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TurnClientListener} that moves remote hosts opening and closing off
+ * the thread delivering TURN events.  Opening a remote address typically
+ * means connecting a socket to the local HTTP server, which can take a
+ * while, and we don't want a burst of new remote hosts to hold up data for
+ * the ones we're already exchanging data with.<p>
+ *
+ * Data for a remote host whose open or close is still in progress is
+ * buffered and delivered, in order, once it completes.  Data for every
+ * other remote host is delivered directly on the calling thread, so
+ * established transfers don't pay for a thread hop.<p>
+ *
+ * Because opens happen asynchronously,
+ * {@link #onRemoteAddressOpened(InetSocketAddress, IoSession)} always
+ * returns <code>null</code>.
+ */
+public class AsyncLifecycleTurnClientListener implements TurnClientListener {
+
+    private static final class SharedExecutorHolder {
+        private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(
+                new DaemonThreadFactory("TURN-Peer-Lifecycle"));
+    }
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<InetSocketAddress, PeerLifecycle> m_peers =
+        new ConcurrentHashMap<InetSocketAddress, PeerLifecycle>();
+
+    private final TurnClientListener m_delegate;
+
+    private final Executor m_executor;
+
+    /**
+     * Creates a new listener using the executor shared by all TURN clients.
+     *
+     * @param delegate The listener to forward all events to.
+     */
+    public AsyncLifecycleTurnClientListener(final TurnClientListener delegate) {
+        this(delegate, SharedExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * Creates a new listener.
+     *
+     * @param delegate The listener to forward all events to.
+     * @param executor The executor to open and close remote hosts on.
+     */
+    public AsyncLifecycleTurnClientListener(final TurnClientListener delegate,
+        final Executor executor) {
+        if (delegate == null) {
+            throw new NullPointerException("Null delegate");
+        }
+        if (executor == null) {
+            throw new NullPointerException("Null executor");
+        }
+        m_delegate = delegate;
+        m_executor = executor;
+    }
+
+    public IoSession onRemoteAddressOpened(
+        final InetSocketAddress remoteAddress, final IoSession session) {
+        final Runnable open = new Runnable() {
+            public void run() {
+                m_delegate.onRemoteAddressOpened(remoteAddress, session);
+            }
+        };
+        while (!getPeer(remoteAddress).lifecycle(open)) {
+            // The peer was just removed -- try again with a new one.
+        }
+        return null;
+    }
+
+    public void onRemoteAddressClosed(final InetSocketAddress remoteAddress) {
+        final PeerLifecycle peer = m_peers.get(remoteAddress);
+        final Runnable close = new Runnable() {
+            public void run() {
+                m_delegate.onRemoteAddressClosed(remoteAddress);
+            }
+        };
+        if (peer == null || !peer.closeAndRemove(close)) {
+            // We never saw this peer open, so there's nothing to wait for.
+            m_executor.execute(close);
+        }
+    }
+
+    public void onData(final InetSocketAddress remoteAddress,
+        final IoSession session, final byte[] data) {
+        final PeerLifecycle peer = m_peers.get(remoteAddress);
+        final Runnable deliver = new Runnable() {
+            public void run() {
+                m_delegate.onData(remoteAddress, session, data);
+            }
+        };
+        if (peer == null || !peer.buffer(deliver)) {
+            deliver.run();
+        }
+    }
+
+    public void close() {
+        m_peers.clear();
+        m_delegate.close();
+    }
+
+    private PeerLifecycle getPeer(final InetSocketAddress remoteAddress) {
+        final PeerLifecycle existing = m_peers.get(remoteAddress);
+        if (existing != null) {
+            return existing;
+        }
+        final PeerLifecycle peer = new PeerLifecycle(remoteAddress);
+        final PeerLifecycle raced = m_peers.putIfAbsent(remoteAddress, peer);
+        return raced == null ? peer : raced;
+    }
+
+    /**
+     * The lifecycle events for a single remote host along with any data
+     * waiting for them to finish.
+     */
+    private final class PeerLifecycle implements Runnable {
+
+        private final InetSocketAddress m_remoteAddress;
+
+        private final LinkedList<Runnable> m_events = new LinkedList<Runnable>();
+
+        /**
+         * Whether or not a lifecycle event is queued or running.
+         */
+        private boolean m_busy;
+
+        private boolean m_removed;
+
+        private PeerLifecycle(final InetSocketAddress remoteAddress) {
+            m_remoteAddress = remoteAddress;
+        }
+
+        /**
+         * Queues an open event.
+         *
+         * @return <code>false</code> if this peer has been removed and the
+         * caller needs a new one.
+         */
+        private boolean lifecycle(final Runnable event) {
+            synchronized (this) {
+                if (m_removed) {
+                    return false;
+                }
+                m_events.add(event);
+                if (m_busy) {
+                    return true;
+                }
+                m_busy = true;
+            }
+            m_executor.execute(this);
+            return true;
+        }
+
+        /**
+         * Queues a close event, removing this peer once it runs.
+         *
+         * @return <code>false</code> if this peer has already been removed.
+         */
+        private boolean closeAndRemove(final Runnable close) {
+            return lifecycle(new Runnable() {
+                public void run() {
+                    try {
+                        close.run();
+                    } finally {
+                        synchronized (PeerLifecycle.this) {
+                            // Anything that arrives after the close goes to
+                            // a new peer.
+                            m_removed = true;
+                            m_peers.remove(m_remoteAddress,
+                                PeerLifecycle.this);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Buffers data if a lifecycle event is in progress.
+         *
+         * @return <code>true</code> if we buffered the data, or
+         * <code>false</code> if the caller should deliver it directly.
+         */
+        private synchronized boolean buffer(final Runnable data) {
+            if (!m_busy) {
+                return false;
+            }
+            m_events.add(data);
+            return true;
+        }
+
+        public void run() {
+            while (true) {
+                final Runnable event;
+                synchronized (this) {
+                    event = m_events.poll();
+                    if (event == null) {
+                        m_busy = false;
+                        return;
+                    }
+                }
+                try {
+                    event.run();
+                } catch (final Throwable t) {
+                    m_log.error("Error processing event for: " +
+                        m_remoteAddress, t);
+                }
+            }
+        }
+    }
+}
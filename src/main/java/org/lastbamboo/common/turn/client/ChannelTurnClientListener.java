@@ -0,0 +1,183 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TurnClientListener} that exposes each remote host as a
+ * {@link TurnPeerChannel} instead of as a series of byte array callbacks.
+ * This is an alternative to {@link TurnLocalIoHandler} for applications
+ * that want to stream relayed data with standard NIO channels rather than
+ * through a local socket.<p>
+ *
+ * All the channels share the TURN session, so we only suspend reads on it
+ * once every channel's buffer is full or the channels hold more than the
+ * session read limit between them.  One slow reader can't stall the rest.
+ * Once the application closes a channel, we drop whatever else its remote
+ * host sends until the remote host closes or connects again.
+ */
+public class ChannelTurnClientListener implements TurnClientListener {
+
+    /**
+     * The default number of unread bytes we buffer for each remote host.
+     */
+    public static final int DEFAULT_READ_CAPACITY = 256 * 1024;
+
+    /**
+     * The default number of bytes that can be queued for writing on the
+     * TURN session before writers block.
+     */
+    public static final int DEFAULT_WRITE_CAPACITY = 512 * 1024;
+
+    /**
+     * The default number of unread bytes we buffer for all remote hosts
+     * together.
+     */
+    public static final long DEFAULT_SESSION_READ_LIMIT = 4 * 1024 * 1024;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<InetSocketAddress, TurnPeerChannel>
+        m_channels =
+            new ConcurrentHashMap<InetSocketAddress, TurnPeerChannel>();
+
+    private final TurnPeerChannelListener m_channelListener;
+
+    private final int m_readCapacity;
+
+    private final int m_writeCapacity;
+
+    private final TurnPeerReadGate m_readGate;
+
+    /**
+     * Remote hosts whose channels the application closed while the TURN
+     * server still relays for them.
+     */
+    private final Set<InetSocketAddress> m_closedRemotes =
+        Collections.newSetFromMap(
+            new ConcurrentHashMap<InetSocketAddress, Boolean>());
+
+    /**
+     * Creates a new listener with the default buffer sizes.
+     *
+     * @param channelListener The listener to notify of new channels.
+     */
+    public ChannelTurnClientListener(
+        final TurnPeerChannelListener channelListener) {
+        this(channelListener, DEFAULT_READ_CAPACITY, DEFAULT_WRITE_CAPACITY);
+    }
+
+    /**
+     * Creates a new listener with the default session read limit.
+     *
+     * @param channelListener The listener to notify of new channels.
+     * @param readCapacity The number of unread bytes to buffer for each
+     * remote host.
+     * @param writeCapacity The number of bytes that can be queued for
+     * writing on the TURN session before writers block.
+     */
+    public ChannelTurnClientListener(
+        final TurnPeerChannelListener channelListener,
+        final int readCapacity, final int writeCapacity) {
+        this(channelListener, readCapacity, writeCapacity,
+            Math.max(DEFAULT_SESSION_READ_LIMIT, readCapacity));
+    }
+
+    /**
+     * Creates a new listener.
+     *
+     * @param channelListener The listener to notify of new channels.
+     * @param readCapacity The number of unread bytes to buffer for each
+     * remote host.
+     * @param writeCapacity The number of bytes that can be queued for
+     * writing on the TURN session before writers block.
+     * @param sessionReadLimit The number of unread bytes to buffer for all
+     * remote hosts together.
+     */
+    public ChannelTurnClientListener(
+        final TurnPeerChannelListener channelListener,
+        final int readCapacity, final int writeCapacity,
+        final long sessionReadLimit) {
+        if (channelListener == null) {
+            throw new NullPointerException("Null listener");
+        }
+        m_channelListener = channelListener;
+        m_readCapacity = readCapacity;
+        m_writeCapacity = writeCapacity;
+        m_readGate = new TurnPeerReadGate(sessionReadLimit);
+    }
+
+    public IoSession onRemoteAddressOpened(
+        final InetSocketAddress remoteAddress, final IoSession session) {
+        m_closedRemotes.remove(remoteAddress);
+        getChannel(remoteAddress, session);
+        return null;
+    }
+
+    public void onRemoteAddressClosed(final InetSocketAddress remoteAddress) {
+        m_closedRemotes.remove(remoteAddress);
+        final TurnPeerChannel channel = m_channels.remove(remoteAddress);
+        if (channel != null) {
+            channel.onRemoteClosed();
+        }
+    }
+
+    public void onData(final InetSocketAddress remoteAddress,
+        final IoSession session, final byte[] data) {
+        if (m_closedRemotes.contains(remoteAddress)) {
+            m_log.debug("Dropping data for closed channel: {}",
+                remoteAddress);
+            return;
+        }
+        getChannel(remoteAddress, session).onData(data);
+    }
+
+    public void close() {
+        for (final TurnPeerChannel channel : m_channels.values()) {
+            channel.onRemoteClosed();
+        }
+        m_channels.clear();
+        m_closedRemotes.clear();
+    }
+
+    /**
+     * Called when the application closes a channel.  We forget the channel
+     * and drop data from its remote host until it opens again.
+     *
+     * @param channel The channel.
+     */
+    void onChannelClosed(final TurnPeerChannel channel) {
+        final InetSocketAddress remoteAddress = channel.getRemoteAddress();
+        // We mark the remote host first so data arriving in between goes
+        // to the closed channel, which drops it, rather than opening a new
+        // one.
+        m_closedRemotes.add(remoteAddress);
+        if (!m_channels.remove(remoteAddress, channel)) {
+            // The remote host already closed, or the channel was replaced.
+            m_closedRemotes.remove(remoteAddress);
+        }
+    }
+
+    private TurnPeerChannel getChannel(final InetSocketAddress remoteAddress,
+        final IoSession session) {
+        // Events for a single remote address arrive in order, so we don't
+        // need to worry about two threads creating the same channel.
+        final TurnPeerChannel existing = m_channels.get(remoteAddress);
+        if (existing != null) {
+            return existing;
+        }
+        m_log.debug("Opening channel for: {}", remoteAddress);
+        final TurnPeerChannel channel = new TurnPeerChannel(session,
+            remoteAddress, m_readCapacity, m_writeCapacity, m_readGate, this);
+        m_channels.put(remoteAddress, channel);
+        m_channelListener.onChannelOpened(channel);
+        return channel;
+    }
+}
@@ -0,0 +1,132 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TurnClientListener} that decompresses data from remote hosts that
+ * agreed to use compression before passing it on to another listener.
+ * This sits in front of any framing, such as
+ * {@link StunTcpFrameTurnClientListener}, since the remote host compresses
+ * its data before framing it.  The relay doesn't keep the boundaries of the
+ * remote host's compressed chunks, so each chunk carries its length and
+ * the remote host's {@link TurnCompressor} puts chunks back together before
+ * decompressing them.  If a {@link TurnFailoverClient} moves the remote
+ * host, its data arrives on a new connection and we drop any partial
+ * chunk.  The same {@link TurnCompressor} is used to compress data going
+ * back to the remote host, typically by handing it to
+ * {@link TurnLocalIoHandler}, so each remote host has one set of
+ * compression contexts and statistics.
+ */
+public class CompressingTurnClientListener implements TurnFailoverListener {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final Map<InetSocketAddress, TurnCompressor> m_compressors =
+        new ConcurrentHashMap<InetSocketAddress, TurnCompressor>();
+
+    private final TurnClientListener m_delegate;
+
+    /**
+     * Creates a new listener that decompresses data.
+     *
+     * @param delegate The listener to pass decompressed data to.
+     */
+    public CompressingTurnClientListener(final TurnClientListener delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("Null delegate");
+        }
+        m_delegate = delegate;
+    }
+
+    /**
+     * Accessor for the compressor for a remote host, creating it if
+     * necessary.
+     *
+     * @param remoteAddress The remote host.
+     * @return The compressor for the remote host.
+     */
+    public TurnCompressor getCompressor(final InetSocketAddress remoteAddress) {
+        // Events for a single remote address arrive in order, but writers
+        // may ask for the compressor from other threads.
+        synchronized (m_compressors) {
+            final TurnCompressor existing = m_compressors.get(remoteAddress);
+            if (existing != null) {
+                return existing;
+            }
+            final TurnCompressor compressor = new TurnCompressor();
+            m_compressors.put(remoteAddress, compressor);
+            return compressor;
+        }
+    }
+
+    /**
+     * Accessor for the compressors for all current remote hosts, for
+     * example for reporting compression ratios and CPU cost.
+     *
+     * @return The compressors keyed by remote host.
+     */
+    public Map<InetSocketAddress, TurnCompressor> getCompressors() {
+        return m_compressors;
+    }
+
+    public IoSession onRemoteAddressOpened(
+        final InetSocketAddress remoteAddress, final IoSession session) {
+        getCompressor(remoteAddress);
+        return m_delegate.onRemoteAddressOpened(remoteAddress, session);
+    }
+
+    public void onRemoteAddressClosed(final InetSocketAddress remoteAddress) {
+        m_delegate.onRemoteAddressClosed(remoteAddress);
+        final TurnCompressor compressor = m_compressors.remove(remoteAddress);
+        if (compressor != null) {
+            m_log.debug("Closing compression for {}: {}", remoteAddress,
+                compressor);
+            compressor.close();
+        }
+    }
+
+    public void onRemoteAddressMoved(final InetSocketAddress remoteAddress,
+        final IoSession session) {
+        final TurnCompressor compressor = m_compressors.get(remoteAddress);
+        if (compressor != null) {
+            compressor.resetStream();
+        }
+        if (m_delegate instanceof TurnFailoverListener) {
+            ((TurnFailoverListener) m_delegate).onRemoteAddressMoved(
+                remoteAddress, session);
+        } else {
+            m_delegate.onRemoteAddressClosed(remoteAddress);
+            m_delegate.onRemoteAddressOpened(remoteAddress, session);
+        }
+    }
+
+    public void onData(final InetSocketAddress remoteAddress,
+        final IoSession session, final byte[] data) {
+        final List<byte[]> chunks;
+        try {
+            chunks = getCompressor(remoteAddress).decompressStream(data);
+        } catch (final DataFormatException e) {
+            m_log.warn("Could not decompress data from: " + remoteAddress, e);
+            return;
+        }
+        for (final byte[] decompressed : chunks) {
+            m_delegate.onData(remoteAddress, session, decompressed);
+        }
+    }
+
+    public void close() {
+        m_delegate.close();
+        for (final TurnCompressor compressor : m_compressors.values()) {
+            compressor.close();
+        }
+        m_compressors.clear();
+    }
+}
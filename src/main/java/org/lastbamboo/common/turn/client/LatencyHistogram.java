@@ -0,0 +1,127 @@
+package org.lastbamboo.common.turn.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with microsecond resolution.  Values are
+ * recorded into log-linear buckets, so percentiles are accurate to within
+ * about 3% no matter how large the values get.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+
+    private static final int MAX_MSB = 40;
+
+    private static final int NUM_BUCKETS =
+        LINEAR_BUCKETS + (MAX_MSB - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(NUM_BUCKETS);
+
+    private final AtomicLong m_count = new AtomicLong(0L);
+
+    private final AtomicLong m_maxMicros = new AtomicLong(0L);
+
+    /**
+     * Records a single latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(final long nanos) {
+        final long micros = Math.max(0L, nanos / 1000L);
+        m_buckets.incrementAndGet(bucketFor(micros));
+        m_count.incrementAndGet();
+        long max = m_maxMicros.get();
+        while (micros > max && !m_maxMicros.compareAndSet(max, micros)) {
+            max = m_maxMicros.get();
+        }
+    }
+
+    /**
+     * Accessor for the number of recorded latencies.
+     *
+     * @return The number of recorded latencies.
+     */
+    public long getCount() {
+        return m_count.get();
+    }
+
+    /**
+     * Accessor for the largest recorded latency.
+     *
+     * @return The largest recorded latency in microseconds.
+     */
+    public long getMaxMicros() {
+        return m_maxMicros.get();
+    }
+
+    /**
+     * Returns the latency at the given percentile.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The latency at that percentile in microseconds, or 0 if we
+     * haven't recorded anything.
+     */
+    public long getPercentileMicros(final double percentile) {
+        final long count = m_count.get();
+        if (count == 0) {
+            return 0L;
+        }
+        final long target =
+            Math.max(1L, (long) Math.ceil(count * (percentile / 100.0)));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += m_buckets.get(i);
+            if (seen >= target) {
+                return Math.min(valueFor(i), m_maxMicros.get());
+            }
+        }
+        return m_maxMicros.get();
+    }
+
+    /**
+     * Clears all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            m_buckets.set(i, 0L);
+        }
+        m_count.set(0L);
+        m_maxMicros.set(0L);
+    }
+
+    private static int bucketFor(final long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        final int msb = Math.min(MAX_MSB, 63 - Long.numberOfLeadingZeros(micros));
+        final int sub = (int) ((micros >>> (msb - SUB_BUCKET_BITS)) &
+            (SUB_BUCKETS - 1));
+        final int bucket = LINEAR_BUCKETS +
+            (msb - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+        return Math.min(bucket, NUM_BUCKETS - 1);
+    }
+
+    private static long valueFor(final int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        final int offset = bucket - LINEAR_BUCKETS;
+        final int msb = offset / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        final long sub = offset % SUB_BUCKETS;
+        // Report the top of the bucket so we never understate latencies.
+        return ((SUB_BUCKETS + sub + 1) << (msb - SUB_BUCKET_BITS)) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " p50=" + getPercentileMicros(50) +
+            "us p99=" + getPercentileMicros(99) + "us max=" + getMaxMicros() +
+            "us";
+    }
+}
@@ -0,0 +1,386 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TurnClientListener} that hands events for each remote address off
+ * to an {@link Executor}.  Events for a single remote address are always
+ * processed one at a time and in the order they arrived, while events for
+ * different remote addresses are processed concurrently.  This is intended
+ * for executors that create cheap threads, such as virtual threads, so
+ * delegates can block freely.<p>
+ *
+ * Each remote address can queue a bounded number of events.  All the peers
+ * share the TURN session, so suspending reads on it stalls every one of
+ * them.  We only do that when every peer's queue is full, or when the peers
+ * have queued more events between them than the total capacity allows, and
+ * we resume reads once neither holds.  A peer that fills its queue while
+ * others still have room is dropped instead.  We discard its queued data,
+ * tell the delegate it closed, and discard any further data for it until
+ * it opens again, so one blocked delegate can't stall every other peer.
+ * A queue counts as full from the time it reaches its capacity until it
+ * drains to half of it.  Once we're closed we discard any events still
+ * queued and ignore new ones.<p>
+ *
+ * Note that because events are processed asynchronously,
+ * {@link #onRemoteAddressOpened(InetSocketAddress, IoSession)} always
+ * returns <code>null</code>.
+ */
+public class PeerSerialTurnClientListener implements TurnClientListener {
+
+    /**
+     * The default maximum number of events queued for a single remote
+     * address.
+     */
+    public static final int DEFAULT_PEER_CAPACITY = 256;
+
+    /**
+     * By default, all the peers together can queue as many events as this
+     * many full peers.
+     */
+    private static final int DEFAULT_FULL_PEERS = 64;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<InetSocketAddress, PeerQueue> m_peerQueues =
+        new ConcurrentHashMap<InetSocketAddress, PeerQueue>();
+
+    private final TurnClientListener m_delegate;
+
+    private final Executor m_executor;
+
+    private final int m_peerCapacity;
+
+    private final int m_totalCapacity;
+
+    private final AtomicInteger m_fullPeers = new AtomicInteger(0);
+
+    private final AtomicInteger m_droppedPeers = new AtomicInteger(0);
+
+    private final AtomicInteger m_queued = new AtomicInteger(0);
+
+    private final AtomicBoolean m_overLimit = new AtomicBoolean(false);
+
+    private final Map<IoSession, Boolean> m_suspendedSessions =
+        new ConcurrentHashMap<IoSession, Boolean>();
+
+    private volatile boolean m_closed;
+
+    /**
+     * Creates a new listener that dispatches events for each remote address
+     * in order, with the default capacities.
+     *
+     * @param delegate The listener to forward all events to.
+     * @param executor The executor to run events on.
+     */
+    public PeerSerialTurnClientListener(final TurnClientListener delegate,
+        final Executor executor) {
+        this(delegate, executor, DEFAULT_PEER_CAPACITY);
+    }
+
+    /**
+     * Creates a new listener that dispatches events for each remote address
+     * in order.  All the peers together can queue as many events as 64 full
+     * peers.
+     *
+     * @param delegate The listener to forward all events to.
+     * @param executor The executor to run events on.
+     * @param peerCapacity The number of queued events at which a single
+     * remote address is full.
+     */
+    public PeerSerialTurnClientListener(final TurnClientListener delegate,
+        final Executor executor, final int peerCapacity) {
+        this(delegate, executor, peerCapacity,
+            peerCapacity * DEFAULT_FULL_PEERS);
+    }
+
+    /**
+     * Creates a new listener that dispatches events for each remote address
+     * in order.
+     *
+     * @param delegate The listener to forward all events to.
+     * @param executor The executor to run events on.
+     * @param peerCapacity The number of queued events at which a single
+     * remote address is full.  We suspend reads on the TURN session once
+     * every remote address is full, and drop a remote address that fills
+     * up while others have room.
+     * @param totalCapacity The number of events all remote addresses can
+     * queue between them before we suspend reads on the TURN session.
+     */
+    public PeerSerialTurnClientListener(final TurnClientListener delegate,
+        final Executor executor, final int peerCapacity,
+        final int totalCapacity) {
+        if (delegate == null) {
+            throw new NullPointerException("Null delegate");
+        }
+        if (executor == null) {
+            throw new NullPointerException("Null executor");
+        }
+        if (peerCapacity < 1) {
+            throw new IllegalArgumentException("Bad peer capacity: " +
+                peerCapacity);
+        }
+        if (totalCapacity < peerCapacity) {
+            throw new IllegalArgumentException("Bad total capacity: " +
+                totalCapacity);
+        }
+        m_delegate = delegate;
+        m_executor = executor;
+        m_peerCapacity = peerCapacity;
+        m_totalCapacity = totalCapacity;
+    }
+
+    public IoSession onRemoteAddressOpened(
+        final InetSocketAddress remoteAddress, final IoSession session) {
+        if (m_closed) {
+            m_log.debug("Ignoring open after close for: {}", remoteAddress);
+            return null;
+        }
+        final PeerQueue queue = getQueue(remoteAddress);
+        // The remote host connected again, so we deliver its data again.
+        queue.undrop();
+        queue.submit(session, new Runnable() {
+            public void run() {
+                m_delegate.onRemoteAddressOpened(remoteAddress, session);
+            }
+        });
+        return null;
+    }
+
+    public void onRemoteAddressClosed(final InetSocketAddress remoteAddress) {
+        // Every remote address we've seen events for has a queue until its
+        // close event runs, so without one there's nothing to close.
+        final PeerQueue queue = m_peerQueues.get(remoteAddress);
+        if (queue == null || m_closed) {
+            m_log.debug("No open peer to close: {}", remoteAddress);
+            return;
+        }
+        // If we dropped the peer, the delegate already heard it closed.
+        final boolean notify = !queue.undrop();
+        queue.submit(null, new Runnable() {
+            public void run() {
+                try {
+                    if (notify) {
+                        m_delegate.onRemoteAddressClosed(remoteAddress);
+                    }
+                } finally {
+                    m_peerQueues.remove(remoteAddress, queue);
+                }
+            }
+        });
+    }
+
+    public void onData(final InetSocketAddress remoteAddress,
+        final IoSession session, final byte[] data) {
+        if (m_closed) {
+            m_log.debug("Ignoring data after close for: {}", remoteAddress);
+            return;
+        }
+        final PeerQueue queue = getQueue(remoteAddress);
+        if (queue.isDropped()) {
+            return;
+        }
+        queue.submit(session, new Runnable() {
+            public void run() {
+                m_delegate.onData(remoteAddress, session, data);
+            }
+        });
+    }
+
+    public void close() {
+        m_closed = true;
+        for (final PeerQueue queue : m_peerQueues.values()) {
+            queue.discard();
+        }
+        m_peerQueues.clear();
+        resumeReads();
+        m_delegate.close();
+    }
+
+    private PeerQueue getQueue(final InetSocketAddress remoteAddress) {
+        final PeerQueue existing = m_peerQueues.get(remoteAddress);
+        if (existing != null) {
+            return existing;
+        }
+        final PeerQueue queue = new PeerQueue(remoteAddress);
+        final PeerQueue raced = m_peerQueues.putIfAbsent(remoteAddress, queue);
+        return raced == null ? queue : raced;
+    }
+
+    private boolean isBackedUp() {
+        final int fullPeers = m_fullPeers.get();
+        return m_overLimit.get() || (fullPeers > 0 &&
+            fullPeers >= m_peerQueues.size() - m_droppedPeers.get());
+    }
+
+    private void suspendReads(final IoSession session) {
+        if (m_suspendedSessions.put(session, Boolean.TRUE) == null) {
+            m_log.debug("Peers backed up -- suspending reads");
+            session.suspendRead();
+        }
+        // The peers may have drained before the session was in the map, in
+        // which case nobody else will resume it.
+        if (!isBackedUp()) {
+            resumeReads();
+        }
+    }
+
+    private void resumeReads() {
+        for (final IoSession session : m_suspendedSessions.keySet()) {
+            if (m_suspendedSessions.remove(session) != null) {
+                m_log.debug("Peers drained -- resuming reads");
+                session.resumeRead();
+            }
+        }
+    }
+
+    /**
+     * Queue of pending events for a single remote address.  At most one
+     * task drains the queue at a time.
+     */
+    private final class PeerQueue implements Runnable {
+
+        private final Queue<Runnable> m_tasks =
+            new ConcurrentLinkedQueue<Runnable>();
+
+        private final AtomicInteger m_size = new AtomicInteger(0);
+
+        private final AtomicBoolean m_scheduled = new AtomicBoolean(false);
+
+        private final AtomicBoolean m_full = new AtomicBoolean(false);
+
+        private final AtomicBoolean m_dropped = new AtomicBoolean(false);
+
+        private final InetSocketAddress m_remoteAddress;
+
+        private PeerQueue(final InetSocketAddress remoteAddress) {
+            m_remoteAddress = remoteAddress;
+        }
+
+        private boolean isDropped() {
+            return m_dropped.get();
+        }
+
+        /**
+         * Starts delivering data for the peer again if we'd dropped it.
+         *
+         * @return <code>true</code> if we'd dropped the peer.
+         */
+        private boolean undrop() {
+            if (m_dropped.compareAndSet(true, false)) {
+                m_droppedPeers.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        private void submit(final IoSession session, final Runnable task) {
+            add(task);
+            if (m_full.get() && !isBackedUp()) {
+                // Other peers still have room, so this one alone is behind.
+                drop();
+            } else if (session != null && isBackedUp()) {
+                suspendReads(session);
+            }
+            schedule();
+        }
+
+        private void add(final Runnable task) {
+            m_tasks.add(task);
+            final int size = m_size.incrementAndGet();
+            if (m_queued.incrementAndGet() >= m_totalCapacity &&
+                m_overLimit.compareAndSet(false, true)) {
+                m_log.debug("Peers over total capacity");
+            }
+            if (size >= m_peerCapacity && m_full.compareAndSet(false, true)) {
+                m_log.debug("Queue full for: {}", m_remoteAddress);
+                m_fullPeers.incrementAndGet();
+            }
+        }
+
+        private void drop() {
+            if (!m_dropped.compareAndSet(false, true)) {
+                return;
+            }
+            m_log.warn("Dropping peer that fell behind: {}", m_remoteAddress);
+            m_droppedPeers.incrementAndGet();
+            discard();
+            add(new Runnable() {
+                public void run() {
+                    m_delegate.onRemoteAddressClosed(m_remoteAddress);
+                }
+            });
+        }
+
+        private Runnable poll() {
+            final Runnable task = m_tasks.poll();
+            if (task == null) {
+                return null;
+            }
+            final int size = m_size.decrementAndGet();
+            final int queued = m_queued.decrementAndGet();
+            boolean drained = false;
+            if (queued <= m_totalCapacity / 2 &&
+                m_overLimit.compareAndSet(true, false)) {
+                drained = true;
+            }
+            if (size <= m_peerCapacity / 2 &&
+                m_full.compareAndSet(true, false)) {
+                m_log.debug("Queue drained for: {}", m_remoteAddress);
+                m_fullPeers.decrementAndGet();
+                drained = true;
+            }
+            if (drained && !m_suspendedSessions.isEmpty() && !isBackedUp()) {
+                resumeReads();
+            }
+            return task;
+        }
+
+        private void discard() {
+            while (poll() != null) {
+                // Just dropping the events.
+            }
+        }
+
+        private void schedule() {
+            if (m_scheduled.compareAndSet(false, true)) {
+                m_executor.execute(this);
+            }
+        }
+
+        public void run() {
+            Runnable task;
+            while ((task = poll()) != null) {
+                if (m_closed) {
+                    discard();
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (final Throwable t) {
+                    m_log.error("Error processing event for: " +
+                        m_remoteAddress, t);
+                }
+            }
+            m_scheduled.set(false);
+
+            // Catch any tasks added after we polled the last one but before
+            // we cleared the scheduled flag.
+            if (!m_tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
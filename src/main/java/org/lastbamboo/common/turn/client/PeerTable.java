@@ -0,0 +1,325 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent open addressing hash table for per remote host state.  Keys
+ * are the remote host's address packed into two longs, with IPv4 addresses
+ * stored in their IPv4-mapped IPv6 form, plus the port, so lookups hash and
+ * compare primitives rather than {@link InetSocketAddress} objects and
+ * don't allocate anything for IPv4 hosts.<p>
+ *
+ * Reads don't lock.  Writes are serialized, and a slot's key is written
+ * once before the slot is published, so readers never see a partially
+ * written key.  Removed slots are left as tombstones until the next resize
+ * rather than reused for that reason.
+ *
+ * @param <V> The type of the per peer state.
+ */
+public class PeerTable<V> {
+
+    private static final int EMPTY = 0;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+
+    private volatile Table<V> m_table;
+
+    private int m_size;
+
+    /**
+     * Creates a new table with the default initial capacity.
+     */
+    public PeerTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new table.
+     *
+     * @param expectedPeers The number of peers we expect to hold.
+     */
+    public PeerTable(final int expectedPeers) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedPeers * 2) {
+            capacity <<= 1;
+        }
+        m_table = new Table<V>(capacity);
+    }
+
+    /**
+     * Returns the state for a remote host.
+     *
+     * @param remoteAddress The address of the remote host.
+     * @return The state, or <code>null</code> if there's none.
+     */
+    public V get(final InetSocketAddress remoteAddress) {
+        final InetAddress address = toAddress(remoteAddress);
+        return get(highBits(address), lowBits(address),
+            remoteAddress.getPort());
+    }
+
+    /**
+     * Returns the state for a remote host given its packed address.
+     *
+     * @param high The high 64 bits of the IPv6 or IPv4-mapped address.
+     * @param low The low 64 bits of the IPv6 or IPv4-mapped address.
+     * @param port The port.
+     * @return The state, or <code>null</code> if there's none.
+     */
+    public V get(final long high, final long low, final int port) {
+        final Table<V> table = m_table;
+        final int slot = find(table, high, low, port);
+        return slot < 0 ? null : table.m_values.get(slot);
+    }
+
+    /**
+     * Sets the state for a remote host.
+     *
+     * @param remoteAddress The address of the remote host.
+     * @param value The state.
+     * @return The previous state, or <code>null</code> if there was none.
+     */
+    public V put(final InetSocketAddress remoteAddress, final V value) {
+        return put(remoteAddress, value, false);
+    }
+
+    /**
+     * Sets the state for a remote host unless it already has some.
+     *
+     * @param remoteAddress The address of the remote host.
+     * @param value The state.
+     * @return The existing state, or <code>null</code> if we set the new
+     * state.
+     */
+    public V putIfAbsent(final InetSocketAddress remoteAddress, final V value) {
+        return put(remoteAddress, value, true);
+    }
+
+    private synchronized V put(final InetSocketAddress remoteAddress,
+        final V value, final boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException("Null value");
+        }
+        final InetAddress address = toAddress(remoteAddress);
+        final long high = highBits(address);
+        final long low = lowBits(address);
+        final int port = remoteAddress.getPort();
+        final int slot = find(m_table, high, low, port);
+        if (slot >= 0) {
+            final V existing = m_table.m_values.get(slot);
+            if (!onlyIfAbsent) {
+                m_table.m_values.set(slot, value);
+            }
+            return existing;
+        }
+        if ((m_table.m_used + 1) * 2 > m_table.m_ports.length()) {
+            resize();
+        }
+        insert(m_table, high, low, port, value);
+        m_size++;
+        return null;
+    }
+
+    /**
+     * Removes the state for a remote host.
+     *
+     * @param remoteAddress The address of the remote host.
+     * @return The removed state, or <code>null</code> if there was none.
+     */
+    public synchronized V remove(final InetSocketAddress remoteAddress) {
+        final InetAddress address = toAddress(remoteAddress);
+        final int slot = find(m_table, highBits(address), lowBits(address),
+            remoteAddress.getPort());
+        if (slot < 0) {
+            return null;
+        }
+        final V existing = m_table.m_values.get(slot);
+        m_table.m_values.set(slot, null);
+        m_table.m_ports.set(slot, TOMBSTONE);
+        m_size--;
+        return existing;
+    }
+
+    /**
+     * Accessor for the number of remote hosts in the table.
+     *
+     * @return The number of remote hosts.
+     */
+    public synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * Removes all state.
+     */
+    public synchronized void clear() {
+        m_table = new Table<V>(m_table.m_ports.length());
+        m_size = 0;
+    }
+
+    /**
+     * Removes all state, returning it so the caller can release it.
+     *
+     * @return The state for every remote host that was in the table.
+     */
+    public synchronized List<V> removeAll() {
+        final Table<V> old = m_table;
+        final List<V> values = new ArrayList<V>(m_size);
+        for (int i = 0; i < old.m_ports.length(); i++) {
+            final int port = old.m_ports.get(i);
+            if (port != EMPTY && port != TOMBSTONE) {
+                values.add(old.m_values.get(i));
+            }
+        }
+        clear();
+        return values;
+    }
+
+    /**
+     * Returns the high 64 bits of an address in IPv6 form.
+     *
+     * @param address The address.
+     * @return The high bits.
+     */
+    static long highBits(final InetAddress address) {
+        if (address instanceof Inet4Address) {
+            return 0L;
+        }
+        return toLong(address.getAddress(), 0);
+    }
+
+    /**
+     * Returns the low 64 bits of an address in IPv6 form, so IPv4 addresses
+     * are in their IPv4-mapped form.
+     *
+     * @param address The address.
+     * @return The low bits.
+     */
+    static long lowBits(final InetAddress address) {
+        if (address instanceof Inet4Address) {
+            // The hash code of an IPv4 address is the address itself, which
+            // saves copying its bytes.
+            return IPV4_MAPPED_PREFIX | (address.hashCode() & 0xFFFFFFFFL);
+        }
+        return toLong(address.getAddress(), 8);
+    }
+
+    private static long toLong(final byte[] bytes, final int offset) {
+        long value = 0L;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static InetAddress toAddress(
+        final InetSocketAddress remoteAddress) {
+        final InetAddress address = remoteAddress.getAddress();
+        if (address == null) {
+            throw new IllegalArgumentException("Unresolved address: " +
+                remoteAddress);
+        }
+        return address;
+    }
+
+    private static int hash(final long high, final long low, final int port) {
+        long h = high * 0x9E3779B97F4A7C15L;
+        h ^= low + 0x632BE59BD9B4E019L + (h << 6) + (h >>> 2);
+        h ^= port;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static <V> int find(final Table<V> table, final long high,
+        final long low, final int port) {
+        final int mask = table.m_ports.length() - 1;
+        final int stored = port + 1;
+        int i = hash(high, low, port) & mask;
+        while (true) {
+            final int slotPort = table.m_ports.get(i);
+            if (slotPort == EMPTY) {
+                return -1;
+            }
+            if (slotPort == stored && table.m_lows[i] == low &&
+                table.m_highs[i] == high) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private static <V> void insert(final Table<V> table, final long high,
+        final long low, final int port, final V value) {
+        final int mask = table.m_ports.length() - 1;
+        int i = hash(high, low, port) & mask;
+        while (table.m_ports.get(i) != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        table.m_highs[i] = high;
+        table.m_lows[i] = low;
+        table.m_values.set(i, value);
+
+        // This publishes the slot to readers.
+        table.m_ports.set(i, port + 1);
+        table.m_used++;
+    }
+
+    private void resize() {
+        final Table<V> old = m_table;
+        int capacity = old.m_ports.length();
+
+        // Only grow if live entries rather than tombstones fill the table.
+        if ((m_size + 1) * 4 > capacity) {
+            capacity <<= 1;
+        }
+        final Table<V> table = new Table<V>(capacity);
+        for (int i = 0; i < old.m_ports.length(); i++) {
+            final int port = old.m_ports.get(i);
+            if (port != EMPTY && port != TOMBSTONE) {
+                insert(table, old.m_highs[i], old.m_lows[i], port - 1,
+                    old.m_values.get(i));
+            }
+        }
+        m_table = table;
+    }
+
+    private static final class Table<V> {
+
+        private final long[] m_highs;
+
+        private final long[] m_lows;
+
+        /**
+         * The port plus one, or {@link PeerTable#EMPTY} or
+         * {@link PeerTable#TOMBSTONE}.
+         */
+        private final AtomicIntegerArray m_ports;
+
+        private final AtomicReferenceArray<V> m_values;
+
+        /**
+         * Slots holding live entries or tombstones.  Only touched by
+         * writers.
+         */
+        private int m_used;
+
+        private Table(final int capacity) {
+            m_highs = new long[capacity];
+            m_lows = new long[capacity];
+            m_ports = new AtomicIntegerArray(capacity);
+            m_values = new AtomicReferenceArray<V>(capacity);
+        }
+    }
+}
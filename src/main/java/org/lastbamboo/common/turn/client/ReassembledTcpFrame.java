@@ -0,0 +1,39 @@
+package org.lastbamboo.common.turn.client;
+
+import org.lastbamboo.common.tcp.frame.TcpFrame;
+
+/**
+ * The body of a TCP frame reassembled by {@link StunTcpFrameProtocolDecoder}.
+ * This is the same as a {@link TcpFrame}, but it takes ownership of the
+ * array it's given rather than copying it, which saves a copy of every
+ * frame we relay.
+ */
+public final class ReassembledTcpFrame {
+
+    private final byte[] m_data;
+
+    /**
+     * Creates a new frame.
+     *
+     * @param data The body of the frame.  The frame owns this array from
+     * now on.
+     */
+    public ReassembledTcpFrame(final byte[] data) {
+        m_data = data;
+    }
+
+    /**
+     * Accessor for the body of the frame.  This returns the frame's own
+     * array rather than a copy.
+     *
+     * @return The body of the frame.
+     */
+    public byte[] getData() {
+        return m_data;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + m_data.length + " bytes]";
+    }
+}
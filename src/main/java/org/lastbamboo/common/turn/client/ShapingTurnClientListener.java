@@ -0,0 +1,59 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * {@link TurnClientListener} that limits how fast we read data from remote
+ * hosts.  Data that puts a remote host or the client as a whole over its
+ * download limit is still delivered, but we then suspend reads from the
+ * TURN server until we're back under the limit.  We also forget the
+ * shaper's buckets for remote hosts as they close, so this listener is
+ * needed whenever remote hosts are shaped individually, even if only their
+ * uploads are.
+ */
+public class ShapingTurnClientListener implements TurnClientListener {
+
+    private final TurnClientListener m_delegate;
+
+    private final TurnBandwidthShaper m_shaper;
+
+    /**
+     * Creates a new listener that shapes downloads.
+     *
+     * @param delegate The listener to pass events on to.
+     * @param shaper The bandwidth shaper.
+     */
+    public ShapingTurnClientListener(final TurnClientListener delegate,
+        final TurnBandwidthShaper shaper) {
+        if (delegate == null || shaper == null) {
+            throw new NullPointerException("Null delegate or shaper");
+        }
+        m_delegate = delegate;
+        m_shaper = shaper;
+    }
+
+    public IoSession onRemoteAddressOpened(
+        final InetSocketAddress remoteAddress, final IoSession session) {
+        return m_delegate.onRemoteAddressOpened(remoteAddress, session);
+    }
+
+    public void onRemoteAddressClosed(final InetSocketAddress remoteAddress) {
+        m_shaper.onRemoteAddressClosed(remoteAddress);
+        m_delegate.onRemoteAddressClosed(remoteAddress);
+    }
+
+    public void onData(final InetSocketAddress remoteAddress,
+        final IoSession session, final byte[] data) {
+        m_delegate.onData(remoteAddress, session, data);
+        if (m_shaper.isDownloadShaped()) {
+            m_shaper.throttle(session,
+                m_shaper.reserveDownload(remoteAddress, data.length));
+        }
+    }
+
+    public void close() {
+        m_delegate.close();
+    }
+}
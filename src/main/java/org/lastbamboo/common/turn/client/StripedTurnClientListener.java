@@ -0,0 +1,322 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TurnClientListener} that spreads events across a fixed number of
+ * stripes keyed by remote address.  All events for a given remote address
+ * land on the same stripe and are processed in order, while different
+ * stripes are processed in parallel on a shared pool sized to the number
+ * of cores.  This lets decoding and processing for the many peers on a
+ * single TURN connection use more than one core.<p>
+ *
+ * All the peers share the TURN session, so suspending reads on it stalls
+ * every one of them.  We only do that when every stripe is full, or when a
+ * single stripe has queued as many events as all the stripes could hold
+ * between them, and we never block the calling thread.  A slow peer can
+ * therefore fall well behind before it holds up peers on other stripes,
+ * while the memory we queue stays bounded.  A stripe counts as full from
+ * the time it reaches its capacity until it drains to half of it, and we
+ * resume reads as soon as neither condition holds.  Only events already
+ * decoded from the current read can overshoot the bounds.  Closing the
+ * listener discards any events still queued, ignores any that arrive
+ * later, and resumes reads on any sessions we suspended.<p>
+ *
+ * Note that because events are processed asynchronously,
+ * {@link #onRemoteAddressOpened(InetSocketAddress, IoSession)} always
+ * returns <code>null</code>.
+ */
+public class StripedTurnClientListener implements TurnClientListener {
+
+    /**
+     * The default maximum number of events queued on a single stripe before
+     * we suspend reads.
+     */
+    public static final int DEFAULT_STRIPE_CAPACITY = 256;
+
+    /**
+     * The maximum number of events a stripe processes before yielding its
+     * thread to other stripes.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private static final class SharedExecutorHolder {
+        private static final ExecutorService EXECUTOR =
+            Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new DaemonThreadFactory("TURN-Stripe-Dispatcher"));
+    }
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final TurnClientListener m_delegate;
+
+    private final Executor m_executor;
+
+    private final Stripe[] m_stripes;
+
+    private final int m_stripeCapacity;
+
+    /**
+     * The number of events a single stripe can queue before we suspend
+     * reads regardless of the other stripes.
+     */
+    private final int m_stripeLimit;
+
+    private final AtomicInteger m_fullStripes = new AtomicInteger(0);
+
+    private final AtomicInteger m_stripesOverLimit = new AtomicInteger(0);
+
+    private final Map<IoSession, Boolean> m_suspendedSessions =
+        new ConcurrentHashMap<IoSession, Boolean>();
+
+    private volatile boolean m_closed;
+
+    /**
+     * Creates a new striped listener with one stripe per core running on a
+     * pool shared by all striped listeners.
+     *
+     * @param delegate The listener to forward all events to.
+     */
+    public StripedTurnClientListener(final TurnClientListener delegate) {
+        this(delegate, sharedExecutor(),
+            Runtime.getRuntime().availableProcessors(),
+            DEFAULT_STRIPE_CAPACITY);
+    }
+
+    /**
+     * Creates a new striped listener.
+     *
+     * @param delegate The listener to forward all events to.
+     * @param executor The executor to process stripes on.
+     * @param numStripes The number of stripes to spread remote addresses
+     * across.
+     * @param stripeCapacity The number of queued events at which a stripe
+     * is full.  We suspend reads on the TURN session once every stripe is
+     * full, or once one stripe holds this many events for every stripe.
+     */
+    public StripedTurnClientListener(final TurnClientListener delegate,
+        final Executor executor, final int numStripes,
+        final int stripeCapacity) {
+        if (delegate == null) {
+            throw new NullPointerException("Null delegate");
+        }
+        if (executor == null) {
+            throw new NullPointerException("Null executor");
+        }
+        if (numStripes < 1) {
+            throw new IllegalArgumentException("Need at least one stripe: " +
+                numStripes);
+        }
+        if (stripeCapacity < 1) {
+            throw new IllegalArgumentException("Bad stripe capacity: " +
+                stripeCapacity);
+        }
+        m_delegate = delegate;
+        m_executor = executor;
+        m_stripeCapacity = stripeCapacity;
+        m_stripeLimit = stripeCapacity * numStripes;
+        m_stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            m_stripes[i] = new Stripe(i);
+        }
+    }
+
+    /**
+     * Accessor for the pool shared by all striped listeners by default.
+     *
+     * @return The shared executor.
+     */
+    public static Executor sharedExecutor() {
+        return SharedExecutorHolder.EXECUTOR;
+    }
+
+    public IoSession onRemoteAddressOpened(
+        final InetSocketAddress remoteAddress, final IoSession session) {
+        stripeFor(remoteAddress).submit(session, new Runnable() {
+            public void run() {
+                m_delegate.onRemoteAddressOpened(remoteAddress, session);
+            }
+        });
+        return null;
+    }
+
+    public void onRemoteAddressClosed(final InetSocketAddress remoteAddress) {
+        stripeFor(remoteAddress).submit(null, new Runnable() {
+            public void run() {
+                m_delegate.onRemoteAddressClosed(remoteAddress);
+            }
+        });
+    }
+
+    public void onData(final InetSocketAddress remoteAddress,
+        final IoSession session, final byte[] data) {
+        stripeFor(remoteAddress).submit(session, new Runnable() {
+            public void run() {
+                m_delegate.onData(remoteAddress, session, data);
+            }
+        });
+    }
+
+    public void close() {
+        m_closed = true;
+        for (final Stripe stripe : m_stripes) {
+            stripe.discard();
+        }
+        resumeReads();
+        m_delegate.close();
+    }
+
+    private boolean isBackedUp() {
+        return m_fullStripes.get() == m_stripes.length ||
+            m_stripesOverLimit.get() > 0;
+    }
+
+    private void suspendReads(final IoSession session) {
+        if (m_suspendedSessions.put(session, Boolean.TRUE) == null) {
+            m_log.debug("Stripes backed up -- suspending reads");
+            session.suspendRead();
+        }
+        // A stripe may have drained before the session was in the map, in
+        // which case nobody else will resume it.
+        if (!isBackedUp()) {
+            resumeReads();
+        }
+    }
+
+    private void resumeReads() {
+        for (final IoSession session : m_suspendedSessions.keySet()) {
+            if (m_suspendedSessions.remove(session) != null) {
+                m_log.debug("Stripes drained -- resuming reads");
+                session.resumeRead();
+            }
+        }
+    }
+
+    private Stripe stripeFor(final InetSocketAddress remoteAddress) {
+        // Spread the bits of the hash code so addresses that differ only
+        // in the low bits of the port don't all land together.
+        int h = remoteAddress.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return m_stripes[(h & 0x7fffffff) % m_stripes.length];
+    }
+
+    /**
+     * A single ordered queue of events.  At most one pool thread drains a
+     * stripe at a time.
+     */
+    private final class Stripe implements Runnable {
+
+        private final Queue<Runnable> m_tasks =
+            new ConcurrentLinkedQueue<Runnable>();
+
+        private final AtomicInteger m_size = new AtomicInteger(0);
+
+        private final AtomicBoolean m_scheduled = new AtomicBoolean(false);
+
+        private final AtomicBoolean m_full = new AtomicBoolean(false);
+
+        private final AtomicBoolean m_overLimit = new AtomicBoolean(false);
+
+        private final int m_index;
+
+        private Stripe(final int index) {
+            m_index = index;
+        }
+
+        private void submit(final IoSession session, final Runnable task) {
+            if (m_closed) {
+                m_log.debug("Ignoring event after close");
+                return;
+            }
+            m_tasks.add(task);
+            final int size = m_size.incrementAndGet();
+            if (size >= m_stripeCapacity && m_full.compareAndSet(false, true)) {
+                m_log.debug("Stripe {} full", m_index);
+                m_fullStripes.incrementAndGet();
+            }
+            if (size >= m_stripeLimit &&
+                m_overLimit.compareAndSet(false, true)) {
+                m_stripesOverLimit.incrementAndGet();
+            }
+            if (session != null && isBackedUp()) {
+                suspendReads(session);
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (m_scheduled.compareAndSet(false, true)) {
+                m_executor.execute(this);
+            }
+        }
+
+        private Runnable poll() {
+            final Runnable task = m_tasks.poll();
+            if (task == null) {
+                return null;
+            }
+            final int size = m_size.decrementAndGet();
+            if (size <= m_stripeLimit / 2 &&
+                m_overLimit.compareAndSet(true, false)) {
+                m_stripesOverLimit.decrementAndGet();
+            }
+            if (size <= m_stripeCapacity / 2 &&
+                m_full.compareAndSet(true, false)) {
+                m_log.debug("Stripe {} drained", m_index);
+                m_fullStripes.decrementAndGet();
+            }
+            if (!m_suspendedSessions.isEmpty() && !isBackedUp()) {
+                resumeReads();
+            }
+            return task;
+        }
+
+        private void discard() {
+            while (poll() != null) {
+                // Just dropping the events.
+            }
+        }
+
+        public void run() {
+            int processed = 0;
+            Runnable task;
+            while (processed < BATCH_SIZE && (task = poll()) != null) {
+                if (m_closed) {
+                    discard();
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (final Throwable t) {
+                    m_log.error("Error processing event on stripe " +
+                        m_index, t);
+                }
+                processed++;
+            }
+            m_scheduled.set(false);
+
+            // Either we yielded after a full batch or a task arrived after
+            // we polled the last one.
+            if (!m_tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
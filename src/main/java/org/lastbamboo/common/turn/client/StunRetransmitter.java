@@ -0,0 +1,284 @@
+package org.lastbamboo.common.turn.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.id.uuid.UUID;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageType;
+import org.littleshoot.stun.stack.transaction.StunTransactionListener;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer driven engine for STUN client transactions over unreliable
+ * transports.  Requests are retransmitted following the rules in RFC 5389
+ * section 7.2.1: we start with an initial RTO, double it after each
+ * transmission, send at most Rc times, and then wait Rm times the initial
+ * RTO for a response before giving up.  Responses are matched to requests
+ * by transaction ID.<p>
+ *
+ * All transactions share a single timer thread, so thousands of concurrent
+ * transactions don't need a blocked thread each.
+ */
+public class StunRetransmitter {
+
+    /**
+     * The default initial retransmission timeout in milliseconds.
+     */
+    public static final long DEFAULT_RTO = 500;
+
+    /**
+     * The default maximum number of transmissions of a request, or Rc.
+     */
+    public static final int DEFAULT_MAX_TRANSMISSIONS = 7;
+
+    /**
+     * The multiple of the initial RTO we wait after the last transmission,
+     * or Rm.
+     */
+    public static final int FINAL_WAIT_MULTIPLIER = 16;
+
+    /**
+     * Interface for classes that actually put requests on the wire.
+     */
+    public interface Transmitter {
+
+        /**
+         * Transmits a request.  This is called once for the original
+         * transmission and once for each retransmission.
+         *
+         * @param request The request to transmit.
+         */
+        void transmit(StunMessage request);
+    }
+
+    private static final class SharedTimerHolder {
+        private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("STUN-Retransmission-Timer"));
+    }
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<UUID, Transaction> m_transactions =
+        new ConcurrentHashMap<UUID, Transaction>();
+
+    private final ScheduledExecutorService m_timer;
+
+    private final long m_initialRto;
+
+    private final int m_maxTransmissions;
+
+    /**
+     * Creates a new retransmitter with the RFC 5389 defaults on the shared
+     * timer.
+     */
+    public StunRetransmitter() {
+        this(sharedTimer(), DEFAULT_RTO, DEFAULT_MAX_TRANSMISSIONS);
+    }
+
+    /**
+     * Creates a new retransmitter.
+     *
+     * @param timer The timer to schedule retransmissions on.
+     * @param initialRto The initial retransmission timeout in milliseconds.
+     * @param maxTransmissions The maximum number of times to send each
+     * request.
+     */
+    public StunRetransmitter(final ScheduledExecutorService timer,
+        final long initialRto, final int maxTransmissions) {
+        if (timer == null) {
+            throw new NullPointerException("Null timer");
+        }
+        if (initialRto <= 0 || maxTransmissions < 1) {
+            throw new IllegalArgumentException("Bad RTO or transmissions: " +
+                initialRto + "," + maxTransmissions);
+        }
+        m_timer = timer;
+        m_initialRto = initialRto;
+        m_maxTransmissions = maxTransmissions;
+    }
+
+    /**
+     * Accessor for the timer shared by all retransmitters by default.
+     *
+     * @return The shared timer.
+     */
+    public static ScheduledExecutorService sharedTimer() {
+        return SharedTimerHolder.TIMER;
+    }
+
+    /**
+     * Starts a new transaction, transmitting the request immediately.
+     *
+     * @param request The request.
+     * @param transmitter The class that puts the request on the wire.
+     * @param listener The listener to notify when the transaction succeeds,
+     * fails, or times out.
+     */
+    public void start(final StunMessage request, final Transmitter transmitter,
+        final StunTransactionListener<?> listener) {
+        start(request, transmitter, listener, m_initialRto);
+    }
+
+    /**
+     * Starts a new transaction with a specific initial RTO, transmitting the
+     * request immediately.
+     *
+     * @param request The request.
+     * @param transmitter The class that puts the request on the wire.
+     * @param listener The listener to notify when the transaction succeeds,
+     * fails, or times out.
+     * @param rto The initial retransmission timeout in milliseconds.
+     */
+    public void start(final StunMessage request, final Transmitter transmitter,
+        final StunTransactionListener<?> listener, final long rto) {
+        final Transaction transaction =
+            new Transaction(request, transmitter, listener, rto);
+        if (m_transactions.putIfAbsent(request.getTransactionId(),
+            transaction) != null) {
+            throw new IllegalArgumentException(
+                "Transaction already in progress: " + request);
+        }
+        transaction.run();
+    }
+
+    /**
+     * Matches a response to its pending transaction, if any, and notifies
+     * the transaction's listener.
+     *
+     * @param response The response.
+     * @return <code>true</code> if the response matched a pending
+     * transaction, otherwise <code>false</code>.
+     */
+    public boolean onResponse(final StunMessage response) {
+        return onResponse(response.getTransactionId(), response);
+    }
+
+    /**
+     * Matches a message that answers a request without carrying its
+     * transaction ID, such as the Connection Status Indications that answer
+     * Connect Requests, and notifies the transaction's listener.
+     *
+     * @param id The transaction ID of the request the message answers.
+     * @param response The message.
+     * @return <code>true</code> if the ID matched a pending transaction,
+     * otherwise <code>false</code>.
+     */
+    public boolean onResponse(final UUID id, final StunMessage response) {
+        if (id == null) {
+            return false;
+        }
+        final Transaction transaction = m_transactions.get(id);
+        if (transaction == null) {
+            return false;
+        }
+        final StunMessageType type = response.getType();
+        if (type == StunMessageType.BINDING_ERROR_RESPONSE ||
+            type == StunMessageType.ALLOCATE_ERROR_RESPONSE) {
+            transaction.fail(response);
+        } else {
+            transaction.succeed(response);
+        }
+        return true;
+    }
+
+    /**
+     * Fails all pending transactions, for example because the underlying
+     * connection closed.
+     */
+    public void cancelAll() {
+        for (final Transaction transaction : m_transactions.values()) {
+            transaction.fail(new NullStunMessage());
+        }
+    }
+
+    /**
+     * Accessor for the number of transactions awaiting responses.
+     *
+     * @return The number of pending transactions.
+     */
+    public int getPendingTransactions() {
+        return m_transactions.size();
+    }
+
+    private final class Transaction implements Runnable {
+
+        private final StunMessage m_request;
+        private final Transmitter m_transmitter;
+        private final StunTransactionListener<?> m_listener;
+        private final AtomicBoolean m_done = new AtomicBoolean(false);
+        private long m_rto;
+        private int m_transmissions;
+        private volatile ScheduledFuture<?> m_timeout;
+
+        private Transaction(final StunMessage request,
+            final Transmitter transmitter,
+            final StunTransactionListener<?> listener, final long rto) {
+            m_request = request;
+            m_transmitter = transmitter;
+            m_listener = listener;
+            m_rto = rto;
+        }
+
+        public void run() {
+            if (m_done.get()) {
+                return;
+            }
+            if (m_transmissions == m_maxTransmissions) {
+                m_log.debug("Transaction timed out: {}", m_request);
+                fail(new NullStunMessage());
+                return;
+            }
+            if (m_transmissions > 0) {
+                m_log.debug("Retransmitting with RTO {}: {}", m_rto, m_request);
+            }
+            try {
+                m_transmitter.transmit(m_request);
+            } catch (final RuntimeException e) {
+                m_log.warn("Could not transmit request: " + m_request, e);
+            }
+            m_transmissions++;
+            final long wait;
+            if (m_transmissions == m_maxTransmissions) {
+                wait = m_initialRto * FINAL_WAIT_MULTIPLIER;
+            } else {
+                wait = m_rto;
+                m_rto *= 2;
+            }
+            m_timeout = m_timer.schedule(this, wait, TimeUnit.MILLISECONDS);
+        }
+
+        private void succeed(final StunMessage response) {
+            if (finish()) {
+                m_listener.onTransactionSucceeded(m_request, response);
+            }
+        }
+
+        private void fail(final StunMessage response) {
+            if (finish()) {
+                m_listener.onTransactionFailed(m_request, response);
+            }
+        }
+
+        private boolean finish() {
+            if (!m_done.compareAndSet(false, true)) {
+                return false;
+            }
+            m_transactions.remove(m_request.getTransactionId(), this);
+            final ScheduledFuture<?> timeout = m_timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package org.lastbamboo.common.turn.client;
+
+import java.util.LinkedList;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.StunMessageDecoder;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decoder for data from a single remote host that can contain either STUN
+ * messages or TCP frames.  Rather than asking each codec factory in turn
+ * whether it can decode the next message, we classify each message from its
+ * leading bytes.  STUN messages always start with two zero bits and carry
+ * the magic cookie at offset 4, while TCP frames start with a 16 bit
+ * length.  Either way, the header tells us how long the whole message is.<p>
+ *
+ * Messages often arrive split across many Data Indications.  Rather than
+ * appending each chunk to an accumulating buffer and compacting it, we keep
+ * the chunks we haven't consumed yet in a chain and only gather a message
+ * out of them once all of it has arrived, so each TCP frame is copied
+ * exactly once, into the array we hand on as a {@link ReassembledTcpFrame}.
+ * Messages that arrive whole in a single chunk never touch the chain.  When
+ * given arrays with {@link #decode(IoSession, byte[], ProtocolDecoderOutput)}
+ * we chain them as they are, unless we've already consumed most of them.
+ * Buffers given to {@link #decode(IoSession, ByteBuffer,
+ * ProtocolDecoderOutput)} may be reused by the caller, so we copy what's
+ * left of them.<p>
+ *
+ * Responses to our own Binding Requests come back in the same stream, so
+ * once a STUN message is whole we offer it to the session's
+ * {@link TurnBindingTransactions}, and only pass it on if it doesn't match
+ * a pending transaction.<p>
+ *
+ * The whole of every array in the chain counts against a
+ * {@link TurnReassemblyBudget}, since a chained array stays in memory until
+ * we've consumed all of it.  Once we've consumed more than half of an
+ * array, we copy what's left of it instead, so we never hold more than
+ * twice the bytes we're waiting on.  If a message announces a length that
+ * could never fit, or holding it would go over budget, we drop our state
+ * and throw a {@link TurnReassemblyBudgetExceededException}.
+ */
+public class StunTcpFrameProtocolDecoder implements ProtocolDecoder {
+
+    /**
+     * The number of bytes we need to tell a STUN message from a TCP frame
+     * whose length happens to start with two zero bits.
+     */
+    private static final int CLASSIFY_BYTES = 8;
+
+    private static final long MAGIC_COOKIE = 0x2112A442L;
+
+    private static final int STUN_HEADER_LENGTH = 20;
+
+    private static final int FRAME_HEADER_LENGTH = 2;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final TurnReassemblyBudget m_budget;
+
+    private StunMessageDecoder m_stunDecoder = new StunMessageDecoder();
+
+    /**
+     * Chunks we haven't consumed all of yet, oldest first.
+     */
+    private final LinkedList<ByteBuffer> m_chunks = new LinkedList<ByteBuffer>();
+
+    /**
+     * The total bytes remaining in {@link #m_chunks}.
+     */
+    private int m_chainBytes;
+
+    /**
+     * The total size of the arrays behind {@link #m_chunks}, which is what
+     * we actually keep in memory.
+     */
+    private long m_retainedBytes;
+
+    /**
+     * The bytes we've reserved from the budget.
+     */
+    private long m_held;
+
+    /**
+     * Creates a new decoder with its own budget from
+     * {@link TurnClientConfig}.
+     */
+    public StunTcpFrameProtocolDecoder() {
+        this(TurnReassemblyBudget.fromConfig());
+    }
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param budget The budget for partial messages, typically shared with
+     * the decoders for other remote hosts.
+     */
+    public StunTcpFrameProtocolDecoder(final TurnReassemblyBudget budget) {
+        m_budget = budget;
+    }
+
+    public void decode(final IoSession session, final ByteBuffer in,
+        final ProtocolDecoderOutput out) throws Exception {
+        decodeChunk(session, in, false, out);
+    }
+
+    /**
+     * Decodes a chunk of data we can keep a reference to, such as the data
+     * from a Data Indication, so we never copy it just to hold on to it.
+     *
+     * @param session The session.
+     * @param data The data.  The caller must not modify it after this
+     * call.
+     * @param out The output for decoded messages.
+     * @throws Exception If we can't decode the data, in particular a
+     * {@link TurnReassemblyBudgetExceededException} if we'd need to hold
+     * more of it than the budget allows.
+     */
+    public void decode(final IoSession session, final byte[] data,
+        final ProtocolDecoderOutput out) throws Exception {
+        decodeChunk(session, ByteBuffer.wrap(data), true, out);
+    }
+
+    private void decodeChunk(final IoSession session, final ByteBuffer in,
+        final boolean owned, final ProtocolDecoderOutput out)
+        throws Exception {
+        if (m_chunks.isEmpty()) {
+            while (decodeContiguous(session, in, out)) {
+                // Keep going while whole messages are in the chunk.
+            }
+            if (in.hasRemaining()) {
+                retain(in, owned);
+            }
+        } else {
+            retain(in, owned);
+            while (decodeFromChain(session, out)) {
+                // Keep going while whole messages are in the chain.
+            }
+        }
+        compact();
+        final long held = m_retainedBytes;
+        if (held > m_held) {
+            if (!m_budget.reserve(m_held, held - m_held)) {
+                m_budget.onRejectedFrame();
+                reset();
+                throw new TurnReassemblyBudgetExceededException(
+                    "Partial message of " + held + " bytes is over budget");
+            }
+        } else {
+            m_budget.release(m_held - held);
+        }
+        m_held = held;
+    }
+
+    /**
+     * Decodes the next message if all of it is in the given buffer.
+     *
+     * @return <code>true</code> if we decoded a message.
+     */
+    private boolean decodeContiguous(final IoSession session,
+        final ByteBuffer in, final ProtocolDecoderOutput out)
+        throws TurnReassemblyBudgetExceededException {
+        final int total = messageLength(in, in.remaining());
+        if (total == -1 || in.remaining() < total) {
+            return false;
+        }
+        final int pos = in.position();
+        if (isStun(in)) {
+            final int limit = in.limit();
+            in.limit(pos + total);
+            try {
+                decodeStun(session, in, out);
+            } finally {
+                in.limit(limit);
+                in.position(pos + total);
+            }
+        } else {
+            final byte[] data = new byte[total - FRAME_HEADER_LENGTH];
+            in.position(pos + FRAME_HEADER_LENGTH);
+            in.get(data);
+            out.write(new ReassembledTcpFrame(data));
+        }
+        return true;
+    }
+
+    /**
+     * Gathers and decodes the next message if all of it is in the chain.
+     *
+     * @return <code>true</code> if we decoded a message.
+     */
+    private boolean decodeFromChain(final IoSession session,
+        final ProtocolDecoderOutput out)
+        throws TurnReassemblyBudgetExceededException {
+        final int total = messageLength(null, m_chainBytes);
+        if (total == -1 || m_chainBytes < total) {
+            return false;
+        }
+        if (isStun(null)) {
+            final byte[] message = new byte[total];
+            gather(message);
+            decodeStun(session, ByteBuffer.wrap(message), out);
+        } else {
+            skip(FRAME_HEADER_LENGTH);
+            final byte[] data = new byte[total - FRAME_HEADER_LENGTH];
+            gather(data);
+            out.write(new ReassembledTcpFrame(data));
+        }
+        return true;
+    }
+
+    private void decodeStun(final IoSession session, final ByteBuffer in,
+        final ProtocolDecoderOutput out) {
+        final TurnBindingTransactions transactions = session == null ? null :
+            (TurnBindingTransactions) session.getAttribute(
+                TurnBindingTransactions.SESSION_KEY);
+        final ProtocolDecoderOutput stunOut;
+        if (transactions == null) {
+            stunOut = out;
+        } else {
+            stunOut = new ProtocolDecoderOutput() {
+                public void flush() {
+                    out.flush();
+                }
+
+                public void write(final Object message) {
+                    if (!transactions.onResponse((StunMessage) message)) {
+                        out.write(message);
+                    }
+                }
+            };
+        }
+        // We always hand the STUN decoder exactly one whole message, so it
+        // finishes each message it starts.
+        try {
+            m_stunDecoder.decode(session, in, stunOut);
+        } catch (final Exception e) {
+            m_log.warn("Could not decode STUN message", e);
+            m_stunDecoder = new StunMessageDecoder();
+        }
+    }
+
+    /**
+     * Works out the length of the next message from its header, refusing
+     * it up front if it could never fit in our budget.
+     *
+     * @param in The buffer the message starts in, or <code>null</code> for
+     * the chain.
+     * @param available The bytes available.
+     * @return The length of the whole message including its header, or -1
+     * if we need more bytes to tell.
+     */
+    private int messageLength(final ByteBuffer in, final int available)
+        throws TurnReassemblyBudgetExceededException {
+        if (available < FRAME_HEADER_LENGTH) {
+            return -1;
+        }
+        final int first = peek(in, 0);
+        final int length;
+        if ((first & 0xC0) != 0) {
+            length = FRAME_HEADER_LENGTH + ((first << 8) | peek(in, 1));
+        } else if (available < CLASSIFY_BYTES) {
+            return -1;
+        } else if (isStun(in)) {
+            length = STUN_HEADER_LENGTH + ((peek(in, 2) << 8) | peek(in, 3));
+        } else {
+            length = FRAME_HEADER_LENGTH + ((first << 8) | peek(in, 1));
+        }
+        if (!m_budget.fits(length)) {
+            m_budget.onRejectedFrame();
+            reset();
+            if (in != null) {
+                in.position(in.limit());
+            }
+            throw new TurnReassemblyBudgetExceededException(
+                "Message of " + length + " bytes can never fit in budget");
+        }
+        return length;
+    }
+
+    /**
+     * Returns whether the next message is a STUN message.  The caller must
+     * already know at least {@link #CLASSIFY_BYTES} are available.
+     */
+    private boolean isStun(final ByteBuffer in) {
+        if ((peek(in, 0) & 0xC0) != 0) {
+            return false;
+        }
+        final long cookie = ((long) peek(in, 4) << 24) | (peek(in, 5) << 16) |
+            (peek(in, 6) << 8) | peek(in, 7);
+        return cookie == MAGIC_COOKIE;
+    }
+
+    /**
+     * Returns the byte at an offset from the start of the next message.
+     *
+     * @param in The buffer the message starts in, or <code>null</code> for
+     * the chain.
+     * @param index The offset.
+     * @return The unsigned byte.
+     */
+    private int peek(final ByteBuffer in, final int index) {
+        if (in != null) {
+            return in.get(in.position() + index) & 0xff;
+        }
+        int offset = index;
+        for (final ByteBuffer chunk : m_chunks) {
+            if (offset < chunk.remaining()) {
+                return chunk.get(chunk.position() + offset) & 0xff;
+            }
+            offset -= chunk.remaining();
+        }
+        throw new IndexOutOfBoundsException("Offset past chain: " + index);
+    }
+
+    private void retain(final ByteBuffer in, final boolean owned) {
+        final int remaining = in.remaining();
+        if (owned && !isMostlyConsumed(in)) {
+            m_chunks.add(in);
+            m_retainedBytes += in.capacity();
+        } else {
+            m_chunks.add(copy(in));
+        }
+        m_chainBytes += remaining;
+    }
+
+    /**
+     * Copies the tail of the first chunk if we've consumed most of it, so a
+     * few bytes left over from a large Data Indication don't keep all of it
+     * in memory.  We only ever consume chunks from the front, so the others
+     * are still as they were when we retained them.
+     */
+    private void compact() {
+        final ByteBuffer first = m_chunks.peekFirst();
+        if (first != null && isMostlyConsumed(first)) {
+            m_retainedBytes -= first.capacity();
+            m_chunks.set(0, copy(first));
+        }
+    }
+
+    private static boolean isMostlyConsumed(final ByteBuffer chunk) {
+        return chunk.remaining() * 2 < chunk.capacity();
+    }
+
+    private ByteBuffer copy(final ByteBuffer in) {
+        final byte[] copy = new byte[in.remaining()];
+        in.get(copy);
+        m_retainedBytes += copy.length;
+        return ByteBuffer.wrap(copy);
+    }
+
+    /**
+     * Copies bytes from the front of the chain, consuming them.
+     */
+    private void gather(final byte[] dest) {
+        int copied = 0;
+        while (copied < dest.length) {
+            final ByteBuffer chunk = m_chunks.getFirst();
+            final int n = Math.min(chunk.remaining(), dest.length - copied);
+            chunk.get(dest, copied, n);
+            copied += n;
+            if (!chunk.hasRemaining()) {
+                m_chunks.removeFirst();
+                m_retainedBytes -= chunk.capacity();
+            }
+        }
+        m_chainBytes -= dest.length;
+    }
+
+    /**
+     * Consumes bytes from the front of the chain without copying them.
+     */
+    private void skip(final int bytes) {
+        int skipped = 0;
+        while (skipped < bytes) {
+            final ByteBuffer chunk = m_chunks.getFirst();
+            final int n = Math.min(chunk.remaining(), bytes - skipped);
+            chunk.position(chunk.position() + n);
+            skipped += n;
+            if (!chunk.hasRemaining()) {
+                m_chunks.removeFirst();
+                m_retainedBytes -= chunk.capacity();
+            }
+        }
+        m_chainBytes -= bytes;
+    }
+
+    /**
+     * Drops everything we're holding.
+     */
+    private void reset() {
+        m_budget.release(m_held);
+        m_held = 0;
+        m_chunks.clear();
+        m_chainBytes = 0;
+        m_retainedBytes = 0;
+        m_stunDecoder = new StunMessageDecoder();
+    }
+
+    public void finishDecode(final IoSession session,
+        final ProtocolDecoderOutput out) throws Exception {
+    }
+
+    public void dispose(final IoSession session) throws Exception {
+        reset();
+    }
+}
@@ -1,46 +1,76 @@
 package org.lastbamboo.common.turn.client;
 
 import java.net.InetSocketAddress;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.common.IoSession;
-import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
 import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderAdapter;
 import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
-import org.littleshoot.stun.stack.StunDemuxableProtocolCodecFactory;
 import org.littleshoot.stun.stack.message.StunMessage;
 import org.littleshoot.stun.stack.message.StunMessageVisitor;
 import org.littleshoot.stun.stack.message.StunMessageVisitorFactory;
 import org.lastbamboo.common.tcp.frame.TcpFrame;
-import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
-import org.littleshoot.util.mina.DemuxableProtocolCodecFactory;
-import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
 import org.littleshoot.util.mina.MinaUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Class that processes incoming data from a TURN client that needs to be
- * demultiplexed between TCP frames and STUN messages.
+ * demultiplexed between TCP frames and STUN messages.  When a
+ * {@link TurnFailoverClient} moves a remote host to another TURN server,
+ * its data arrives on a new connection, so we drop whatever we were holding
+ * of the old one.  A remote host that goes over its reassembly budget is
+ * reported closed, and we discard whatever else it relays until it's been
+ * quiet for {@link #DEFAULT_DISCARD_IDLE_MILLIS} or the server says it
+ * closed.
  */
-public class StunTcpFrameTurnClientListener implements TurnClientListener
+public class StunTcpFrameTurnClientListener implements TurnFailoverListener
     {
     
+    /**
+     * How long a remote host we've given up on has to be quiet before we
+     * forget it, by default.  We can't ask the server to drop it, so this
+     * keeps us from remembering every such host for the life of the session.
+     */
+    public static final long DEFAULT_DISCARD_IDLE_MILLIS = 60 * 1000;
+    
+    /**
+     * Stands in for the decoder of a remote host we've given up on, so we
+     * ignore whatever else it sends.
+     */
+    private static final class DiscardingDecoder extends ProtocolDecoderAdapter
+        {
+        private volatile long m_lastDataNanos = System.nanoTime();
+        
+        public void decode(final IoSession session, final ByteBuffer in,
+            final ProtocolDecoderOutput out)
+            {
+            m_lastDataNanos = System.nanoTime();
+            in.position(in.limit());
+            }
+        }
+    
     private final Logger m_log = LoggerFactory.getLogger(getClass());
     
     /**
      * We need a separate decoder for each remote address, as we can receive
      * data from multiple remote addresses simultaneously.  This maps from
-     * those addresses to their respective decoders.
+     * those addresses to their respective decoders.  We look one up for
+     * every Data Indication, so this is keyed by the packed address and
+     * port rather than by address objects.
      */
-    private final Map<InetSocketAddress, ProtocolDecoder> m_addressesToDecoders =
-        new ConcurrentHashMap<InetSocketAddress, ProtocolDecoder>();
+    private final PeerTable<ProtocolDecoder> m_addressesToDecoders =
+        new PeerTable<ProtocolDecoder>();
+    
+    private final TurnReassemblyBudget m_reassemblyBudget;
     
     private final TurnClientListener m_delegateListener;
+    
+    private final long m_discardIdleNanos;
 
-    private final StunMessageVisitorFactory m_stunMessageVisitorFactory;
+    private final StunMessageVisitorFactory<?> m_stunMessageVisitorFactory;
     
     private volatile int m_totalUnframedBytes = 0;
 
@@ -51,14 +81,52 @@ public class StunTcpFrameTurnClientListener implements TurnClientListener
      * 
      * @param stunMessageVisitorFactory The factory for visiting STUN messages.
      * @param delegateListener The listener to forward all events to.
-     * @param mapper Class that maps STUN transaction IDs to remote addresses.
      */
     public StunTcpFrameTurnClientListener(
-        final StunMessageVisitorFactory stunMessageVisitorFactory,
+        final StunMessageVisitorFactory<?> stunMessageVisitorFactory,
         final TurnClientListener delegateListener) 
         {
+        this(stunMessageVisitorFactory, delegateListener, 
+            TurnReassemblyBudget.fromConfig());
+        }
+    
+    /**
+     * Creates a new class that decodes {@link TcpFrame}s from incoming data.
+     * 
+     * @param stunMessageVisitorFactory The factory for visiting STUN messages.
+     * @param delegateListener The listener to forward all events to.
+     * @param reassemblyBudget The budget for partial messages from all 
+     * remote hosts.  This can be shared between listeners.
+     */
+    public StunTcpFrameTurnClientListener(
+        final StunMessageVisitorFactory<?> stunMessageVisitorFactory,
+        final TurnClientListener delegateListener,
+        final TurnReassemblyBudget reassemblyBudget) 
+        {
+        this(stunMessageVisitorFactory, delegateListener, reassemblyBudget,
+            DEFAULT_DISCARD_IDLE_MILLIS);
+        }
+    
+    /**
+     * Creates a new class that decodes {@link TcpFrame}s from incoming data.
+     * 
+     * @param stunMessageVisitorFactory The factory for visiting STUN messages.
+     * @param delegateListener The listener to forward all events to.
+     * @param reassemblyBudget The budget for partial messages from all 
+     * remote hosts.  This can be shared between listeners.
+     * @param discardIdleMillis How long a remote host that went over its
+     * budget has to be quiet before we stop discarding its data.
+     */
+    StunTcpFrameTurnClientListener(
+        final StunMessageVisitorFactory<?> stunMessageVisitorFactory,
+        final TurnClientListener delegateListener,
+        final TurnReassemblyBudget reassemblyBudget,
+        final long discardIdleMillis) 
+        {
         m_stunMessageVisitorFactory = stunMessageVisitorFactory;
         m_delegateListener = delegateListener;
+        m_reassemblyBudget = reassemblyBudget;
+        m_discardIdleNanos = TimeUnit.MILLISECONDS.toNanos(discardIdleMillis);
         }
 
     public void onData(final InetSocketAddress remoteAddress, 
@@ -78,7 +146,14 @@ public class StunTcpFrameTurnClientListener implements TurnClientListener
                 // next handler.  
                 // The next handler could or could not be this class, as it
                 // could be a STUN message.
-                if (TcpFrame.class.isAssignableFrom(message.getClass()))
+                if (message instanceof ReassembledTcpFrame)
+                    {
+                    final byte[] unframed = 
+                        ((ReassembledTcpFrame) message).getData();
+                    m_totalUnframedBytes += unframed.length;
+                    m_delegateListener.onData(remoteAddress, session, unframed);
+                    }
+                else if (TcpFrame.class.isAssignableFrom(message.getClass()))
                     {
                     final TcpFrame frame = (TcpFrame) message;
                     final byte[] unframed = frame.getData();
@@ -96,7 +171,7 @@ public class StunTcpFrameTurnClientListener implements TurnClientListener
                             "REMOTE_ADDRESS_MAP");
                     mapper.mapMessage(sm, remoteAddress);
                     
-                    final StunMessageVisitor visitor = 
+                    final StunMessageVisitor<?> visitor = 
                         m_stunMessageVisitorFactory.createVisitor(session);
                     try
                         {
@@ -118,7 +193,26 @@ public class StunTcpFrameTurnClientListener implements TurnClientListener
         final ProtocolDecoder decoder = getDecoder(remoteAddress);
         try
             {
-            decoder.decode(session, dataBuf, out);
+            if (decoder instanceof StunTcpFrameProtocolDecoder)
+                {
+                // The data is ours to keep, so the decoder can chain it
+                // rather than copying it.
+                ((StunTcpFrameProtocolDecoder) decoder).decode(session, data, 
+                    out);
+                }
+            else
+                {
+                decoder.decode(session, dataBuf, out);
+                }
+            }
+        catch (final TurnReassemblyBudgetExceededException e)
+            {
+            m_log.debug("Closing remote host over budget: "+remoteAddress, e);
+            m_reassemblyBudget.onClosedPeer();
+            final DiscardingDecoder discarding = new DiscardingDecoder();
+            this.m_addressesToDecoders.put(remoteAddress, discarding);
+            scheduleExpiry(remoteAddress, discarding, m_discardIdleNanos);
+            this.m_delegateListener.onRemoteAddressClosed(remoteAddress);
             }
         catch (final Exception e)
             {
@@ -131,38 +225,67 @@ public class StunTcpFrameTurnClientListener implements TurnClientListener
         m_log.debug("Processed data...");
         }
 
-    private ProtocolDecoder getDecoder(final InetSocketAddress remoteAddress)
+    /**
+     * Forgets a remote host we've given up on once it's been quiet long
+     * enough.  Anything it sends after that starts a new stream.
+     */
+    private void scheduleExpiry(final InetSocketAddress remoteAddress,
+        final DiscardingDecoder discarding, final long delayNanos)
         {
-        if (this.m_addressesToDecoders.containsKey(remoteAddress))
+        StunRetransmitter.sharedTimer().schedule(new Runnable()
             {
-            return this.m_addressesToDecoders.get(remoteAddress);
-            }
-        else
+            public void run()
+                {
+                final long idle = 
+                    System.nanoTime() - discarding.m_lastDataNanos;
+                if (idle < m_discardIdleNanos)
+                    {
+                    scheduleExpiry(remoteAddress, discarding, 
+                        m_discardIdleNanos - idle);
+                    return;
+                    }
+                // Only if it's still the one we scheduled this for.
+                synchronized (m_addressesToDecoders)
+                    {
+                    if (m_addressesToDecoders.get(remoteAddress) == discarding)
+                        {
+                        m_log.debug("Forgetting remote host: {}", 
+                            remoteAddress);
+                        m_addressesToDecoders.remove(remoteAddress);
+                        }
+                    }
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+    private ProtocolDecoder getDecoder(final InetSocketAddress remoteAddress)
+        {
+        final ProtocolDecoder existing = 
+            this.m_addressesToDecoders.get(remoteAddress);
+        if (existing != null)
             {
-            final ProtocolDecoder decoder = newDecoder();
-            this.m_addressesToDecoders.put(remoteAddress, decoder);
-            return decoder;
+            return existing;
             }
+        final ProtocolDecoder decoder = newDecoder();
+        final ProtocolDecoder raced = 
+            this.m_addressesToDecoders.putIfAbsent(remoteAddress, decoder);
+        return raced == null ? decoder : raced;
         }
 
     private ProtocolDecoder newDecoder()
         {
-        final DemuxableProtocolCodecFactory stunCodecFactory =
-            new StunDemuxableProtocolCodecFactory();
-        final DemuxableProtocolCodecFactory tcpFramingCodecFactory =
-            new TcpFrameCodecFactory();
-        final ProtocolCodecFactory dataCodecFactory = 
-            new DemuxingProtocolCodecFactory(stunCodecFactory, 
-                tcpFramingCodecFactory);
-        try
-            {
-            return dataCodecFactory.getDecoder();
-            }
-        catch (final Exception e)
-            {
-            m_log.error("Could not create decoder", e);
-            throw new RuntimeException("Could not create decoder!!", e);
-            }
+        return new StunTcpFrameProtocolDecoder(this.m_reassemblyBudget);
+        }
+    
+    /**
+     * Accessor for the budget for partial messages from remote hosts, 
+     * including how often remote hosts went over it.
+     * 
+     * @return The reassembly budget.
+     */
+    public TurnReassemblyBudget getReassemblyBudget()
+        {
+        return this.m_reassemblyBudget;
         }
 
     public IoSession onRemoteAddressOpened(
@@ -174,11 +297,74 @@ public class StunTcpFrameTurnClientListener implements TurnClientListener
 
     public void onRemoteAddressClosed(final InetSocketAddress remoteAddress)
         {
+        final ProtocolDecoder decoder = 
+            this.m_addressesToDecoders.remove(remoteAddress);
+        if (decoder instanceof DiscardingDecoder)
+            {
+            // We already told the delegate when we gave up on it.
+            return;
+            }
+        if (decoder != null)
+            {
+            dispose(decoder);
+            }
         this.m_delegateListener.onRemoteAddressClosed(remoteAddress);
         }
 
+    public void onRemoteAddressMoved(final InetSocketAddress remoteAddress,
+        final IoSession session)
+        {
+        final ProtocolDecoder decoder = 
+            this.m_addressesToDecoders.get(remoteAddress);
+        if (decoder instanceof DiscardingDecoder)
+            {
+            // We already told the delegate it closed.
+            return;
+            }
+        if (decoder != null)
+            {
+            // Part of a message from the old connection would corrupt the
+            // first message on the new one.
+            this.m_addressesToDecoders.remove(remoteAddress);
+            dispose(decoder);
+            }
+        if (this.m_delegateListener instanceof TurnFailoverListener)
+            {
+            ((TurnFailoverListener) this.m_delegateListener)
+                .onRemoteAddressMoved(remoteAddress, session);
+            }
+        else
+            {
+            this.m_delegateListener.onRemoteAddressClosed(remoteAddress);
+            this.m_delegateListener.onRemoteAddressOpened(remoteAddress, 
+                session);
+            }
+        }
+
+    private void dispose(final ProtocolDecoder decoder)
+        {
+        try
+            {
+            decoder.dispose(null);
+            }
+        catch (final Exception e)
+            {
+            m_log.debug("Could not dispose decoder", e);
+            }
+        }
+
     public void close()
         {
+        // This releases whatever partial messages still count against the
+        // reassembly budget, which other listeners may share.
+        for (final ProtocolDecoder decoder : 
+            this.m_addressesToDecoders.removeAll())
+            {
+            if (!(decoder instanceof DiscardingDecoder))
+                {
+                dispose(decoder);
+                }
+            }
         this.m_delegateListener.close();
         }
     }
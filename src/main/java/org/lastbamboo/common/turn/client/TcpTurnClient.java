@@ -1,13 +1,21 @@
 package org.lastbamboo.common.turn.client;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.commons.lang.SystemUtils;
 import org.littleshoot.dnssec4j.DNSSECException;
 import org.littleshoot.dnssec4j.DnsSec;
 import org.littleshoot.mina.common.ByteBuffer;
@@ -31,8 +39,9 @@ import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
 import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
 import org.littleshoot.mina.transport.socket.nio.SocketConnector;
 import org.littleshoot.mina.transport.socket.nio.SocketConnectorConfig;
-import org.littleshoot.stun.stack.StunMessageDecoder;
+import org.littleshoot.mina.transport.socket.nio.SocketSessionConfig;
 import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.ConnectErrorStunMessage;
 import org.littleshoot.stun.stack.message.StunMessage;
 import org.littleshoot.stun.stack.message.StunMessageVisitorAdapter;
 import org.littleshoot.stun.stack.message.attributes.turn.ConnectionStatus;
@@ -42,7 +51,9 @@ import org.littleshoot.stun.stack.message.turn.AllocateSuccessResponse;
 import org.littleshoot.stun.stack.message.turn.ConnectRequest;
 import org.littleshoot.stun.stack.message.turn.ConnectionStatusIndication;
 import org.littleshoot.stun.stack.message.turn.DataIndication;
+import org.littleshoot.stun.stack.transaction.StunTransactionListener;
 import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.DaemonThreadFactory;
 import org.littleshoot.util.RuntimeIoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,21 +73,63 @@ import org.slf4j.LoggerFactory;
 public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
     implements TurnClient, IoServiceListener {
     
+    /**
+     * How often we refresh channel bindings, in seconds.  Servers expire
+     * bindings after 10 minutes.
+     */
+    private static final long CHANNEL_REFRESH_SECONDS = 5 * 60;
+
+    private static final class SharedExecutorHolder {
+        private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(
+                new DaemonThreadFactory("TCP-TURN-Client-Migration"));
+    }
+
     private final Logger m_log = LoggerFactory.getLogger(getClass());
     
     private InetSocketAddress m_stunServerAddress;
     
-    private IoSession m_ioSession;
+    private volatile IoSession m_ioSession;
     private InetSocketAddress m_relayAddress;
     private InetSocketAddress m_mappedAddress;
     private boolean m_receivedAllocateResponse;
-    private final TurnClientListener m_turnClientListener;
+    private final TurnClientListener m_clientListener;
+    private volatile TurnClientListener m_turnClientListener;
     private final ProtocolCodecFactory m_dataCodecFactory;
     private int m_totalReadDataBytes;
     private int m_totalReadRawDataBytes;
     private final AtomicBoolean m_connected = new AtomicBoolean(false);
     private final SocketConnector m_connector = new SocketConnector();
     private final CandidateProvider<InetSocketAddress> m_candidateProvider;
+    private final TurnTransportConfig m_transportConfig;
+    private final TurnExecutionMode m_executionMode;
+    private Executor m_sessionEventExecutor;
+    private Executor m_peerEventExecutor;
+    private final LatencyHistogram m_callbackLatencies = new LatencyHistogram();
+    private final LatencyHistogram m_dispatchLatencies = new LatencyHistogram();
+    private final TurnChannelBindings m_channelBindings =
+        new TurnChannelBindings() {
+            @Override
+            protected void onBindRejected(
+                    final InetSocketAddress remoteAddress) {
+                countError();
+            }
+        };
+    private volatile ScheduledFuture<?> m_channelRefreshFuture;
+    private final TurnConnectRequests m_connectRequests =
+        new TurnConnectRequests();
+    private final TurnBindingTransactions m_bindingTransactions =
+        new TurnBindingTransactions(new StunRetransmitter()) {
+            @Override
+            protected void onTransactionFailed() {
+                countError();
+            }
+        };
+    private final TurnBandwidthShaper m_bandwidthShaper;
+    private volatile TurnHealthMonitor m_healthMonitor;
+    private volatile TurnHealthMonitor.Listener m_degradedListener;
+    private final AtomicBoolean m_migrating = new AtomicBoolean(false);
+    private boolean m_listeningToConnector;
 
     /**
      * Creates a new TURN client with the default provider for server addresses.
@@ -102,7 +155,34 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
     public TcpTurnClient(final TurnClientListener clientListener,
             final CandidateProvider<InetSocketAddress> candidateProvider,
             final ProtocolCodecFactory codecFactory) {
-        m_turnClientListener = clientListener;
+        this(clientListener, candidateProvider, codecFactory,
+                TurnTransportConfig.fromConfig());
+    }
+
+    /**
+     * Creates a new TCP TURN client with its own transport settings.
+     * 
+     * @param clientListener The listener for TURN client events.
+     * @param candidateProvider The class that provides TURN candidate 
+     * servers.
+     * @param codecFactory The codec factory.
+     * @param transportConfig The transport settings, such as
+     * {@link TurnTransportConfig#LOW_LATENCY}.
+     */
+    public TcpTurnClient(final TurnClientListener clientListener,
+            final CandidateProvider<InetSocketAddress> candidateProvider,
+            final ProtocolCodecFactory codecFactory,
+            final TurnTransportConfig transportConfig) {
+        if (transportConfig == null) {
+            throw new NullPointerException("Null transport config");
+        }
+        m_transportConfig = transportConfig;
+        m_executionMode = transportConfig.getExecutionMode();
+        m_bandwidthShaper = TurnBandwidthShaper.fromConfig();
+        m_clientListener = new TimedTurnClientListener(clientListener,
+                m_callbackLatencies,
+                TurnClientConfig.getSlowCallbackThresholdMillis());
+        m_turnClientListener = newTurnClientListener();
         m_candidateProvider = candidateProvider;
         m_dataCodecFactory = codecFactory;
         // Configure the MINA buffers for optimal performance.
@@ -114,16 +194,22 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
         if (this.m_connected.get()) {
             throw new IllegalArgumentException("Already connected...");
         }
-        final Collection<InetSocketAddress> candidates = this.m_candidateProvider
-                .getCandidates();
+        connect(this.m_candidateProvider.getCandidates());
+    }
 
+    private void connect(final Collection<InetSocketAddress> candidates)
+            throws IOException {
         m_log.info("Attempting connections to: {}", candidates);
 
         for (final InetSocketAddress serverAddress : candidates) {
             connect(serverAddress, null);
             synchronized (this.m_connected) {
                 try {
-                    this.m_connected.wait(30 * 1000);
+                    // The response may already be in, and then we'd wait
+                    // for a notify that's already happened.
+                    if (!isConnected()) {
+                        this.m_connected.wait(30 * 1000);
+                    }
                 } catch (final InterruptedException e) {
                     m_log.error("Interrupted while waiting", e);
                 }
@@ -133,6 +219,11 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
                 m_log.debug("Connected to: {}", serverAddress);
                 break;
             }
+            if (this.m_ioSession != null) {
+                // Don't leave a server that never answered holding a
+                // connection while we try the next one.
+                this.m_ioSession.close();
+            }
         }
         if (!isConnected()) {
             m_log.error("Could not connect or did not get allocate response");
@@ -153,7 +244,8 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
         } else {
             stunServerAddress = unverifiedStunServerAddress;
         }
-        final StunMessageDecoder decoder = new StunMessageDecoder();
+        final TurnServerMessageDecoder decoder =
+            new TurnServerMessageDecoder(m_channelBindings);
         final IoFilter turnFilter = new IoFilterAdapter() {
             @Override
             public void filterWrite(final NextFilter nextFilter,
@@ -173,6 +265,10 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
                     }
 
                     public void write(final Object msg) {
+                        if (msg instanceof TurnChannelData) {
+                            onChannelData((TurnChannelData) msg);
+                            return;
+                        }
                         final StunMessage stunMessage = (StunMessage) msg;
                         stunMessage.accept(TcpTurnClient.this);
                     }
@@ -187,29 +283,66 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
         final ProtocolCodecFilter dataFilter = new ProtocolCodecFilter(
                 m_dataCodecFactory);
 
+        // We build the chain again for each server we try, and each one
+        // needs a fresh decoder.
+        if (m_connector.getFilterChain().contains("stunFilter")) {
+            m_connector.getFilterChain().remove("stunFilter");
+        }
         m_connector.getFilterChain().addLast("stunFilter", turnFilter);
 
         // This is really only used for the encoding.
+        if (m_connector.getFilterChain().contains("dataFilter")) {
+            m_connector.getFilterChain().remove("dataFilter");
+        }
         m_connector.getFilterChain().addLast("dataFilter", dataFilter);
 
-        m_connector.addListener(this);
+        // The capture filter starts a file for each session.
+        if (m_connector.getFilterChain().contains("captureFilter")) {
+            m_connector.getFilterChain().remove("captureFilter");
+        }
+        final File captureDirectory = TurnClientConfig.getCaptureDirectory();
+        if (captureDirectory != null) {
+            // At the head of the chain we see exactly what crossed the
+            // socket in both directions.
+            m_connector.getFilterChain().addFirst("captureFilter",
+                    new TurnCaptureFilter(captureDirectory));
+        }
+
+        // TLS goes ahead of everything else, including the capture, so the
+        // capture records plaintext.
+        if (m_connector.getFilterChain().contains("tlsFilter")) {
+            m_connector.getFilterChain().remove("tlsFilter");
+        }
+        if (TurnClientConfig.isUseTls()) {
+            m_connector.getFilterChain().addFirst("tlsFilter",
+                    new TurnTlsFilter(TurnTlsSessionCache.shared(),
+                            stunServerAddress));
+        }
+
+        if (!this.m_listeningToConnector) {
+            m_connector.addListener(this);
+            this.m_listeningToConnector = true;
+        }
 
         // m_connectionListener = listener;
         m_stunServerAddress = stunServerAddress;
         final SocketConnectorConfig config = new SocketConnectorConfig();
 
-        // Java has weird issues with the new networking stack in Windows Vista.
-        if (SystemUtils.IS_OS_WINDOWS_VISTA) {
-            config.getSessionConfig().setKeepAlive(false);
-        } else {
-            config.getSessionConfig().setKeepAlive(true);
+        final SocketSessionConfig sessionConfig = config.getSessionConfig();
+        sessionConfig.setKeepAlive(m_transportConfig.isKeepAlive());
+        sessionConfig.setReuseAddress(m_transportConfig.isReuseAddress());
+        sessionConfig.setTcpNoDelay(m_transportConfig.isTcpNoDelay());
+        if (m_transportConfig.getSendBufferSize() > 0) {
+            sessionConfig.setSendBufferSize(
+                    m_transportConfig.getSendBufferSize());
+        }
+        if (m_transportConfig.getReceiveBufferSize() > 0) {
+            // MINA also sizes its first read buffer from this.
+            sessionConfig.setReceiveBufferSize(
+                    m_transportConfig.getReceiveBufferSize());
         }
-        config.getSessionConfig().setReuseAddress(true);
 
-        final ThreadModel threadModel = ExecutorThreadModel
-                .getInstance("TCP-TURN-Client-" + hashCode());
-        config.setThreadModel(threadModel);
-        // config.setThreadModel(ThreadModel.MANUAL);
+        config.setThreadModel(newThreadModel());
 
         m_log.info("Connection to STUN server here: {}", m_stunServerAddress);
 
@@ -247,6 +380,17 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
                 final TurnStunMessageMapper mapper = 
                     new TurnStunMessageMapperImpl();
                 m_ioSession.setAttribute("REMOTE_ADDRESS_MAP", mapper);
+                m_ioSession.setAttribute(TurnChannelBindings.SESSION_KEY,
+                        m_channelBindings);
+                // Binding responses are matched once the remote host's
+                // stream is reassembled, in StunTcpFrameProtocolDecoder.
+                m_ioSession.setAttribute(TurnBindingTransactions.SESSION_KEY,
+                        m_bindingTransactions);
+                if (m_bandwidthShaper.isUploadShaped()) {
+                    // Channel writes find the upload limits here.
+                    m_ioSession.setAttribute(TurnBandwidthShaper.SESSION_KEY,
+                            m_bandwidthShaper);
+                }
                 final AllocateRequest msg = new AllocateRequest();
 
                 m_log.debug("Sending allocate request to write handler...");
@@ -258,6 +402,248 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
         connectFuture.join();
     }
 
+    /**
+     * Creates the chain of listeners for a single session with the TURN
+     * server.  Dispatching listeners stop delivering events once they're
+     * closed, so each session gets its own.
+     * 
+     * @return The new listener.
+     */
+    private TurnClientListener newTurnClientListener() {
+        final TurnClientListener dispatchingListener =
+            newDispatchingListener(m_clientListener);
+        if (m_bandwidthShaper.isDownloadShaped() ||
+                m_bandwidthShaper.isPeerShaped()) {
+            // We shape before dispatching so reads are suspended on the
+            // thread that read the data.  We also need the listener to
+            // forget the buckets for remote hosts that close, even if we
+            // only shape uploads.
+            return new ShapingTurnClientListener(dispatchingListener,
+                    m_bandwidthShaper);
+        }
+        return dispatchingListener;
+    }
+
+    private TurnClientListener newDispatchingListener(
+            final TurnClientListener clientListener) {
+        switch (m_executionMode) {
+        case VIRTUAL_THREADS:
+            // Each remote address gets its own ordered stream of events
+            // so blocking listeners only ever hold up their own peer.
+            if (m_peerEventExecutor == null) {
+                m_peerEventExecutor = VirtualThreads.newExecutor(
+                        "TCP-TURN-Client-Peer-" + hashCode());
+            }
+            return new PeerSerialTurnClientListener(clientListener,
+                    m_peerEventExecutor);
+        case STRIPED:
+            return new StripedTurnClientListener(
+                    new AsyncLifecycleTurnClientListener(clientListener));
+        default:
+            // Opening a remote address connects to the local server, so
+            // we keep that off the thread delivering everyone's data.
+            return new AsyncLifecycleTurnClientListener(clientListener);
+        }
+    }
+
+    private ThreadModel newThreadModel() {
+        if (m_executionMode == TurnExecutionMode.INLINE) {
+            // Decode and dispatch directly on the IO processor thread.
+            return ThreadModel.MANUAL;
+        }
+        final ExecutorThreadModel threadModel = ExecutorThreadModel
+                .getInstance("TCP-TURN-Client-" + hashCode());
+        if (m_executionMode == TurnExecutionMode.VIRTUAL_THREADS) {
+            // MINA's executor filter still orders events for the session,
+            // so we only swap out the threads events run on.  The IO
+            // processors themselves are untouched.
+            if (m_sessionEventExecutor == null) {
+                m_sessionEventExecutor = new TimedExecutor(
+                        VirtualThreads.newExecutor("TCP-TURN-Client-Session-"
+                                + hashCode()), m_dispatchLatencies);
+            }
+            threadModel.setExecutor(m_sessionEventExecutor);
+        } else if (!(threadModel.getExecutor() instanceof TimedExecutor)) {
+            threadModel.setExecutor(new TimedExecutor(
+                    threadModel.getExecutor(), m_dispatchLatencies));
+        }
+        return threadModel;
+    }
+
+    /**
+     * Accessor for how long {@link TurnClientListener} callbacks take.
+     * 
+     * @return The histogram of callback latencies.
+     */
+    public LatencyHistogram getCallbackLatencies() {
+        return m_callbackLatencies;
+    }
+
+    /**
+     * Accessor for this client's transport settings.  Listeners can pass
+     * them to {@link TurnLocalIoHandler}s so local data is chunked and
+     * queued the same way.
+     * 
+     * @return The transport settings.
+     */
+    public TurnTransportConfig getTransportConfig() {
+        return this.m_transportConfig;
+    }
+
+    /**
+     * Accessor for the bandwidth shaper for this client.  Pass this to
+     * {@link TurnLocalIoHandler} to apply the upload limits, and use its
+     * delay histograms to see how much shaping slows data down.
+     * 
+     * @return The bandwidth shaper.
+     */
+    public TurnBandwidthShaper getBandwidthShaper() {
+        return m_bandwidthShaper;
+    }
+
+    /**
+     * Accessor for how long events wait between being read on the IO
+     * processor thread and being picked up by the thread that processes
+     * them.  This is always empty in {@link TurnExecutionMode#INLINE} mode,
+     * so comparing it along with {@link #getCallbackLatencies()} across
+     * modes shows what the executor hop costs.
+     * 
+     * @return The histogram of dispatch latencies.
+     */
+    public LatencyHistogram getDispatchLatencies() {
+        return m_dispatchLatencies;
+    }
+
+    /**
+     * Accessor for the health monitor for the current TURN server, if
+     * the {@link TurnHealthConfig} in our transport settings turned
+     * probing on.
+     * 
+     * @return The health monitor, or <code>null</code> if we're not
+     * probing or not connected.
+     */
+    public TurnHealthMonitor getHealthMonitor() {
+        return this.m_healthMonitor;
+    }
+
+    /**
+     * Moves to another TURN server.  This closes the session with the
+     * current server, which closes all remote hosts just as losing the
+     * server would, and connects to the remaining candidates in the order
+     * the candidate provider lists them.  We take the first one that
+     * answers rather than probing the candidates for the healthiest, so
+     * the new server is only better in that it isn't the old one.  The
+     * current server is tried last, in case it's the only one that works.
+     * The relay address changes, so callers need to hand out the new one.
+     * The health monitor calls this when the current server degrades.
+     * 
+     * @throws IOException If we couldn't connect to any server.
+     */
+    public void migrate() throws IOException {
+        if (!this.m_migrating.compareAndSet(false, true)) {
+            m_log.debug("Already migrating");
+            return;
+        }
+        try {
+            final InetSocketAddress current = this.m_stunServerAddress;
+            final List<InetSocketAddress> candidates =
+                new ArrayList<InetSocketAddress>(
+                        this.m_candidateProvider.getCandidates());
+            if (current != null && candidates.remove(current)) {
+                candidates.add(current);
+            }
+            m_log.info("Migrating from {} to one of {}", current, candidates);
+            close();
+            waitForDisconnect();
+            connect(candidates);
+        } finally {
+            this.m_migrating.set(false);
+        }
+    }
+
+    /**
+     * Sets the listener to notify when the health monitor finds the server
+     * degraded, in place of migrating on our own.  This lets a class that
+     * manages several clients, such as {@link TurnFailoverClient}, decide
+     * where the traffic goes.
+     * 
+     * @param degradedListener The listener, or <code>null</code> to
+     * migrate on our own.
+     */
+    void setDegradedListener(
+            final TurnHealthMonitor.Listener degradedListener) {
+        this.m_degradedListener = degradedListener;
+    }
+
+    private void waitForDisconnect() {
+        // Listeners hear the session was destroyed after its close future
+        // completes, and we can't connect again until they have.
+        synchronized (this.m_connected) {
+            final long end = System.currentTimeMillis() + 30 * 1000;
+            while (isConnected()) {
+                final long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    m_log.warn("Session still open after close");
+                    this.m_connected.set(false);
+                    return;
+                }
+                try {
+                    this.m_connected.wait(remaining);
+                } catch (final InterruptedException e) {
+                    m_log.error("Interrupted while waiting", e);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void startHealthMonitor() {
+        final TurnHealthConfig healthConfig =
+            this.m_transportConfig.getHealthConfig();
+        if (this.m_healthMonitor != null || !healthConfig.isEnabled()) {
+            return;
+        }
+        final TurnHealthMonitor.Listener listener =
+            new TurnHealthMonitor.Listener() {
+            public void onDegraded(final TurnHealthMonitor monitor,
+                    final String reason) {
+                if (monitor != m_healthMonitor) {
+                    return;
+                }
+                final TurnHealthMonitor.Listener degradedListener =
+                    m_degradedListener;
+                if (degradedListener != null) {
+                    degradedListener.onDegraded(monitor, reason);
+                    return;
+                }
+                // Connecting blocks, so we don't do it on the timer thread.
+                SharedExecutorHolder.EXECUTOR.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            migrate();
+                        } catch (final IOException e) {
+                            m_log.warn("Could not migrate to a new server", e);
+                        }
+                    }
+                });
+            }
+        };
+        this.m_healthMonitor =
+            TurnHealthMonitor.fromConfig(this.m_ioSession, listener,
+                    healthConfig);
+        this.m_healthMonitor.start();
+    }
+
+    /**
+     * Counts an error from the server against its health.
+     */
+    private void countError() {
+        final TurnHealthMonitor monitor = this.m_healthMonitor;
+        if (monitor != null) {
+            monitor.onError();
+        }
+    }
+
     public void close() {
         m_log.debug("Closing TCP TURN client.");
         if (this.m_ioSession != null) {
@@ -268,7 +654,145 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
 
     public void sendConnectRequest(final InetSocketAddress remoteAddress) {
         final ConnectRequest request = new ConnectRequest(remoteAddress);
-        this.m_ioSession.write(request);
+        getSession().write(request);
+    }
+
+    /**
+     * Sends a Connect Request for a remote address, returning a future that
+     * completes when the TURN server reports the connection status.
+     * 
+     * @param remoteAddress The address of the remote host.
+     * @param timeoutMillis How long to wait for the remote host to connect.
+     * @return The future for the request.
+     * @throws IllegalStateException If we're not connected to a TURN
+     * server.
+     */
+    public TurnConnectFuture sendConnectRequest(
+            final InetSocketAddress remoteAddress, final long timeoutMillis) {
+        return sendConnectRequests(Collections.singleton(remoteAddress),
+                timeoutMillis).get(0);
+    }
+
+    /**
+     * Sends Connect Requests for many remote addresses at once.  The
+     * requests are pipelined in a single write, so they reach the server
+     * together rather than one flush at a time.
+     * 
+     * @param remoteAddresses The addresses of the remote hosts.
+     * @param timeoutMillis How long to wait for each remote host to connect.
+     * @return The futures for the requests, in the same order as the
+     * addresses.
+     * @throws IllegalStateException If we're not connected to a TURN
+     * server.
+     */
+    public List<TurnConnectFuture> sendConnectRequests(
+            final Collection<InetSocketAddress> remoteAddresses,
+            final long timeoutMillis) {
+        // Check before creating the futures, as nothing would ever complete
+        // them.
+        final IoSession session = getSession();
+        final List<TurnConnectFuture> futures =
+            new ArrayList<TurnConnectFuture>(remoteAddresses.size());
+        final ByteBuffer requests = this.m_connectRequests.newRequests(
+                remoteAddresses, timeoutMillis, futures);
+        if (requests != null) {
+            session.write(requests);
+        }
+        return futures;
+    }
+
+    /**
+     * Accessor for the time from sending Connect Requests with
+     * {@link #sendConnectRequests(Collection, long)} to the remote hosts
+     * connecting.
+     * 
+     * @return The time to established histogram.
+     */
+    public LatencyHistogram getTimeToEstablished() {
+        return this.m_connectRequests.getTimeToEstablished();
+    }
+
+    /**
+     * Binds a remote address to a channel on the TURN server.  Once the
+     * server confirms the binding, data for the address travels as
+     * ChannelData rather than in Send and Data Indications.  Until then,
+     * or if the server rejects the binding, we keep using indications.
+     * 
+     * @param remoteAddress The remote address to bind.
+     * @throws IllegalStateException If we're not connected to a TURN
+     * server.
+     */
+    public void bindChannel(final InetSocketAddress remoteAddress) {
+        final IoSession session = getSession();
+        final ByteBuffer request =
+            this.m_channelBindings.newBindRequest(remoteAddress);
+        if (request != null) {
+            session.write(request);
+        }
+    }
+
+    /**
+     * Accessor for the channel bindings on the current TURN session.
+     * 
+     * @return The channel bindings.
+     */
+    public TurnChannelBindings getChannelBindings() {
+        return this.m_channelBindings;
+    }
+
+    private IoSession getSession() {
+        final IoSession session = this.m_ioSession;
+        if (session == null) {
+            throw new IllegalStateException("Not connected to TURN server");
+        }
+        return session;
+    }
+
+    private void scheduleChannelRefresh() {
+        if (this.m_channelRefreshFuture != null) {
+            return;
+        }
+        final Runnable refresh = new Runnable() {
+            public void run() {
+                for (final InetSocketAddress remoteAddress :
+                        m_channelBindings.getBoundAddresses()) {
+                    bindChannel(remoteAddress);
+                }
+            }
+        };
+        this.m_channelRefreshFuture = StunRetransmitter.sharedTimer()
+                .scheduleWithFixedDelay(refresh, CHANNEL_REFRESH_SECONDS,
+                        CHANNEL_REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void onChannelData(final TurnChannelData channelData) {
+        final InetSocketAddress remoteAddress = this.m_channelBindings
+                .getRemoteAddress(channelData.getChannelNumber());
+        if (remoteAddress == null) {
+            m_log.debug("Dropping data for unbound channel: {}", channelData);
+            return;
+        }
+        m_totalReadRawDataBytes += channelData.getData().length;
+        try {
+            m_turnClientListener.onData(remoteAddress, this.m_ioSession,
+                    channelData.getData());
+        } catch (final Exception e) {
+            m_log.error("Could not process data: {}", channelData, e);
+        }
+    }
+
+    public long sendFile(final InetSocketAddress remoteAddress,
+            final File file, final long offset, final long length)
+            throws IOException {
+        if (!isConnected()) {
+            throw new IOException("Not connected to TURN server");
+        }
+        final TurnFileSender sender = new TurnFileSender(this.m_ioSession,
+                this.m_transportConfig.getMaxQueuedBytes(),
+                this.m_transportConfig.getChunkSize(),
+                this.m_bandwidthShaper.isUploadShaped() ?
+                        this.m_bandwidthShaper : null);
+        return sender.sendFile(remoteAddress, file, offset, length);
     }
 
     public InetSocketAddress getRelayAddress() {
@@ -287,11 +811,17 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
         // for keep-alives as well as the initial allocation.
 
         m_log.debug("Got successful allocate response: {}", response);
+        final TurnHealthMonitor monitor = this.m_healthMonitor;
+        if (monitor != null
+                && monitor.onProbeResponse(response.getTransactionId())) {
+            return null;
+        }
         // We need to set the relay address before notifying the
         // listener we're "connected".
         this.m_relayAddress = response.getRelayAddress();
         this.m_mappedAddress = response.getMappedAddress();
         this.m_receivedAllocateResponse = true;
+        startHealthMonitor();
         // this.m_connectionListener.connected(this.m_stunServerAddress);
         this.m_connected.set(true);
         synchronized (this.m_connected) {
@@ -305,6 +835,7 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
             final AllocateErrorResponse response) {
         m_log.warn("Received an Allocate Response error from the server: "
                 + response.getAttributes());
+        countError();
         // this.m_connectionListener.connectionFailed();
         this.m_ioSession.close();
         return null;
@@ -316,9 +847,14 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
         m_log.debug("Visiting connection status message: {}", indication);
         final ConnectionStatus status = indication.getConnectionStatus();
         final InetSocketAddress remoteAddress = indication.getRemoteAddress();
+        if (this.m_connectRequests.onConnectionStatus(remoteAddress, status)) {
+            // The server couldn't reach a remote host we asked for.
+            countError();
+        }
         switch (status) {
         case CLOSED:
             m_log.debug("Got connection closed from: " + remoteAddress);
+            this.m_channelBindings.remove(remoteAddress);
             this.m_turnClientListener.onRemoteAddressClosed(remoteAddress);
             break;
         case ESTABLISHED:
@@ -327,6 +863,10 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
             // Create a local connection for the newly established session.
             this.m_turnClientListener.onRemoteAddressOpened(remoteAddress,
                     this.m_ioSession);
+            if (TurnClientConfig.isUseChannelBindings()) {
+                bindChannel(remoteAddress);
+                scheduleChannelRefresh();
+            }
             break;
         case LISTEN:
             m_log.debug("Got server listening for incoming data from: "
@@ -336,6 +876,15 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
         return null;
     }
 
+    @Override
+    public StunMessage visitConnectErrorMesssage(
+            final ConnectErrorStunMessage message) {
+        m_log.debug("Got connect error: {}", message);
+        countError();
+        this.m_connectRequests.failAll("Connect error");
+        return null;
+    }
+
     @Override
     public StunMessage visitDataIndication(final DataIndication data) {
         m_log.debug("Visiting Data Indication message: {}", data);
@@ -369,6 +918,20 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
 
     public void sessionDestroyed(final IoSession session) {
         m_log.debug("Session destroyed...");
+        if (session != this.m_ioSession) {
+            // A server we gave up on or moved away from.  Everything on it
+            // was already cleaned up or never started.
+            return;
+        }
+        // The next session gets fresh listeners, as closing this one
+        // discards anything still queued on it.
+        final TurnClientListener listener = this.m_turnClientListener;
+        this.m_turnClientListener = newTurnClientListener();
+        final TurnHealthMonitor monitor = this.m_healthMonitor;
+        if (monitor != null) {
+            monitor.stop();
+            this.m_healthMonitor = null;
+        }
         if (this.m_receivedAllocateResponse) {
             // We're disconnected, so set the allocate response flag to false
             // because the client's current connection, or lack thereof, has
@@ -377,14 +940,38 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
             this.m_connected.set(false);
             // this.m_connectionListener.disconnected();
         }
+        // This also wakes up connect() if the server closed before it
+        // answered, for example because its TLS certificate was wrong.
+        synchronized (this.m_connected) {
+            this.m_connected.notifyAll();
+        }
+        final ScheduledFuture<?> channelRefresh = this.m_channelRefreshFuture;
+        if (channelRefresh != null) {
+            channelRefresh.cancel(false);
+            this.m_channelRefreshFuture = null;
+        }
+        this.m_channelBindings.clear();
+        this.m_bindingTransactions.cancelAll();
+        this.m_connectRequests.failAll("Connection to TURN server closed");
 
-        this.m_turnClientListener.close();
+        listener.close();
     }
 
     public InetAddress getStunServerAddress() {
         return this.m_stunServerAddress.getAddress();
     }
 
+    /**
+     * Accessor for the address and port of the TURN server we last
+     * connected to.
+     * 
+     * @return The address of the TURN server, or <code>null</code> if we
+     * haven't tried to connect.
+     */
+    public InetSocketAddress getServerAddress() {
+        return this.m_stunServerAddress;
+    }
+
     public InetSocketAddress getHostAddress() {
         return (InetSocketAddress) this.m_ioSession.getLocalAddress();
     }
@@ -395,19 +982,33 @@ public class TcpTurnClient extends StunMessageVisitorAdapter<StunMessage>
 
     public StunMessage write(final BindingRequest request,
             final InetSocketAddress remoteAddress) {
-        // TODO We should just send the request to the server,
-        // and we should combine the functionality of this class with the
-        // functionality of TcpStunClient.
-        // Or is this just handled by IceStunCheckers??
-        m_log.error("Unsupported!!!!!!!");
-        throw new IllegalStateException("Not implemented.");
+        return write(request, remoteAddress, StunRetransmitter.DEFAULT_RTO);
     }
 
     public StunMessage write(final BindingRequest request,
             final InetSocketAddress remoteAddress, final long rto) {
-        // See comment above.
-        m_log.error("Unsupported!!!!!!!");
-        throw new IllegalStateException("Not implemented.");
+        // The path from the TURN server to the remote host may well be UDP,
+        // so we retransmit even though our own connection is reliable.
+        return this.m_bindingTransactions.write(this.m_ioSession, request,
+                remoteAddress, rto);
+    }
+
+    /**
+     * Sends a Binding Request to a remote host through the TURN server
+     * without blocking.  This is what callers running many checks at once,
+     * such as ICE, should use.
+     * 
+     * @param request The request.
+     * @param remoteAddress The remote host to send the request to.
+     * @param rto The initial retransmission timeout in milliseconds.
+     * @param listener The listener to notify when the transaction
+     * completes.
+     */
+    public void write(final BindingRequest request,
+            final InetSocketAddress remoteAddress, final long rto,
+            final StunTransactionListener<?> listener) {
+        this.m_bindingTransactions.write(this.m_ioSession, request,
+                remoteAddress, rto, listener);
     }
 
     public boolean isConnected() {
@@ -0,0 +1,40 @@
+package org.lastbamboo.common.turn.client;
+
+import java.util.concurrent.Executor;
+
+/**
+ * {@link Executor} wrapper that records how long each task waits between
+ * being submitted and starting to run.  We use this to measure the hop from
+ * the IO processor thread to the thread that processes TURN events.
+ */
+public class TimedExecutor implements Executor {
+
+    private final Executor m_executor;
+
+    private final LatencyHistogram m_latencies;
+
+    /**
+     * Creates a new timed executor.
+     *
+     * @param executor The executor that actually runs tasks.
+     * @param latencies The histogram to record queueing delays in.
+     */
+    public TimedExecutor(final Executor executor,
+        final LatencyHistogram latencies) {
+        if (executor == null) {
+            throw new NullPointerException("Null executor");
+        }
+        m_executor = executor;
+        m_latencies = latencies;
+    }
+
+    public void execute(final Runnable task) {
+        final long submitted = System.nanoTime();
+        m_executor.execute(new Runnable() {
+            public void run() {
+                m_latencies.record(System.nanoTime() - submitted);
+                task.run();
+            }
+        });
+    }
+}
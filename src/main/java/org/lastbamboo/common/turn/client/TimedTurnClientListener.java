@@ -0,0 +1,117 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TurnClientListener} that times every callback to its delegate.  We
+ * record callback latencies in a {@link LatencyHistogram} and warn about
+ * callbacks that take longer than a threshold.  This matters most with
+ * {@link TurnExecutionMode#INLINE}, where a slow callback stalls the IO
+ * processor thread and every other session it serves.
+ */
+public class TimedTurnClientListener implements TurnClientListener {
+
+    /**
+     * We warn about slow callbacks at most this often so a persistently slow
+     * listener doesn't flood the logs.
+     */
+    private static final long WARN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final TurnClientListener m_delegate;
+
+    private final LatencyHistogram m_latencies;
+
+    private final long m_slowThresholdNanos;
+
+    private final AtomicLong m_slowCallbacks = new AtomicLong(0L);
+
+    private final AtomicLong m_lastWarning = new AtomicLong(0L);
+
+    /**
+     * Creates a new timing listener.
+     *
+     * @param delegate The listener to forward all events to.
+     * @param latencies The histogram to record callback latencies in.
+     * @param slowThresholdMillis Callbacks taking longer than this many
+     * milliseconds are considered slow.
+     */
+    public TimedTurnClientListener(final TurnClientListener delegate,
+        final LatencyHistogram latencies, final long slowThresholdMillis) {
+        if (delegate == null) {
+            throw new NullPointerException("Null delegate");
+        }
+        m_delegate = delegate;
+        m_latencies = latencies;
+        m_slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+    }
+
+    public IoSession onRemoteAddressOpened(
+        final InetSocketAddress remoteAddress, final IoSession session) {
+        final long start = System.nanoTime();
+        try {
+            return m_delegate.onRemoteAddressOpened(remoteAddress, session);
+        } finally {
+            finished("onRemoteAddressOpened", remoteAddress, start);
+        }
+    }
+
+    public void onRemoteAddressClosed(final InetSocketAddress remoteAddress) {
+        final long start = System.nanoTime();
+        try {
+            m_delegate.onRemoteAddressClosed(remoteAddress);
+        } finally {
+            finished("onRemoteAddressClosed", remoteAddress, start);
+        }
+    }
+
+    public void onData(final InetSocketAddress remoteAddress,
+        final IoSession session, final byte[] data) {
+        final long start = System.nanoTime();
+        try {
+            m_delegate.onData(remoteAddress, session, data);
+        } finally {
+            finished("onData", remoteAddress, start);
+        }
+    }
+
+    public void close() {
+        m_delegate.close();
+    }
+
+    /**
+     * Accessor for the number of callbacks that exceeded the slow threshold.
+     *
+     * @return The number of slow callbacks.
+     */
+    public long getSlowCallbacks() {
+        return m_slowCallbacks.get();
+    }
+
+    private void finished(final String callback,
+        final InetSocketAddress remoteAddress, final long start) {
+        final long now = System.nanoTime();
+        final long elapsed = now - start;
+        m_latencies.record(elapsed);
+        if (elapsed <= m_slowThresholdNanos) {
+            return;
+        }
+        final long slow = m_slowCallbacks.incrementAndGet();
+        final long last = m_lastWarning.get();
+        if ((last == 0L || now - last > WARN_INTERVAL_NANOS) &&
+            m_lastWarning.compareAndSet(last, now)) {
+            m_log.warn(callback + " for " + remoteAddress + " took " +
+                TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms on thread " +
+                Thread.currentThread().getName() + " -- " + slow +
+                " slow callbacks so far. Listeners should not block the " +
+                "thread delivering TURN events.");
+        }
+    }
+}
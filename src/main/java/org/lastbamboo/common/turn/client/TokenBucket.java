@@ -0,0 +1,55 @@
+package org.lastbamboo.common.turn.client;
+
+/**
+ * Token bucket for limiting a flow of bytes to a steady rate while allowing
+ * short bursts.  Rather than making callers wait or poll for tokens, we let
+ * the bucket go into debt and tell the caller how long to hold off before
+ * moving more data, which fits with suspending and resuming reads.
+ */
+public class TokenBucket {
+
+    private final double m_bytesPerNano;
+
+    private final double m_burstBytes;
+
+    private double m_tokens;
+
+    private long m_lastRefillNanos;
+
+    /**
+     * Creates a new token bucket that starts out full.
+     *
+     * @param bytesPerSecond The sustained rate in bytes per second.
+     * @param burstBytes The largest burst we allow.
+     */
+    public TokenBucket(final long bytesPerSecond, final long burstBytes) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException("Bad rate or burst: " +
+                bytesPerSecond + "," + burstBytes);
+        }
+        m_bytesPerNano = bytesPerSecond / 1000000000.0;
+        m_burstBytes = burstBytes;
+        m_tokens = burstBytes;
+        m_lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes tokens for bytes we're about to move, whether or not there are
+     * enough of them.
+     *
+     * @param bytes The number of bytes.
+     * @return How long to wait before moving more data, in nanoseconds, or
+     * 0 if there's no need to wait.
+     */
+    public synchronized long reserve(final int bytes) {
+        final long now = System.nanoTime();
+        m_tokens = Math.min(m_burstBytes,
+            m_tokens + (now - m_lastRefillNanos) * m_bytesPerNano);
+        m_lastRefillNanos = now;
+        m_tokens -= bytes;
+        if (m_tokens >= 0) {
+            return 0;
+        }
+        return (long) (-m_tokens / m_bytesPerNano);
+    }
+}
@@ -0,0 +1,292 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the bandwidth a TURN client uses, both for each remote host and
+ * for the client as a whole, in each direction.  Each limit is a
+ * {@link TokenBucket}.  When a flow goes over its limit, we suspend reads
+ * on the session feeding it until the bucket has caught up, so nothing
+ * spins waiting for tokens.  Upload is shaped by suspending the local
+ * session data for the remote host comes from, or by blocking senders that
+ * have no local session, while download is shaped by suspending reads from
+ * the TURN server.  Since all remote hosts share the
+ * connection to the TURN server, one remote host going over its download
+ * limit briefly holds up the others as well.<p>
+ *
+ * We record how long we hold off each flow so the cost of shaping shows up
+ * in latency metrics rather than as unexplained slowness.
+ */
+public class TurnBandwidthShaper {
+
+    /**
+     * The session attribute the shaper for uploads on a TURN session is
+     * stored under, if uploads are shaped.
+     */
+    public static final String SESSION_KEY = "TURN_BANDWIDTH_SHAPER";
+
+    private static final String RESUME_AT_KEY = "TURN_SHAPER_RESUME_AT";
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final long m_peerUploadBytesPerSecond;
+
+    private final long m_peerDownloadBytesPerSecond;
+
+    private final TokenBucket m_clientUpload;
+
+    private final TokenBucket m_clientDownload;
+
+    private final Map<InetSocketAddress, TokenBucket> m_peerUploads =
+        new ConcurrentHashMap<InetSocketAddress, TokenBucket>();
+
+    private final Map<InetSocketAddress, TokenBucket> m_peerDownloads =
+        new ConcurrentHashMap<InetSocketAddress, TokenBucket>();
+
+    private final LatencyHistogram m_uploadDelays = new LatencyHistogram();
+
+    private final LatencyHistogram m_downloadDelays = new LatencyHistogram();
+
+    /**
+     * Creates a new shaper.  Any limit of 0 or less means unlimited.  Each
+     * bucket allows bursts of one second's worth of data.
+     *
+     * @param peerUploadBytesPerSecond The upload limit for each remote host.
+     * @param peerDownloadBytesPerSecond The download limit for each remote
+     * host.
+     * @param clientUploadBytesPerSecond The upload limit for all remote
+     * hosts together.
+     * @param clientDownloadBytesPerSecond The download limit for all remote
+     * hosts together.
+     */
+    public TurnBandwidthShaper(final long peerUploadBytesPerSecond,
+        final long peerDownloadBytesPerSecond,
+        final long clientUploadBytesPerSecond,
+        final long clientDownloadBytesPerSecond) {
+        m_peerUploadBytesPerSecond = peerUploadBytesPerSecond;
+        m_peerDownloadBytesPerSecond = peerDownloadBytesPerSecond;
+        m_clientUpload = newBucket(clientUploadBytesPerSecond);
+        m_clientDownload = newBucket(clientDownloadBytesPerSecond);
+    }
+
+    /**
+     * Creates a shaper with the limits from {@link TurnClientConfig}.
+     *
+     * @return The new shaper.
+     */
+    public static TurnBandwidthShaper fromConfig() {
+        return new TurnBandwidthShaper(
+            TurnClientConfig.getPeerUploadBytesPerSecond(),
+            TurnClientConfig.getPeerDownloadBytesPerSecond(),
+            TurnClientConfig.getClientUploadBytesPerSecond(),
+            TurnClientConfig.getClientDownloadBytesPerSecond());
+    }
+
+    /**
+     * Returns whether or not any upload limit is set.
+     *
+     * @return <code>true</code> if uploads are shaped, otherwise
+     * <code>false</code>.
+     */
+    public boolean isUploadShaped() {
+        return m_peerUploadBytesPerSecond > 0 || m_clientUpload != null;
+    }
+
+    /**
+     * Returns whether or not any download limit is set.
+     *
+     * @return <code>true</code> if downloads are shaped, otherwise
+     * <code>false</code>.
+     */
+    public boolean isDownloadShaped() {
+        return m_peerDownloadBytesPerSecond > 0 || m_clientDownload != null;
+    }
+
+    /**
+     * Returns whether or not any limit is set for each remote host, in
+     * which case we keep buckets for remote hosts until they close.
+     *
+     * @return <code>true</code> if remote hosts are shaped individually,
+     * otherwise <code>false</code>.
+     */
+    public boolean isPeerShaped() {
+        return m_peerUploadBytesPerSecond > 0 ||
+            m_peerDownloadBytesPerSecond > 0;
+    }
+
+    /**
+     * Accounts for data we're about to send to a remote host.
+     *
+     * @param remoteAddress The remote host.
+     * @param bytes The number of bytes.
+     * @return How long to hold off sending more, in nanoseconds.
+     */
+    public long reserveUpload(final InetSocketAddress remoteAddress,
+        final int bytes) {
+        final long delay = reserve(m_peerUploads, m_peerUploadBytesPerSecond,
+            m_clientUpload, remoteAddress, bytes);
+        m_uploadDelays.record(delay);
+        return delay;
+    }
+
+    /**
+     * Accounts for data we're about to send to a remote host, blocking
+     * until the upload limits allow it.  This is for senders that block
+     * anyway and have no local session to suspend, such as file transfers
+     * and {@link TurnPeerChannel} writes.
+     *
+     * @param remoteAddress The remote host.
+     * @param bytes The number of bytes.
+     * @throws InterruptedIOException If we're interrupted while waiting.
+     */
+    public void awaitUpload(final InetSocketAddress remoteAddress,
+        final int bytes) throws InterruptedIOException {
+        final long delay = reserveUpload(remoteAddress, bytes);
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted shaping upload");
+        }
+    }
+
+    /**
+     * Accounts for data we've received from a remote host.
+     *
+     * @param remoteAddress The remote host.
+     * @param bytes The number of bytes.
+     * @return How long to hold off reading more, in nanoseconds.
+     */
+    public long reserveDownload(final InetSocketAddress remoteAddress,
+        final int bytes) {
+        final long delay = reserve(m_peerDownloads,
+            m_peerDownloadBytesPerSecond, m_clientDownload, remoteAddress,
+            bytes);
+        m_downloadDelays.record(delay);
+        return delay;
+    }
+
+    /**
+     * Suspends reads on a session for a while, resuming them on the shared
+     * timer.  Overlapping calls extend the suspension rather than resuming
+     * early.
+     *
+     * @param session The session to suspend.
+     * @param delayNanos How long to suspend reads for.
+     */
+    public void throttle(final IoSession session, final long delayNanos) {
+        if (delayNanos <= 0) {
+            return;
+        }
+        final long resumeAt = System.nanoTime() + delayNanos;
+        synchronized (session) {
+            final Long current = (Long) session.getAttribute(RESUME_AT_KEY);
+            if (current != null && current.longValue() - resumeAt >= 0) {
+                return;
+            }
+            session.setAttribute(RESUME_AT_KEY, Long.valueOf(resumeAt));
+            if (current != null) {
+                // The pending resume will see the later deadline.
+                return;
+            }
+            m_log.debug("Suspending reads for {}ns", delayNanos);
+            session.suspendRead();
+        }
+        scheduleResume(session, delayNanos);
+    }
+
+    /**
+     * Forgets the buckets for a remote host that has closed.
+     *
+     * @param remoteAddress The remote host.
+     */
+    public void onRemoteAddressClosed(final InetSocketAddress remoteAddress) {
+        m_peerUploads.remove(remoteAddress);
+        m_peerDownloads.remove(remoteAddress);
+    }
+
+    /**
+     * Accessor for how long we held off uploads, including the uploads we
+     * didn't hold off at all.
+     *
+     * @return The histogram of upload shaping delays.
+     */
+    public LatencyHistogram getUploadDelays() {
+        return m_uploadDelays;
+    }
+
+    /**
+     * Accessor for how long we held off downloads, including the downloads
+     * we didn't hold off at all.
+     *
+     * @return The histogram of download shaping delays.
+     */
+    public LatencyHistogram getDownloadDelays() {
+        return m_downloadDelays;
+    }
+
+    private void scheduleResume(final IoSession session, final long delayNanos) {
+        final Runnable resume = new Runnable() {
+            public void run() {
+                final long remaining;
+                synchronized (session) {
+                    final Long resumeAt =
+                        (Long) session.getAttribute(RESUME_AT_KEY);
+                    if (resumeAt == null) {
+                        return;
+                    }
+                    remaining = resumeAt.longValue() - System.nanoTime();
+                    if (remaining <= 0) {
+                        session.removeAttribute(RESUME_AT_KEY);
+                        session.resumeRead();
+                        return;
+                    }
+                }
+                scheduleResume(session, remaining);
+            }
+        };
+        StunRetransmitter.sharedTimer().schedule(resume, delayNanos,
+            TimeUnit.NANOSECONDS);
+    }
+
+    private long reserve(final Map<InetSocketAddress, TokenBucket> peers,
+        final long peerBytesPerSecond, final TokenBucket client,
+        final InetSocketAddress remoteAddress, final int bytes) {
+        long delay = 0;
+        if (peerBytesPerSecond > 0) {
+            TokenBucket bucket = peers.get(remoteAddress);
+            if (bucket == null) {
+                synchronized (peers) {
+                    bucket = peers.get(remoteAddress);
+                    if (bucket == null) {
+                        bucket = newBucket(peerBytesPerSecond);
+                        peers.put(remoteAddress, bucket);
+                    }
+                }
+            }
+            delay = bucket.reserve(bytes);
+        }
+        if (client != null) {
+            delay = Math.max(delay, client.reserve(bytes));
+        }
+        return delay;
+    }
+
+    private static TokenBucket newBucket(final long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return null;
+        }
+        return new TokenBucket(bytesPerSecond, bytesPerSecond);
+    }
+}
@@ -0,0 +1,239 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.StunMessageDecoder;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.CanceledStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageType;
+import org.littleshoot.stun.stack.transaction.StunTransactionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs STUN Binding transactions with remote hosts through the TURN server,
+ * for example for ICE connectivity checks.  Requests go out wrapped in Send
+ * Indications, and responses come back as data from the remote host, which
+ * we pick out and match to requests by transaction ID.  Retransmissions are
+ * driven by a {@link StunRetransmitter}, so any number of checks can be in
+ * flight without holding a thread each unless a caller chooses to block.<p>
+ *
+ * Over UDP each Data Indication carries exactly one datagram from the remote
+ * host, so {@link #onData(byte[])} can look at it whole.  Over TCP the relay
+ * re-chunks the remote host's stream, so a response can arrive split across
+ * indications or run together with the data around it.  There the per-peer
+ * {@link StunTcpFrameProtocolDecoder} finds the transactions under
+ * {@link #SESSION_KEY} and hands each reassembled response to
+ * {@link #onResponse(StunMessage)} instead.
+ */
+public class TurnBindingTransactions {
+
+    /**
+     * The session attribute holding the transactions for a TURN session.
+     */
+    public static final String SESSION_KEY =
+        TurnBindingTransactions.class.getName();
+
+    private static final int STUN_HEADER_LENGTH = 20;
+
+    private static final long MAGIC_COOKIE = 0x2112A442L;
+
+    private static final int BINDING_SUCCESS_RESPONSE = 0x0101;
+
+    private static final int BINDING_ERROR_RESPONSE = 0x0111;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final StunRetransmitter m_retransmitter;
+
+    /**
+     * Creates a new class for Binding transactions over TURN.
+     *
+     * @param retransmitter The class that retransmits requests and matches
+     * responses.
+     */
+    public TurnBindingTransactions(final StunRetransmitter retransmitter) {
+        m_retransmitter = retransmitter;
+    }
+
+    /**
+     * Starts a Binding transaction without blocking.
+     *
+     * @param session The session with the TURN server.
+     * @param request The request.
+     * @param remoteAddress The remote host to send the request to.
+     * @param rto The initial retransmission timeout in milliseconds.
+     * @param listener The listener to notify when the transaction completes.
+     */
+    public void write(final IoSession session, final BindingRequest request,
+        final InetSocketAddress remoteAddress, final long rto,
+        final StunTransactionListener<?> listener) {
+        final TurnStunMessageMapper mapper =
+            (TurnStunMessageMapper) session.getAttribute("REMOTE_ADDRESS_MAP");
+        if (mapper == null) {
+            throw new IllegalStateException("No mapper for session");
+        }
+        // The encoder looks up the remote address when it wraps the request
+        // in a Send Indication.
+        mapper.mapMessage(request, remoteAddress);
+        m_retransmitter.start(request, new StunRetransmitter.Transmitter() {
+            public void transmit(final StunMessage msg) {
+                session.write(msg);
+            }
+        }, notifyingFailures(listener), rto);
+    }
+
+    /**
+     * Runs a Binding transaction, blocking until it completes.
+     *
+     * @param session The session with the TURN server.
+     * @param request The request.
+     * @param remoteAddress The remote host to send the request to.
+     * @param rto The initial retransmission timeout in milliseconds.
+     * @return The response, or a {@link org.littleshoot.stun.stack.message.NullStunMessage}
+     * if the transaction timed out.
+     */
+    public StunMessage write(final IoSession session,
+        final BindingRequest request, final InetSocketAddress remoteAddress,
+        final long rto) {
+        final Object lock = new Object();
+        final StunMessage[] result = new StunMessage[1];
+        final StunTransactionListener<StunMessage> listener =
+            new StunTransactionListener<StunMessage>() {
+                public StunMessage onTransactionSucceeded(
+                    final StunMessage req, final StunMessage response) {
+                    return complete(response);
+                }
+
+                public StunMessage onTransactionFailed(final StunMessage req,
+                    final StunMessage response) {
+                    return complete(response);
+                }
+
+                private StunMessage complete(final StunMessage response) {
+                    synchronized (lock) {
+                        result[0] = response;
+                        lock.notifyAll();
+                    }
+                    return null;
+                }
+            };
+        write(session, request, remoteAddress, rto, listener);
+        synchronized (lock) {
+            // The retransmitter always completes the transaction eventually,
+            // so we don't need our own timeout.
+            while (result[0] == null) {
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new CanceledStunMessage();
+                }
+            }
+            return result[0];
+        }
+    }
+
+    /**
+     * Checks a datagram from a remote host for a response to one of our
+     * pending Binding Requests.  Only use this where each call gets one
+     * whole datagram, as with UDP.
+     *
+     * @param data The data from the remote host.
+     * @return <code>true</code> if the data was a response to one of our
+     * requests and should not be passed on, otherwise <code>false</code>.
+     */
+    public boolean onData(final byte[] data) {
+        if (m_retransmitter.getPendingTransactions() == 0 ||
+            !isBindingResponse(data)) {
+            return false;
+        }
+        final List<StunMessage> messages = new LinkedList<StunMessage>();
+        final ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+            public void flush() {
+            }
+
+            public void write(final Object message) {
+                messages.add((StunMessage) message);
+            }
+        };
+        try {
+            new StunMessageDecoder().decode(null, ByteBuffer.wrap(data), out);
+        } catch (final Exception e) {
+            m_log.debug("Could not decode response", e);
+            return false;
+        }
+        boolean matched = false;
+        for (final StunMessage message : messages) {
+            matched |= m_retransmitter.onResponse(message);
+        }
+        return matched;
+    }
+
+    /**
+     * Matches a decoded message from a remote host to one of our pending
+     * Binding Requests.
+     *
+     * @param message The message from the remote host.
+     * @return <code>true</code> if the message was a response to one of our
+     * requests and should not be passed on, otherwise <code>false</code>.
+     */
+    public boolean onResponse(final StunMessage message) {
+        final StunMessageType type = message.getType();
+        if (type != StunMessageType.BINDING_SUCCESS_RESPONSE &&
+            type != StunMessageType.BINDING_ERROR_RESPONSE) {
+            return false;
+        }
+        return m_retransmitter.onResponse(message);
+    }
+
+    /**
+     * Called when one of our transactions fails, whether the remote host
+     * answered with an error, never answered, or we gave up on it.  This
+     * does nothing by default.
+     */
+    protected void onTransactionFailed() {
+    }
+
+    /**
+     * Fails all pending transactions.
+     */
+    public void cancelAll() {
+        m_retransmitter.cancelAll();
+    }
+
+    private <T> StunTransactionListener<T> notifyingFailures(
+        final StunTransactionListener<T> listener) {
+        return new StunTransactionListener<T>() {
+            public T onTransactionSucceeded(final StunMessage request,
+                final StunMessage response) {
+                return listener.onTransactionSucceeded(request, response);
+            }
+
+            public T onTransactionFailed(final StunMessage request,
+                final StunMessage response) {
+                TurnBindingTransactions.this.onTransactionFailed();
+                return listener.onTransactionFailed(request, response);
+            }
+        };
+    }
+
+    private static boolean isBindingResponse(final byte[] data) {
+        if (data.length < STUN_HEADER_LENGTH) {
+            return false;
+        }
+        final int type = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+        if (type != BINDING_SUCCESS_RESPONSE && type != BINDING_ERROR_RESPONSE) {
+            return false;
+        }
+        final long cookie = ((data[4] & 0xffL) << 24) | ((data[5] & 0xff) << 16) |
+            ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+        return cookie == MAGIC_COOKIE;
+    }
+}
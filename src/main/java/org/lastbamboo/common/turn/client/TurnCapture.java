@@ -0,0 +1,186 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single capture file in the format {@link TurnCaptureFilter} describes.
+ * Callers record bytes on whatever thread they see them on, typically an IO
+ * processor thread, so we only copy the bytes and note the time there and
+ * leave the file writes to a single thread shared by all captures.  If the
+ * disk falls so far behind that more than {@link #MAX_PENDING_BYTES} are
+ * waiting to be written, we stop the capture rather than queue without
+ * bound.
+ */
+public class TurnCapture {
+
+    /**
+     * The most bytes we queue for the writer thread before giving up on a
+     * capture.
+     */
+    public static final long MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    private static final class SharedExecutorHolder {
+        private static final ExecutorService EXECUTOR =
+            Executors.newSingleThreadExecutor(
+                new DaemonThreadFactory("TURN-Capture-Writer"));
+    }
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final File m_file;
+
+    /**
+     * Only touched by the writer thread once the header is written.
+     */
+    private final DataOutputStream m_out;
+
+    private final AtomicLong m_pendingBytes = new AtomicLong();
+
+    /**
+     * Only touched by the writer thread.
+     */
+    private boolean m_failed;
+
+    private long m_lastNanos = System.nanoTime();
+
+    private boolean m_closed;
+
+    private Future<?> m_closeFuture;
+
+    /**
+     * Creates a new capture in a new file in the given directory.
+     *
+     * @param directory The directory to write the capture to.
+     * @return The new capture.
+     * @throws IOException If we can't create the capture file.
+     */
+    public static TurnCapture newCapture(final File directory)
+        throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory);
+        }
+        final File file = File.createTempFile("turn-capture-", ".bin",
+            directory);
+        return new TurnCapture(file);
+    }
+
+    /**
+     * Creates a new capture to the given file.
+     *
+     * @param file The file to write the capture to.
+     * @throws IOException If we can't create the capture file.
+     */
+    public TurnCapture(final File file) throws IOException {
+        m_file = file;
+        m_out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file), 64 * 1024));
+        m_out.writeInt(TurnCaptureFilter.MAGIC);
+        m_out.writeByte(TurnCaptureFilter.VERSION);
+        m_out.writeLong(System.currentTimeMillis());
+        m_log.info("Capturing TURN traffic to: {}", file);
+    }
+
+    /**
+     * Accessor for the file we're capturing to.
+     *
+     * @return The capture file.
+     */
+    public File getFile() {
+        return m_file;
+    }
+
+    /**
+     * Records the remaining bytes in a buffer without consuming them.
+     *
+     * @param direction {@link TurnCaptureFilter#INBOUND} or
+     * {@link TurnCaptureFilter#OUTBOUND}.
+     * @param buf The bytes.
+     */
+    public synchronized void record(final int direction, final ByteBuffer buf) {
+        if (m_closed) {
+            return;
+        }
+        final byte[] data = new byte[buf.remaining()];
+        buf.duplicate().get(data);
+        if (m_pendingBytes.addAndGet(data.length) > MAX_PENDING_BYTES) {
+            m_log.warn("Capture falling behind, stopping: {}", m_file);
+            close();
+            return;
+        }
+        final long now = System.nanoTime();
+        final long micros = (now - m_lastNanos) / 1000;
+        m_lastNanos = now;
+
+        // The executor runs tasks in order, so records reach the file in
+        // the order we saw them.
+        SharedExecutorHolder.EXECUTOR.execute(new Runnable() {
+            public void run() {
+                write(direction, micros, data);
+            }
+        });
+    }
+
+    /**
+     * Flushes and closes the capture file once everything recorded so far
+     * is written.
+     *
+     * @return A future that completes once the file is closed.
+     */
+    public synchronized Future<?> close() {
+        if (m_closed) {
+            return m_closeFuture;
+        }
+        m_closed = true;
+        m_closeFuture = SharedExecutorHolder.EXECUTOR.submit(new Runnable() {
+            public void run() {
+                try {
+                    m_out.close();
+                } catch (final IOException e) {
+                    m_log.warn("Could not close capture: " + m_file, e);
+                }
+            }
+        });
+        return m_closeFuture;
+    }
+
+    private void write(final int direction, final long micros,
+        final byte[] data) {
+        m_pendingBytes.addAndGet(-data.length);
+        if (m_failed) {
+            return;
+        }
+        try {
+            m_out.writeByte(direction);
+            writeVarLong(m_out, micros);
+            writeVarLong(m_out, data.length);
+            m_out.write(data);
+        } catch (final IOException e) {
+            m_log.warn("Could not write capture, stopping", e);
+            m_failed = true;
+            close();
+        }
+    }
+
+    private static void writeVarLong(final DataOutputStream out,
+        final long value) throws IOException {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+}
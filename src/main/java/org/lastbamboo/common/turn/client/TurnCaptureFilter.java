@@ -0,0 +1,122 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Filter that records all bytes read from and written to the TURN server to
+ * a compact binary capture file.  It belongs at the head of the filter
+ * chain so it sees the bytes exactly as they crossed the socket, including
+ * how the stream was split into reads, which is often what matters when
+ * reproducing performance problems.  Each session gets its own
+ * {@link TurnCapture}, so reconnecting to a server starts a new file rather
+ * than ending the capture.  Captures can be played back with
+ * {@link TurnCaptureReplayer}.<p>
+ *
+ * The file starts with {@link #MAGIC}, {@link #VERSION} and the wall clock
+ * time the capture started in milliseconds.  Each record is then a
+ * direction byte, the microseconds since the previous record and the
+ * length of the data as unsigned variable length integers, and the data
+ * itself.
+ */
+public class TurnCaptureFilter extends IoFilterAdapter {
+
+    /**
+     * The first four bytes of every capture file.
+     */
+    public static final int MAGIC = 0x5455524E;
+
+    /**
+     * The version of the capture format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Direction for bytes read from the TURN server.
+     */
+    public static final int INBOUND = 0;
+
+    /**
+     * Direction for bytes written to the TURN server.
+     */
+    public static final int OUTBOUND = 1;
+
+    private static final String CAPTURE_KEY =
+        TurnCaptureFilter.class.getName() + ".capture";
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final File m_directory;
+
+    /**
+     * Creates a new filter that captures each session to a new file in the
+     * given directory.
+     *
+     * @param directory The directory to write captures to.
+     */
+    public TurnCaptureFilter(final File directory) {
+        m_directory = directory;
+    }
+
+    /**
+     * Accessor for the capture of a session.
+     *
+     * @param session The session.
+     * @return The capture, or <code>null</code> if we aren't capturing the
+     * session.
+     */
+    public static TurnCapture getCapture(final IoSession session) {
+        return (TurnCapture) session.getAttribute(CAPTURE_KEY);
+    }
+
+    @Override
+    public void sessionCreated(final NextFilter nextFilter,
+        final IoSession session) throws Exception {
+        try {
+            session.setAttribute(CAPTURE_KEY,
+                TurnCapture.newCapture(m_directory));
+        } catch (final IOException e) {
+            m_log.warn("Could not start capture in: " + m_directory, e);
+        }
+        nextFilter.sessionCreated(session);
+    }
+
+    @Override
+    public void messageReceived(final NextFilter nextFilter,
+        final IoSession session, final Object message) throws Exception {
+        final TurnCapture capture = getCapture(session);
+        if (capture != null && message instanceof ByteBuffer) {
+            capture.record(INBOUND, (ByteBuffer) message);
+        }
+        nextFilter.messageReceived(session, message);
+    }
+
+    @Override
+    public void filterWrite(final NextFilter nextFilter,
+        final IoSession session, final WriteRequest writeRequest)
+        throws Exception {
+        final TurnCapture capture = getCapture(session);
+        final Object message = writeRequest.getMessage();
+        if (capture != null && message instanceof ByteBuffer) {
+            capture.record(OUTBOUND, (ByteBuffer) message);
+        }
+        nextFilter.filterWrite(session, writeRequest);
+    }
+
+    @Override
+    public void sessionClosed(final NextFilter nextFilter,
+        final IoSession session) throws Exception {
+        final TurnCapture capture =
+            (TurnCapture) session.removeAttribute(CAPTURE_KEY);
+        if (capture != null) {
+            capture.close();
+        }
+        nextFilter.sessionClosed(session);
+    }
+}
@@ -0,0 +1,153 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads capture files written by {@link TurnCaptureFilter}.
+ */
+public class TurnCaptureReader {
+
+    private final DataInputStream m_in;
+
+    private final long m_startMillis;
+
+    private long m_offsetMicros;
+
+    /**
+     * A single read from or write to the TURN server.
+     */
+    public static final class Record {
+
+        private final int m_direction;
+
+        private final long m_offsetMicros;
+
+        private final byte[] m_data;
+
+        private Record(final int direction, final long offsetMicros,
+            final byte[] data) {
+            m_direction = direction;
+            m_offsetMicros = offsetMicros;
+            m_data = data;
+        }
+
+        /**
+         * Accessor for the direction of the record.
+         *
+         * @return {@link TurnCaptureFilter#INBOUND} or
+         * {@link TurnCaptureFilter#OUTBOUND}.
+         */
+        public int getDirection() {
+            return m_direction;
+        }
+
+        /**
+         * Accessor for when this record happened relative to the start of
+         * the capture.
+         *
+         * @return The offset in microseconds.
+         */
+        public long getOffsetMicros() {
+            return m_offsetMicros;
+        }
+
+        /**
+         * Accessor for the bytes.
+         *
+         * @return The bytes.
+         */
+        public byte[] getData() {
+            return m_data;
+        }
+    }
+
+    /**
+     * Opens a capture file.
+     *
+     * @param file The capture file.
+     * @throws IOException If the file can't be read or isn't a capture.
+     */
+    public TurnCaptureReader(final File file) throws IOException {
+        m_in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file), 64 * 1024));
+        if (m_in.readInt() != TurnCaptureFilter.MAGIC) {
+            m_in.close();
+            throw new IOException("Not a TURN capture: " + file);
+        }
+        final int version = m_in.readUnsignedByte();
+        if (version != TurnCaptureFilter.VERSION) {
+            m_in.close();
+            throw new IOException("Unsupported capture version: " + version);
+        }
+        m_startMillis = m_in.readLong();
+    }
+
+    /**
+     * Accessor for the wall clock time the capture started.
+     *
+     * @return The start time in milliseconds since the epoch.
+     */
+    public long getStartMillis() {
+        return m_startMillis;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return The next record, or <code>null</code> at the end of the
+     * capture.
+     * @throws IOException If the capture can't be read.
+     */
+    public Record next() throws IOException {
+        final int direction = m_in.read();
+        if (direction == -1) {
+            return null;
+        }
+        try {
+            m_offsetMicros += readVarLong();
+            final long length = readVarLong();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Bad record length: " + length);
+            }
+            final byte[] data = new byte[(int) length];
+            m_in.readFully(data);
+            return new Record(direction, m_offsetMicros, data);
+        } catch (final EOFException e) {
+            // The capture was cut off mid record, probably because the
+            // process died.  Treat it as the end.
+            return null;
+        }
+    }
+
+    /**
+     * Closes the capture file.
+     */
+    public void close() {
+        try {
+            m_in.close();
+        } catch (final IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            final int b = m_in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("Bad variable length integer");
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageVisitorAdapter;
+import org.littleshoot.stun.stack.message.turn.ConnectionStatusIndication;
+import org.littleshoot.stun.stack.message.turn.DataIndication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plays a capture written by {@link TurnCaptureFilter} back through the
+ * same decoder {@link TcpTurnClient} uses and on to a
+ * {@link TurnClientListener}, so problems seen in production can be
+ * reproduced and benchmarked offline.  Inbound reads are replayed with the
+ * same boundaries they had on the wire.  Outbound writes aren't replayed,
+ * apart from ChannelBind Requests, which we need to map channels back to
+ * remote addresses.<p>
+ *
+ * Replays run either at the recorded speed or as fast as the listener can
+ * keep up.
+ */
+public class TurnCaptureReplayer extends StunMessageVisitorAdapter<StunMessage> {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final File m_file;
+
+    private final TurnClientListener m_listener;
+
+    private final IoSession m_session;
+
+    private final TurnChannelBindings m_bindings = new TurnChannelBindings();
+
+    private long m_records;
+
+    private long m_inboundBytes;
+
+    private long m_dataMessages;
+
+    private long m_dataBytes;
+
+    private long m_statusMessages;
+
+    private long m_droppedChannelData;
+
+    private long m_elapsedNanos;
+
+    /**
+     * Creates a new replayer.
+     *
+     * @param file The capture file.
+     * @param listener The listener to play events to.
+     * @param session The session to pass to the listener.  This may be
+     * <code>null</code> if the listener doesn't use it.
+     */
+    public TurnCaptureReplayer(final File file,
+        final TurnClientListener listener, final IoSession session) {
+        m_file = file;
+        m_listener = listener;
+        m_session = session;
+    }
+
+    /**
+     * Plays the capture.
+     *
+     * @param recordedSpeed Whether to replay reads with the timing they
+     * were recorded with or as fast as possible.
+     * @throws IOException If the capture can't be read.
+     */
+    public void replay(final boolean recordedSpeed) throws IOException {
+        final TurnServerMessageDecoder decoder =
+            new TurnServerMessageDecoder(m_bindings);
+        final ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+            public void flush() {
+            }
+            public void write(final Object message) {
+                if (message instanceof TurnChannelData) {
+                    onChannelData((TurnChannelData) message);
+                } else {
+                    ((StunMessage) message).accept(TurnCaptureReplayer.this);
+                }
+            }
+        };
+        final TurnCaptureReader reader = new TurnCaptureReader(m_file);
+        final long start = System.nanoTime();
+        try {
+            TurnCaptureReader.Record record;
+            while ((record = reader.next()) != null) {
+                m_records++;
+                if (recordedSpeed) {
+                    final long wait = start + TimeUnit.MICROSECONDS.toNanos(
+                        record.getOffsetMicros()) - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+                final ByteBuffer buf = ByteBuffer.wrap(record.getData());
+                if (record.getDirection() == TurnCaptureFilter.OUTBOUND) {
+                    m_bindings.onBindRequest(buf);
+                    continue;
+                }
+                m_inboundBytes += record.getData().length;
+                try {
+                    decoder.decode(m_session, buf, out);
+                } catch (final Exception e) {
+                    m_log.warn("Could not decode record " + m_records, e);
+                }
+            }
+        } finally {
+            reader.close();
+            m_elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public StunMessage visitDataIndication(final DataIndication data) {
+        m_dataMessages++;
+        m_dataBytes += data.getData().length;
+        m_listener.onData(data.getRemoteAddress(), m_session, data.getData());
+        return null;
+    }
+
+    @Override
+    public StunMessage visitConnectionStatusIndication(
+        final ConnectionStatusIndication indication) {
+        m_statusMessages++;
+        final InetSocketAddress remoteAddress = indication.getRemoteAddress();
+        switch (indication.getConnectionStatus()) {
+        case CLOSED:
+            m_bindings.remove(remoteAddress);
+            m_listener.onRemoteAddressClosed(remoteAddress);
+            break;
+        case ESTABLISHED:
+            m_listener.onRemoteAddressOpened(remoteAddress, m_session);
+            break;
+        case LISTEN:
+            break;
+        }
+        return null;
+    }
+
+    private void onChannelData(final TurnChannelData channelData) {
+        final InetSocketAddress remoteAddress =
+            m_bindings.getRemoteAddress(channelData.getChannelNumber());
+        if (remoteAddress == null) {
+            m_droppedChannelData++;
+            return;
+        }
+        m_dataMessages++;
+        m_dataBytes += channelData.getData().length;
+        m_listener.onData(remoteAddress, m_session, channelData.getData());
+    }
+
+    /**
+     * Accessor for the number of records read from the capture.
+     *
+     * @return The number of records.
+     */
+    public long getRecords() {
+        return m_records;
+    }
+
+    /**
+     * Accessor for the number of bytes read from the TURN server.
+     *
+     * @return The number of inbound bytes.
+     */
+    public long getInboundBytes() {
+        return m_inboundBytes;
+    }
+
+    /**
+     * Accessor for the number of Data Indications and ChannelData messages
+     * delivered to the listener.
+     *
+     * @return The number of data messages.
+     */
+    public long getDataMessages() {
+        return m_dataMessages;
+    }
+
+    /**
+     * Accessor for the number of relayed bytes delivered to the listener.
+     *
+     * @return The number of data bytes.
+     */
+    public long getDataBytes() {
+        return m_dataBytes;
+    }
+
+    /**
+     * Accessor for the number of Connection Status Indications.
+     *
+     * @return The number of status messages.
+     */
+    public long getStatusMessages() {
+        return m_statusMessages;
+    }
+
+    /**
+     * Accessor for the number of ChannelData messages for channels we never
+     * saw bound.
+     *
+     * @return The number of dropped ChannelData messages.
+     */
+    public long getDroppedChannelData() {
+        return m_droppedChannelData;
+    }
+
+    /**
+     * Accessor for how long the last replay took.
+     *
+     * @return The elapsed time in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return m_elapsedNanos;
+    }
+
+    /**
+     * Replays a capture to a listener that discards everything and prints
+     * throughput, for regression benchmarking.
+     *
+     * @param args The capture file, optionally followed by
+     * <code>--recorded</code> to replay at the recorded speed.
+     * @throws IOException If the capture can't be read.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println(
+                "Usage: TurnCaptureReplayer <capture file> [--recorded]");
+            System.exit(1);
+        }
+        final TurnClientListener discard = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession session) {
+                return null;
+            }
+        };
+        final TurnCaptureReplayer replayer =
+            new TurnCaptureReplayer(new File(args[0]), discard, null);
+        replayer.replay(args.length > 1 && "--recorded".equals(args[1]));
+        final double seconds = replayer.getElapsedNanos() / 1e9;
+        System.out.println("Records:          " + replayer.getRecords());
+        System.out.println("Data messages:    " + replayer.getDataMessages());
+        System.out.println("Status messages:  " + replayer.getStatusMessages());
+        System.out.println("Dropped channels: " +
+            replayer.getDroppedChannelData());
+        System.out.println("Elapsed seconds:  " + seconds);
+        System.out.println("Messages/second:  " +
+            (long) (replayer.getDataMessages() / seconds));
+        System.out.println("MB/second:        " +
+            (replayer.getInboundBytes() / seconds / (1024 * 1024)));
+    }
+}
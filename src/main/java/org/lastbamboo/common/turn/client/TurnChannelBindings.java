@@ -0,0 +1,316 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the channels remote addresses are bound to on a single
+ * TURN session.  We only send ChannelData for an address once the server
+ * has confirmed the binding, so until then, or if the server rejects or
+ * ignores the ChannelBind Request, data keeps flowing in Send Indications.
+ * A channel number stays with its address for the life of the session, as
+ * the server won't let us reuse it for another address for some time
+ * anyway.<p>
+ *
+ * The STUN stack doesn't know about ChannelBind messages, so we encode the
+ * requests and match the responses ourselves.
+ */
+public class TurnChannelBindings {
+
+    /**
+     * The session attribute the bindings are stored under.
+     */
+    public static final String SESSION_KEY = "TURN_CHANNEL_BINDINGS";
+
+    /**
+     * The STUN message type for ChannelBind Requests.
+     */
+    static final int CHANNEL_BIND_REQUEST = 0x0009;
+
+    /**
+     * The STUN message type for ChannelBind Success Responses.
+     */
+    static final int CHANNEL_BIND_SUCCESS_RESPONSE = 0x0109;
+
+    /**
+     * The STUN message type for ChannelBind Error Responses.
+     */
+    static final int CHANNEL_BIND_ERROR_RESPONSE = 0x0119;
+
+    private static final int CHANNEL_NUMBER = 0x000C;
+
+    private static final int XOR_PEER_ADDRESS = 0x0012;
+
+    private static final int MAGIC_COOKIE = 0x2112A442;
+
+    private static final int TRANSACTION_ID_LENGTH = 12;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final Random m_random = new SecureRandom();
+
+    /**
+     * Channels for addresses the server has confirmed.  These are read for
+     * every relayed packet, so they don't need the lock.
+     */
+    private final Map<InetSocketAddress, Integer> m_boundChannels =
+        new ConcurrentHashMap<InetSocketAddress, Integer>();
+
+    private final Map<Integer, InetSocketAddress> m_boundAddresses =
+        new ConcurrentHashMap<Integer, InetSocketAddress>();
+
+    private final Map<InetSocketAddress, Integer> m_assignedChannels =
+        new HashMap<InetSocketAddress, Integer>();
+
+    private final Map<java.nio.ByteBuffer, InetSocketAddress> m_pending =
+        new HashMap<java.nio.ByteBuffer, InetSocketAddress>();
+
+    private int m_nextChannel = TurnChannelData.MIN_CHANNEL;
+
+    private int m_failedBindings;
+
+    /**
+     * Creates a ChannelBind Request for a remote address.  This assigns the
+     * address a channel if it doesn't have one yet.  Sending the request
+     * again for a bound address refreshes the binding.
+     *
+     * @param remoteAddress The remote address to bind.
+     * @return The encoded request, or <code>null</code> if we've run out of
+     * channels.
+     */
+    public synchronized ByteBuffer newBindRequest(
+        final InetSocketAddress remoteAddress) {
+        Integer channel = m_assignedChannels.get(remoteAddress);
+        if (channel == null) {
+            if (m_nextChannel > TurnChannelData.MAX_CHANNEL) {
+                m_log.debug("No channels left for: {}", remoteAddress);
+                return null;
+            }
+            channel = Integer.valueOf(m_nextChannel++);
+            m_assignedChannels.put(remoteAddress, channel);
+        }
+        final byte[] transactionId = new byte[TRANSACTION_ID_LENGTH];
+        m_random.nextBytes(transactionId);
+        m_pending.put(java.nio.ByteBuffer.wrap(transactionId), remoteAddress);
+        return encodeBindRequest(channel.intValue(), remoteAddress,
+            transactionId);
+    }
+
+    /**
+     * Registers a ChannelBind Request encoded elsewhere, such as one read
+     * back from a capture, as if we had created it with
+     * {@link #newBindRequest(InetSocketAddress)}.
+     *
+     * @param request The encoded request.
+     * @return <code>true</code> if the buffer held a ChannelBind Request we
+     * understood, otherwise <code>false</code>.
+     */
+    synchronized boolean onBindRequest(final ByteBuffer request) {
+        final int start = request.position();
+        if (request.remaining() < 20 + 8 + 12 ||
+            request.getUnsignedShort(start) != CHANNEL_BIND_REQUEST ||
+            request.getUnsignedShort(start + 20) != CHANNEL_NUMBER ||
+            request.getUnsignedShort(start + 28) != XOR_PEER_ADDRESS) {
+            return false;
+        }
+        final byte[] transactionId = new byte[TRANSACTION_ID_LENGTH];
+        for (int i = 0; i < TRANSACTION_ID_LENGTH; i++) {
+            transactionId[i] = request.get(start + 8 + i);
+        }
+        final int channel = request.getUnsignedShort(start + 24);
+        final int length = request.get(start + 33) == 0x01 ? 4 : 16;
+        if (request.remaining() < 20 + 8 + 8 + length) {
+            return false;
+        }
+        final int port =
+            request.getUnsignedShort(start + 34) ^ (MAGIC_COOKIE >>> 16);
+        final byte[] mask = new byte[16];
+        mask[0] = 0x21;
+        mask[1] = 0x12;
+        mask[2] = (byte) 0xA4;
+        mask[3] = 0x42;
+        System.arraycopy(transactionId, 0, mask, 4, TRANSACTION_ID_LENGTH);
+        final byte[] address = new byte[length];
+        for (int i = 0; i < length; i++) {
+            address[i] = (byte) (request.get(start + 36 + i) ^ mask[i]);
+        }
+        final InetSocketAddress remoteAddress;
+        try {
+            remoteAddress = new InetSocketAddress(
+                InetAddress.getByAddress(address), port);
+        } catch (final UnknownHostException e) {
+            return false;
+        }
+        m_assignedChannels.put(remoteAddress, Integer.valueOf(channel));
+        m_pending.put(java.nio.ByteBuffer.wrap(transactionId), remoteAddress);
+        return true;
+    }
+
+    /**
+     * Called when we receive a response to a ChannelBind Request.
+     *
+     * @param transactionId The 12 byte transaction ID of the response.
+     * @param success Whether or not the binding succeeded.
+     */
+    public synchronized void onBindResponse(final byte[] transactionId,
+        final boolean success) {
+        final InetSocketAddress remoteAddress =
+            m_pending.remove(java.nio.ByteBuffer.wrap(transactionId));
+        if (remoteAddress == null) {
+            m_log.debug("No pending ChannelBind for response");
+            return;
+        }
+        final Integer channel = m_assignedChannels.get(remoteAddress);
+        if (channel == null) {
+            return;
+        }
+        if (success) {
+            m_log.debug("Bound {} to channel {}", remoteAddress, channel);
+            m_boundChannels.put(remoteAddress, channel);
+            m_boundAddresses.put(channel, remoteAddress);
+        } else {
+            m_log.debug("Server rejected channel for: {}", remoteAddress);
+            m_failedBindings++;
+            m_boundChannels.remove(remoteAddress);
+            m_boundAddresses.remove(channel);
+            onBindRejected(remoteAddress);
+        }
+    }
+
+    /**
+     * Called when the server rejects one of our ChannelBind Requests.  This
+     * does nothing by default.  It's called with the lock held, so it
+     * shouldn't block.
+     *
+     * @param remoteAddress The remote address we tried to bind.
+     */
+    protected void onBindRejected(final InetSocketAddress remoteAddress) {
+    }
+
+    /**
+     * Accessor for the channel a remote address is bound to.
+     *
+     * @param remoteAddress The remote address.
+     * @return The channel number, or -1 if the address isn't bound.
+     */
+    public int getChannel(final InetSocketAddress remoteAddress) {
+        final Integer channel = m_boundChannels.get(remoteAddress);
+        if (channel == null) {
+            return -1;
+        }
+        return channel.intValue();
+    }
+
+    /**
+     * Accessor for the remote address bound to a channel.
+     *
+     * @param channelNumber The channel number.
+     * @return The remote address, or <code>null</code> if the channel isn't
+     * bound.
+     */
+    public InetSocketAddress getRemoteAddress(final int channelNumber) {
+        return m_boundAddresses.get(Integer.valueOf(channelNumber));
+    }
+
+    /**
+     * Accessor for all the addresses with confirmed bindings.
+     *
+     * @return The bound addresses.
+     */
+    public Collection<InetSocketAddress> getBoundAddresses() {
+        return new ArrayList<InetSocketAddress>(m_boundChannels.keySet());
+    }
+
+    /**
+     * Accessor for the number of ChannelBind Requests the server rejected.
+     *
+     * @return The number of failed bindings.
+     */
+    public synchronized int getFailedBindings() {
+        return m_failedBindings;
+    }
+
+    /**
+     * Stops using the channel for a remote address, typically because the
+     * remote host closed.  The address keeps its channel number in case it
+     * comes back.
+     *
+     * @param remoteAddress The remote address.
+     */
+    public synchronized void remove(final InetSocketAddress remoteAddress) {
+        final Integer channel = m_boundChannels.remove(remoteAddress);
+        if (channel != null) {
+            m_boundAddresses.remove(channel);
+        }
+        final Iterator<InetSocketAddress> pending =
+            m_pending.values().iterator();
+        while (pending.hasNext()) {
+            if (pending.next().equals(remoteAddress)) {
+                pending.remove();
+            }
+        }
+    }
+
+    /**
+     * Stops using all channels, typically because the session with the
+     * TURN server closed and the server's bindings went with it.  Addresses
+     * keep their channel numbers so binding them on a new session reuses
+     * them.
+     */
+    public synchronized void clear() {
+        m_boundChannels.clear();
+        m_boundAddresses.clear();
+        m_pending.clear();
+    }
+
+    private ByteBuffer encodeBindRequest(final int channel,
+        final InetSocketAddress remoteAddress, final byte[] transactionId) {
+        final byte[] address = remoteAddress.getAddress().getAddress();
+        final int addressLength = 4 + address.length;
+        final ByteBuffer buf =
+            ByteBuffer.allocate(20 + 8 + 4 + addressLength);
+        buf.putShort((short) CHANNEL_BIND_REQUEST);
+        buf.putShort((short) (8 + 4 + addressLength));
+        buf.putInt(MAGIC_COOKIE);
+        buf.put(transactionId);
+
+        buf.putShort((short) CHANNEL_NUMBER);
+        buf.putShort((short) 4);
+        buf.putShort((short) channel);
+        buf.putShort((short) 0);
+
+        // The address is XORed with the magic cookie and, for IPv6, the
+        // transaction ID.
+        final byte[] mask = new byte[16];
+        mask[0] = 0x21;
+        mask[1] = 0x12;
+        mask[2] = (byte) 0xA4;
+        mask[3] = 0x42;
+        System.arraycopy(transactionId, 0, mask, 4, TRANSACTION_ID_LENGTH);
+        buf.putShort((short) XOR_PEER_ADDRESS);
+        buf.putShort((short) addressLength);
+        buf.put((byte) 0);
+        buf.put((byte) (remoteAddress.getAddress() instanceof Inet4Address ?
+            0x01 : 0x02));
+        buf.putShort((short) (remoteAddress.getPort() ^ (MAGIC_COOKIE >>> 16)));
+        for (int i = 0; i < address.length; i++) {
+            buf.put((byte) (address[i] ^ mask[i]));
+        }
+        buf.flip();
+        return buf;
+    }
+}
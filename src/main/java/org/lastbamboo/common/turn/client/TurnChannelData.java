@@ -0,0 +1,106 @@
+package org.lastbamboo.common.turn.client;
+
+import org.littleshoot.mina.common.ByteBuffer;
+
+/**
+ * A TURN ChannelData message.  Once a remote address is bound to a channel,
+ * data for that address travels with a 4 byte header holding the channel
+ * number and the data length instead of in a full Send or Data Indication.
+ * Channel numbers always fall between 0x4000 and 0x7FFE, so the first two
+ * bits of a ChannelData message are 01, which distinguishes it from STUN
+ * messages that start with 00.
+ */
+public class TurnChannelData {
+
+    /**
+     * The lowest valid channel number.
+     */
+    public static final int MIN_CHANNEL = 0x4000;
+
+    /**
+     * The highest valid channel number.
+     */
+    public static final int MAX_CHANNEL = 0x7FFE;
+
+    /**
+     * The length of the ChannelData header.
+     */
+    public static final int HEADER_LENGTH = 4;
+
+    private final int m_channelNumber;
+
+    private final byte[] m_data;
+
+    /**
+     * Creates a new ChannelData message.
+     *
+     * @param channelNumber The channel number.
+     * @param data The data.
+     */
+    public TurnChannelData(final int channelNumber, final byte[] data) {
+        m_channelNumber = channelNumber;
+        m_data = data;
+    }
+
+    /**
+     * Accessor for the channel number.
+     *
+     * @return The channel number.
+     */
+    public int getChannelNumber() {
+        return m_channelNumber;
+    }
+
+    /**
+     * Accessor for the data.
+     *
+     * @return The data.
+     */
+    public byte[] getData() {
+        return m_data;
+    }
+
+    /**
+     * Returns whether or not a message starting with the given byte is a
+     * ChannelData message.
+     *
+     * @param firstByte The first byte of the message.
+     * @return <code>true</code> if it's a ChannelData message, otherwise
+     * <code>false</code>.
+     */
+    public static boolean isChannelData(final int firstByte) {
+        return (firstByte & 0xC0) == 0x40;
+    }
+
+    /**
+     * Encodes a ChannelData message.  The data is padded out to a multiple
+     * of 4 bytes, as required over TCP.
+     *
+     * @param channelNumber The channel number.
+     * @param data The data.
+     * @return The encoded message, ready for writing.
+     */
+    public static ByteBuffer encode(final int channelNumber,
+        final byte[] data) {
+        if (data.length > 0xffff) {
+            throw new IllegalArgumentException("Data too long: " + data.length);
+        }
+        final int padded = (data.length + 3) & ~3;
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + padded);
+        buf.putShort((short) channelNumber);
+        buf.putShort((short) data.length);
+        buf.put(data);
+        for (int i = data.length; i < padded; i++) {
+            buf.put((byte) 0);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " on channel " +
+            Integer.toHexString(m_channelNumber) + " with " + m_data.length +
+            " bytes";
+    }
+}
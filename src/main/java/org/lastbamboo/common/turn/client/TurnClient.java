@@ -1,5 +1,7 @@
 package org.lastbamboo.common.turn.client;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
@@ -24,6 +26,8 @@ public interface TurnClient extends StunClient
      * address and to allow incoming connections from that address.
      * 
      * @param remoteAddress The address of the remote host.
+     * @throws IllegalStateException If the client isn't connected to a TURN
+     * server.
      */
     void sendConnectRequest(InetSocketAddress remoteAddress);
 
@@ -57,4 +61,23 @@ public interface TurnClient extends StunClient
      */
     boolean isConnected();
 
+    /**
+     * Sends a region of a file directly to a remote host through the TURN
+     * server, without going through a local socket.  This blocks until the
+     * region is written or an error occurs.
+     * 
+     * @param remoteAddress The address of the remote host.
+     * @param file The file to send.
+     * @param offset The offset in the file to start sending from.
+     * @param length The number of bytes to send.
+     * @return The number of bytes sent.
+     * @throws IOException If we could not read the file or could not write
+     * to the TURN server.
+     * @throws UnsupportedOperationException If the client's transport to
+     * the TURN server can lose data, so parts of the file could silently
+     * never arrive.
+     */
+    long sendFile(InetSocketAddress remoteAddress, File file, long offset, 
+        long length) throws IOException;
+
     }
@@ -1,5 +1,7 @@
 package org.lastbamboo.common.turn.client;
 
+import java.io.File;
+
 /**
  * Simple class for storing configuration. We cheat here and make
  * this all static to avoid the overhead of integrating dependency 
@@ -9,7 +11,33 @@ package org.lastbamboo.common.turn.client;
 public class TurnClientConfig {
 
     private static boolean useDnsSec = false;
-    
+
+    private static TurnExecutionMode executionMode = TurnExecutionMode.EXECUTOR;
+
+    private static long slowCallbackThresholdMillis = 20;
+
+    private static boolean useChannelBindings = false;
+
+    private static long peerUploadBytesPerSecond = 0;
+
+    private static long peerDownloadBytesPerSecond = 0;
+
+    private static long clientUploadBytesPerSecond = 0;
+
+    private static long clientDownloadBytesPerSecond = 0;
+
+    private static File captureDirectory = null;
+
+    private static long reassemblyBytesPerPeer =
+        TurnReassemblyBudget.DEFAULT_PEER_BYTES;
+
+    private static long reassemblyBytesTotal =
+        TurnReassemblyBudget.DEFAULT_TOTAL_BYTES;
+
+    private static boolean useTls = false;
+
+    private static TurnTlsContextFactory tlsContextFactory = null;
+
     private TurnClientConfig(){}
 
     /**
@@ -31,4 +59,266 @@ public class TurnClientConfig {
     public static boolean isUseDnsSec() {
         return useDnsSec;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets how TURN clients created after this call dispatch events to
+     * their listeners.
+     * 
+     * @param executionMode The execution mode to use.
+     */
+    public static void setExecutionMode(final TurnExecutionMode executionMode) {
+        if (executionMode == null) {
+            throw new NullPointerException("Null execution mode");
+        }
+        TurnClientConfig.executionMode = executionMode;
+    }
+
+    /**
+     * Accessor for how TURN clients dispatch events to their listeners.
+     * 
+     * @return The configured execution mode.
+     */
+    public static TurnExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Sets how long a {@link TurnClientListener} callback can take before
+     * we log it as slow.
+     * 
+     * @param slowCallbackThresholdMillis The threshold in milliseconds.
+     */
+    public static void setSlowCallbackThresholdMillis(
+        final long slowCallbackThresholdMillis) {
+        TurnClientConfig.slowCallbackThresholdMillis = 
+            slowCallbackThresholdMillis;
+    }
+
+    /**
+     * Accessor for how long a listener callback can take before we log it
+     * as slow.
+     * 
+     * @return The threshold in milliseconds.
+     */
+    public static long getSlowCallbackThresholdMillis() {
+        return slowCallbackThresholdMillis;
+    }
+
+    /**
+     * Sets whether or not TURN clients bind remote hosts to channels so
+     * relayed data can travel as ChannelData rather than in indications.
+     * This is off by default because older TURN servers don't understand
+     * ChannelBind Requests.
+     * 
+     * @param useChannelBindings Whether or not to bind channels.
+     */
+    public static void setUseChannelBindings(
+        final boolean useChannelBindings) {
+        TurnClientConfig.useChannelBindings = useChannelBindings;
+    }
+
+    /**
+     * Whether or not we're configured to bind remote hosts to channels.
+     * 
+     * @return <code>true</code> if configured to bind channels, otherwise
+     * <code>false</code>.
+     */
+    public static boolean isUseChannelBindings() {
+        return useChannelBindings;
+    }
+
+    /**
+     * Sets the maximum rate we send to each remote host. This applies to
+     * TURN clients created after this call, and 0 means unlimited.
+     * 
+     * @param peerUploadBytesPerSecond The limit in bytes per second.
+     */
+    public static void setPeerUploadBytesPerSecond(
+        final long peerUploadBytesPerSecond) {
+        TurnClientConfig.peerUploadBytesPerSecond = peerUploadBytesPerSecond;
+    }
+
+    /**
+     * Accessor for the maximum rate we send to each remote host.
+     * 
+     * @return The limit in bytes per second, or 0 if unlimited.
+     */
+    public static long getPeerUploadBytesPerSecond() {
+        return peerUploadBytesPerSecond;
+    }
+
+    /**
+     * Sets the maximum rate we receive from each remote host. This applies
+     * to TURN clients created after this call, and 0 means unlimited.
+     * 
+     * @param peerDownloadBytesPerSecond The limit in bytes per second.
+     */
+    public static void setPeerDownloadBytesPerSecond(
+        final long peerDownloadBytesPerSecond) {
+        TurnClientConfig.peerDownloadBytesPerSecond = 
+            peerDownloadBytesPerSecond;
+    }
+
+    /**
+     * Accessor for the maximum rate we receive from each remote host.
+     * 
+     * @return The limit in bytes per second, or 0 if unlimited.
+     */
+    public static long getPeerDownloadBytesPerSecond() {
+        return peerDownloadBytesPerSecond;
+    }
+
+    /**
+     * Sets the maximum rate each TURN client sends to all remote hosts
+     * together. This applies to TURN clients created after this call, and 0
+     * means unlimited.
+     * 
+     * @param clientUploadBytesPerSecond The limit in bytes per second.
+     */
+    public static void setClientUploadBytesPerSecond(
+        final long clientUploadBytesPerSecond) {
+        TurnClientConfig.clientUploadBytesPerSecond = 
+            clientUploadBytesPerSecond;
+    }
+
+    /**
+     * Accessor for the maximum rate each TURN client sends to all remote
+     * hosts together.
+     * 
+     * @return The limit in bytes per second, or 0 if unlimited.
+     */
+    public static long getClientUploadBytesPerSecond() {
+        return clientUploadBytesPerSecond;
+    }
+
+    /**
+     * Sets the maximum rate each TURN client receives from all remote hosts
+     * together. This applies to TURN clients created after this call, and 0
+     * means unlimited.
+     * 
+     * @param clientDownloadBytesPerSecond The limit in bytes per second.
+     */
+    public static void setClientDownloadBytesPerSecond(
+        final long clientDownloadBytesPerSecond) {
+        TurnClientConfig.clientDownloadBytesPerSecond = 
+            clientDownloadBytesPerSecond;
+    }
+
+    /**
+     * Accessor for the maximum rate each TURN client receives from all
+     * remote hosts together.
+     * 
+     * @return The limit in bytes per second, or 0 if unlimited.
+     */
+    public static long getClientDownloadBytesPerSecond() {
+        return clientDownloadBytesPerSecond;
+    }
+
+    /**
+     * Sets the directory TCP TURN clients created after this call capture
+     * their traffic with the TURN server to, for replaying with
+     * {@link TurnCaptureReplayer}.  Each connection to a server writes its
+     * own file.
+     * 
+     * @param captureDirectory The directory, or <code>null</code> to turn
+     * capturing off.
+     */
+    public static void setCaptureDirectory(final File captureDirectory) {
+        TurnClientConfig.captureDirectory = captureDirectory;
+    }
+
+    /**
+     * Accessor for the directory TCP TURN clients capture their traffic to.
+     * 
+     * @return The directory, or <code>null</code> if capturing is off.
+     */
+    public static File getCaptureDirectory() {
+        return captureDirectory;
+    }
+
+    /**
+     * Sets the most bytes of partial messages we hold for any one remote
+     * host while waiting for the rest of them.  This applies to listeners
+     * created after this call.
+     * 
+     * @param reassemblyBytesPerPeer The limit in bytes.
+     */
+    public static void setReassemblyBytesPerPeer(
+        final long reassemblyBytesPerPeer) {
+        TurnClientConfig.reassemblyBytesPerPeer = reassemblyBytesPerPeer;
+    }
+
+    /**
+     * Accessor for the most bytes of partial messages we hold for any one
+     * remote host.
+     * 
+     * @return The limit in bytes.
+     */
+    public static long getReassemblyBytesPerPeer() {
+        return reassemblyBytesPerPeer;
+    }
+
+    /**
+     * Sets the most bytes of partial messages we hold for all remote hosts
+     * together.  This applies to listeners created after this call.
+     * 
+     * @param reassemblyBytesTotal The limit in bytes.
+     */
+    public static void setReassemblyBytesTotal(
+        final long reassemblyBytesTotal) {
+        TurnClientConfig.reassemblyBytesTotal = reassemblyBytesTotal;
+    }
+
+    /**
+     * Accessor for the most bytes of partial messages we hold for all
+     * remote hosts together.
+     * 
+     * @return The limit in bytes.
+     */
+    public static long getReassemblyBytesTotal() {
+        return reassemblyBytesTotal;
+    }
+
+    /**
+     * Sets whether or not TCP TURN clients connect to the server over TLS.
+     * 
+     * @param useTls Whether or not to use TLS.
+     */
+    public static void setUseTls(final boolean useTls) {
+        TurnClientConfig.useTls = useTls;
+    }
+
+    /**
+     * Accessor for whether or not TCP TURN clients connect to the server
+     * over TLS.
+     * 
+     * @return <code>true</code> if we use TLS, otherwise <code>false</code>.
+     */
+    public static boolean isUseTls() {
+        return useTls;
+    }
+
+    /**
+     * Sets the factory for the TLS contexts we use with each TURN server,
+     * for example to trust a private certificate authority.  This only
+     * affects servers we haven't connected to yet.
+     * 
+     * @param tlsContextFactory The factory, or <code>null</code> to use
+     * the default context.
+     */
+    public static void setTlsContextFactory(
+        final TurnTlsContextFactory tlsContextFactory) {
+        TurnClientConfig.tlsContextFactory = tlsContextFactory;
+    }
+
+    /**
+     * Accessor for the factory for the TLS contexts we use with each TURN
+     * server.
+     * 
+     * @return The factory, or <code>null</code> if we use the default
+     * context.
+     */
+    public static TurnTlsContextFactory getTlsContextFactory() {
+        return tlsContextFactory;
+    }
+}
@@ -0,0 +1,342 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of {@link TcpTurnClient}s that have already connected to a TURN
+ * server and allocated a relay address, so callers don't pay for the TCP
+ * connect, any DNSSEC lookups and the Allocate round trip when they need a
+ * relay.  We keep the pool topped up in the background, and we retire
+ * clients that sit idle longer than the idle limit so callers never get
+ * an allocation the server is about to expire.  If the pool is empty when
+ * a caller needs a client, we connect one on the caller's thread just as
+ * if there were no pool.<p>
+ *
+ * Clients are created before we know who'll use them, so each one gets a
+ * listener that forwards to the caller's listener once the client is
+ * taken.  Nobody knows an idle client's relay address, so there are no
+ * remote hosts to lose until then.
+ */
+public class TurnClientPool {
+
+    /**
+     * The default number of clients we keep ready.
+     */
+    public static final int DEFAULT_SIZE = 2;
+
+    /**
+     * The default time a client can sit in the pool before we replace it,
+     * in milliseconds.
+     */
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 5 * 60 * 1000;
+
+    private static final class SharedExecutorHolder {
+        private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(
+                new DaemonThreadFactory("TURN-Client-Pool"));
+    }
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final CandidateProvider<InetSocketAddress> m_candidateProvider;
+
+    private final ProtocolCodecFactory m_codecFactory;
+
+    private final TurnTransportConfig m_transportConfig;
+
+    private final int m_size;
+
+    private final long m_maxIdleMillis;
+
+    private final Queue<PooledClient> m_idle =
+        new ConcurrentLinkedQueue<PooledClient>();
+
+    private final AtomicBoolean m_replenishing = new AtomicBoolean(false);
+
+    private final AtomicLong m_misses = new AtomicLong();
+
+    private final AtomicLong m_retired = new AtomicLong();
+
+    private final LatencyHistogram m_timeToRelay = new LatencyHistogram();
+
+    private volatile boolean m_closed;
+
+    private volatile ScheduledFuture<?> m_sweepFuture;
+
+    /**
+     * Creates a new pool with the default size and idle limit.
+     *
+     * @param candidateProvider The class that provides TURN candidate
+     * servers.
+     * @param codecFactory The codec factory for each client.
+     */
+    public TurnClientPool(
+        final CandidateProvider<InetSocketAddress> candidateProvider,
+        final ProtocolCodecFactory codecFactory) {
+        this(candidateProvider, codecFactory, TurnTransportConfig.fromConfig(),
+            DEFAULT_SIZE, DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param candidateProvider The class that provides TURN candidate
+     * servers.
+     * @param codecFactory The codec factory for each client.
+     * @param transportConfig The transport settings for each client.
+     * @param size The number of clients to keep ready.
+     * @param maxIdleMillis How long a client can sit in the pool before we
+     * replace it, in milliseconds.
+     */
+    public TurnClientPool(
+        final CandidateProvider<InetSocketAddress> candidateProvider,
+        final ProtocolCodecFactory codecFactory,
+        final TurnTransportConfig transportConfig, final int size,
+        final long maxIdleMillis) {
+        if (transportConfig == null) {
+            throw new NullPointerException("Null transport config");
+        }
+        if (size < 1 || maxIdleMillis <= 0) {
+            throw new IllegalArgumentException("Bad size or idle limit: " +
+                size + "," + maxIdleMillis);
+        }
+        m_candidateProvider = candidateProvider;
+        m_codecFactory = codecFactory;
+        m_transportConfig = transportConfig;
+        m_size = size;
+        m_maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Starts filling the pool in the background and checking for clients
+     * that have been idle too long.
+     */
+    public synchronized void start() {
+        if (m_sweepFuture != null) {
+            return;
+        }
+        final long period = Math.max(1, m_maxIdleMillis / 2);
+        m_sweepFuture = StunRetransmitter.sharedTimer().scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    // Closing clients waits on their sessions, so we keep
+                    // it off the shared timer.
+                    SharedExecutorHolder.EXECUTOR.execute(new Runnable() {
+                        public void run() {
+                            retireIdleClients();
+                            replenish();
+                        }
+                    });
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        replenishLater();
+    }
+
+    /**
+     * Takes a connected client out of the pool, connecting one now if the
+     * pool is empty.
+     *
+     * @param listener The listener for the client's events from now on.
+     * @return The client, already allocated on a TURN server.
+     * @throws IOException If the pool was empty and we couldn't connect a
+     * client.
+     */
+    public TcpTurnClient take(final TurnClientListener listener)
+        throws IOException {
+        if (listener == null) {
+            throw new NullPointerException("Null listener");
+        }
+        if (m_closed) {
+            throw new IllegalStateException("Pool closed");
+        }
+        final long start = System.nanoTime();
+        PooledClient pooled;
+        while ((pooled = m_idle.poll()) != null) {
+            if (pooled.m_client.isConnected()) {
+                break;
+            }
+            m_log.debug("Dropping client that lost its server");
+            pooled.m_client.close();
+        }
+        replenishLater();
+        if (pooled == null) {
+            m_misses.incrementAndGet();
+            pooled = newPooledClient();
+        }
+        pooled.m_listener.m_delegate = listener;
+        m_timeToRelay.record(System.nanoTime() - start);
+        return pooled.m_client;
+    }
+
+    /**
+     * Accessor for the number of clients ready to take.
+     *
+     * @return The number of idle clients.
+     */
+    public int getIdleClients() {
+        return m_idle.size();
+    }
+
+    /**
+     * Accessor for the number of times the pool was empty and a caller had
+     * to wait for a new client to connect.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    /**
+     * Accessor for the number of clients we closed for sitting idle too
+     * long or losing their servers.
+     *
+     * @return The number of retired clients.
+     */
+    public long getRetiredClients() {
+        return m_retired.get();
+    }
+
+    /**
+     * Accessor for how long {@link #take(TurnClientListener)} takes to hand
+     * out an allocated client.
+     *
+     * @return The time to relay histogram.
+     */
+    public LatencyHistogram getTimeToRelay() {
+        return m_timeToRelay;
+    }
+
+    /**
+     * Closes the pool and all the clients in it.  Clients already taken
+     * belong to their callers and stay open.
+     */
+    public void close() {
+        m_closed = true;
+        final ScheduledFuture<?> sweep = m_sweepFuture;
+        if (sweep != null) {
+            sweep.cancel(false);
+        }
+        PooledClient pooled;
+        while ((pooled = m_idle.poll()) != null) {
+            pooled.m_client.close();
+        }
+    }
+
+    private PooledClient newPooledClient() throws IOException {
+        final PooledClient pooled = new PooledClient();
+        pooled.m_client.connect();
+        return pooled;
+    }
+
+    private void replenishLater() {
+        SharedExecutorHolder.EXECUTOR.execute(new Runnable() {
+            public void run() {
+                replenish();
+            }
+        });
+    }
+
+    private void replenish() {
+        if (!m_replenishing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            while (!m_closed && m_idle.size() < m_size) {
+                final PooledClient pooled;
+                try {
+                    pooled = newPooledClient();
+                } catch (final IOException e) {
+                    // We'll try again on the next sweep.
+                    m_log.warn("Could not add client to pool", e);
+                    return;
+                }
+                m_idle.offer(pooled);
+                if (m_closed && m_idle.remove(pooled)) {
+                    pooled.m_client.close();
+                }
+            }
+        } finally {
+            m_replenishing.set(false);
+        }
+    }
+
+    private void retireIdleClients() {
+        final long now = System.currentTimeMillis();
+        for (final PooledClient pooled : m_idle) {
+            if (pooled.m_client.isConnected() &&
+                now - pooled.m_created < m_maxIdleMillis) {
+                continue;
+            }
+            if (m_idle.remove(pooled)) {
+                m_log.debug("Retiring idle client");
+                m_retired.incrementAndGet();
+                pooled.m_client.close();
+            }
+        }
+    }
+
+    private final class PooledClient {
+        private final PooledListener m_listener = new PooledListener();
+        private final TcpTurnClient m_client = new TcpTurnClient(m_listener,
+            m_candidateProvider, m_codecFactory, m_transportConfig);
+        private final long m_created = System.currentTimeMillis();
+    }
+
+    /**
+     * Listener that drops events until the client is taken and forwards
+     * them to the caller's listener after.
+     */
+    private static final class PooledListener implements TurnClientListener {
+
+        private volatile TurnClientListener m_delegate;
+
+        public IoSession onRemoteAddressOpened(
+            final InetSocketAddress remoteAddress, final IoSession session) {
+            final TurnClientListener delegate = m_delegate;
+            if (delegate == null) {
+                return null;
+            }
+            return delegate.onRemoteAddressOpened(remoteAddress, session);
+        }
+
+        public void onRemoteAddressClosed(
+            final InetSocketAddress remoteAddress) {
+            final TurnClientListener delegate = m_delegate;
+            if (delegate != null) {
+                delegate.onRemoteAddressClosed(remoteAddress);
+            }
+        }
+
+        public void onData(final InetSocketAddress remoteAddress,
+            final IoSession session, final byte[] data) {
+            final TurnClientListener delegate = m_delegate;
+            if (delegate != null) {
+                delegate.onData(remoteAddress, session, data);
+            }
+        }
+
+        public void close() {
+            final TurnClientListener delegate = m_delegate;
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+    }
+}
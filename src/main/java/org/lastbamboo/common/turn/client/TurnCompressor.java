@@ -0,0 +1,410 @@
+package org.lastbamboo.common.turn.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses relayed data for a single remote host.  Each
+ * chunk starts with a two byte length followed by a one byte marker saying
+ * whether the rest is raw or deflated, so we can send data that doesn't
+ * compress as is.  We keep one deflater and one inflater for the life of
+ * the peer rather than creating new ones for every chunk.<p>
+ *
+ * Over TCP the relay doesn't keep the boundaries of the chunks we send, so
+ * the remote host may see a chunk split across Data Indications or several
+ * chunks in one.  {@link #decompressStream(byte[])} uses the lengths to
+ * put chunks back together before decompressing them.<p>
+ *
+ * Compression is adaptive.  Chunks too small to be worth it go out raw, and
+ * if recent chunks barely compressed, as with media or archives, we stop
+ * trying for a while before probing again.  Both sides of a connection have
+ * to agree to use compression, since the marker byte changes the data the
+ * remote host sees.
+ */
+public class TurnCompressor {
+
+    /**
+     * Marker for chunks sent as is.
+     */
+    static final byte RAW = 0;
+
+    /**
+     * Marker for deflated chunks.
+     */
+    static final byte DEFLATED = 1;
+
+    /**
+     * The bytes in front of the data in each chunk, for the length and the
+     * marker.
+     */
+    static final int OVERHEAD = 3;
+
+    /**
+     * The most data we can send in one chunk, since the length that
+     * follows has to fit in two bytes along with the marker.
+     */
+    static final int MAX_DATA_LENGTH = 0xffff - 1;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Chunks smaller than this aren't worth compressing.
+     */
+    private static final int MIN_COMPRESS_LENGTH = 128;
+
+    /**
+     * If a chunk compresses to more than this fraction of its size, we
+     * count it as incompressible.
+     */
+    private static final double INCOMPRESSIBLE_RATIO = 0.9;
+
+    private static final int MIN_BYPASS_CHUNKS = 16;
+
+    private static final int MAX_BYPASS_CHUNKS = 1024;
+
+    private final Deflater m_deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+    private final Inflater m_inflater = new Inflater(true);
+
+    private byte[] m_scratch = new byte[1024];
+
+    /**
+     * The start of a chunk we haven't received all of yet.
+     */
+    private byte[] m_pending = EMPTY;
+
+    private int m_pendingLength;
+
+    private boolean m_closed;
+
+    private int m_bypassRemaining;
+
+    private int m_bypassLength = MIN_BYPASS_CHUNKS;
+
+    private long m_uncompressedBytesOut;
+    private long m_compressedBytesOut;
+    private long m_compressNanos;
+    private long m_bypassedChunks;
+    private long m_compressedBytesIn;
+    private long m_uncompressedBytesIn;
+    private long m_decompressNanos;
+
+    /**
+     * Compresses a chunk of data for sending, if it's worth it.
+     *
+     * @param data The data, at most {@link #MAX_DATA_LENGTH} bytes.
+     * @return The data with its length and marker, compressed or not.
+     */
+    public synchronized byte[] compress(final byte[] data) {
+        if (data.length > MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("Chunk too long: " +
+                data.length);
+        }
+        m_uncompressedBytesOut += data.length;
+        if (data.length < MIN_COMPRESS_LENGTH || m_closed) {
+            return raw(data);
+        }
+        if (m_bypassRemaining > 0) {
+            m_bypassRemaining--;
+            m_bypassedChunks++;
+            return raw(data);
+        }
+        final long start = System.nanoTime();
+        m_deflater.reset();
+        m_deflater.setInput(data);
+        m_deflater.finish();
+        // Anything bigger than the raw data isn't worth sending.
+        ensureScratch(data.length + OVERHEAD);
+        int length = OVERHEAD;
+        while (!m_deflater.finished() && length < data.length) {
+            length += m_deflater.deflate(m_scratch, length,
+                data.length - length);
+        }
+        m_compressNanos += System.nanoTime() - start;
+
+        if (!m_deflater.finished() ||
+            length - OVERHEAD > data.length * INCOMPRESSIBLE_RATIO) {
+            // Back off harder each time the data stays incompressible.
+            m_bypassRemaining = m_bypassLength;
+            m_bypassLength = Math.min(MAX_BYPASS_CHUNKS, m_bypassLength * 2);
+            return raw(data);
+        }
+        m_bypassLength = MIN_BYPASS_CHUNKS;
+        final byte[] compressed = new byte[length];
+        System.arraycopy(m_scratch, 0, compressed, 0, length);
+        writeHeader(compressed, DEFLATED);
+        m_compressedBytesOut += length;
+        return compressed;
+    }
+
+    /**
+     * Decompresses a single whole chunk of data from the remote host.
+     *
+     * @param data The chunk with its length and marker.
+     * @return The original data.
+     * @throws DataFormatException If the data isn't a valid chunk.
+     */
+    public synchronized byte[] decompress(final byte[] data)
+        throws DataFormatException {
+        if (data.length < OVERHEAD || readLength(data, 0) != data.length - 2) {
+            throw new DataFormatException("Not a single chunk");
+        }
+        return decompress(data, 2, data.length - 2);
+    }
+
+    /**
+     * Decompresses data from the remote host as the relay delivered it,
+     * which can hold any part of any number of chunks.  We hold on to the
+     * start of a chunk until the rest of it arrives.
+     *
+     * @param data The data.
+     * @return The original data of each chunk that's now complete, in
+     * order.  This is empty if we're still waiting for the rest of a
+     * chunk.
+     * @throws DataFormatException If the data isn't valid.  We can't find
+     * the next chunk after that, so we drop anything we were holding.
+     */
+    public synchronized List<byte[]> decompressStream(final byte[] data)
+        throws DataFormatException {
+        final byte[] buf;
+        final int end;
+        if (m_pendingLength == 0) {
+            // Chunks that arrive whole are decompressed straight out of
+            // the data.
+            buf = data;
+            end = data.length;
+        } else {
+            ensurePending(m_pendingLength + data.length);
+            System.arraycopy(data, 0, m_pending, m_pendingLength, data.length);
+            buf = m_pending;
+            end = m_pendingLength + data.length;
+        }
+        final List<byte[]> chunks = new ArrayList<byte[]>(1);
+        int pos = 0;
+        try {
+            while (end - pos >= 2) {
+                final int length = readLength(buf, pos);
+                if (length == 0) {
+                    throw new DataFormatException("Empty chunk");
+                }
+                if (end - pos - 2 < length) {
+                    break;
+                }
+                chunks.add(decompress(buf, pos + 2, length));
+                pos += 2 + length;
+            }
+        } catch (final DataFormatException e) {
+            m_pendingLength = 0;
+            m_pending = EMPTY;
+            throw e;
+        }
+        final int tail = end - pos;
+        if (tail == 0) {
+            m_pendingLength = 0;
+            m_pending = EMPTY;
+        } else {
+            if (buf != m_pending) {
+                ensurePending(tail);
+            }
+            System.arraycopy(buf, pos, m_pending, 0, tail);
+            m_pendingLength = tail;
+        }
+        return chunks;
+    }
+
+    /**
+     * Drops the start of any chunk we're holding, for when data from the
+     * remote host starts arriving on a new connection.
+     */
+    public synchronized void resetStream() {
+        m_pending = EMPTY;
+        m_pendingLength = 0;
+    }
+
+    /**
+     * Decompresses the marker and data of a chunk.
+     */
+    private byte[] decompress(final byte[] data, final int offset,
+        final int length) throws DataFormatException {
+        m_compressedBytesIn += length + 2;
+        if (data[offset] == RAW) {
+            final byte[] raw = new byte[length - 1];
+            System.arraycopy(data, offset + 1, raw, 0, raw.length);
+            m_uncompressedBytesIn += raw.length;
+            return raw;
+        }
+        if (data[offset] != DEFLATED || m_closed) {
+            throw new DataFormatException("Unknown marker: " + data[offset]);
+        }
+        final long start = System.nanoTime();
+        m_inflater.reset();
+        m_inflater.setInput(data, offset + 1, length - 1);
+        // Senders never compress more than MAX_DATA_LENGTH bytes, so we
+        // stop there rather than letting a deflate bomb grow the buffer.
+        final int limit = MAX_DATA_LENGTH + 1;
+        ensureScratch(Math.min(length * 4, limit));
+        int inflatedLength = 0;
+        while (!m_inflater.finished()) {
+            if (inflatedLength == m_scratch.length) {
+                ensureScratch(Math.min(m_scratch.length * 2, limit));
+            }
+            final int inflated = m_inflater.inflate(m_scratch, inflatedLength,
+                m_scratch.length - inflatedLength);
+            if (inflated == 0 && (m_inflater.needsInput() ||
+                m_inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated chunk");
+            }
+            inflatedLength += inflated;
+            if (inflatedLength > MAX_DATA_LENGTH) {
+                throw new DataFormatException("Chunk inflates past " +
+                    MAX_DATA_LENGTH + " bytes");
+            }
+        }
+        m_decompressNanos += System.nanoTime() - start;
+        final byte[] decompressed = new byte[inflatedLength];
+        System.arraycopy(m_scratch, 0, decompressed, 0, inflatedLength);
+        m_uncompressedBytesIn += inflatedLength;
+        return decompressed;
+    }
+
+    /**
+     * Releases the native resources for this peer.
+     */
+    public synchronized void close() {
+        if (m_closed) {
+            return;
+        }
+        m_closed = true;
+        m_deflater.end();
+        m_inflater.end();
+        m_pending = EMPTY;
+        m_pendingLength = 0;
+    }
+
+    private byte[] raw(final byte[] data) {
+        final byte[] raw = new byte[data.length + OVERHEAD];
+        writeHeader(raw, RAW);
+        System.arraycopy(data, 0, raw, OVERHEAD, data.length);
+        m_compressedBytesOut += raw.length;
+        return raw;
+    }
+
+    /**
+     * Writes the length of the rest of the chunk and its marker.
+     */
+    private static void writeHeader(final byte[] chunk, final byte marker) {
+        final int length = chunk.length - 2;
+        chunk[0] = (byte) (length >>> 8);
+        chunk[1] = (byte) length;
+        chunk[2] = marker;
+    }
+
+    private static int readLength(final byte[] data, final int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private void ensurePending(final int length) {
+        if (m_pending.length < length) {
+            final byte[] pending = new byte[Math.max(length, 1024)];
+            System.arraycopy(m_pending, 0, pending, 0, m_pendingLength);
+            m_pending = pending;
+        }
+    }
+
+    private void ensureScratch(final int length) {
+        if (m_scratch.length < length) {
+            final byte[] scratch = new byte[length];
+            System.arraycopy(m_scratch, 0, scratch, 0, m_scratch.length);
+            m_scratch = scratch;
+        }
+    }
+
+    /**
+     * Accessor for the ratio of bytes we sent to bytes we were given to
+     * send, including lengths and marker bytes.
+     *
+     * @return The outbound compression ratio, or 1 if we haven't sent
+     * anything.
+     */
+    public synchronized double getCompressionRatio() {
+        if (m_uncompressedBytesOut == 0) {
+            return 1.0;
+        }
+        return (double) m_compressedBytesOut / m_uncompressedBytesOut;
+    }
+
+    /**
+     * Accessor for the number of bytes we were given to send.
+     *
+     * @return The number of uncompressed bytes sent.
+     */
+    public synchronized long getUncompressedBytesOut() {
+        return m_uncompressedBytesOut;
+    }
+
+    /**
+     * Accessor for the number of bytes we actually sent.
+     *
+     * @return The number of bytes sent after compression.
+     */
+    public synchronized long getCompressedBytesOut() {
+        return m_compressedBytesOut;
+    }
+
+    /**
+     * Accessor for the number of bytes we received before decompression.
+     *
+     * @return The number of compressed bytes received.
+     */
+    public synchronized long getCompressedBytesIn() {
+        return m_compressedBytesIn;
+    }
+
+    /**
+     * Accessor for the number of bytes we received after decompression.
+     *
+     * @return The number of uncompressed bytes received.
+     */
+    public synchronized long getUncompressedBytesIn() {
+        return m_uncompressedBytesIn;
+    }
+
+    /**
+     * Accessor for the total time spent compressing.
+     *
+     * @return The time spent compressing in nanoseconds.
+     */
+    public synchronized long getCompressNanos() {
+        return m_compressNanos;
+    }
+
+    /**
+     * Accessor for the total time spent decompressing.
+     *
+     * @return The time spent decompressing in nanoseconds.
+     */
+    public synchronized long getDecompressNanos() {
+        return m_decompressNanos;
+    }
+
+    /**
+     * Accessor for the number of chunks we sent raw without trying to
+     * compress them because recent data was incompressible.
+     *
+     * @return The number of bypassed chunks.
+     */
+    public synchronized long getBypassedChunks() {
+        return m_bypassedChunks;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + " ratio: " + getCompressionRatio() +
+            " compress ms: " + m_compressNanos / 1000000 +
+            " decompress ms: " + m_decompressNanos / 1000000 +
+            " bypassed: " + m_bypassedChunks;
+    }
+}
@@ -0,0 +1,144 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.littleshoot.stun.stack.message.attributes.turn.ConnectionStatus;
+
+/**
+ * The result of a Connect Request.  This completes with the
+ * {@link ConnectionStatus} of the first Connection Status Indication the
+ * TURN server sends for the remote address, either
+ * {@link ConnectionStatus#LISTEN} or {@link ConnectionStatus#ESTABLISHED}.
+ * It fails if the server reports the connection closed, if the request
+ * times out, or if we lose the connection to the server.
+ */
+public class TurnConnectFuture implements Future<ConnectionStatus> {
+
+    private final InetSocketAddress m_remoteAddress;
+
+    private final long m_sentNanos = System.nanoTime();
+
+    private ConnectionStatus m_status;
+
+    private Throwable m_failure;
+
+    private boolean m_cancelled;
+
+    /**
+     * Creates a new future.
+     *
+     * @param remoteAddress The remote address we asked the server to
+     * connect to.
+     */
+    TurnConnectFuture(final InetSocketAddress remoteAddress) {
+        m_remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Accessor for the remote address this request is for.
+     *
+     * @return The remote address.
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return m_remoteAddress;
+    }
+
+    /**
+     * Accessor for when we sent the request, in {@link System#nanoTime()}
+     * terms.
+     *
+     * @return When we sent the request.
+     */
+    long getSentNanos() {
+        return m_sentNanos;
+    }
+
+    /**
+     * Completes the future with the status the server reported.
+     *
+     * @param status The connection status.
+     * @return <code>true</code> if this call completed the future.
+     */
+    synchronized boolean complete(final ConnectionStatus status) {
+        if (isDone()) {
+            return false;
+        }
+        m_status = status;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Fails the future.
+     *
+     * @param failure The reason the request failed.
+     * @return <code>true</code> if this call completed the future.
+     */
+    synchronized boolean fail(final Throwable failure) {
+        if (isDone()) {
+            return false;
+        }
+        m_failure = failure;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean cancel(final boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        m_cancelled = true;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return m_cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return m_status != null || m_failure != null || m_cancelled;
+    }
+
+    public synchronized ConnectionStatus get() throws InterruptedException,
+        ExecutionException {
+        while (!isDone()) {
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized ConnectionStatus get(final long timeout,
+        final TimeUnit unit) throws InterruptedException, ExecutionException,
+        TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isDone()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("No status for: " + m_remoteAddress);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private ConnectionStatus result() throws ExecutionException {
+        if (m_cancelled) {
+            throw new CancellationException();
+        }
+        if (m_failure != null) {
+            throw new ExecutionException(m_failure);
+        }
+        return m_status;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + m_remoteAddress + "]";
+    }
+}
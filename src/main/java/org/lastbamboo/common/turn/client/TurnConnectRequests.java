@@ -0,0 +1,194 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.stun.stack.encoder.StunMessageEncoder;
+import org.littleshoot.stun.stack.message.attributes.turn.ConnectionStatus;
+import org.littleshoot.stun.stack.message.turn.ConnectRequest;
+import org.littleshoot.util.mina.ByteBufferUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of outstanding Connect Requests.  The TURN server doesn't
+ * answer Connect Requests directly -- it sends Connection Status
+ * Indications for the remote address instead -- so we match them to
+ * requests by remote address.  We also record how long each remote
+ * address took to reach {@link ConnectionStatus#ESTABLISHED}.
+ */
+public class TurnConnectRequests {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<InetSocketAddress, Pending> m_pending =
+        new ConcurrentHashMap<InetSocketAddress, Pending>();
+
+    private final LatencyHistogram m_timeToEstablished = new LatencyHistogram();
+
+    private final ScheduledExecutorService m_timer;
+
+    /**
+     * Creates a new set of Connect Requests using the shared STUN timer for
+     * timeouts.
+     */
+    public TurnConnectRequests() {
+        this(StunRetransmitter.sharedTimer());
+    }
+
+    /**
+     * Creates a new set of Connect Requests.
+     *
+     * @param timer The timer to schedule timeouts on.
+     */
+    public TurnConnectRequests(final ScheduledExecutorService timer) {
+        m_timer = timer;
+    }
+
+    /**
+     * Registers Connect Requests for the given remote addresses and encodes
+     * them all into a single buffer so they go out in one write.  If a
+     * request for an address is already outstanding, we return its future
+     * and don't send another.
+     *
+     * @param remoteAddresses The remote addresses to connect to.
+     * @param timeoutMillis How long to wait for each address to reach
+     * {@link ConnectionStatus#ESTABLISHED} before failing its future, if it
+     * hasn't already completed with {@link ConnectionStatus#LISTEN}.
+     * @param futures The list to add a future for each address to, in
+     * order.
+     * @return The encoded requests, or <code>null</code> if there's nothing
+     * new to send.
+     */
+    public ByteBuffer newRequests(
+        final Collection<InetSocketAddress> remoteAddresses,
+        final long timeoutMillis, final List<TurnConnectFuture> futures) {
+        final StunMessageEncoder encoder = new StunMessageEncoder();
+        final List<ByteBuffer> bufs = new LinkedList<ByteBuffer>();
+        for (final InetSocketAddress remoteAddress : remoteAddresses) {
+            final Pending pending = new Pending(remoteAddress);
+            pending.m_timeout = m_timer.schedule(new Runnable() {
+                public void run() {
+                    if (m_pending.remove(remoteAddress, pending)) {
+                        pending.m_future.fail(new TimeoutException(
+                            "Connect Request timed out: " + remoteAddress));
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            final Pending existing =
+                m_pending.putIfAbsent(remoteAddress, pending);
+            if (existing != null) {
+                pending.m_timeout.cancel(false);
+                futures.add(existing.m_future);
+                continue;
+            }
+            futures.add(pending.m_future);
+            bufs.add(encoder.encode(new ConnectRequest(remoteAddress)));
+        }
+        if (bufs.isEmpty()) {
+            return null;
+        }
+        return ByteBufferUtils.combine(bufs);
+    }
+
+    /**
+     * Called when the server sends a Connection Status Indication.
+     *
+     * @param remoteAddress The remote address the status is for.
+     * @param status The status.
+     * @return <code>true</code> if the server closed the connection for
+     * one of our outstanding requests, otherwise <code>false</code>.
+     */
+    public boolean onConnectionStatus(final InetSocketAddress remoteAddress,
+        final ConnectionStatus status) {
+        final Pending pending = m_pending.get(remoteAddress);
+        if (pending == null) {
+            return false;
+        }
+        switch (status) {
+        case LISTEN:
+            // The server accepted the request.  We keep waiting for the
+            // remote host to connect so we can time it.
+            pending.m_future.complete(status);
+            break;
+        case ESTABLISHED:
+            if (m_pending.remove(remoteAddress, pending)) {
+                pending.m_timeout.cancel(false);
+                m_timeToEstablished.record(
+                    System.nanoTime() - pending.m_future.getSentNanos());
+                pending.m_future.complete(status);
+            }
+            break;
+        case CLOSED:
+            if (m_pending.remove(remoteAddress, pending)) {
+                pending.m_timeout.cancel(false);
+                pending.m_future.fail(new IOException(
+                    "Connection closed: " + remoteAddress));
+                return true;
+            }
+            break;
+        }
+        return false;
+    }
+
+    /**
+     * Fails all outstanding requests, for example because we got a connect
+     * error or lost the connection to the server.
+     *
+     * @param reason Why the requests failed.
+     */
+    public void failAll(final String reason) {
+        final Collection<Pending> pending =
+            new ArrayList<Pending>(m_pending.values());
+        for (final Pending p : pending) {
+            if (m_pending.remove(p.m_future.getRemoteAddress(), p)) {
+                p.m_timeout.cancel(false);
+                if (p.m_future.fail(new IOException(reason))) {
+                    m_log.debug("Failed Connect Request: {}", p.m_future);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accessor for the number of requests still waiting for their remote
+     * host to connect.
+     *
+     * @return The number of outstanding requests.
+     */
+    public int getPendingRequests() {
+        return m_pending.size();
+    }
+
+    /**
+     * Accessor for the time from sending each Connect Request to the remote
+     * host connecting.
+     *
+     * @return The time to established histogram.
+     */
+    public LatencyHistogram getTimeToEstablished() {
+        return m_timeToEstablished;
+    }
+
+    private static final class Pending {
+
+        private final TurnConnectFuture m_future;
+
+        private ScheduledFuture<?> m_timeout;
+
+        private Pending(final InetSocketAddress remoteAddress) {
+            m_future = new TurnConnectFuture(remoteAddress);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+
+/**
+ * Filter that keeps the Send Indications a {@link UdpTurnClient} writes
+ * small enough to cross any path without IP fragmentation.  Listeners
+ * write up to {@link TurnLocalIoHandler#LENGTH_LIMIT} bytes at a time,
+ * which fits in a TCP frame but not in a datagram most paths will carry,
+ * and losing any fragment of a datagram loses all of it.  It belongs after
+ * the codec filter, so it sees Send Indications before they're encoded.<p>
+ *
+ * We split larger Send Indications into several in order.  The last one
+ * takes over the original write's future, and we report the original
+ * message as sent once it is, so the filters above us only see what they
+ * wrote.  Since UDP doesn't tell us about loss, the future doesn't
+ * either.
+ */
+public class TurnDatagramFilter extends IoFilterAdapter {
+
+    /**
+     * The most data we put in a single Send Indication.  This keeps the
+     * datagram under 1200 bytes, leaving 64 bytes for the STUN header and
+     * the Send Indication's attributes, which need at most 51.
+     */
+    public static final int MAX_DATA_LENGTH = 1200 - 64;
+
+    private static final String SENT_KEY = "TURN_DATAGRAM_SENT";
+
+    /**
+     * Stands in for the original message of every part but the last.
+     */
+    private static final Object EARLIER_PART = new Object();
+
+    @Override
+    public void filterWrite(final NextFilter nextFilter,
+        final IoSession session, final WriteRequest writeRequest)
+        throws Exception {
+        final Object message = writeRequest.getMessage();
+        if (!(message instanceof SendIndication)) {
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        final SendIndication indication = (SendIndication) message;
+        final byte[] data = indication.getData();
+        if (data.length <= MAX_DATA_LENGTH) {
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        final InetSocketAddress remoteAddress = indication.getRemoteAddress();
+        final Map<Object, Object> sent = getSent(session, true);
+        int offset = 0;
+        while (data.length - offset > MAX_DATA_LENGTH) {
+            final byte[] part = new byte[MAX_DATA_LENGTH];
+            System.arraycopy(data, offset, part, 0, part.length);
+            offset += part.length;
+            final SendIndication partIndication =
+                new SendIndication(remoteAddress, part);
+            synchronized (sent) {
+                sent.put(partIndication, EARLIER_PART);
+            }
+            nextFilter.filterWrite(session, new WriteRequest(partIndication));
+        }
+        final byte[] last = new byte[data.length - offset];
+        System.arraycopy(data, offset, last, 0, last.length);
+        final SendIndication lastIndication =
+            new SendIndication(remoteAddress, last);
+        synchronized (sent) {
+            sent.put(lastIndication, indication);
+        }
+        nextFilter.filterWrite(session, new WriteRequest(lastIndication,
+            writeRequest.getFuture(), writeRequest.getDestination()));
+    }
+
+    @Override
+    public void messageSent(final NextFilter nextFilter,
+        final IoSession session, final Object message) throws Exception {
+        final Map<Object, Object> sent = getSent(session, false);
+        if (sent == null) {
+            // We haven't split anything on this session.
+            nextFilter.messageSent(session, message);
+            return;
+        }
+        final Object original;
+        synchronized (sent) {
+            original = sent.remove(message);
+        }
+        if (original == null) {
+            nextFilter.messageSent(session, message);
+        } else if (original != EARLIER_PART) {
+            nextFilter.messageSent(session, original);
+        }
+        // Otherwise this was an earlier part of one we split.
+    }
+
+    @Override
+    public void sessionClosed(final NextFilter nextFilter,
+        final IoSession session) throws Exception {
+        // Parts still queued when the session closes are never sent.
+        session.removeAttribute(SENT_KEY);
+        nextFilter.sessionClosed(session);
+    }
+
+    /**
+     * Accessor for the parts of split Send Indications we've written on a
+     * session, each mapped to the original message or to
+     * {@link #EARLIER_PART}.  All access is synchronized on the map.
+     *
+     * @param session The session.
+     * @param create Whether to create the map if the session has none.
+     * @return The map, or <code>null</code> if the session has none and
+     * we didn't create one.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Object, Object> getSent(final IoSession session,
+        final boolean create) {
+        synchronized (session) {
+            Map<Object, Object> sent =
+                (Map<Object, Object>) session.getAttribute(SENT_KEY);
+            if (sent == null && create) {
+                sent = new IdentityHashMap<Object, Object>();
+                session.setAttribute(SENT_KEY, sent);
+            }
+            return sent;
+        }
+    }
+}
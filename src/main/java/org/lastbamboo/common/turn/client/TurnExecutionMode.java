@@ -0,0 +1,41 @@
+package org.lastbamboo.common.turn.client;
+
+/**
+ * The ways a TURN client can dispatch session and per-peer events to its
+ * {@link TurnClientListener}.
+ */
+public enum TurnExecutionMode {
+
+    /**
+     * Events are processed on a pooled executor thread for each TURN
+     * session, and listener callbacks run on that thread.  This is the
+     * default.
+     */
+    EXECUTOR,
+
+    /**
+     * Session events are processed on virtual threads, and listener
+     * callbacks for each remote address run in order on their own virtual
+     * threads.  Listeners are then free to block without tying up pooled
+     * threads.  On JVMs without virtual threads this falls back to a cached
+     * pool of daemon threads.
+     */
+    VIRTUAL_THREADS,
+
+    /**
+     * Session events are processed on a pooled executor thread as with
+     * {@link #EXECUTOR}, but listener callbacks are spread across one stripe
+     * per core keyed by remote address.  Callbacks for a single remote
+     * address stay in order while different remote addresses are processed
+     * in parallel.
+     */
+    STRIPED,
+
+    /**
+     * Decoding and listener callbacks run directly on the IO processor
+     * thread with no executor hop at all.  This gives the lowest latency,
+     * but listeners must never block because a slow callback stalls every
+     * session sharing the IO processor.  Slow callbacks are logged.
+     */
+    INLINE;
+}
@@ -0,0 +1,600 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TURN client that keeps a standby allocation on a second TURN server so
+ * remote hosts can move to it without going dark.  Each allocation is a
+ * {@link TcpTurnClient}.  When the active server fails, or when we
+ * {@link #migrate()} on purpose, the standby becomes active and we send
+ * Connect Requests on it for every open remote host.  Data for each
+ * remote host keeps going out through the old server until the new one
+ * reports the remote host ESTABLISHED, and only then do we tell the
+ * listener to switch, so a planned move never breaks a remote host before
+ * its new path is up.  When the active server fails, there's no old path
+ * to use, so {@link TurnLocalIoHandler} holds what the local server sends
+ * and stops reading from it until the move.  Remote hosts that don't
+ * connect within
+ * {@link #MOVE_TIMEOUT_MILLIS} are closed.  A new standby is then
+ * allocated in the background on a server other than the active one.<p>
+ *
+ * Listeners implementing {@link TurnFailoverListener} hear about moves
+ * directly.  Other listeners see the remote host closed and opened again.
+ * If the transport settings turn health probing on, a degraded active
+ * server triggers a planned move here rather than
+ * {@link TcpTurnClient#migrate()}.
+ */
+public class TurnFailoverClient implements TurnClient {
+
+    /**
+     * How long remote hosts have to connect through the new server before
+     * we give up on moving them, in milliseconds.
+     */
+    public static final long MOVE_TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final class SharedExecutorHolder {
+        private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(
+                new DaemonThreadFactory("TURN-Failover"));
+    }
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final TurnClientListener m_listener;
+
+    private final CandidateProvider<InetSocketAddress> m_candidateProvider;
+
+    private final ProtocolCodecFactory m_codecFactory;
+
+    private final TurnTransportConfig m_transportConfig;
+
+    /**
+     * Which allocation each open remote host's data goes through.
+     */
+    private final ConcurrentMap<InetSocketAddress, Leg> m_owners =
+        new ConcurrentHashMap<InetSocketAddress, Leg>();
+
+    private final List<IoServiceListener> m_serviceListeners =
+        new CopyOnWriteArrayList<IoServiceListener>();
+
+    private Leg m_active;
+
+    private Leg m_standby;
+
+    private boolean m_closed;
+
+    /**
+     * Creates a new failover client.
+     *
+     * @param listener The listener for TURN client events.
+     * @param candidateProvider The class that provides TURN candidate
+     * servers.  It needs at least two for there to be a standby.
+     * @param codecFactory The codec factory.
+     */
+    public TurnFailoverClient(final TurnClientListener listener,
+        final CandidateProvider<InetSocketAddress> candidateProvider,
+        final ProtocolCodecFactory codecFactory) {
+        this(listener, candidateProvider, codecFactory,
+            TurnTransportConfig.fromConfig());
+    }
+
+    /**
+     * Creates a new failover client with its own transport settings.
+     *
+     * @param listener The listener for TURN client events.
+     * @param candidateProvider The class that provides TURN candidate
+     * servers.  It needs at least two for there to be a standby.
+     * @param codecFactory The codec factory.
+     * @param transportConfig The transport settings for both allocations.
+     */
+    public TurnFailoverClient(final TurnClientListener listener,
+        final CandidateProvider<InetSocketAddress> candidateProvider,
+        final ProtocolCodecFactory codecFactory,
+        final TurnTransportConfig transportConfig) {
+        if (listener == null) {
+            throw new NullPointerException("Null listener");
+        }
+        if (transportConfig == null) {
+            throw new NullPointerException("Null transport config");
+        }
+        m_listener = listener;
+        m_candidateProvider = candidateProvider;
+        m_codecFactory = codecFactory;
+        m_transportConfig = transportConfig;
+    }
+
+    /**
+     * Connects the active allocation and then the standby.  We only fail
+     * if we can't get the active allocation.  Without a second server we
+     * simply run without a standby.
+     *
+     * @throws IOException If we could not connect to any TURN server.
+     */
+    public void connect() throws IOException {
+        final Leg active = new Leg(null);
+        active.m_client.connect();
+        synchronized (this) {
+            if (m_active != null) {
+                active.m_client.close();
+                throw new IllegalArgumentException("Already connected...");
+            }
+            m_closed = false;
+            m_active = active;
+        }
+        try {
+            connectStandby();
+        } catch (final IOException e) {
+            m_log.warn("Running without a standby TURN server", e);
+        }
+    }
+
+    /**
+     * Moves all remote hosts to the standby server, allocating one first if
+     * we don't have one.  This returns once the Connect Requests are out,
+     * and remote hosts switch over as they connect.
+     *
+     * @throws IOException If we couldn't allocate a standby.
+     */
+    public void migrate() throws IOException {
+        final Leg active;
+        synchronized (this) {
+            active = m_active;
+        }
+        if (active == null) {
+            throw new IOException("Not connected to a TURN server");
+        }
+        connectStandby();
+        if (!moveFrom(active, true)) {
+            throw new IOException("No standby TURN server to move to");
+        }
+    }
+
+    /**
+     * Accessor for the allocation remote hosts currently go through.
+     *
+     * @return The active client, or <code>null</code> if we're not
+     * connected.
+     */
+    public synchronized TcpTurnClient getActiveClient() {
+        return m_active == null ? null : m_active.m_client;
+    }
+
+    /**
+     * Accessor for the allocation we'll move to next.
+     *
+     * @return The standby client, or <code>null</code> if we don't have
+     * one right now.
+     */
+    public synchronized TcpTurnClient getStandbyClient() {
+        return m_standby == null ? null : m_standby.m_client;
+    }
+
+    /**
+     * Sends Connect Requests for many remote addresses at once through the
+     * active server.
+     *
+     * @param remoteAddresses The addresses of the remote hosts.
+     * @param timeoutMillis How long to wait for each remote host to connect.
+     * @return The futures for the requests, in the same order as the
+     * addresses.
+     * @see TcpTurnClient#sendConnectRequests(Collection, long)
+     */
+    public List<TurnConnectFuture> sendConnectRequests(
+        final Collection<InetSocketAddress> remoteAddresses,
+        final long timeoutMillis) {
+        return activeClient().sendConnectRequests(remoteAddresses,
+            timeoutMillis);
+    }
+
+    public void sendConnectRequest(final InetSocketAddress remoteAddress) {
+        activeClient().sendConnectRequest(remoteAddress);
+    }
+
+    public long sendFile(final InetSocketAddress remoteAddress,
+        final File file, final long offset, final long length)
+        throws IOException {
+        final TcpTurnClient active = getActiveClient();
+        if (active == null) {
+            throw new IOException("Not connected to TURN server");
+        }
+        return active.sendFile(remoteAddress, file, offset, length);
+    }
+
+    public StunMessage write(final BindingRequest request,
+        final InetSocketAddress remoteAddress) {
+        return activeClient().write(request, remoteAddress);
+    }
+
+    public StunMessage write(final BindingRequest request,
+        final InetSocketAddress remoteAddress, final long rto) {
+        return activeClient().write(request, remoteAddress, rto);
+    }
+
+    public void addIoServiceListener(final IoServiceListener serviceListener) {
+        if (serviceListener == null) {
+            throw new NullPointerException("Null listener");
+        }
+        m_serviceListeners.add(serviceListener);
+        synchronized (this) {
+            if (m_active != null) {
+                m_active.m_client.addIoServiceListener(serviceListener);
+            }
+            if (m_standby != null) {
+                m_standby.m_client.addIoServiceListener(serviceListener);
+            }
+        }
+    }
+
+    public InetSocketAddress getRelayAddress() {
+        final TcpTurnClient active = getActiveClient();
+        return active == null ? null : active.getRelayAddress();
+    }
+
+    public InetSocketAddress getMappedAddress() {
+        final TcpTurnClient active = getActiveClient();
+        return active == null ? null : active.getMappedAddress();
+    }
+
+    public InetAddress getStunServerAddress() {
+        final TcpTurnClient active = getActiveClient();
+        return active == null ? null : active.getStunServerAddress();
+    }
+
+    public InetSocketAddress getHostAddress() {
+        final TcpTurnClient active = getActiveClient();
+        return active == null ? null : active.getHostAddress();
+    }
+
+    public InetSocketAddress getServerReflexiveAddress() {
+        return getMappedAddress();
+    }
+
+    public boolean hostPortMapped() {
+        return false;
+    }
+
+    public boolean isConnected() {
+        final TcpTurnClient active = getActiveClient();
+        return active != null && active.isConnected();
+    }
+
+    public void close() {
+        final Leg active;
+        final Leg standby;
+        synchronized (this) {
+            m_closed = true;
+            active = m_active;
+            standby = m_standby;
+            m_active = null;
+            m_standby = null;
+        }
+        if (standby != null) {
+            standby.m_client.close();
+        }
+        if (active != null) {
+            active.m_client.close();
+        }
+        m_owners.clear();
+        m_listener.close();
+    }
+
+    private TcpTurnClient activeClient() {
+        final TcpTurnClient active = getActiveClient();
+        if (active == null) {
+            throw new IllegalStateException("Not connected to a TURN server");
+        }
+        return active;
+    }
+
+    private void connectStandby() throws IOException {
+        final Leg active;
+        synchronized (this) {
+            if (m_closed || m_active == null || m_standby != null) {
+                return;
+            }
+            active = m_active;
+        }
+        final Leg standby = new Leg(active.m_client.getServerAddress());
+        standby.m_client.connect();
+        synchronized (this) {
+            if (!m_closed && m_active == active && m_standby == null) {
+                m_log.debug("Standby allocation on {}",
+                    standby.m_client.getServerAddress());
+                m_standby = standby;
+                return;
+            }
+        }
+        // Things changed while we were connecting.  Whoever changed them
+        // will ask for a new standby if we need one.
+        standby.m_client.close();
+    }
+
+    private void connectStandbyLater() {
+        SharedExecutorHolder.EXECUTOR.execute(new Runnable() {
+            public void run() {
+                try {
+                    connectStandby();
+                } catch (final IOException e) {
+                    m_log.warn("Could not allocate standby TURN server", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Makes the standby active and starts moving the remote hosts on the
+     * given allocation to it.
+     *
+     * @param from The allocation we're moving off of.
+     * @param planned Whether or not this is a planned move, in which case
+     * the old allocation is still up and we close it once the move is done.
+     * @return <code>true</code> if we started moving, or <code>false</code>
+     * if there was no standby to move to.
+     */
+    private boolean moveFrom(final Leg from, final boolean planned) {
+        final Leg to;
+        synchronized (this) {
+            if (m_closed || from != m_active) {
+                return true;
+            }
+            to = m_standby;
+            if (to == null) {
+                return false;
+            }
+            m_standby = null;
+            m_active = to;
+        }
+        final Set<InetSocketAddress> remoteAddresses =
+            newAddressSet(from);
+        m_log.info("Moving {} remote hosts from {} to {}", new Object[] {
+            remoteAddresses.size(), from.m_client.getServerAddress(),
+            to.m_client.getServerAddress()});
+        final Move move = new Move(from, to, remoteAddresses, planned);
+        to.m_incoming = move;
+        if (remoteAddresses.isEmpty()) {
+            finish(move);
+        } else {
+            to.m_client.sendConnectRequests(
+                new ArrayList<InetSocketAddress>(remoteAddresses),
+                MOVE_TIMEOUT_MILLIS);
+            StunRetransmitter.sharedTimer().schedule(new Runnable() {
+                public void run() {
+                    finish(move);
+                }
+            }, MOVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        connectStandbyLater();
+        return true;
+    }
+
+    private Set<InetSocketAddress> newAddressSet(final Leg leg) {
+        final Set<InetSocketAddress> remoteAddresses =
+            Collections.newSetFromMap(
+                new ConcurrentHashMap<InetSocketAddress, Boolean>());
+        for (final Map.Entry<InetSocketAddress, Leg> entry :
+            m_owners.entrySet()) {
+            if (entry.getValue() == leg) {
+                remoteAddresses.add(entry.getKey());
+            }
+        }
+        return remoteAddresses;
+    }
+
+    private void finish(final Move move) {
+        if (!move.m_finished.compareAndSet(false, true)) {
+            return;
+        }
+        if (move.m_to.m_incoming == move) {
+            move.m_to.m_incoming = null;
+        }
+        for (final InetSocketAddress remoteAddress : move.m_remaining) {
+            m_log.debug("Could not move {}", remoteAddress);
+            if (m_owners.remove(remoteAddress, move.m_from)) {
+                m_listener.onRemoteAddressClosed(remoteAddress);
+            }
+        }
+        move.m_remaining.clear();
+        if (move.m_planned) {
+            // Closing waits for the session to close, so we keep it off
+            // threads that might be the ones closing it.
+            SharedExecutorHolder.EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    move.m_from.m_client.close();
+                }
+            });
+        }
+    }
+
+    private void onClosed(final Leg leg) {
+        synchronized (this) {
+            if (leg == m_standby) {
+                m_log.info("Lost standby TURN server {}",
+                    leg.m_client.getServerAddress());
+                m_standby = null;
+                connectStandbyLater();
+                return;
+            }
+            if (m_closed || leg != m_active) {
+                return;
+            }
+        }
+        if (moveFrom(leg, false)) {
+            return;
+        }
+
+        // Nowhere to move to, so this is just like losing a plain client.
+        synchronized (this) {
+            if (leg != m_active) {
+                return;
+            }
+            m_active = null;
+        }
+        m_log.warn("Lost TURN server {} with no standby",
+            leg.m_client.getServerAddress());
+        for (final InetSocketAddress remoteAddress : newAddressSet(leg)) {
+            if (m_owners.remove(remoteAddress, leg)) {
+                m_listener.onRemoteAddressClosed(remoteAddress);
+            }
+        }
+        m_listener.close();
+    }
+
+    private void onMoved(final InetSocketAddress remoteAddress,
+        final IoSession session) {
+        if (m_listener instanceof TurnFailoverListener) {
+            ((TurnFailoverListener) m_listener).onRemoteAddressMoved(
+                remoteAddress, session);
+        } else {
+            m_listener.onRemoteAddressClosed(remoteAddress);
+            m_listener.onRemoteAddressOpened(remoteAddress, session);
+        }
+    }
+
+    /**
+     * Moving remote hosts from one allocation to another.
+     */
+    private static final class Move {
+        private final Leg m_from;
+        private final Leg m_to;
+        private final Set<InetSocketAddress> m_remaining;
+        private final boolean m_planned;
+        private final AtomicBoolean m_finished = new AtomicBoolean(false);
+
+        private Move(final Leg from, final Leg to,
+            final Set<InetSocketAddress> remaining, final boolean planned) {
+            m_from = from;
+            m_to = to;
+            m_remaining = remaining;
+            m_planned = planned;
+        }
+    }
+
+    /**
+     * One allocation, listening to its own {@link TcpTurnClient} and
+     * deciding which of its events the real listener hears.
+     */
+    private final class Leg implements TurnClientListener,
+        TurnHealthMonitor.Listener {
+
+        private final TcpTurnClient m_client;
+
+        private volatile Move m_incoming;
+
+        private Leg(final InetSocketAddress excludedServer) {
+            final CandidateProvider<InetSocketAddress> candidates =
+                new CandidateProvider<InetSocketAddress>() {
+                    public Collection<InetSocketAddress> getCandidates() {
+                        final List<InetSocketAddress> servers =
+                            new ArrayList<InetSocketAddress>(
+                                m_candidateProvider.getCandidates());
+                        servers.remove(excludedServer);
+                        return servers;
+                    }
+                    public InetSocketAddress getCandidate() {
+                        final Collection<InetSocketAddress> servers =
+                            getCandidates();
+                        return servers.isEmpty() ? null :
+                            servers.iterator().next();
+                    }
+                };
+            m_client = new TcpTurnClient(this, candidates, m_codecFactory,
+                m_transportConfig);
+            m_client.setDegradedListener(this);
+            for (final IoServiceListener serviceListener :
+                m_serviceListeners) {
+                m_client.addIoServiceListener(serviceListener);
+            }
+        }
+
+        public IoSession onRemoteAddressOpened(
+            final InetSocketAddress remoteAddress, final IoSession session) {
+            final Move move = m_incoming;
+            m_owners.put(remoteAddress, this);
+            if (move != null && move.m_remaining.remove(remoteAddress)) {
+                onMoved(remoteAddress, session);
+                if (move.m_remaining.isEmpty()) {
+                    finish(move);
+                }
+                return null;
+            }
+            return m_listener.onRemoteAddressOpened(remoteAddress, session);
+        }
+
+        public void onRemoteAddressClosed(
+            final InetSocketAddress remoteAddress) {
+            final Move move = m_incoming;
+            if (move != null && move.m_remaining.remove(remoteAddress)) {
+                // The new server couldn't reach it, so it's gone for good.
+                if (m_owners.remove(remoteAddress, move.m_from)) {
+                    m_listener.onRemoteAddressClosed(remoteAddress);
+                }
+                if (move.m_remaining.isEmpty()) {
+                    finish(move);
+                }
+                return;
+            }
+            // Once a remote host has moved, the old server closing it
+            // doesn't matter.
+            if (m_owners.remove(remoteAddress, this)) {
+                m_listener.onRemoteAddressClosed(remoteAddress);
+            }
+        }
+
+        public void onData(final InetSocketAddress remoteAddress,
+            final IoSession session, final byte[] data) {
+            m_listener.onData(remoteAddress, session, data);
+        }
+
+        public void close() {
+            if (m_client.isConnected()) {
+                // A server we tried and abandoned while connecting.
+                return;
+            }
+            onClosed(this);
+        }
+
+        public void onDegraded(final TurnHealthMonitor monitor,
+            final String reason) {
+            SharedExecutorHolder.EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    if (getActiveClient() != m_client) {
+                        // A degraded standby just gets replaced.
+                        m_client.close();
+                        return;
+                    }
+                    try {
+                        migrate();
+                    } catch (final IOException e) {
+                        m_log.warn("Could not move off degraded server", e);
+                    }
+                }
+            });
+        }
+    }
+}
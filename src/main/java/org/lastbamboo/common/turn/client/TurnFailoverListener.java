@@ -0,0 +1,25 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * {@link TurnClientListener} that can follow a remote host from one TURN
+ * server to another without closing it.  Listeners given to
+ * {@link TurnFailoverClient} that don't implement this see a moved remote
+ * host closed and opened again instead.
+ */
+public interface TurnFailoverListener extends TurnClientListener {
+
+    /**
+     * Called when a remote host has connected through the new TURN server,
+     * so data for it should go out on the new connection from now on, for
+     * example with {@link TurnLocalIoHandler#setTurnSession(IoSession)}.
+     *
+     * @param remoteAddress The address of the remote host.
+     * @param session The connection to the new TURN server.
+     */
+    void onRemoteAddressMoved(InetSocketAddress remoteAddress,
+        IoSession session);
+}
@@ -0,0 +1,187 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends regions of files to remote hosts directly over the TURN session,
+ * bypassing the local HTTP server socket and {@link TurnLocalIoHandler}.
+ * Each chunk is read with a positional read straight from the file into the
+ * array the Send Indication carries, so the only copies left are the ones
+ * the STUN encoder makes.  We don't memory map the file, since every Send
+ * Indication needs an array of its own and copying from a mapping into it
+ * would cost a copy a read doesn't, while leaving the mapping to be
+ * released whenever the garbage collector gets to it.<p>
+ *
+ * We never have more than a bounded number of bytes queued on the TURN
+ * session.  Once we hit that bound we wait for earlier writes to complete
+ * before reading more of the file.  With a {@link TurnBandwidthShaper} we
+ * also wait out the upload limits before sending each chunk.
+ */
+public class TurnFileSender {
+
+    /**
+     * The default number of bytes we allow to be queued on the TURN session.
+     */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final IoSession m_ioSession;
+
+    private final int m_maxQueuedBytes;
+
+    private final int m_chunkSize;
+
+    private final TurnBandwidthShaper m_shaper;
+
+    /**
+     * Creates a new file sender.
+     *
+     * @param ioSession The connection to the TURN server.
+     * @param maxQueuedBytes The number of bytes we allow to be queued on
+     * the TURN session before waiting for writes to complete.
+     */
+    public TurnFileSender(final IoSession ioSession, final int maxQueuedBytes) {
+        this(ioSession, maxQueuedBytes, TurnLocalIoHandler.LENGTH_LIMIT);
+    }
+
+    /**
+     * Creates a new file sender with a specific chunk size.
+     *
+     * @param ioSession The connection to the TURN server.
+     * @param maxQueuedBytes The number of bytes we allow to be queued on
+     * the TURN session before waiting for writes to complete.
+     * @param chunkSize The maximum number of file bytes to put in each
+     * Send Indication.
+     */
+    public TurnFileSender(final IoSession ioSession, final int maxQueuedBytes,
+        final int chunkSize) {
+        this(ioSession, maxQueuedBytes, chunkSize, null);
+    }
+
+    /**
+     * Creates a new file sender with a specific chunk size that keeps to
+     * upload limits.
+     *
+     * @param ioSession The connection to the TURN server.
+     * @param maxQueuedBytes The number of bytes we allow to be queued on
+     * the TURN session before waiting for writes to complete.
+     * @param chunkSize The maximum number of file bytes to put in each
+     * Send Indication.
+     * @param shaper The bandwidth shaper, or <code>null</code> to send
+     * as fast as the TURN session allows.
+     */
+    public TurnFileSender(final IoSession ioSession, final int maxQueuedBytes,
+        final int chunkSize, final TurnBandwidthShaper shaper) {
+        if (ioSession == null) {
+            throw new NullPointerException("Null session");
+        }
+        if (chunkSize <= 0 || chunkSize > TurnLocalIoHandler.LENGTH_LIMIT) {
+            throw new IllegalArgumentException("Bad chunk size: " + chunkSize);
+        }
+        m_ioSession = ioSession;
+        m_maxQueuedBytes = maxQueuedBytes;
+        m_chunkSize = chunkSize;
+        m_shaper = shaper;
+    }
+
+    /**
+     * Sends a region of a file to a remote host.  This blocks until the
+     * whole region is written to the TURN session or an error occurs.
+     *
+     * @param remoteAddress The remote host to send the file to.
+     * @param file The file to send.
+     * @param offset The offset in the file to start sending from.
+     * @param length The number of bytes to send.
+     * @return The number of bytes sent.
+     * @throws IOException If we could not read the file or could not write
+     * to the TURN server.
+     */
+    public long sendFile(final InetSocketAddress remoteAddress, final File file,
+        final long offset, final long length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Bad region: " + offset + "," +
+                length);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel fc = raf.getChannel();
+            if (offset + length > fc.size()) {
+                throw new EOFException("Region " + offset + "+" + length +
+                    " past end of " + file + " with size " + fc.size());
+            }
+            m_log.debug("Sending {} bytes of {}", length, file);
+            final LinkedList<WriteFuture> pending = new LinkedList<WriteFuture>();
+            sendRead(remoteAddress, fc, offset, length, pending);
+
+            // Make sure everything actually made it out.
+            while (!pending.isEmpty()) {
+                awaitWrite(pending.removeFirst());
+            }
+            return length;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void sendRead(final InetSocketAddress remoteAddress,
+        final FileChannel fc, final long offset, final long length,
+        final LinkedList<WriteFuture> pending) throws IOException {
+        long position = offset;
+        final long end = offset + length;
+        while (position < end) {
+            final byte[] chunk =
+                new byte[(int) Math.min(m_chunkSize, end - position)];
+            final ByteBuffer buf = ByteBuffer.wrap(chunk);
+            while (buf.hasRemaining()) {
+                final int read = fc.read(buf, position + buf.position());
+                if (read < 0) {
+                    throw new EOFException("File truncated while sending");
+                }
+            }
+            send(remoteAddress, chunk, pending);
+            position += chunk.length;
+        }
+    }
+
+    private void send(final InetSocketAddress remoteAddress,
+        final byte[] chunk, final LinkedList<WriteFuture> pending)
+        throws IOException {
+        if (!m_ioSession.isConnected()) {
+            throw new IOException("TURN session closed while sending file");
+        }
+        if (m_shaper != null) {
+            m_shaper.awaitUpload(remoteAddress, chunk.length);
+        }
+        pending.add(m_ioSession.write(new SendIndication(remoteAddress, chunk)));
+        while (m_ioSession.getScheduledWriteBytes() > m_maxQueuedBytes &&
+            !pending.isEmpty()) {
+            awaitWrite(pending.removeFirst());
+        }
+        // Drop futures for writes that already completed so the list
+        // doesn't grow with the size of the file.
+        while (!pending.isEmpty() && pending.getFirst().isReady()) {
+            awaitWrite(pending.removeFirst());
+        }
+    }
+
+    private void awaitWrite(final WriteFuture future) throws IOException {
+        future.join();
+        if (!future.isWritten()) {
+            throw new IOException("Could not write to TURN server");
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.lastbamboo.common.turn.client;
+
+/**
+ * Immutable settings for probing the health of a single TCP TURN client's
+ * server with a {@link TurnHealthMonitor}.  Clients carry these in their
+ * {@link TurnTransportConfig}, so each client can probe on its own terms.
+ * Probing is off by default.  Turn it on with
+ * {@link #withProbeIntervalMillis(long)} and adjust the limits with the
+ * other <code>with</code> methods, each of which returns a new
+ * configuration.
+ */
+public final class TurnHealthConfig {
+
+    /**
+     * Probing off, with the limits we use once it's turned on.
+     */
+    public static final TurnHealthConfig DEFAULT =
+        new TurnHealthConfig(0, 2000, 16 * 1024, 3);
+
+    private final long m_probeIntervalMillis;
+
+    private final long m_maxRttMillis;
+
+    private final long m_minDrainBytesPerSecond;
+
+    private final int m_maxErrors;
+
+    private TurnHealthConfig(final long probeIntervalMillis,
+        final long maxRttMillis, final long minDrainBytesPerSecond,
+        final int maxErrors) {
+        if (probeIntervalMillis < 0 || maxRttMillis <= 0 ||
+            minDrainBytesPerSecond < 0 || maxErrors < 1) {
+            throw new IllegalArgumentException("Bad health settings: " +
+                probeIntervalMillis + "," + maxRttMillis + "," +
+                minDrainBytesPerSecond + "," + maxErrors);
+        }
+        m_probeIntervalMillis = probeIntervalMillis;
+        m_maxRttMillis = maxRttMillis;
+        m_minDrainBytesPerSecond = minDrainBytesPerSecond;
+        m_maxErrors = maxErrors;
+    }
+
+    /**
+     * Whether or not these settings turn probing on.
+     *
+     * @return <code>true</code> if we probe the server, otherwise
+     * <code>false</code>.
+     */
+    public boolean isEnabled() {
+        return m_probeIntervalMillis > 0;
+    }
+
+    /**
+     * Accessor for how often we probe the server.
+     *
+     * @return The interval in milliseconds, or 0 if probing is off.
+     */
+    public long getProbeIntervalMillis() {
+        return m_probeIntervalMillis;
+    }
+
+    /**
+     * Accessor for the longest a probe can take before it counts against
+     * the server.
+     *
+     * @return The limit in milliseconds.
+     */
+    public long getMaxRttMillis() {
+        return m_maxRttMillis;
+    }
+
+    /**
+     * Accessor for the slowest the write queue to the server can drain
+     * while data is waiting before it counts against the server.
+     *
+     * @return The limit in bytes per second, or 0 if we ignore the drain
+     * rate.
+     */
+    public long getMinDrainBytesPerSecond() {
+        return m_minDrainBytesPerSecond;
+    }
+
+    /**
+     * Accessor for the number of errors in one probe interval that count
+     * against the server.
+     *
+     * @return The number of errors.
+     */
+    public int getMaxErrors() {
+        return m_maxErrors;
+    }
+
+    /**
+     * Creates a copy of these settings with a different probe interval.
+     *
+     * @param probeIntervalMillis The interval in milliseconds, or 0 to
+     * turn probing off.
+     * @return The new settings.
+     */
+    public TurnHealthConfig withProbeIntervalMillis(
+        final long probeIntervalMillis) {
+        return new TurnHealthConfig(probeIntervalMillis, m_maxRttMillis,
+            m_minDrainBytesPerSecond, m_maxErrors);
+    }
+
+    /**
+     * Creates a copy of these settings with a different RTT limit.
+     *
+     * @param maxRttMillis The limit in milliseconds.
+     * @return The new settings.
+     */
+    public TurnHealthConfig withMaxRttMillis(final long maxRttMillis) {
+        return new TurnHealthConfig(m_probeIntervalMillis, maxRttMillis,
+            m_minDrainBytesPerSecond, m_maxErrors);
+    }
+
+    /**
+     * Creates a copy of these settings with a different drain rate limit.
+     *
+     * @param minDrainBytesPerSecond The limit in bytes per second, or 0 to
+     * ignore the drain rate.
+     * @return The new settings.
+     */
+    public TurnHealthConfig withMinDrainBytesPerSecond(
+        final long minDrainBytesPerSecond) {
+        return new TurnHealthConfig(m_probeIntervalMillis, m_maxRttMillis,
+            minDrainBytesPerSecond, m_maxErrors);
+    }
+
+    /**
+     * Creates a copy of these settings with a different error limit.
+     *
+     * @param maxErrors The number of errors in one probe interval that
+     * count against the server.
+     * @return The new settings.
+     */
+    public TurnHealthConfig withMaxErrors(final int maxErrors) {
+        return new TurnHealthConfig(m_probeIntervalMillis, m_maxRttMillis,
+            m_minDrainBytesPerSecond, maxErrors);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[interval=" +
+            m_probeIntervalMillis + ",maxRtt=" + m_maxRttMillis +
+            ",minDrain=" + m_minDrainBytesPerSecond + ",maxErrors=" +
+            m_maxErrors + "]";
+    }
+}
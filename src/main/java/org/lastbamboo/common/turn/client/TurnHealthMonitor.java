@@ -0,0 +1,340 @@
+package org.lastbamboo.common.turn.client;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.id.uuid.UUID;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.message.turn.AllocateRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the health of the connection to the active TURN server.  Every
+ * interval we send the server an Allocate Request, which it treats as a
+ * refresh, and time the response.  We also sample how fast the session's
+ * write queue drains and count the errors the client reports, such as
+ * rejected channel bindings, Connect Requests the server closed, and
+ * failed Binding transactions.  An interval is bad if the probe took
+ * longer than the RTT limit or got no response at all, if data was queued
+ * the whole interval but drained slower than the drain limit, or if there
+ * were too many errors.  After
+ * {@link #BAD_INTERVALS_BEFORE_DEGRADED} bad intervals in a row we tell the
+ * listener the server is degraded, once, so it can move to another server
+ * before the connection stalls outright.  Requiring several bad intervals
+ * keeps a single slow response from moving everyone.
+ */
+public class TurnHealthMonitor {
+
+    /**
+     * The number of bad intervals in a row before the server counts as
+     * degraded.
+     */
+    public static final int BAD_INTERVALS_BEFORE_DEGRADED = 3;
+
+    /**
+     * Interface for classes that act on degraded servers.
+     */
+    public interface Listener {
+
+        /**
+         * Called once when the server becomes degraded.  This is called on
+         * the monitor's timer thread, so it shouldn't block.
+         *
+         * @param monitor The monitor.
+         * @param reason Why the last interval was bad.
+         */
+        void onDegraded(TurnHealthMonitor monitor, String reason);
+    }
+
+    private static final class Probe {
+        private final UUID m_transactionId;
+        private final long m_sentNanos;
+
+        private Probe(final UUID transactionId, final long sentNanos) {
+            m_transactionId = transactionId;
+            m_sentNanos = sentNanos;
+        }
+    }
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final IoSession m_session;
+
+    private final Listener m_listener;
+
+    private final ScheduledExecutorService m_timer;
+
+    private final long m_intervalMillis;
+
+    private final long m_maxRttNanos;
+
+    private final long m_minDrainBytesPerSecond;
+
+    private final int m_maxErrors;
+
+    private final LatencyHistogram m_probeRtts = new LatencyHistogram();
+
+    private final AtomicReference<Probe> m_pendingProbe =
+        new AtomicReference<Probe>();
+
+    private final AtomicInteger m_errors = new AtomicInteger();
+
+    private final AtomicBoolean m_degraded = new AtomicBoolean(false);
+
+    private volatile boolean m_slowProbe;
+
+    private volatile long m_lastRttNanos = -1;
+
+    private volatile long m_drainBytesPerSecond = -1;
+
+    private long m_lastSampleNanos;
+
+    private long m_lastWrittenBytes;
+
+    private boolean m_backlogged;
+
+    private int m_badIntervals;
+
+    private volatile ScheduledFuture<?> m_future;
+
+    /**
+     * Creates a new monitor.
+     *
+     * @param session The session with the TURN server.
+     * @param listener The listener to notify when the server degrades.
+     * @param timer The timer to probe on.
+     * @param intervalMillis How often to probe, in milliseconds.
+     * @param maxRttMillis The longest a probe can take before the interval
+     * is bad, in milliseconds.
+     * @param minDrainBytesPerSecond The slowest the write queue can drain
+     * while data is queued before the interval is bad, or 0 to ignore the
+     * drain rate.
+     * @param maxErrors The number of errors in an interval that makes it
+     * bad.
+     */
+    public TurnHealthMonitor(final IoSession session, final Listener listener,
+        final ScheduledExecutorService timer, final long intervalMillis,
+        final long maxRttMillis, final long minDrainBytesPerSecond,
+        final int maxErrors) {
+        if (session == null) {
+            throw new NullPointerException("Null session");
+        }
+        if (listener == null) {
+            throw new NullPointerException("Null listener");
+        }
+        if (timer == null) {
+            throw new NullPointerException("Null timer");
+        }
+        if (intervalMillis <= 0 || maxRttMillis <= 0 || maxErrors < 1) {
+            throw new IllegalArgumentException("Bad interval, RTT or errors: "
+                + intervalMillis + "," + maxRttMillis + "," + maxErrors);
+        }
+        m_session = session;
+        m_listener = listener;
+        m_timer = timer;
+        m_intervalMillis = intervalMillis;
+        m_maxRttNanos = TimeUnit.MILLISECONDS.toNanos(maxRttMillis);
+        m_minDrainBytesPerSecond = minDrainBytesPerSecond;
+        m_maxErrors = maxErrors;
+    }
+
+    /**
+     * Creates a monitor with the given limits on the shared STUN timer.
+     *
+     * @param session The session with the TURN server.
+     * @param listener The listener to notify when the server degrades.
+     * @param config The health settings, with probing on.
+     * @return The new monitor.
+     */
+    public static TurnHealthMonitor fromConfig(final IoSession session,
+        final Listener listener, final TurnHealthConfig config) {
+        return new TurnHealthMonitor(session, listener,
+            StunRetransmitter.sharedTimer(), config.getProbeIntervalMillis(),
+            config.getMaxRttMillis(), config.getMinDrainBytesPerSecond(),
+            config.getMaxErrors());
+    }
+
+    /**
+     * Starts probing.  The first probe goes out one interval from now.
+     */
+    public synchronized void start() {
+        if (m_future != null) {
+            return;
+        }
+        m_lastSampleNanos = System.nanoTime();
+        m_lastWrittenBytes = m_session.getWrittenBytes();
+        m_future = m_timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    check();
+                } catch (final RuntimeException e) {
+                    m_log.warn("Could not check TURN server health", e);
+                }
+            }
+        }, m_intervalMillis, m_intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops probing, typically because the session closed.
+     */
+    public void stop() {
+        final ScheduledFuture<?> future = m_future;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Matches an Allocate Success Response to our outstanding probe.
+     *
+     * @param transactionId The transaction ID of the response.
+     * @return <code>true</code> if the response was to our probe, otherwise
+     * <code>false</code>.
+     */
+    public boolean onProbeResponse(final UUID transactionId) {
+        final Probe probe = m_pendingProbe.get();
+        if (probe == null || !probe.m_transactionId.equals(transactionId) ||
+            !m_pendingProbe.compareAndSet(probe, null)) {
+            return false;
+        }
+        final long rtt = System.nanoTime() - probe.m_sentNanos;
+        m_probeRtts.record(rtt);
+        m_lastRttNanos = rtt;
+        if (rtt > m_maxRttNanos) {
+            m_slowProbe = true;
+        }
+        return true;
+    }
+
+    /**
+     * Counts an error from the server, such as a rejected ChannelBind
+     * Request or a Connect Request it closed.
+     */
+    public void onError() {
+        m_errors.incrementAndGet();
+    }
+
+    /**
+     * Accessor for how long probes take.
+     *
+     * @return The histogram of probe round trip times.
+     */
+    public LatencyHistogram getProbeRtts() {
+        return m_probeRtts;
+    }
+
+    /**
+     * Accessor for the round trip time of the last answered probe.
+     *
+     * @return The round trip time in milliseconds, or -1 if no probe has
+     * been answered yet.
+     */
+    public long getLastRttMillis() {
+        final long rtt = m_lastRttNanos;
+        if (rtt < 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(rtt);
+    }
+
+    /**
+     * Accessor for how fast the write queue drained over the last interval.
+     *
+     * @return The drain rate in bytes per second, or -1 if we haven't
+     * sampled it yet.
+     */
+    public long getDrainBytesPerSecond() {
+        return m_drainBytesPerSecond;
+    }
+
+    /**
+     * Whether or not we've found the server degraded.
+     *
+     * @return <code>true</code> if the server is degraded, otherwise
+     * <code>false</code>.
+     */
+    public boolean isDegraded() {
+        return m_degraded.get();
+    }
+
+    /**
+     * Accessor for the session we're monitoring.
+     *
+     * @return The session with the TURN server.
+     */
+    public IoSession getSession() {
+        return m_session;
+    }
+
+    private synchronized void check() {
+        if (!m_session.isConnected()) {
+            stop();
+            return;
+        }
+        final String reason = sample();
+        if (reason == null) {
+            m_badIntervals = 0;
+        } else {
+            m_badIntervals++;
+            m_log.debug("Bad interval {} for {}: {}", new Object[] {
+                m_badIntervals, m_session.getRemoteAddress(), reason});
+            if (m_badIntervals >= BAD_INTERVALS_BEFORE_DEGRADED &&
+                m_degraded.compareAndSet(false, true)) {
+                m_log.info("TURN server {} degraded: {}",
+                    m_session.getRemoteAddress(), reason);
+                stop();
+                m_listener.onDegraded(this, reason);
+                return;
+            }
+        }
+        final AllocateRequest request = new AllocateRequest();
+        m_pendingProbe.set(
+            new Probe(request.getTransactionId(), System.nanoTime()));
+        m_session.write(request);
+    }
+
+    private String sample() {
+        final long now = System.nanoTime();
+        final long written = m_session.getWrittenBytes();
+        final long elapsed = now - m_lastSampleNanos;
+        final long drained = written - m_lastWrittenBytes;
+        final boolean backlogged = m_session.getScheduledWriteBytes() > 0;
+        m_drainBytesPerSecond = elapsed > 0 ?
+            drained * TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+        m_lastSampleNanos = now;
+        m_lastWrittenBytes = written;
+
+        // Only a queue that stayed full all interval says anything about
+        // the server.  An idle session drains nothing and that's fine.
+        final boolean stalled = backlogged && m_backlogged &&
+            m_minDrainBytesPerSecond > 0 &&
+            m_drainBytesPerSecond < m_minDrainBytesPerSecond;
+        m_backlogged = backlogged;
+
+        final Probe unanswered = m_pendingProbe.getAndSet(null);
+        final boolean slow = m_slowProbe;
+        m_slowProbe = false;
+        final int errors = m_errors.getAndSet(0);
+
+        if (unanswered != null) {
+            return "No response to probe";
+        }
+        if (slow) {
+            return "Probe RTT over " +
+                TimeUnit.NANOSECONDS.toMillis(m_maxRttNanos) + "ms";
+        }
+        if (stalled) {
+            return "Write queue draining at " + m_drainBytesPerSecond +
+                " bytes/s";
+        }
+        if (errors >= m_maxErrors) {
+            return errors + " errors";
+        }
+        return null;
+    }
+}
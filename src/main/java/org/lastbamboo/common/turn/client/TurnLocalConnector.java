@@ -0,0 +1,132 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.littleshoot.mina.common.ConnectFuture;
+import org.littleshoot.mina.common.IoConnector;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.RuntimeIOException;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.transport.socket.nio.SocketConnector;
+import org.littleshoot.mina.transport.socket.nio.SocketConnectorConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opens the local leg for each remote host: the session to the local HTTP
+ * server that a {@link TurnLocalIoHandler} forwards data from.  Listeners
+ * call this from {@link TurnClientListener#onRemoteAddressOpened} and
+ * write relayed data to the session it returns.<p>
+ *
+ * If the HTTP server listens on an {@link InetSocketAddress}, each remote
+ * host gets a loopback socket, as it always has.  If the HTTP server runs
+ * in the same JVM and also binds a {@link TurnPipeAcceptor} to a
+ * {@link TurnPipeAddress}, the local leg is an in-memory pipe instead.
+ * Buffers written to either end are handed to the other end in memory,
+ * so relayed data never crosses the kernel loopback.  The pipe only copies
+ * pooled buffers, which the writer's side may reuse once they're sent.
+ * Either way the handler sees the same events in the same order.
+ */
+public class TurnLocalConnector {
+
+    /**
+     * How long we wait to connect to the local HTTP server.
+     */
+    private static final long CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final SocketAddress m_serverAddress;
+
+    private final IoConnector m_connector;
+
+    private final IoServiceConfig m_config;
+
+    /**
+     * Creates a new connector for a local HTTP server.
+     *
+     * @param serverAddress The address of the local HTTP server, either an
+     * {@link InetSocketAddress} or a {@link TurnPipeAddress}.
+     */
+    public TurnLocalConnector(final SocketAddress serverAddress) {
+        if (serverAddress instanceof TurnPipeAddress) {
+            m_connector = new TurnPipeConnector();
+            m_config = m_connector.getDefaultConfig();
+
+            // There's no IO to wait on, so handing events to another
+            // thread would only add latency.
+            m_config.setThreadModel(ThreadModel.MANUAL);
+        } else if (serverAddress instanceof InetSocketAddress) {
+            m_connector = new SocketConnector();
+            m_config = new SocketConnectorConfig();
+        } else {
+            throw new IllegalArgumentException("Unsupported address: " +
+                serverAddress);
+        }
+        m_serverAddress = serverAddress;
+    }
+
+    /**
+     * Accessor for whether the local leg is an in-memory pipe.
+     *
+     * @return <code>true</code> if the HTTP server is in this JVM,
+     * otherwise <code>false</code>.
+     */
+    public boolean isInJvm() {
+        return m_serverAddress instanceof TurnPipeAddress;
+    }
+
+    /**
+     * Opens the local leg for a remote host, sending data uncompressed and
+     * unshaped with the default transport settings.
+     *
+     * @param turnSession The connection to the TURN server.
+     * @param remoteAddress The remote host.
+     * @return The session to the local HTTP server.
+     * @throws IOException If we can't connect to the local HTTP server.
+     */
+    public IoSession connect(final IoSession turnSession,
+        final InetSocketAddress remoteAddress) throws IOException {
+        return connect(turnSession, remoteAddress, null, null,
+            TurnTransportConfig.DEFAULT);
+    }
+
+    /**
+     * Opens the local leg for a remote host.
+     *
+     * @param turnSession The connection to the TURN server.
+     * @param remoteAddress The remote host.
+     * @param compressor The compressor for the remote host, or
+     * <code>null</code> to send data uncompressed.
+     * @param shaper The bandwidth shaper, or <code>null</code> to send
+     * data as fast as the local server provides it.
+     * @param transportConfig The TURN client's transport settings.
+     * @return The session to the local HTTP server.
+     * @throws IOException If we can't connect to the local HTTP server.
+     */
+    public IoSession connect(final IoSession turnSession,
+        final InetSocketAddress remoteAddress,
+        final TurnCompressor compressor, final TurnBandwidthShaper shaper,
+        final TurnTransportConfig transportConfig) throws IOException {
+        final TurnLocalIoHandler handler = new TurnLocalIoHandler(turnSession,
+            remoteAddress, compressor, shaper, transportConfig);
+        final ConnectFuture future =
+            m_connector.connect(m_serverAddress, handler, m_config);
+        if (!future.join(CONNECT_TIMEOUT_MILLIS)) {
+            throw new IOException("Timed out connecting to local server at " +
+                m_serverAddress);
+        }
+        try {
+            final IoSession session = future.getSession();
+            m_log.debug("Opened local leg for {} to {}", remoteAddress,
+                m_serverAddress);
+            return session;
+        } catch (final RuntimeIOException e) {
+            throw new IOException("Could not connect to local server at " +
+                m_serverAddress, e);
+        }
+    }
+}
@@ -1,10 +1,8 @@
 package org.lastbamboo.common.turn.client;
 
 import java.net.InetSocketAddress;
-import java.util.Collection;
 
 import org.littleshoot.stun.stack.message.turn.SendIndication;
-import org.littleshoot.util.mina.MinaUtils;
 import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.common.IdleStatus;
 import org.littleshoot.mina.common.IoHandler;
@@ -19,10 +17,13 @@ import org.slf4j.LoggerFactory;
  * socket/session for each remote host we're exchanging data with. This
  * effectively mimics the remote host connecting directly to the local
  * HTTP server, with the data already extracted from the TURN messages and
- * forwarded along these sockets.<p>
+ * forwarded along these sockets.  When the HTTP server runs in the same
+ * JVM, {@link TurnLocalConnector} can make these in-memory pipes instead
+ * of sockets.<p>
  * 
  * This class is also responsible for wrapping data from the HTTP server
- * in TURN Send Indication messages.
+ * in TURN Send Indication messages, compressing it first if the remote
+ * host agreed to use compression.
  */
 public class TurnLocalIoHandler extends IoHandlerAdapter
     {
@@ -34,10 +35,24 @@ public class TurnLocalIoHandler extends IoHandlerAdapter
      * Request.  TURN messages cannot be larger than 0xffff, so this leaves 
      * room for other attributes in the message as well as for headers.
      */
-    private static final int LENGTH_LIMIT = 0xffff - 1000;
+    static final int LENGTH_LIMIT = 0xffff - 1000;
     
     private final InetSocketAddress m_remoteAddress;
-    private final IoSession m_ioSession;
+    private volatile IoSession m_ioSession;
+    private final TurnCompressor m_compressor;
+    private final AdaptiveChunkSizer m_chunkSizer;
+    private final TurnBandwidthShaper m_shaper;
+    
+    /**
+     * Data the local server sent after we lost the TURN server, waiting
+     * for {@link #setTurnSession(IoSession)}.
+     */
+    private ByteBuffer m_parked;
+    
+    /**
+     * The local session we stopped reading from while data is parked.
+     */
+    private IoSession m_parkedSession;
 
     /**
      * Creates a new TURN local IO handler.
@@ -48,8 +63,107 @@ public class TurnLocalIoHandler extends IoHandlerAdapter
     public TurnLocalIoHandler(
         final IoSession ioSession, final InetSocketAddress remoteAddress)
         {
+        this(ioSession, remoteAddress, null);
+        }
+    
+    /**
+     * Creates a new TURN local IO handler that compresses data for the
+     * remote host.
+     * 
+     * @param ioSession The connection to the TURN server itself.
+     * @param remoteAddress The remote host we're exchanging data with.
+     * @param compressor The compressor for the remote host, or 
+     * <code>null</code> to send data uncompressed.
+     */
+    public TurnLocalIoHandler(
+        final IoSession ioSession, final InetSocketAddress remoteAddress,
+        final TurnCompressor compressor)
+        {
+        this(ioSession, remoteAddress, compressor, null);
+        }
+    
+    /**
+     * Creates a new TURN local IO handler that compresses data for the
+     * remote host and limits how fast we send it.
+     * 
+     * @param ioSession The connection to the TURN server itself.
+     * @param remoteAddress The remote host we're exchanging data with.
+     * @param compressor The compressor for the remote host, or 
+     * <code>null</code> to send data uncompressed.
+     * @param shaper The bandwidth shaper, or <code>null</code> to send
+     * data as fast as the local server provides it.
+     */
+    public TurnLocalIoHandler(
+        final IoSession ioSession, final InetSocketAddress remoteAddress,
+        final TurnCompressor compressor, final TurnBandwidthShaper shaper)
+        {
+        this(ioSession, remoteAddress, compressor, shaper, 
+            TurnTransportConfig.DEFAULT);
+        }
+    
+    /**
+     * Creates a new TURN local IO handler that chunks and queues data
+     * according to the TURN client's transport settings.
+     * 
+     * @param ioSession The connection to the TURN server itself.
+     * @param remoteAddress The remote host we're exchanging data with.
+     * @param compressor The compressor for the remote host, or 
+     * <code>null</code> to send data uncompressed.
+     * @param shaper The bandwidth shaper, or <code>null</code> to send
+     * data as fast as the local server provides it.
+     * @param transportConfig The TURN client's transport settings.
+     */
+    public TurnLocalIoHandler(
+        final IoSession ioSession, final InetSocketAddress remoteAddress,
+        final TurnCompressor compressor, final TurnBandwidthShaper shaper,
+        final TurnTransportConfig transportConfig)
+        {
         m_ioSession = ioSession;
+        m_shaper = shaper;
         m_remoteAddress = remoteAddress;
+        m_compressor = compressor;
+        // Leave room for the compression length and marker if we're 
+        // compressing.
+        final int chunkSize = transportConfig.getChunkSize();
+        m_chunkSizer = new AdaptiveChunkSizer(
+            compressor == null ? chunkSize : 
+                Math.min(chunkSize, LENGTH_LIMIT - TurnCompressor.OVERHEAD), 
+            transportConfig.getQueueHighWatermark());
+        }
+
+    /**
+     * Switches the connection to the TURN server we send data for the
+     * remote host through, typically because {@link TurnFailoverClient}
+     * moved the remote host to another server.  Data we've already queued
+     * on the old connection still goes out on it.  If we lost the old
+     * connection, whatever the local server sent since goes out on the new
+     * one, and we start reading from the local server again.
+     * 
+     * @param ioSession The new connection to the TURN server.
+     */
+    public void setTurnSession(final IoSession ioSession)
+        {
+        if (ioSession == null)
+            {
+            throw new NullPointerException("Null session");
+            }
+        final IoSession parkedSession;
+        synchronized (this)
+            {
+            m_ioSession = ioSession;
+            if (m_parked != null)
+                {
+                m_log.debug("Sending data held while moving to new server");
+                sendSplitBuffers(m_parked);
+                }
+            parkedSession = m_parkedSession;
+            m_parked = null;
+            m_parkedSession = null;
+            }
+        if (parkedSession != null)
+            {
+            parkedSession.resumeRead();
+            }
         }
 
     @Override
@@ -61,10 +175,27 @@ public class TurnLocalIoHandler extends IoHandlerAdapter
         // larger than the maximum allowed size for TURN messages,
         // so we make sure to split it up.
         final ByteBuffer in = (ByteBuffer) message;
-        
-        // Send the data broken up into chunks if necessary. This 
-        // is because TURN messages cannot be larger than 0xffff.
-        sendSplitBuffers(in);
+        final int sent;
+        synchronized (this)
+            {
+            // We hold the lock while sending so data held while moving to
+            // a new server always goes out ahead of newer data.
+            if (park(session, in))
+                {
+                return;
+                }
+            
+            // Send the data broken up into chunks if necessary. This 
+            // is because TURN messages cannot be larger than 0xffff.
+            sent = sendSplitBuffers(in);
+            }
+        if (m_shaper != null)
+            {
+            // We've already sent this data, but we stop reading from the
+            // local server until we're back under our limits.
+            m_shaper.throttle(session, 
+                m_shaper.reserveUpload(m_remoteAddress, sent));
+            }
         }
     
     @Override
@@ -111,29 +242,73 @@ public class TurnLocalIoHandler extends IoHandlerAdapter
             session, cause);
         }
     
+    /**
+     * Holds on to data if we've lost the connection to the TURN server,
+     * since MINA would silently drop anything we wrote to it.  We stop
+     * reading from the local server until {@link #setTurnSession(IoSession)}
+     * gives us a new connection.  If nobody does, the remote host gets
+     * closed and the listener closes the local session.  The caller must
+     * hold our lock.
+     * 
+     * @param session The local session.
+     * @param in The data from the local server.
+     * @return <code>true</code> if we held the data.
+     */
+    private boolean park(final IoSession session, final ByteBuffer in)
+        {
+        if (m_ioSession.isConnected() && !m_ioSession.isClosing())
+            {
+            return false;
+            }
+        m_log.debug("Lost TURN server, holding local data for {}", 
+            m_remoteAddress);
+        // MINA can reuse the buffer once we return.
+        final ByteBuffer copy = ByteBuffer.allocate(
+            in.remaining() + (m_parked == null ? 0 : m_parked.remaining()));
+        if (m_parked != null)
+            {
+            copy.put(m_parked);
+            }
+        copy.put(in);
+        copy.flip();
+        m_parked = copy;
+        m_parkedSession = session;
+        session.suspendRead();
+        return true;
+        }
+    
     /**
      * Splits the main read buffer into smaller buffers that will 
-     * fit in TURN messages.
+     * fit in TURN messages.  The chunk size adapts to how the remote host
+     * is using the connection -- see {@link AdaptiveChunkSizer}.
      * 
-     * @param remoteHost The host the data came from.
      * @param buffer The main read buffer to split.
-     * @param session The session for reading and writing data.
-     * @param nextFilter The next class for processing the message.
+     * @return The number of bytes we sent, after any compression.
      */
-    private void sendSplitBuffers(final ByteBuffer buffer)
+    private int sendSplitBuffers(final ByteBuffer buffer)
         {
-        // Break up the data into smaller chunks.
-        final Collection<byte[]> buffers = 
-            MinaUtils.splitToByteArrays(buffer, LENGTH_LIMIT);
-        m_log.debug("Split single buffer into {}", buffers.size());
-        for (final byte[] data : buffers)
+        m_chunkSizer.onData(buffer.remaining());
+        int sent = 0;
+        // Each message goes out whole on one connection even if we switch
+        // connections part way through.
+        final IoSession ioSession = m_ioSession;
+        while (buffer.hasRemaining())
             {
+            final int chunkSize = m_chunkSizer.getChunkSize(
+                ioSession.getScheduledWriteBytes());
+            final byte[] data = 
+                new byte[Math.min(chunkSize, buffer.remaining())];
+            buffer.get(data);
             m_log.debug("Sending buffer with capacity: {}", data.length);
             
             //m_log.info("Sending bytes: {}", data);
+            final byte[] payload = 
+                m_compressor == null ? data : m_compressor.compress(data);
             final SendIndication indication = 
-                new SendIndication(m_remoteAddress, data);
-            m_ioSession.write(indication);
+                new SendIndication(m_remoteAddress, payload);
+            ioSession.write(indication);
+            sent += payload.length;
             }
+        return sent;
         }
     }
@@ -0,0 +1,256 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.LinkedList;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ByteChannel} for exchanging data with a single remote host
+ * through the TURN server.  Reading returns the data the remote host sent
+ * us, in order, and returns -1 once the remote host closes.  Writing wraps
+ * data in Send Indications addressed to the remote host.<p>
+ *
+ * Incoming data is held in a bounded buffer.  The TURN session carries
+ * every remote host, so a full buffer doesn't suspend reads on it by
+ * itself.  The channels sharing the session report to a common
+ * {@link TurnPeerReadGate}, which only suspends reads once all of them are
+ * full or they hold too much between them, so a reader that falls behind
+ * slows the relay down rather than exhausting memory.  Writers block while
+ * too many bytes are queued on the TURN session, and while the client's
+ * {@link TurnBandwidthShaper} holds off uploads.  This lets applications
+ * use standard NIO streaming calls such as
+ * {@link java.nio.channels.FileChannel#transferFrom} to move relayed data.<p>
+ *
+ * Closing the channel only closes it locally.  The TURN server has no way
+ * for us to close its connection to the remote host, so we drop whatever
+ * else the remote host sends until it closes or connects again.
+ */
+public class TurnPeerChannel implements ByteChannel {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final InetSocketAddress m_remoteAddress;
+
+    private final IoSession m_ioSession;
+
+    private final int m_readCapacity;
+
+    private final int m_writeCapacity;
+
+    private final TurnPeerReadGate m_readGate;
+
+    private final ChannelTurnClientListener m_owner;
+
+    /**
+     * Received chunks we haven't read yet.  We hold on to the arrays from
+     * the decoder rather than copying them into one big buffer.
+     */
+    private final LinkedList<byte[]> m_chunks = new LinkedList<byte[]>();
+
+    private int m_headOffset;
+
+    private int m_buffered;
+
+    private boolean m_full;
+
+    private boolean m_remoteClosed;
+
+    private volatile boolean m_open = true;
+
+    /**
+     * Creates a new channel for a remote host.
+     *
+     * @param ioSession The connection to the TURN server.
+     * @param remoteAddress The remote host we're exchanging data with.
+     * @param readCapacity The number of unread bytes at which we suspend
+     * reads on the TURN session.
+     * @param writeCapacity The number of bytes queued for writing on the
+     * TURN session at which writers block.
+     */
+    public TurnPeerChannel(final IoSession ioSession,
+        final InetSocketAddress remoteAddress, final int readCapacity,
+        final int writeCapacity) {
+        this(ioSession, remoteAddress, readCapacity, writeCapacity,
+            new TurnPeerReadGate(readCapacity), null);
+    }
+
+    /**
+     * Creates a new channel for a remote host that shares the TURN session
+     * with other channels.
+     *
+     * @param ioSession The connection to the TURN server.
+     * @param remoteAddress The remote host we're exchanging data with.
+     * @param readCapacity The number of unread bytes at which this channel
+     * is full.
+     * @param writeCapacity The number of bytes queued for writing on the
+     * TURN session at which writers block.
+     * @param readGate The gate shared by all channels on the session.
+     * @param owner The listener to tell when we close, or
+     * <code>null</code>.
+     */
+    TurnPeerChannel(final IoSession ioSession,
+        final InetSocketAddress remoteAddress, final int readCapacity,
+        final int writeCapacity, final TurnPeerReadGate readGate,
+        final ChannelTurnClientListener owner) {
+        m_ioSession = ioSession;
+        m_remoteAddress = remoteAddress;
+        m_readCapacity = readCapacity;
+        m_writeCapacity = writeCapacity;
+        m_readGate = readGate;
+        m_owner = owner;
+        m_readGate.onChannelOpened();
+    }
+
+    /**
+     * Accessor for the remote host this channel exchanges data with.
+     *
+     * @return The address of the remote host.
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return m_remoteAddress;
+    }
+
+    /**
+     * Called when we receive data from the remote host.
+     *
+     * @param data The data.
+     */
+    void onData(final byte[] data) {
+        if (data.length == 0) {
+            return;
+        }
+        synchronized (this) {
+            if (!m_open) {
+                m_log.debug("Dropping data for closed channel: {}",
+                    m_remoteAddress);
+                return;
+            }
+            m_chunks.add(data);
+            m_buffered += data.length;
+            final boolean filled = !m_full && m_buffered >= m_readCapacity;
+            if (filled) {
+                m_log.debug("Read buffer full for {}", m_remoteAddress);
+                m_full = true;
+            }
+            m_readGate.onBuffered(m_ioSession, data.length, filled);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Called when the remote host closes its connection.  Readers still get
+     * any buffered data before seeing the end of the stream.
+     */
+    synchronized void onRemoteClosed() {
+        m_remoteClosed = true;
+        notifyAll();
+    }
+
+    public int read(final ByteBuffer dst) throws IOException {
+        synchronized (this) {
+            if (!m_open) {
+                throw new ClosedChannelException();
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            while (m_chunks.isEmpty()) {
+                if (!m_open) {
+                    throw new ClosedChannelException();
+                }
+                if (m_remoteClosed) {
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted reading");
+                }
+            }
+            int read = 0;
+            while (dst.hasRemaining() && !m_chunks.isEmpty()) {
+                final byte[] head = m_chunks.getFirst();
+                final int toCopy =
+                    Math.min(dst.remaining(), head.length - m_headOffset);
+                dst.put(head, m_headOffset, toCopy);
+                m_headOffset += toCopy;
+                read += toCopy;
+                if (m_headOffset == head.length) {
+                    m_chunks.removeFirst();
+                    m_headOffset = 0;
+                }
+            }
+            m_buffered -= read;
+            final boolean drained =
+                m_full && m_buffered <= m_readCapacity / 2;
+            if (drained) {
+                m_full = false;
+            }
+            m_readGate.onConsumed(read, drained);
+            return read;
+        }
+    }
+
+    public int write(final ByteBuffer src) throws IOException {
+        if (!m_open) {
+            throw new ClosedChannelException();
+        }
+        final int total = src.remaining();
+        final TurnBandwidthShaper shaper = (TurnBandwidthShaper)
+            m_ioSession.getAttribute(TurnBandwidthShaper.SESSION_KEY);
+        WriteFuture lastWrite = null;
+        while (src.hasRemaining()) {
+            final byte[] data = new byte[Math.min(src.remaining(),
+                TurnLocalIoHandler.LENGTH_LIMIT)];
+            src.get(data);
+            if (shaper != null) {
+                shaper.awaitUpload(m_remoteAddress, data.length);
+            }
+            lastWrite = m_ioSession.write(
+                new SendIndication(m_remoteAddress, data));
+        }
+        if (lastWrite != null &&
+            m_ioSession.getScheduledWriteBytes() > m_writeCapacity) {
+            // Wait for the session to drain rather than queueing
+            // everything the caller hands us in memory.
+            lastWrite.join();
+        }
+        return total;
+    }
+
+    public boolean isOpen() {
+        return m_open;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (!m_open) {
+                return;
+            }
+            m_open = false;
+            m_readGate.onChannelClosed(m_full, m_buffered);
+            m_chunks.clear();
+            m_buffered = 0;
+            m_full = false;
+            notifyAll();
+        }
+        if (m_owner != null) {
+            m_owner.onChannelClosed(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " for " + m_remoteAddress;
+    }
+}
@@ -0,0 +1,17 @@
+package org.lastbamboo.common.turn.client;
+
+/**
+ * Interface for classes that want to know when a new remote host opens a
+ * {@link TurnPeerChannel}.
+ */
+public interface TurnPeerChannelListener {
+
+    /**
+     * Called when a remote host connects through the TURN server.  Reading
+     * and writing the channel may block, so implementations should hand the
+     * channel off to another thread rather than using it here.
+     *
+     * @param channel The channel for exchanging data with the remote host.
+     */
+    void onChannelOpened(TurnPeerChannel channel);
+}
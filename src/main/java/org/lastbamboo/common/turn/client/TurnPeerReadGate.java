@@ -0,0 +1,129 @@
+package org.lastbamboo.common.turn.client;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides when to stop reading from the TURN session on behalf of the
+ * {@link TurnPeerChannel}s sharing it.  Every remote host shares the
+ * session, so suspending reads on it stalls all of them.  We only do that
+ * when every open channel is full, or when the channels hold more unread
+ * bytes between them than the session limit allows.  A reader that falls
+ * behind therefore only slows down the other remote hosts once it has used
+ * up the room they'd otherwise share.  Once over the session limit, we
+ * count the channels as backed up until they drain to half of it, and we
+ * resume reads as soon as neither condition holds.
+ */
+final class TurnPeerReadGate {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final long m_sessionLimit;
+
+    private final Set<IoSession> m_suspendedSessions = new HashSet<IoSession>();
+
+    private int m_channels;
+
+    private int m_fullChannels;
+
+    private long m_buffered;
+
+    private boolean m_overLimit;
+
+    /**
+     * Creates a new gate.
+     *
+     * @param sessionLimit The number of unread bytes all the channels can
+     * hold between them before we suspend reads.
+     */
+    TurnPeerReadGate(final long sessionLimit) {
+        m_sessionLimit = sessionLimit;
+    }
+
+    /**
+     * Called when a channel opens.
+     */
+    synchronized void onChannelOpened() {
+        m_channels++;
+    }
+
+    /**
+     * Called when a channel closes, dropping whatever it held.
+     *
+     * @param full Whether the channel was full.
+     * @param buffered The unread bytes it held.
+     */
+    synchronized void onChannelClosed(final boolean full, final int buffered) {
+        m_channels--;
+        if (full) {
+            m_fullChannels--;
+        }
+        m_buffered -= buffered;
+        update(null);
+    }
+
+    /**
+     * Called when a channel buffers data read from a session.
+     *
+     * @param session The session the data came from.
+     * @param bytes The number of bytes.
+     * @param filled Whether the channel just became full.
+     */
+    synchronized void onBuffered(final IoSession session, final int bytes,
+        final boolean filled) {
+        m_buffered += bytes;
+        if (filled) {
+            m_fullChannels++;
+        }
+        update(session);
+    }
+
+    /**
+     * Called when a reader consumes buffered data.
+     *
+     * @param bytes The number of bytes.
+     * @param drained Whether the channel just stopped being full.
+     */
+    synchronized void onConsumed(final int bytes, final boolean drained) {
+        m_buffered -= bytes;
+        if (drained) {
+            m_fullChannels--;
+        }
+        update(null);
+    }
+
+    /**
+     * Accessor for the unread bytes all the channels hold.
+     *
+     * @return The number of unread bytes.
+     */
+    synchronized long getBufferedBytes() {
+        return m_buffered;
+    }
+
+    private void update(final IoSession session) {
+        if (m_buffered >= m_sessionLimit) {
+            m_overLimit = true;
+        } else if (m_buffered <= m_sessionLimit / 2) {
+            m_overLimit = false;
+        }
+        final boolean backedUp = m_overLimit ||
+            (m_channels > 0 && m_fullChannels >= m_channels);
+        if (backedUp) {
+            if (session != null && m_suspendedSessions.add(session)) {
+                m_log.debug("Peer channels backed up -- suspending reads");
+                session.suspendRead();
+            }
+        } else if (!m_suspendedSessions.isEmpty()) {
+            m_log.debug("Peer channels drained -- resuming reads");
+            for (final IoSession suspended : m_suspendedSessions) {
+                suspended.resumeRead();
+            }
+            m_suspendedSessions.clear();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoSessionConfig;
+import org.littleshoot.mina.common.support.BaseIoAcceptor;
+import org.littleshoot.mina.common.support.BaseIoServiceConfig;
+import org.littleshoot.mina.common.support.IoServiceListenerSupport;
+
+/**
+ * Acceptor for in-memory pipes from {@link TurnPipeConnector}s in the same
+ * JVM.  A server in this JVM, such as the local HTTP server TURN clients
+ * relay data to, binds one of these to a {@link TurnPipeAddress} alongside
+ * or instead of its socket acceptor.<p>
+ *
+ * MINA's own VM pipes copy every buffer and can deliver messages out of
+ * order when both ends write at once, which we can't have for relayed
+ * streams, so these pipes hand buffers across without copying and always
+ * deliver them in the order they were written.
+ */
+public class TurnPipeAcceptor extends BaseIoAcceptor {
+
+    private static final ConcurrentMap<TurnPipeAddress, Binding> BINDINGS =
+        new ConcurrentHashMap<TurnPipeAddress, Binding>();
+
+    private final IoServiceConfig m_defaultConfig = new BaseIoServiceConfig() {
+        public IoSessionConfig getSessionConfig() {
+            return TurnPipeSession.CONFIG;
+        }
+    };
+
+    public void bind(final SocketAddress address, final IoHandler handler,
+        final IoServiceConfig config) throws IOException {
+        if (!(address instanceof TurnPipeAddress)) {
+            throw new IllegalArgumentException("Not a pipe address: " +
+                address);
+        }
+        if (handler == null) {
+            throw new NullPointerException("Null handler");
+        }
+        final IoServiceConfig bindConfig =
+            config == null ? m_defaultConfig : config;
+        final Binding binding = new Binding(this, handler, bindConfig);
+        if (BINDINGS.putIfAbsent((TurnPipeAddress) address, binding) != null) {
+            throw new IOException("Address already bound: " + address);
+        }
+        getListeners().fireServiceActivated(this, address, handler,
+            bindConfig);
+    }
+
+    public void unbind(final SocketAddress address) {
+        final Binding binding = BINDINGS.get(address);
+        if (binding == null || binding.m_acceptor != this) {
+            return;
+        }
+        if (BINDINGS.remove(address, binding)) {
+            getListeners().fireServiceDeactivated(this, address,
+                binding.m_handler, binding.m_config);
+        }
+    }
+
+    public void unbindAll() {
+        for (final Map.Entry<TurnPipeAddress, Binding> entry :
+            BINDINGS.entrySet()) {
+            if (entry.getValue().m_acceptor == this) {
+                unbind(entry.getKey());
+            }
+        }
+    }
+
+    public IoServiceConfig getDefaultConfig() {
+        return m_defaultConfig;
+    }
+
+    /**
+     * Looks up what's bound to an address.
+     *
+     * @param address The address.
+     * @return The binding, or <code>null</code> if nothing is bound.
+     */
+    static Binding getBinding(final TurnPipeAddress address) {
+        return BINDINGS.get(address);
+    }
+
+    /**
+     * A handler and configuration bound to an address.
+     */
+    static final class Binding {
+
+        private final TurnPipeAcceptor m_acceptor;
+
+        private final IoHandler m_handler;
+
+        private final IoServiceConfig m_config;
+
+        private Binding(final TurnPipeAcceptor acceptor,
+            final IoHandler handler, final IoServiceConfig config) {
+            m_acceptor = acceptor;
+            m_handler = handler;
+            m_config = config;
+        }
+
+        TurnPipeAcceptor getAcceptor() {
+            return m_acceptor;
+        }
+
+        IoHandler getHandler() {
+            return m_handler;
+        }
+
+        IoServiceConfig getConfig() {
+            return m_config;
+        }
+
+        IoServiceListenerSupport getListeners() {
+            return m_acceptor.getListeners();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.SocketAddress;
+
+/**
+ * Address of a {@link TurnPipeAcceptor} in this JVM.
+ */
+public class TurnPipeAddress extends SocketAddress {
+
+    private static final long serialVersionUID = 4373928537390637452L;
+
+    private final int m_port;
+
+    /**
+     * Creates a new address.
+     *
+     * @param port The port, which only has to be unique among pipe
+     * acceptors in this JVM.
+     */
+    public TurnPipeAddress(final int port) {
+        m_port = port;
+    }
+
+    /**
+     * Accessor for the port.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return m_port;
+    }
+
+    @Override
+    public int hashCode() {
+        return m_port;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TurnPipeAddress)) {
+            return false;
+        }
+        return m_port == ((TurnPipeAddress) obj).m_port;
+    }
+
+    @Override
+    public String toString() {
+        return "turnpipe:" + m_port;
+    }
+}
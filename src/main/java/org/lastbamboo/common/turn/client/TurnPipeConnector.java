@@ -0,0 +1,94 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+import org.littleshoot.mina.common.ConnectFuture;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoSessionConfig;
+import org.littleshoot.mina.common.support.BaseIoConnector;
+import org.littleshoot.mina.common.support.BaseIoConnectorConfig;
+import org.littleshoot.mina.common.support.DefaultConnectFuture;
+import org.littleshoot.mina.util.AnonymousSocketAddress;
+
+/**
+ * Connector for in-memory pipes to a {@link TurnPipeAcceptor} in the same
+ * JVM.  Connecting is synchronous, so the returned future is always
+ * ready.
+ */
+public class TurnPipeConnector extends BaseIoConnector {
+
+    private final IoServiceConfig m_defaultConfig = new BaseIoConnectorConfig() {
+        public IoSessionConfig getSessionConfig() {
+            return TurnPipeSession.CONFIG;
+        }
+    };
+
+    public ConnectFuture connect(final SocketAddress address,
+        final IoHandler handler, final IoServiceConfig config) {
+        return connect(address, null, handler, config);
+    }
+
+    public ConnectFuture connect(final SocketAddress address,
+        final SocketAddress localAddress, final IoHandler handler,
+        final IoServiceConfig config) {
+        if (!(address instanceof TurnPipeAddress)) {
+            throw new IllegalArgumentException("Not a pipe address: " +
+                address);
+        }
+        if (handler == null) {
+            throw new NullPointerException("Null handler");
+        }
+        final TurnPipeAcceptor.Binding binding =
+            TurnPipeAcceptor.getBinding((TurnPipeAddress) address);
+        if (binding == null) {
+            return DefaultConnectFuture.newFailedFuture(
+                new IOException("Nothing bound at " + address));
+        }
+        final IoServiceConfig connectConfig =
+            config == null ? m_defaultConfig : config;
+        final SocketAddress local = localAddress == null ?
+            new AnonymousSocketAddress() : localAddress;
+
+        final TurnPipeSession session = new TurnPipeSession(this,
+            connectConfig, getListeners(), address, local, address, handler);
+        final TurnPipeSession acceptedSession = new TurnPipeSession(
+            binding.getAcceptor(), binding.getConfig(),
+            binding.getListeners(), address, address, local,
+            binding.getHandler());
+        session.setPeer(acceptedSession);
+        acceptedSession.setPeer(session);
+
+        try {
+            getFilterChainBuilder().buildFilterChain(session.getFilterChain());
+            connectConfig.getFilterChainBuilder().buildFilterChain(
+                session.getFilterChain());
+            connectConfig.getThreadModel().buildFilterChain(
+                session.getFilterChain());
+
+            binding.getAcceptor().getFilterChainBuilder().buildFilterChain(
+                acceptedSession.getFilterChain());
+            binding.getConfig().getFilterChainBuilder().buildFilterChain(
+                acceptedSession.getFilterChain());
+            binding.getConfig().getThreadModel().buildFilterChain(
+                acceptedSession.getFilterChain());
+        } catch (final Exception e) {
+            return DefaultConnectFuture.newFailedFuture(e);
+        }
+
+        // Each end holds what the other writes until it's open itself.
+        binding.getListeners().fireSessionCreated(acceptedSession);
+        getListeners().fireSessionCreated(session);
+        acceptedSession.start();
+        session.start();
+
+        final DefaultConnectFuture future = new DefaultConnectFuture();
+        future.setSession(session);
+        return future;
+    }
+
+    public IoServiceConfig getDefaultConfig() {
+        return m_defaultConfig;
+    }
+}
@@ -0,0 +1,236 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.SocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilter.WriteRequest;
+import org.littleshoot.mina.common.IoFilterChain;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.IoSessionConfig;
+import org.littleshoot.mina.common.TransportType;
+import org.littleshoot.mina.common.support.AbstractIoFilterChain;
+import org.littleshoot.mina.common.support.BaseIoSession;
+import org.littleshoot.mina.common.support.BaseIoSessionConfig;
+import org.littleshoot.mina.common.support.IoServiceListenerSupport;
+
+/**
+ * One end of an in-memory pipe.  Whatever one end writes goes on the other
+ * end's queue, and whichever thread finds that queue idle delivers
+ * everything on it, so messages always arrive in the order they were
+ * written no matter how many threads write to either end.
+ */
+class TurnPipeSession extends BaseIoSession {
+
+    /**
+     * Pipes have no session options.
+     */
+    static final IoSessionConfig CONFIG = new BaseIoSessionConfig() {
+    };
+
+    private final IoService m_service;
+
+    private final IoServiceConfig m_serviceConfig;
+
+    private final IoServiceListenerSupport m_listeners;
+
+    private final SocketAddress m_serviceAddress;
+
+    private final SocketAddress m_localAddress;
+
+    private final SocketAddress m_remoteAddress;
+
+    private final IoHandler m_handler;
+
+    private final IoFilterChain m_filterChain = new PipeFilterChain(this);
+
+    private final Queue<Object> m_inbound = new ConcurrentLinkedQueue<Object>();
+
+    private final AtomicBoolean m_delivering = new AtomicBoolean(false);
+
+    private final AtomicBoolean m_closed = new AtomicBoolean(false);
+
+    private volatile boolean m_started;
+
+    private volatile TurnPipeSession m_peer;
+
+    TurnPipeSession(final IoService service,
+        final IoServiceConfig serviceConfig,
+        final IoServiceListenerSupport listeners,
+        final SocketAddress serviceAddress, final SocketAddress localAddress,
+        final SocketAddress remoteAddress, final IoHandler handler) {
+        m_service = service;
+        m_serviceConfig = serviceConfig;
+        m_listeners = listeners;
+        m_serviceAddress = serviceAddress;
+        m_localAddress = localAddress;
+        m_remoteAddress = remoteAddress;
+        m_handler = handler;
+    }
+
+    void setPeer(final TurnPipeSession peer) {
+        m_peer = peer;
+    }
+
+    /**
+     * Starts delivering messages once the session is open.
+     */
+    void start() {
+        m_started = true;
+        deliver();
+    }
+
+    /**
+     * Queues a message the other end wrote and delivers it unless another
+     * thread is already delivering.
+     *
+     * @param message The message.
+     */
+    void receive(final Object message) {
+        m_inbound.offer(message);
+        deliver();
+    }
+
+    private void deliver() {
+        while (m_started && getTrafficMask().isReadable() &&
+            m_delivering.compareAndSet(false, true)) {
+            try {
+                Object message;
+                while (getTrafficMask().isReadable() &&
+                    (message = m_inbound.poll()) != null) {
+                    if (message instanceof ByteBuffer) {
+                        increaseReadBytes(((ByteBuffer) message).remaining());
+                    }
+                    m_filterChain.fireMessageReceived(this, message);
+                }
+            } finally {
+                m_delivering.set(false);
+            }
+
+            // Another thread may have queued a message after we last
+            // looked but before we stopped delivering.
+            if (m_inbound.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected void write0(final WriteRequest writeRequest) {
+        m_filterChain.fireFilterWrite(this, writeRequest);
+    }
+
+    @Override
+    protected void close0() {
+        m_filterChain.fireFilterClose(this);
+    }
+
+    @Override
+    protected void updateTrafficMask() {
+        // Deliver anything that arrived while reads were suspended.
+        deliver();
+    }
+
+    public IoService getService() {
+        return m_service;
+    }
+
+    public IoServiceConfig getServiceConfig() {
+        return m_serviceConfig;
+    }
+
+    public IoSessionConfig getConfig() {
+        return CONFIG;
+    }
+
+    public IoFilterChain getFilterChain() {
+        return m_filterChain;
+    }
+
+    public IoHandler getHandler() {
+        return m_handler;
+    }
+
+    public TransportType getTransportType() {
+        return TransportType.VM_PIPE;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return m_remoteAddress;
+    }
+
+    public SocketAddress getLocalAddress() {
+        return m_localAddress;
+    }
+
+    public SocketAddress getServiceAddress() {
+        return m_serviceAddress;
+    }
+
+    public int getScheduledWriteRequests() {
+        // Writes complete as soon as they're made.
+        return 0;
+    }
+
+    public int getScheduledWriteBytes() {
+        return 0;
+    }
+
+    private static final class PipeFilterChain extends AbstractIoFilterChain {
+
+        private PipeFilterChain(final IoSession session) {
+            super(session);
+        }
+
+        @Override
+        protected void doWrite(final IoSession session,
+            final WriteRequest writeRequest) {
+            final TurnPipeSession pipe = (TurnPipeSession) session;
+            final TurnPipeSession peer = pipe.m_peer;
+            if (pipe.m_closed.get() || peer == null || peer.m_closed.get()) {
+                writeRequest.getFuture().setWritten(false);
+                return;
+            }
+            final Object message = writeRequest.getMessage();
+            final Object delivered;
+            if (message instanceof ByteBuffer) {
+                final ByteBuffer buf = (ByteBuffer) message;
+                pipe.increaseWrittenBytes(buf.remaining());
+                if (buf.isPooled()) {
+                    // The writer's side may hand a pooled buffer back as
+                    // soon as it's sent, so the reader gets a copy.
+                    final ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+                    copy.put(buf.duplicate());
+                    copy.flip();
+                    delivered = copy;
+                } else {
+                    // Same bytes, but the reader moves its own position.
+                    delivered = buf.duplicate();
+                }
+            } else {
+                delivered = message;
+            }
+            pipe.increaseWrittenMessages();
+            peer.receive(delivered);
+            fireMessageSent(session, writeRequest);
+        }
+
+        @Override
+        protected void doClose(final IoSession session) {
+            final TurnPipeSession pipe = (TurnPipeSession) session;
+            if (!pipe.m_closed.compareAndSet(false, true)) {
+                return;
+            }
+            pipe.m_listeners.fireSessionDestroyed(pipe);
+            final TurnPipeSession peer = pipe.m_peer;
+            if (peer != null) {
+                peer.close();
+            }
+        }
+    }
+}
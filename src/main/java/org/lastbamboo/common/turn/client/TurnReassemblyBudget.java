@@ -0,0 +1,187 @@
+package org.lastbamboo.common.turn.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the memory we spend holding partial messages from remote hosts
+ * until the rest of them arrives, both for each remote host and for all of
+ * them together.  Without limits, a remote host that announces a large
+ * frame and then trickles it in pins a buffer for as long as it likes, and
+ * thousands of them pin a great deal of memory.<p>
+ *
+ * Decoders reserve bytes here as they hold on to them and release them as
+ * messages complete.  When a reservation would go over either limit, the
+ * decoder gives up on the remote host rather than buffering more, and we
+ * count it.
+ */
+public class TurnReassemblyBudget {
+
+    /**
+     * The default limit for each remote host, which is enough for two of
+     * the largest possible TCP frames.
+     */
+    public static final long DEFAULT_PEER_BYTES = 128 * 1024;
+
+    /**
+     * The default limit for all remote hosts together.
+     */
+    public static final long DEFAULT_TOTAL_BYTES = 64 * 1024 * 1024;
+
+    private final long m_peerLimit;
+
+    private final long m_totalLimit;
+
+    private final AtomicLong m_buffered = new AtomicLong();
+
+    private final AtomicLong m_peakBuffered = new AtomicLong();
+
+    private final AtomicLong m_rejectedFrames = new AtomicLong();
+
+    private final AtomicLong m_closedPeers = new AtomicLong();
+
+    /**
+     * Creates a new budget.
+     *
+     * @param peerLimit The most bytes of partial messages we hold for any
+     * one remote host.
+     * @param totalLimit The most bytes of partial messages we hold for all
+     * remote hosts together.
+     */
+    public TurnReassemblyBudget(final long peerLimit, final long totalLimit) {
+        if (peerLimit <= 0 || totalLimit < peerLimit) {
+            throw new IllegalArgumentException("Bad limits: " + peerLimit +
+                "," + totalLimit);
+        }
+        m_peerLimit = peerLimit;
+        m_totalLimit = totalLimit;
+    }
+
+    /**
+     * Creates a budget with the limits from {@link TurnClientConfig}.
+     *
+     * @return The new budget.
+     */
+    public static TurnReassemblyBudget fromConfig() {
+        return new TurnReassemblyBudget(
+            TurnClientConfig.getReassemblyBytesPerPeer(),
+            TurnClientConfig.getReassemblyBytesTotal());
+    }
+
+    /**
+     * Reserves more bytes for a remote host.
+     *
+     * @param held The bytes the remote host already holds.
+     * @param bytes The additional bytes it wants to hold.
+     * @return <code>true</code> if we reserved the bytes, or
+     * <code>false</code> if that would go over a limit.
+     */
+    public boolean reserve(final long held, final long bytes) {
+        if (held + bytes > m_peerLimit) {
+            return false;
+        }
+        while (true) {
+            final long buffered = m_buffered.get();
+            final long updated = buffered + bytes;
+            if (updated > m_totalLimit) {
+                return false;
+            }
+            if (m_buffered.compareAndSet(buffered, updated)) {
+                long peak = m_peakBuffered.get();
+                while (updated > peak &&
+                    !m_peakBuffered.compareAndSet(peak, updated)) {
+                    peak = m_peakBuffered.get();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases bytes a remote host no longer holds.
+     *
+     * @param bytes The number of bytes.
+     */
+    public void release(final long bytes) {
+        m_buffered.addAndGet(-bytes);
+    }
+
+    /**
+     * Returns whether a message of the given length could ever fit in a
+     * remote host's budget.
+     *
+     * @param length The length of the message.
+     * @return <code>true</code> if the message could fit.
+     */
+    public boolean fits(final long length) {
+        return length <= m_peerLimit;
+    }
+
+    /**
+     * Records that we refused a message because it was too large or we
+     * were out of budget.
+     */
+    public void onRejectedFrame() {
+        m_rejectedFrames.incrementAndGet();
+    }
+
+    /**
+     * Records that we gave up on a remote host because it went over budget.
+     */
+    public void onClosedPeer() {
+        m_closedPeers.incrementAndGet();
+    }
+
+    /**
+     * Accessor for the limit for each remote host.
+     *
+     * @return The limit in bytes.
+     */
+    public long getPeerLimit() {
+        return m_peerLimit;
+    }
+
+    /**
+     * Accessor for the limit for all remote hosts together.
+     *
+     * @return The limit in bytes.
+     */
+    public long getTotalLimit() {
+        return m_totalLimit;
+    }
+
+    /**
+     * Accessor for the bytes of partial messages we currently hold.
+     *
+     * @return The bytes held.
+     */
+    public long getBufferedBytes() {
+        return m_buffered.get();
+    }
+
+    /**
+     * Accessor for the most bytes of partial messages we've held at once.
+     *
+     * @return The peak bytes held.
+     */
+    public long getPeakBufferedBytes() {
+        return m_peakBuffered.get();
+    }
+
+    /**
+     * Accessor for the number of messages we've refused.
+     *
+     * @return The number of rejected messages.
+     */
+    public long getRejectedFrames() {
+        return m_rejectedFrames.get();
+    }
+
+    /**
+     * Accessor for the number of remote hosts we've given up on.
+     *
+     * @return The number of closed remote hosts.
+     */
+    public long getClosedPeers() {
+        return m_closedPeers.get();
+    }
+}
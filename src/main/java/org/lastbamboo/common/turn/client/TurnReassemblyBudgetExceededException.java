@@ -0,0 +1,21 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a remote host's partial messages would take more memory than
+ * its {@link TurnReassemblyBudget} allows.
+ */
+public class TurnReassemblyBudgetExceededException extends IOException {
+
+    private static final long serialVersionUID = -3216097125346372918L;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message The detail message.
+     */
+    public TurnReassemblyBudgetExceededException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,139 @@
+package org.lastbamboo.common.turn.client;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.StunMessageDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decoder for the stream of messages from the TURN server.  The stream mixes
+ * STUN messages with ChannelData messages once we've bound channels, so we
+ * frame each message from its header before decoding it.  STUN messages go
+ * to the STUN decoder whole, except for ChannelBind responses, which the
+ * STUN stack doesn't know about and which we hand to the
+ * {@link TurnChannelBindings} directly.  ChannelData messages are written
+ * out as {@link TurnChannelData}.
+ */
+public class TurnServerMessageDecoder implements ProtocolDecoder {
+
+    private static final int STUN_HEADER_LENGTH = 20;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final TurnChannelBindings m_bindings;
+
+    private StunMessageDecoder m_stunDecoder = new StunMessageDecoder();
+
+    /**
+     * Bytes from the end of a previous read that don't make up a whole
+     * message yet, or <code>null</code> if there are none.
+     */
+    private ByteBuffer m_remainder;
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param bindings The channel bindings for the session.
+     */
+    public TurnServerMessageDecoder(final TurnChannelBindings bindings) {
+        m_bindings = bindings;
+    }
+
+    public void decode(final IoSession session, final ByteBuffer in,
+        final ProtocolDecoderOutput out) throws Exception {
+        if (m_remainder == null) {
+            decodeBuffer(session, in, out);
+            if (in.hasRemaining()) {
+                m_remainder = ByteBuffer.allocate(in.remaining() * 2);
+                m_remainder.setAutoExpand(true);
+                m_remainder.put(in);
+                m_remainder.flip();
+            }
+            return;
+        }
+
+        m_remainder.compact();
+        m_remainder.put(in);
+        m_remainder.flip();
+        decodeBuffer(session, m_remainder, out);
+        if (!m_remainder.hasRemaining()) {
+            m_remainder = null;
+        }
+    }
+
+    private void decodeBuffer(final IoSession session, final ByteBuffer in,
+        final ProtocolDecoderOutput out) throws Exception {
+        while (in.remaining() >= TurnChannelData.HEADER_LENGTH) {
+            final int pos = in.position();
+            final int first = in.get(pos) & 0xff;
+            if (TurnChannelData.isChannelData(first)) {
+                final int length = in.getUnsignedShort(pos + 2);
+                final int total =
+                    TurnChannelData.HEADER_LENGTH + ((length + 3) & ~3);
+                if (in.remaining() < total) {
+                    return;
+                }
+                final byte[] data = new byte[length];
+                in.position(pos + TurnChannelData.HEADER_LENGTH);
+                in.get(data);
+                in.position(pos + total);
+                out.write(new TurnChannelData(in.getUnsignedShort(pos), data));
+            } else if ((first & 0xC0) == 0) {
+                if (in.remaining() < STUN_HEADER_LENGTH) {
+                    return;
+                }
+                final int total =
+                    STUN_HEADER_LENGTH + in.getUnsignedShort(pos + 2);
+                if (in.remaining() < total) {
+                    return;
+                }
+                decodeStun(session, in, pos, total, out);
+            } else {
+                m_log.warn("Unrecognized data from TURN server -- closing");
+                in.position(in.limit());
+                session.close();
+                return;
+            }
+        }
+    }
+
+    private void decodeStun(final IoSession session, final ByteBuffer in,
+        final int pos, final int total, final ProtocolDecoderOutput out)
+        throws Exception {
+        final int type = in.getUnsignedShort(pos);
+        if (type == TurnChannelBindings.CHANNEL_BIND_SUCCESS_RESPONSE ||
+            type == TurnChannelBindings.CHANNEL_BIND_ERROR_RESPONSE) {
+            final byte[] transactionId = new byte[12];
+            in.position(pos + 8);
+            in.get(transactionId);
+            in.position(pos + total);
+            m_bindings.onBindResponse(transactionId,
+                type == TurnChannelBindings.CHANNEL_BIND_SUCCESS_RESPONSE);
+            return;
+        }
+
+        // We always hand the STUN decoder exactly one whole message, so it
+        // finishes each message it starts.
+        final int limit = in.limit();
+        in.limit(pos + total);
+        try {
+            m_stunDecoder.decode(session, in, out);
+        } catch (final Exception e) {
+            m_log.warn("Could not decode STUN message", e);
+            m_stunDecoder = new StunMessageDecoder();
+        } finally {
+            in.limit(limit);
+            in.position(pos + total);
+        }
+    }
+
+    public void finishDecode(final IoSession session,
+        final ProtocolDecoderOutput out) throws Exception {
+    }
+
+    public void dispose(final IoSession session) throws Exception {
+    }
+}
@@ -31,7 +31,9 @@ import org.slf4j.LoggerFactory;
  * Encodes bytes into STUN messages with the additional step of wrapping 
  * certain messages in TURN Send Indications.  This will in particular
  * wrap messages that are only written when wrapping is necessary, such as
- * Binding Responses used with ICE.  
+ * Binding Responses used with ICE.  If the remote address a Send Indication
+ * is destined for is bound to a channel, we send the data as ChannelData
+ * instead, which saves the STUN header and attributes on every packet.
  */
 public class TurnStunProtocolEncoder implements DemuxableProtocolEncoder
     {
@@ -51,8 +53,11 @@ public class TurnStunProtocolEncoder implements DemuxableProtocolEncoder
         final TurnStunMessageMapper mapper =
             (TurnStunMessageMapper) session.getAttribute(
                 "REMOTE_ADDRESS_MAP");
+        final TurnChannelBindings bindings =
+            (TurnChannelBindings) session.getAttribute(
+                TurnChannelBindings.SESSION_KEY);
         final StunMessageVisitor<ByteBuffer> visitor = 
-            new SendIndicationStunMessageVisitor(out, mapper);
+            new SendIndicationStunMessageVisitor(out, mapper, bindings);
         stunMessage.accept(visitor);
         }
     
@@ -62,13 +67,39 @@ public class TurnStunProtocolEncoder implements DemuxableProtocolEncoder
         
         private final ProtocolEncoderOutput m_out;
         private final TurnStunMessageMapper m_mapper;
+        private final TurnChannelBindings m_bindings;
 
         private SendIndicationStunMessageVisitor(
             final ProtocolEncoderOutput out, 
-            final TurnStunMessageMapper mapper)
+            final TurnStunMessageMapper mapper,
+            final TurnChannelBindings bindings)
             {
             m_out = out;
             m_mapper = mapper;
+            m_bindings = bindings;
+            }
+
+        /**
+         * Writes data for a remote address as ChannelData if the address is
+         * bound to a channel.
+         * 
+         * @return <code>true</code> if we wrote the data, otherwise 
+         * <code>false</code> if the caller needs to use a Send Indication.
+         */
+        private boolean writeChannelData(final InetSocketAddress remoteAddress,
+            final byte[] data)
+            {
+            if (m_bindings == null)
+                {
+                return false;
+                }
+            final int channel = m_bindings.getChannel(remoteAddress);
+            if (channel == -1)
+                {
+                return false;
+                }
+            m_out.write(TurnChannelData.encode(channel, data));
+            return true;
             }
 
         private void wrapInSendIndication(final StunMessage msg)
@@ -85,6 +116,10 @@ public class TurnStunProtocolEncoder implements DemuxableProtocolEncoder
                 }
             final byte[] bytes = MinaUtils.toByteArray(buf);
             m_log.debug("Sending TCP framed data of length: {}", bytes.length);
+            if (writeChannelData(remoteAddress, bytes))
+                {
+                return;
+                }
             final SendIndication indication = 
                 new SendIndication(remoteAddress, bytes);
             final ByteBuffer indicationBuf = encoder.encode(indication);
@@ -160,7 +195,11 @@ public class TurnStunProtocolEncoder implements DemuxableProtocolEncoder
             // This is a weird case.  Other protocols, such as TCP framing,
             // may already wrap their data in Send Indications.
             m_log.debug("Writing send indication...");
-            noWrap(request);
+            if (!writeChannelData(request.getRemoteAddress(), 
+                request.getData()))
+                {
+                noWrap(request);
+                }
             return null;
             }
 
@@ -187,7 +226,7 @@ public class TurnStunProtocolEncoder implements DemuxableProtocolEncoder
 
         public ByteBuffer visitConnectRequest(final ConnectRequest request)
             {
-            m_log.warn("Unexpected message: {}", request);
+            noWrap(request);
             return null;
             }
 
@@ -0,0 +1,25 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Creates the {@link SSLContext}s used to talk TLS to TURN servers, for
+ * example to trust a private certificate authority.
+ */
+public interface TurnTlsContextFactory {
+
+    /**
+     * Creates a new context for a TURN server.  This is called once per
+     * server, and the context is kept so later connections to the server
+     * can resume its TLS sessions.
+     *
+     * @param server The address of the TURN server.
+     * @return The new context.
+     * @throws GeneralSecurityException If the context can't be created.
+     */
+    SSLContext newContext(InetSocketAddress server)
+        throws GeneralSecurityException;
+}
@@ -0,0 +1,415 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Filter that runs the connection to the TURN server over TLS.  It belongs
+ * at the head of the filter chain, next to the socket.  Engines come from a
+ * {@link TurnTlsSessionCache} so connections to a server we've talked to
+ * before resume the TLS session rather than doing a full handshake.<p>
+ *
+ * The server's certificate has to be for the host we connected to, as
+ * {@link TurnTlsHostnameVerifier} checks, and we close the connection if
+ * it isn't or the handshake fails for any other reason.<p>
+ *
+ * Anything written before the handshake completes, such as the Allocate
+ * Request, waits until it does.  Each write is encrypted into a single
+ * buffer that takes over the original write's future, and we report the
+ * original message as sent once its encrypted buffer is, so the filters
+ * above us never see ciphertext.
+ */
+public class TurnTlsFilter extends IoFilterAdapter {
+
+    private static final String STATE_KEY = "TURN_TLS_STATE";
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final TurnTlsSessionCache m_cache;
+
+    private final InetSocketAddress m_server;
+
+    /**
+     * Creates a new filter for connections to a TURN server.
+     *
+     * @param cache The cache of TLS contexts and sessions.
+     * @param server The address of the TURN server.
+     */
+    public TurnTlsFilter(final TurnTlsSessionCache cache,
+        final InetSocketAddress server) {
+        m_cache = cache;
+        m_server = server;
+    }
+
+    @Override
+    public void sessionCreated(final NextFilter nextFilter,
+        final IoSession session) throws Exception {
+        session.setAttribute(STATE_KEY,
+            new TlsState(m_cache.newEngine(m_server)));
+        nextFilter.sessionCreated(session);
+    }
+
+    @Override
+    public void sessionOpened(final NextFilter nextFilter,
+        final IoSession session) throws Exception {
+        final TlsState state = getState(session);
+        synchronized (state) {
+            state.m_handshakeStarted = System.currentTimeMillis();
+            try {
+                state.m_engine.beginHandshake();
+                handshake(nextFilter, session, state);
+            } catch (final SSLException e) {
+                onFailed(session, e);
+            }
+        }
+        nextFilter.sessionOpened(session);
+    }
+
+    @Override
+    public void sessionClosed(final NextFilter nextFilter,
+        final IoSession session) throws Exception {
+        final TlsState state = getState(session);
+        if (state != null) {
+            final List<WriteRequest> unsent;
+            synchronized (state) {
+                state.m_engine.closeOutbound();
+                unsent = new ArrayList<WriteRequest>(state.m_pendingWrites);
+                state.m_pendingWrites.clear();
+                state.m_sent.clear();
+            }
+            // Writes still waiting on the handshake never go out, so we
+            // fail them rather than leave their callers waiting.
+            for (final WriteRequest writeRequest : unsent) {
+                writeRequest.getFuture().setWritten(false);
+            }
+        }
+        nextFilter.sessionClosed(session);
+    }
+
+    @Override
+    public void messageReceived(final NextFilter nextFilter,
+        final IoSession session, final Object message) throws Exception {
+        final TlsState state = getState(session);
+        if (state == null || !(message instanceof ByteBuffer)) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        final List<ByteBuffer> plaintext = new ArrayList<ByteBuffer>(2);
+        synchronized (state) {
+            state.append(((ByteBuffer) message).buf());
+            try {
+                unwrap(nextFilter, session, state, plaintext);
+            } catch (final SSLException e) {
+                onFailed(session, e);
+                return;
+            }
+        }
+
+        // We pass data up outside the lock so writes from other threads
+        // don't wait on whatever the filters above us do with it.
+        for (final ByteBuffer buf : plaintext) {
+            nextFilter.messageReceived(session, buf);
+        }
+    }
+
+    @Override
+    public void filterWrite(final NextFilter nextFilter,
+        final IoSession session, final WriteRequest writeRequest)
+        throws Exception {
+        final TlsState state = getState(session);
+        if (state == null || !(writeRequest.getMessage() instanceof ByteBuffer)) {
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        synchronized (state) {
+            if (!state.m_handshakeComplete) {
+                state.m_pendingWrites.add(writeRequest);
+                return;
+            }
+            wrapAndWrite(nextFilter, session, state, writeRequest);
+        }
+    }
+
+    @Override
+    public void messageSent(final NextFilter nextFilter,
+        final IoSession session, final Object message) throws Exception {
+        final TlsState state = getState(session);
+        if (state == null) {
+            nextFilter.messageSent(session, message);
+            return;
+        }
+        final Object original;
+        synchronized (state) {
+            original = state.m_sent.remove(message);
+        }
+        if (original != null) {
+            nextFilter.messageSent(session, original);
+        }
+        // Otherwise this was handshake data nobody above us wrote.
+    }
+
+    @Override
+    public void filterClose(final NextFilter nextFilter,
+        final IoSession session) throws Exception {
+        final TlsState state = getState(session);
+        if (state != null) {
+            synchronized (state) {
+                if (!state.m_engine.isOutboundDone()) {
+                    state.m_engine.closeOutbound();
+                    try {
+                        write(nextFilter, session, wrap(state,
+                            java.nio.ByteBuffer.allocate(0)));
+                    } catch (final SSLException e) {
+                        m_log.debug("Could not send close_notify", e);
+                    }
+                }
+            }
+        }
+        nextFilter.filterClose(session);
+    }
+
+    private void unwrap(final NextFilter nextFilter, final IoSession session,
+        final TlsState state, final List<ByteBuffer> plaintext)
+        throws SSLException {
+        final java.nio.ByteBuffer in = state.m_inNet;
+        in.flip();
+        try {
+            while (true) {
+                final SSLEngineResult result =
+                    state.m_engine.unwrap(in, state.m_appIn);
+                switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    return;
+                case BUFFER_OVERFLOW:
+                    state.growAppIn();
+                    continue;
+                case CLOSED:
+                    m_log.debug("TURN server closed TLS session");
+                    session.close();
+                    return;
+                case OK:
+                    break;
+                }
+                if (state.m_appIn.position() > 0) {
+                    state.m_appIn.flip();
+                    final ByteBuffer buf =
+                        ByteBuffer.allocate(state.m_appIn.remaining());
+                    buf.put(state.m_appIn);
+                    buf.flip();
+                    plaintext.add(buf);
+                    state.m_appIn.clear();
+                }
+                if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                    onHandshakeFinished(nextFilter, session, state);
+                } else {
+                    handshake(nextFilter, session, state);
+                }
+                if (result.bytesConsumed() == 0 &&
+                    result.bytesProduced() == 0) {
+                    return;
+                }
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    /**
+     * Moves the handshake along as far as we can without more data from
+     * the server.
+     */
+    private void handshake(final NextFilter nextFilter,
+        final IoSession session, final TlsState state) throws SSLException {
+        while (true) {
+            switch (state.m_engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = state.m_engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            case NEED_WRAP:
+                final ByteBuffer buf =
+                    wrap(state, java.nio.ByteBuffer.allocate(0));
+                write(nextFilter, session, buf);
+                if (state.m_lastWrapFinished) {
+                    onHandshakeFinished(nextFilter, session, state);
+                }
+                break;
+            case NOT_HANDSHAKING:
+                if (!state.m_handshakeComplete) {
+                    onHandshakeFinished(nextFilter, session, state);
+                }
+                return;
+            default:
+                return;
+            }
+        }
+    }
+
+    private void onHandshakeFinished(final NextFilter nextFilter,
+        final IoSession session, final TlsState state) throws SSLException {
+        if (state.m_handshakeComplete) {
+            // Renegotiation or post handshake messages.
+            return;
+        }
+        if (!TurnTlsHostnameVerifier.isEngineVerifying()) {
+            final String host = TurnTlsHostnameVerifier.getHost(m_server);
+            if (!TurnTlsHostnameVerifier.verify(host,
+                state.m_engine.getSession())) {
+                throw new SSLPeerUnverifiedException(
+                    "Certificate is not for " + host);
+            }
+        }
+        state.m_handshakeComplete = true;
+        m_cache.onHandshakeFinished(m_server, state.m_engine.getSession(),
+            state.m_handshakeStarted);
+        m_log.debug("TLS handshake finished with {}", m_server);
+        while (!state.m_pendingWrites.isEmpty()) {
+            wrapAndWrite(nextFilter, session, state,
+                state.m_pendingWrites.removeFirst());
+        }
+    }
+
+    /**
+     * Gives up on a connection whose TLS failed, for example because the
+     * server's certificate isn't for the host we connected to.  Nothing
+     * more can go over it, and the filters above us wouldn't close it.
+     */
+    private void onFailed(final IoSession session, final SSLException e) {
+        m_log.warn("TLS failed with " + m_server, e);
+        session.close();
+    }
+
+    private void wrapAndWrite(final NextFilter nextFilter,
+        final IoSession session, final TlsState state,
+        final WriteRequest writeRequest) throws SSLException {
+        final ByteBuffer original = (ByteBuffer) writeRequest.getMessage();
+        final ByteBuffer encrypted = wrap(state, original.buf());
+        state.m_sent.put(encrypted, original);
+        nextFilter.filterWrite(session, new WriteRequest(encrypted,
+            writeRequest.getFuture(), writeRequest.getDestination()));
+    }
+
+    private void write(final NextFilter nextFilter, final IoSession session,
+        final ByteBuffer buf) {
+        if (!buf.hasRemaining()) {
+            return;
+        }
+        nextFilter.filterWrite(session, new WriteRequest(buf));
+    }
+
+    /**
+     * Encrypts everything in the source into a single buffer.
+     */
+    private ByteBuffer wrap(final TlsState state,
+        final java.nio.ByteBuffer src) throws SSLException {
+        java.nio.ByteBuffer out = java.nio.ByteBuffer.allocate(
+            state.m_engine.getSession().getPacketBufferSize());
+        state.m_lastWrapFinished = false;
+        do {
+            final SSLEngineResult result = state.m_engine.wrap(src, out);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                final java.nio.ByteBuffer larger = java.nio.ByteBuffer.allocate(
+                    out.capacity() * 2);
+                out.flip();
+                larger.put(out);
+                out = larger;
+                continue;
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                state.m_lastWrapFinished = true;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED ||
+                result.bytesProduced() == 0 && !src.hasRemaining()) {
+                break;
+            }
+            if (state.m_engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP &&
+                !src.hasRemaining()) {
+                break;
+            }
+        } while (true);
+        out.flip();
+        final ByteBuffer buf = ByteBuffer.allocate(out.remaining());
+        buf.put(out);
+        buf.flip();
+        return buf;
+    }
+
+    private TlsState getState(final IoSession session) {
+        return (TlsState) session.getAttribute(STATE_KEY);
+    }
+
+    /**
+     * TLS state for a single connection.  All access is synchronized on the
+     * state itself.
+     */
+    private static final class TlsState {
+
+        private final SSLEngine m_engine;
+
+        private java.nio.ByteBuffer m_inNet;
+
+        private java.nio.ByteBuffer m_appIn;
+
+        private boolean m_handshakeComplete;
+
+        private boolean m_lastWrapFinished;
+
+        private long m_handshakeStarted;
+
+        private final LinkedList<WriteRequest> m_pendingWrites =
+            new LinkedList<WriteRequest>();
+
+        /**
+         * Encrypted buffers we've written mapped to the messages they hold.
+         */
+        private final Map<Object, Object> m_sent =
+            new IdentityHashMap<Object, Object>();
+
+        private TlsState(final SSLEngine engine) {
+            m_engine = engine;
+            m_inNet = java.nio.ByteBuffer.allocate(
+                engine.getSession().getPacketBufferSize());
+            m_appIn = java.nio.ByteBuffer.allocate(
+                engine.getSession().getApplicationBufferSize());
+        }
+
+        private void append(final java.nio.ByteBuffer data) {
+            if (m_inNet.remaining() < data.remaining()) {
+                final java.nio.ByteBuffer larger = java.nio.ByteBuffer.allocate(
+                    Math.max(m_inNet.capacity() * 2,
+                        m_inNet.position() + data.remaining()));
+                m_inNet.flip();
+                larger.put(m_inNet);
+                m_inNet = larger;
+            }
+            m_inNet.put(data);
+        }
+
+        private void growAppIn() {
+            final java.nio.ByteBuffer larger = java.nio.ByteBuffer.allocate(
+                Math.max(m_appIn.capacity() * 2,
+                    m_engine.getSession().getApplicationBufferSize()));
+            m_appIn.flip();
+            larger.put(m_appIn);
+            m_appIn = larger;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package org.lastbamboo.common.turn.client;
+
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks that the certificate a TURN server presents was issued for the
+ * host we meant to connect to.  Trusting the certificate's issuer isn't
+ * enough on its own, since any server with a certificate from a trusted
+ * issuer could otherwise pose as ours.  Where the runtime supports it, we
+ * have the {@link SSLEngine} check the certificate during the handshake the
+ * same way HTTPS does.  We look that up reflectively so this library still
+ * runs on JVMs that predate it, and on those we check the certificate's
+ * subject alternative names, or its common name if it has no DNS names,
+ * once the handshake finishes.
+ */
+final class TurnTlsHostnameVerifier {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(TurnTlsHostnameVerifier.class);
+
+    private static final int SAN_DNS = 2;
+
+    private static final int SAN_IP = 7;
+
+    private static final Pattern IPV4 =
+        Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+    private static final Method SET_ALGORITHM = findSetAlgorithm();
+
+    private TurnTlsHostnameVerifier() {}
+
+    private static Method findSetAlgorithm() {
+        try {
+            return SSLParameters.class.getMethod(
+                "setEndpointIdentificationAlgorithm", String.class);
+        } catch (final NoSuchMethodException e) {
+            LOG.debug("Checking TURN server host names ourselves");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the host we were asked to connect to, without looking up a
+     * name for an address we were only given as a literal.
+     *
+     * @param server The address of the TURN server.
+     * @return The host name or address literal.
+     */
+    static String getHost(final InetSocketAddress server) {
+        try {
+            final Method getHostString =
+                InetSocketAddress.class.getMethod("getHostString");
+            return (String) getHostString.invoke(server);
+        } catch (final Exception e) {
+            // Before Java 7, the string form is "name/literal:port" with an
+            // empty name if we were only given the literal.
+            final String str = server.toString();
+            final int slash = str.indexOf('/');
+            if (slash > 0) {
+                return str.substring(0, slash);
+            }
+            return server.getAddress().getHostAddress();
+        }
+    }
+
+    /**
+     * Returns whether engines can check the server's certificate against
+     * the host themselves on this runtime.
+     *
+     * @return <code>true</code> if engines check the host, or
+     * <code>false</code> if we need to call
+     * {@link #verify(String, SSLSession)} once the handshake finishes.
+     */
+    static boolean isEngineVerifying() {
+        return SET_ALGORITHM != null;
+    }
+
+    /**
+     * Has the engine check the server's certificate against the host it was
+     * created for during the handshake, if the runtime supports it.
+     *
+     * @param engine The client engine.
+     * @throws GeneralSecurityException If the runtime supports it but we
+     * couldn't turn it on.
+     */
+    static void enableEndpointIdentification(final SSLEngine engine)
+        throws GeneralSecurityException {
+        if (SET_ALGORITHM == null) {
+            return;
+        }
+        final SSLParameters params = engine.getSSLParameters();
+        try {
+            SET_ALGORITHM.invoke(params, "HTTPS");
+        } catch (final Exception e) {
+            throw new GeneralSecurityException(
+                "Could not enable endpoint identification", e);
+        }
+        engine.setSSLParameters(params);
+    }
+
+    /**
+     * Checks the certificate a server presented against the host we
+     * connected to.
+     *
+     * @param host The host name or address literal we connected to.
+     * @param session The session the handshake ended with.
+     * @return <code>true</code> if the certificate is for the host.
+     */
+    static boolean verify(final String host, final SSLSession session) {
+        final Certificate[] certs;
+        try {
+            certs = session.getPeerCertificates();
+        } catch (final SSLPeerUnverifiedException e) {
+            return false;
+        }
+        if (certs.length == 0 || !(certs[0] instanceof X509Certificate)) {
+            return false;
+        }
+        final X509Certificate cert = (X509Certificate) certs[0];
+        final boolean literal = isAddressLiteral(host);
+        boolean hasDnsNames = false;
+        try {
+            final Collection<List<?>> names =
+                cert.getSubjectAlternativeNames();
+            if (names != null) {
+                for (final List<?> name : names) {
+                    final int type = ((Integer) name.get(0)).intValue();
+                    final String value = (String) name.get(1);
+                    if (type == SAN_DNS && !literal) {
+                        hasDnsNames = true;
+                        if (matches(host, value)) {
+                            return true;
+                        }
+                    } else if (type == SAN_IP && literal &&
+                        sameAddress(host, value)) {
+                        return true;
+                    }
+                }
+            }
+        } catch (final CertificateParsingException e) {
+            LOG.debug("Could not read alternative names", e);
+            return false;
+        }
+        // Addresses have to be listed as such, and the common name only
+        // counts if there are no DNS names.
+        if (literal || hasDnsNames) {
+            return false;
+        }
+        final String cn =
+            getCommonName(cert.getSubjectX500Principal().getName());
+        return cn != null && matches(host, cn);
+    }
+
+    /**
+     * Returns whether a host name matches a name from a certificate, which
+     * may have a wildcard for its leftmost label.
+     *
+     * @param host The host name.
+     * @param pattern The name from the certificate.
+     * @return <code>true</code> if they match.
+     */
+    static boolean matches(final String host, final String pattern) {
+        final String h = normalize(host);
+        final String p = normalize(pattern);
+        if (!p.startsWith("*.")) {
+            return h.equals(p);
+        }
+        // The wildcard stands for exactly one label, and never for all but
+        // the last label of a name.
+        final String suffix = p.substring(1);
+        if (suffix.indexOf('.', 1) == -1) {
+            return false;
+        }
+        final int dot = h.indexOf('.');
+        return dot > 0 && h.substring(dot).equals(suffix);
+    }
+
+    /**
+     * Returns the most specific common name in a distinguished name.
+     *
+     * @param dn The distinguished name.
+     * @return The common name, or <code>null</code> if there is none.
+     */
+    static String getCommonName(final String dn) {
+        try {
+            String cn = null;
+            for (final Rdn rdn : new LdapName(dn).getRdns()) {
+                if ("CN".equalsIgnoreCase(rdn.getType())) {
+                    cn = rdn.getValue().toString();
+                }
+            }
+            return cn;
+        } catch (final InvalidNameException e) {
+            return null;
+        }
+    }
+
+    private static boolean isAddressLiteral(final String host) {
+        return host.indexOf(':') != -1 || IPV4.matcher(host).matches();
+    }
+
+    private static boolean sameAddress(final String host, final String value) {
+        try {
+            // Both are literals, so neither needs a lookup.
+            return InetAddress.getByName(host).equals(
+                InetAddress.getByName(value));
+        } catch (final UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private static String normalize(final String name) {
+        final String lower = name.toLowerCase(Locale.US);
+        return lower.endsWith(".") ?
+            lower.substring(0, lower.length() - 1) : lower;
+    }
+}
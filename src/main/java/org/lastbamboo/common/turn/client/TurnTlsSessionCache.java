@@ -0,0 +1,160 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Keeps one {@link SSLContext} for each TURN server so TLS sessions
+ * survive from one connection to the next.  The JSSE caches client
+ * sessions in the context by server host and port, so as long as every
+ * connection to a server creates its engine from the same context,
+ * reconnects and parallel connections resume the server's session, or use
+ * its session ticket where the runtime supports them, instead of doing a
+ * full handshake each time.<p>
+ *
+ * We also count full and resumed handshakes for each server.  A handshake
+ * counts as resumed when it ends with a session created before it began.
+ */
+public class TurnTlsSessionCache {
+
+    private static final class SharedCacheHolder {
+        private static final TurnTlsSessionCache CACHE =
+            new TurnTlsSessionCache(new TurnTlsContextFactory() {
+                public SSLContext newContext(final InetSocketAddress server)
+                    throws GeneralSecurityException {
+                    final TurnTlsContextFactory factory =
+                        TurnClientConfig.getTlsContextFactory();
+                    if (factory != null) {
+                        return factory.newContext(server);
+                    }
+                    final SSLContext context = SSLContext.getInstance("TLS");
+                    context.init(null, null, null);
+                    return context;
+                }
+            });
+    }
+
+    private final ConcurrentMap<InetSocketAddress, Server> m_servers =
+        new ConcurrentHashMap<InetSocketAddress, Server>();
+
+    private final TurnTlsContextFactory m_contextFactory;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param contextFactory The factory for each server's context.
+     */
+    public TurnTlsSessionCache(final TurnTlsContextFactory contextFactory) {
+        m_contextFactory = contextFactory;
+    }
+
+    /**
+     * Accessor for the cache shared by all TURN clients.  This creates
+     * contexts with the factory from {@link TurnClientConfig}, or the
+     * default context if there is none.
+     *
+     * @return The shared cache.
+     */
+    public static TurnTlsSessionCache shared() {
+        return SharedCacheHolder.CACHE;
+    }
+
+    /**
+     * Creates a client engine for a connection to a TURN server.  The
+     * engine is for the host as we were given it, never a name looked up
+     * from its address, and checks the server's certificate is for that
+     * host where the runtime supports it.  See
+     * {@link TurnTlsHostnameVerifier}.
+     *
+     * @param server The address of the TURN server.
+     * @return The new engine.
+     * @throws GeneralSecurityException If we can't create the server's
+     * context.
+     */
+    public SSLEngine newEngine(final InetSocketAddress server)
+        throws GeneralSecurityException {
+        final SSLEngine engine = getServer(server).m_context.createSSLEngine(
+            TurnTlsHostnameVerifier.getHost(server), server.getPort());
+        engine.setUseClientMode(true);
+        TurnTlsHostnameVerifier.enableEndpointIdentification(engine);
+        return engine;
+    }
+
+    /**
+     * Called when a handshake with a server completes.
+     *
+     * @param server The address of the TURN server.
+     * @param session The session the handshake ended with.
+     * @param handshakeStarted The time the handshake started, in
+     * milliseconds since the epoch.
+     */
+    public void onHandshakeFinished(final InetSocketAddress server,
+        final SSLSession session, final long handshakeStarted) {
+        final Server state = m_servers.get(server);
+        if (state == null) {
+            return;
+        }
+        // A resumed session keeps the creation time of the handshake that
+        // first established it.  Under TLS 1.3 it gets a new ID each time,
+        // so the time is all we can go on.
+        if (session.getCreationTime() < handshakeStarted) {
+            state.m_resumedHandshakes.incrementAndGet();
+        } else {
+            state.m_fullHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Accessor for the number of full handshakes with a server.
+     *
+     * @param server The address of the TURN server.
+     * @return The number of full handshakes.
+     */
+    public long getFullHandshakes(final InetSocketAddress server) {
+        final Server state = m_servers.get(server);
+        return state == null ? 0 : state.m_fullHandshakes.get();
+    }
+
+    /**
+     * Accessor for the number of resumed handshakes with a server.
+     *
+     * @param server The address of the TURN server.
+     * @return The number of resumed handshakes.
+     */
+    public long getResumedHandshakes(final InetSocketAddress server) {
+        final Server state = m_servers.get(server);
+        return state == null ? 0 : state.m_resumedHandshakes.get();
+    }
+
+    private Server getServer(final InetSocketAddress server)
+        throws GeneralSecurityException {
+        final Server existing = m_servers.get(server);
+        if (existing != null) {
+            return existing;
+        }
+        final Server created =
+            new Server(m_contextFactory.newContext(server));
+        final Server raced = m_servers.putIfAbsent(server, created);
+        return raced == null ? created : raced;
+    }
+
+    private static final class Server {
+
+        private final SSLContext m_context;
+
+        private final AtomicLong m_fullHandshakes = new AtomicLong();
+
+        private final AtomicLong m_resumedHandshakes = new AtomicLong();
+
+        private Server(final SSLContext context) {
+            m_context = context;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package org.lastbamboo.common.turn.client;
+
+import org.apache.commons.lang.SystemUtils;
+
+/**
+ * Immutable transport settings for a single TURN client: socket options,
+ * the thread model, how much data we put in each message and allow to
+ * queue on the connection to the TURN server, and how we probe the
+ * server's health.  Unlike
+ * {@link TurnClientConfig}, each client has its own copy, so clients in
+ * the same JVM can be tuned independently.  Start from one of the profiles
+ * and adjust it with the <code>with</code> methods, each of which returns
+ * a new configuration.
+ */
+public final class TurnTransportConfig {
+
+    /**
+     * The settings TURN clients have always used: keep-alive except on
+     * Windows Vista, address reuse, and operating system buffer sizes.
+     */
+    public static final TurnTransportConfig DEFAULT =
+        new TurnTransportConfig(TurnExecutionMode.EXECUTOR, false,
+            !SystemUtils.IS_OS_WINDOWS_VISTA, true, 0, 0,
+            TurnLocalIoHandler.LENGTH_LIMIT, 256 * 1024,
+            TurnFileSender.DEFAULT_MAX_QUEUED_BYTES, TurnHealthConfig.DEFAULT);
+
+    /**
+     * Settings for interactive traffic.  Nagle's algorithm is off, and we
+     * send smaller messages and queue less so a small write never waits
+     * behind a lot of bulk data.
+     */
+    public static final TurnTransportConfig LOW_LATENCY =
+        new TurnTransportConfig(TurnExecutionMode.EXECUTOR, true,
+            !SystemUtils.IS_OS_WINDOWS_VISTA, true, 64 * 1024, 64 * 1024,
+            16 * 1024, 32 * 1024, 64 * 1024, TurnHealthConfig.DEFAULT);
+
+    /**
+     * Settings for transfers of large amounts of data.  Large socket
+     * buffers keep a long fat pipe full, and we send maximal messages and
+     * allow a lot of data to queue.
+     */
+    public static final TurnTransportConfig BULK_THROUGHPUT =
+        new TurnTransportConfig(TurnExecutionMode.EXECUTOR, false,
+            !SystemUtils.IS_OS_WINDOWS_VISTA, true, 1024 * 1024, 1024 * 1024,
+            TurnLocalIoHandler.LENGTH_LIMIT, 1024 * 1024, 4 * 1024 * 1024,
+            TurnHealthConfig.DEFAULT);
+
+    private final TurnExecutionMode m_executionMode;
+
+    private final boolean m_tcpNoDelay;
+
+    private final boolean m_keepAlive;
+
+    private final boolean m_reuseAddress;
+
+    private final int m_sendBufferSize;
+
+    private final int m_receiveBufferSize;
+
+    private final int m_chunkSize;
+
+    private final long m_queueHighWatermark;
+
+    private final int m_maxQueuedBytes;
+
+    private final TurnHealthConfig m_healthConfig;
+
+    private TurnTransportConfig(final TurnExecutionMode executionMode,
+        final boolean tcpNoDelay, final boolean keepAlive,
+        final boolean reuseAddress, final int sendBufferSize,
+        final int receiveBufferSize, final int chunkSize,
+        final long queueHighWatermark, final int maxQueuedBytes,
+        final TurnHealthConfig healthConfig) {
+        if (executionMode == null) {
+            throw new NullPointerException("Null execution mode");
+        }
+        if (healthConfig == null) {
+            throw new NullPointerException("Null health config");
+        }
+        if (sendBufferSize < 0 || receiveBufferSize < 0) {
+            throw new IllegalArgumentException("Bad buffer sizes: " +
+                sendBufferSize + "," + receiveBufferSize);
+        }
+        if (chunkSize < AdaptiveChunkSizer.DEFAULT_MSS ||
+            chunkSize > TurnLocalIoHandler.LENGTH_LIMIT) {
+            throw new IllegalArgumentException("Bad chunk size: " + chunkSize);
+        }
+        if (queueHighWatermark <= 0 || maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("Bad queue limits: " +
+                queueHighWatermark + "," + maxQueuedBytes);
+        }
+        m_executionMode = executionMode;
+        m_tcpNoDelay = tcpNoDelay;
+        m_keepAlive = keepAlive;
+        m_reuseAddress = reuseAddress;
+        m_sendBufferSize = sendBufferSize;
+        m_receiveBufferSize = receiveBufferSize;
+        m_chunkSize = chunkSize;
+        m_queueHighWatermark = queueHighWatermark;
+        m_maxQueuedBytes = maxQueuedBytes;
+        m_healthConfig = healthConfig;
+    }
+
+    /**
+     * Creates the default settings with the execution mode from
+     * {@link TurnClientConfig}.  This is what clients created without
+     * their own settings use.
+     *
+     * @return The settings.
+     */
+    public static TurnTransportConfig fromConfig() {
+        return DEFAULT.withExecutionMode(TurnClientConfig.getExecutionMode());
+    }
+
+    /**
+     * Accessor for how the client dispatches events to its listener.
+     *
+     * @return The execution mode.
+     */
+    public TurnExecutionMode getExecutionMode() {
+        return m_executionMode;
+    }
+
+    /**
+     * Accessor for whether Nagle's algorithm is off on the connection to
+     * the TURN server.
+     *
+     * @return The value of TCP_NODELAY.
+     */
+    public boolean isTcpNoDelay() {
+        return m_tcpNoDelay;
+    }
+
+    /**
+     * Accessor for whether we send TCP keep-alives to the TURN server.
+     *
+     * @return The value of SO_KEEPALIVE.
+     */
+    public boolean isKeepAlive() {
+        return m_keepAlive;
+    }
+
+    /**
+     * Accessor for whether we reuse local addresses.
+     *
+     * @return The value of SO_REUSEADDR.
+     */
+    public boolean isReuseAddress() {
+        return m_reuseAddress;
+    }
+
+    /**
+     * Accessor for the socket send buffer size.
+     *
+     * @return The size in bytes, or 0 for the operating system default.
+     */
+    public int getSendBufferSize() {
+        return m_sendBufferSize;
+    }
+
+    /**
+     * Accessor for the socket receive buffer size.  MINA also sizes its
+     * first read buffer from this.
+     *
+     * @return The size in bytes, or 0 for the operating system default.
+     */
+    public int getReceiveBufferSize() {
+        return m_receiveBufferSize;
+    }
+
+    /**
+     * Accessor for the most data we put in a single Send Indication.
+     *
+     * @return The chunk size in bytes.
+     */
+    public int getChunkSize() {
+        return m_chunkSize;
+    }
+
+    /**
+     * Accessor for the number of bytes queued on the TURN session above
+     * which we stop sending maximal chunks of local data.
+     *
+     * @return The high watermark in bytes.
+     */
+    public long getQueueHighWatermark() {
+        return m_queueHighWatermark;
+    }
+
+    /**
+     * Accessor for the number of bytes file transfers allow to queue on
+     * the TURN session before waiting for writes to complete.
+     *
+     * @return The limit in bytes.
+     */
+    public int getMaxQueuedBytes() {
+        return m_maxQueuedBytes;
+    }
+
+    /**
+     * Accessor for how we probe the health of the TURN server.
+     *
+     * @return The health settings.
+     */
+    public TurnHealthConfig getHealthConfig() {
+        return m_healthConfig;
+    }
+
+    /**
+     * Creates a copy of these settings with a different execution mode.
+     *
+     * @param executionMode The execution mode.
+     * @return The new settings.
+     */
+    public TurnTransportConfig withExecutionMode(
+        final TurnExecutionMode executionMode) {
+        return new TurnTransportConfig(executionMode, m_tcpNoDelay,
+            m_keepAlive, m_reuseAddress, m_sendBufferSize, m_receiveBufferSize,
+            m_chunkSize, m_queueHighWatermark, m_maxQueuedBytes,
+            m_healthConfig);
+    }
+
+    /**
+     * Creates a copy of these settings with a different TCP_NODELAY.
+     *
+     * @param tcpNoDelay Whether to turn Nagle's algorithm off.
+     * @return The new settings.
+     */
+    public TurnTransportConfig withTcpNoDelay(final boolean tcpNoDelay) {
+        return new TurnTransportConfig(m_executionMode, tcpNoDelay,
+            m_keepAlive, m_reuseAddress, m_sendBufferSize, m_receiveBufferSize,
+            m_chunkSize, m_queueHighWatermark, m_maxQueuedBytes,
+            m_healthConfig);
+    }
+
+    /**
+     * Creates a copy of these settings with a different SO_KEEPALIVE.
+     *
+     * @param keepAlive Whether to send TCP keep-alives.
+     * @return The new settings.
+     */
+    public TurnTransportConfig withKeepAlive(final boolean keepAlive) {
+        return new TurnTransportConfig(m_executionMode, m_tcpNoDelay,
+            keepAlive, m_reuseAddress, m_sendBufferSize, m_receiveBufferSize,
+            m_chunkSize, m_queueHighWatermark, m_maxQueuedBytes,
+            m_healthConfig);
+    }
+
+    /**
+     * Creates a copy of these settings with a different SO_REUSEADDR.
+     *
+     * @param reuseAddress Whether to reuse local addresses.
+     * @return The new settings.
+     */
+    public TurnTransportConfig withReuseAddress(final boolean reuseAddress) {
+        return new TurnTransportConfig(m_executionMode, m_tcpNoDelay,
+            m_keepAlive, reuseAddress, m_sendBufferSize, m_receiveBufferSize,
+            m_chunkSize, m_queueHighWatermark, m_maxQueuedBytes,
+            m_healthConfig);
+    }
+
+    /**
+     * Creates a copy of these settings with different socket buffer sizes.
+     *
+     * @param sendBufferSize The send buffer size in bytes, or 0 for the
+     * operating system default.
+     * @param receiveBufferSize The receive buffer size in bytes, or 0 for
+     * the operating system default.
+     * @return The new settings.
+     */
+    public TurnTransportConfig withBufferSizes(final int sendBufferSize,
+        final int receiveBufferSize) {
+        return new TurnTransportConfig(m_executionMode, m_tcpNoDelay,
+            m_keepAlive, m_reuseAddress, sendBufferSize, receiveBufferSize,
+            m_chunkSize, m_queueHighWatermark, m_maxQueuedBytes,
+            m_healthConfig);
+    }
+
+    /**
+     * Creates a copy of these settings with a different chunk size.
+     *
+     * @param chunkSize The most data to put in a single Send Indication.
+     * This must be at least {@link AdaptiveChunkSizer#DEFAULT_MSS}.
+     * @return The new settings.
+     */
+    public TurnTransportConfig withChunkSize(final int chunkSize) {
+        return new TurnTransportConfig(m_executionMode, m_tcpNoDelay,
+            m_keepAlive, m_reuseAddress, m_sendBufferSize, m_receiveBufferSize,
+            chunkSize, m_queueHighWatermark, m_maxQueuedBytes,
+            m_healthConfig);
+    }
+
+    /**
+     * Creates a copy of these settings with different queue limits.
+     *
+     * @param queueHighWatermark The number of queued bytes above which we
+     * stop sending maximal chunks of local data.
+     * @param maxQueuedBytes The number of bytes file transfers allow to
+     * queue.
+     * @return The new settings.
+     */
+    public TurnTransportConfig withQueueLimits(final long queueHighWatermark,
+        final int maxQueuedBytes) {
+        return new TurnTransportConfig(m_executionMode, m_tcpNoDelay,
+            m_keepAlive, m_reuseAddress, m_sendBufferSize, m_receiveBufferSize,
+            m_chunkSize, queueHighWatermark, maxQueuedBytes,
+            m_healthConfig);
+    }
+
+    /**
+     * Creates a copy of these settings with different health settings.
+     *
+     * @param healthConfig How to probe the health of the TURN server.
+     * @return The new settings.
+     */
+    public TurnTransportConfig withHealthConfig(
+        final TurnHealthConfig healthConfig) {
+        return new TurnTransportConfig(m_executionMode, m_tcpNoDelay,
+            m_keepAlive, m_reuseAddress, m_sendBufferSize, m_receiveBufferSize,
+            m_chunkSize, m_queueHighWatermark, m_maxQueuedBytes, healthConfig);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[mode=" + m_executionMode +
+            ",noDelay=" + m_tcpNoDelay + ",keepAlive=" + m_keepAlive +
+            ",reuseAddress=" + m_reuseAddress + ",sndBuf=" + m_sendBufferSize +
+            ",rcvBuf=" + m_receiveBufferSize + ",chunk=" + m_chunkSize +
+            ",highWatermark=" + m_queueHighWatermark +
+            ",maxQueued=" + m_maxQueuedBytes + ",health=" + m_healthConfig +
+            "]";
+    }
+}
@@ -0,0 +1,645 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.littleshoot.dnssec4j.DNSSECException;
+import org.littleshoot.dnssec4j.DnsSec;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.CloseFuture;
+import org.littleshoot.mina.common.ConnectFuture;
+import org.littleshoot.mina.common.ExecutorThreadModel;
+import org.littleshoot.mina.common.IoFilter;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.RuntimeIOException;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.mina.transport.socket.nio.DatagramConnector;
+import org.littleshoot.mina.transport.socket.nio.DatagramConnectorConfig;
+import org.littleshoot.mina.transport.socket.nio.DatagramSessionConfig;
+import org.littleshoot.stun.stack.StunMessageDecoder;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageVisitorAdapter;
+import org.littleshoot.stun.stack.message.attributes.turn.ConnectionStatus;
+import org.littleshoot.stun.stack.message.turn.AllocateRequest;
+import org.littleshoot.stun.stack.message.turn.AllocateSuccessResponse;
+import org.littleshoot.stun.stack.message.turn.ConnectRequest;
+import org.littleshoot.stun.stack.message.turn.ConnectionStatusIndication;
+import org.littleshoot.stun.stack.message.turn.DataIndication;
+import org.littleshoot.stun.stack.transaction.StunTransactionListener;
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TURN client that talks to the TURN server over UDP rather than TCP.  This
+ * avoids head of line blocking between remote hosts sharing the allocation,
+ * at the cost of handling loss ourselves: Allocate Requests are
+ * retransmitted using the STUN RTO rules, and we refresh the allocation
+ * periodically since there's no connection to tell us when it goes away.
+ * If a refresh fails, we treat the allocation as lost just as
+ * {@link TcpTurnClient} treats a closed connection.  Connect Requests are
+ * retransmitted the same way until the server sends a Connection Status
+ * Indication for the remote host.<p>
+ *
+ * Data relayed through this client is not retransmitted, so callers
+ * sending data that must arrive intact need their own reliability layer.
+ * A {@link TurnDatagramFilter} splits each Send Indication into several of
+ * at most {@link TurnDatagramFilter#MAX_DATA_LENGTH} bytes, so every
+ * datagram fits the path MTU.
+ * For the same reason we don't support
+ * {@link #sendFile(InetSocketAddress, File, long, long)}, since we'd have
+ * no way to tell the caller which parts of the file never arrived.
+ */
+public class UdpTurnClient extends StunMessageVisitorAdapter<StunMessage>
+    implements TurnClient, IoServiceListener {
+
+    /**
+     * How often we refresh the allocation, in seconds.
+     */
+    private static final long REFRESH_SECONDS = 30;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private InetSocketAddress m_stunServerAddress;
+
+    private volatile IoSession m_ioSession;
+    private volatile InetSocketAddress m_relayAddress;
+    private volatile InetSocketAddress m_mappedAddress;
+    private final TurnClientListener m_turnClientListener;
+    private final ProtocolCodecFactory m_dataCodecFactory;
+    private final AtomicBoolean m_connected = new AtomicBoolean(false);
+    private final DatagramConnector m_connector = new DatagramConnector();
+    private final CandidateProvider<InetSocketAddress> m_candidateProvider;
+    private final StunRetransmitter m_retransmitter;
+    private final TurnBindingTransactions m_bindingTransactions;
+    private final ConcurrentMap<InetSocketAddress, ConnectRequest>
+        m_pendingConnects =
+            new ConcurrentHashMap<InetSocketAddress, ConnectRequest>();
+    private final LatencyHistogram m_callbackLatencies = new LatencyHistogram();
+    private final LatencyHistogram m_dispatchLatencies = new LatencyHistogram();
+    private final TurnTransportConfig m_transportConfig;
+    private Executor m_sessionEventExecutor;
+    private volatile ScheduledFuture<?> m_refreshFuture;
+
+    /**
+     * Creates a new UDP TURN client.
+     *
+     * @param clientListener The listener for TURN client events.
+     * @param candidateProvider The class that provides TURN candidate
+     * servers.
+     * @param codecFactory The codec factory.
+     */
+    public UdpTurnClient(final TurnClientListener clientListener,
+        final CandidateProvider<InetSocketAddress> candidateProvider,
+        final ProtocolCodecFactory codecFactory) {
+        this(clientListener, candidateProvider, codecFactory,
+            TurnTransportConfig.fromConfig());
+    }
+
+    /**
+     * Creates a new UDP TURN client with its own transport settings.  We
+     * use the thread model, address reuse and socket buffer sizes.  The
+     * other settings only apply to TCP.
+     *
+     * @param clientListener The listener for TURN client events.
+     * @param candidateProvider The class that provides TURN candidate
+     * servers.
+     * @param codecFactory The codec factory.
+     * @param transportConfig The transport settings.
+     */
+    public UdpTurnClient(final TurnClientListener clientListener,
+        final CandidateProvider<InetSocketAddress> candidateProvider,
+        final ProtocolCodecFactory codecFactory,
+        final TurnTransportConfig transportConfig) {
+        this(clientListener, candidateProvider, codecFactory, transportConfig,
+            new StunRetransmitter());
+    }
+
+    /**
+     * Creates a new UDP TURN client with a specific retransmitter.
+     *
+     * @param clientListener The listener for TURN client events.
+     * @param candidateProvider The class that provides TURN candidate
+     * servers.
+     * @param codecFactory The codec factory.
+     * @param retransmitter The class that retransmits our requests.
+     */
+    public UdpTurnClient(final TurnClientListener clientListener,
+        final CandidateProvider<InetSocketAddress> candidateProvider,
+        final ProtocolCodecFactory codecFactory,
+        final StunRetransmitter retransmitter) {
+        this(clientListener, candidateProvider, codecFactory,
+            TurnTransportConfig.fromConfig(), retransmitter);
+    }
+
+    /**
+     * Creates a new UDP TURN client with its own transport settings and a
+     * specific retransmitter.
+     *
+     * @param clientListener The listener for TURN client events.
+     * @param candidateProvider The class that provides TURN candidate
+     * servers.
+     * @param codecFactory The codec factory.
+     * @param transportConfig The transport settings.
+     * @param retransmitter The class that retransmits our requests.
+     */
+    public UdpTurnClient(final TurnClientListener clientListener,
+        final CandidateProvider<InetSocketAddress> candidateProvider,
+        final ProtocolCodecFactory codecFactory,
+        final TurnTransportConfig transportConfig,
+        final StunRetransmitter retransmitter) {
+        if (transportConfig == null) {
+            throw new NullPointerException("Null transport config");
+        }
+        m_transportConfig = transportConfig;
+        m_turnClientListener = new TimedTurnClientListener(clientListener,
+            m_callbackLatencies,
+            TurnClientConfig.getSlowCallbackThresholdMillis());
+        m_candidateProvider = candidateProvider;
+        m_dataCodecFactory = codecFactory;
+        m_retransmitter = retransmitter;
+        m_bindingTransactions = new TurnBindingTransactions(retransmitter);
+    }
+
+    public void connect() throws IOException {
+        if (m_connected.get()) {
+            throw new IllegalArgumentException("Already connected...");
+        }
+        final Collection<InetSocketAddress> candidates =
+            m_candidateProvider.getCandidates();
+
+        m_log.info("Attempting allocations on: {}", candidates);
+
+        for (final InetSocketAddress serverAddress : candidates) {
+            connect(serverAddress);
+            synchronized (m_connected) {
+                // The allocate transaction itself gives up after about 40
+                // seconds and wakes us up, so this is only a backstop.
+                if (!m_connected.get()) {
+                    try {
+                        m_connected.wait(60 * 1000);
+                    } catch (final InterruptedException e) {
+                        m_log.error("Interrupted while waiting", e);
+                    }
+                }
+            }
+
+            if (isConnected()) {
+                m_log.debug("Allocated on: {}", serverAddress);
+                break;
+            }
+            closeSession();
+        }
+        if (!isConnected()) {
+            m_log.error("Could not get allocate response");
+            close();
+            throw new IOException("Could not allocate on any of: " +
+                candidates);
+        }
+    }
+
+    private void connect(final InetSocketAddress unverifiedStunServerAddress)
+        throws IOException {
+        final InetSocketAddress stunServerAddress;
+        if (TurnClientConfig.isUseDnsSec()) {
+            try {
+                stunServerAddress = DnsSec.verify(unverifiedStunServerAddress);
+            } catch (final DNSSECException e) {
+                throw new IOException("DNSSEC verification error", e);
+            }
+        } else {
+            stunServerAddress = unverifiedStunServerAddress;
+        }
+
+        if (!m_connector.getFilterChain().contains("stunFilter")) {
+            m_connector.getFilterChain().addLast("stunFilter", newTurnFilter());
+
+            // This is really only used for the encoding.
+            m_connector.getFilterChain().addLast("dataFilter",
+                new ProtocolCodecFilter(m_dataCodecFactory));
+
+            // Writes pass through this before the codec, so it splits
+            // Send Indications before they're encoded into datagrams.
+            m_connector.getFilterChain().addLast("datagramFilter",
+                new TurnDatagramFilter());
+            m_connector.addListener(this);
+        }
+
+        m_stunServerAddress = stunServerAddress;
+        final DatagramConnectorConfig config = new DatagramConnectorConfig();
+        final DatagramSessionConfig sessionConfig = config.getSessionConfig();
+        sessionConfig.setReuseAddress(m_transportConfig.isReuseAddress());
+        if (m_transportConfig.getSendBufferSize() > 0) {
+            sessionConfig.setSendBufferSize(
+                m_transportConfig.getSendBufferSize());
+        }
+        if (m_transportConfig.getReceiveBufferSize() > 0) {
+            sessionConfig.setReceiveBufferSize(
+                m_transportConfig.getReceiveBufferSize());
+        }
+        config.setThreadModel(newThreadModel());
+
+        m_log.info("Connecting to TURN server over UDP: {}", stunServerAddress);
+
+        final IoHandler ioHandler = new TurnClientIoHandler(this);
+        final ConnectFuture connectFuture =
+            m_connector.connect(stunServerAddress, ioHandler, config);
+        connectFuture.join();
+        final IoSession session;
+        try {
+            session = connectFuture.getSession();
+        } catch (final RuntimeIOException e) {
+            throw new IOException("Could not open UDP socket to: " +
+                stunServerAddress, e);
+        }
+        final TurnStunMessageMapper mapper = new TurnStunMessageMapperImpl();
+        session.setAttribute("REMOTE_ADDRESS_MAP", mapper);
+        m_ioSession = session;
+        allocate(session);
+    }
+
+    private IoFilter newTurnFilter() {
+        return new IoFilterAdapter() {
+            private StunMessageDecoder m_decoder = new StunMessageDecoder();
+
+            @Override
+            public void messageReceived(final NextFilter nextFilter,
+                final IoSession session, final Object message)
+                throws Exception {
+                final ByteBuffer in = (ByteBuffer) message;
+                final ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+                    public void flush() {
+                    }
+
+                    public void write(final Object msg) {
+                        final StunMessage stunMessage = (StunMessage) msg;
+                        if (!m_retransmitter.onResponse(stunMessage)) {
+                            stunMessage.accept(UdpTurnClient.this);
+                        }
+                    }
+                };
+
+                // Each datagram holds exactly one message, so we start over
+                // with a fresh decoder whenever one leaves the decoder
+                // part way through a message rather than letting it corrupt
+                // the next datagram.
+                try {
+                    m_decoder.decode(session, in, out);
+                } catch (final Exception e) {
+                    m_log.debug("Could not decode datagram", e);
+                    m_decoder = new StunMessageDecoder();
+                    return;
+                }
+                if (in.hasRemaining()) {
+                    m_log.debug("Discarding {} trailing bytes", in.remaining());
+                    m_decoder = new StunMessageDecoder();
+                }
+            }
+        };
+    }
+
+    private ThreadModel newThreadModel() {
+        final TurnExecutionMode executionMode =
+            m_transportConfig.getExecutionMode();
+        if (executionMode == TurnExecutionMode.INLINE) {
+            // Decode and dispatch directly on the IO processor thread.
+            return ThreadModel.MANUAL;
+        }
+        final ExecutorThreadModel threadModel =
+            ExecutorThreadModel.getInstance("UDP-TURN-Client-" + hashCode());
+        if (executionMode == TurnExecutionMode.VIRTUAL_THREADS) {
+            if (m_sessionEventExecutor == null) {
+                m_sessionEventExecutor = new TimedExecutor(
+                    VirtualThreads.newExecutor("UDP-TURN-Client-Session-" +
+                        hashCode()), m_dispatchLatencies);
+            }
+            threadModel.setExecutor(m_sessionEventExecutor);
+        } else if (!(threadModel.getExecutor() instanceof TimedExecutor)) {
+            threadModel.setExecutor(new TimedExecutor(
+                threadModel.getExecutor(), m_dispatchLatencies));
+        }
+        return threadModel;
+    }
+
+    private void allocate(final IoSession session) {
+        m_log.debug("Sending allocate request...");
+        m_retransmitter.start(new AllocateRequest(),
+            new StunRetransmitter.Transmitter() {
+                public void transmit(final StunMessage request) {
+                    session.write(request);
+                }
+            }, new AllocateTransactionListener(session));
+    }
+
+    private void scheduleRefresh(final IoSession session) {
+        if (m_refreshFuture != null) {
+            return;
+        }
+        final Runnable refresh = new Runnable() {
+            public void run() {
+                if (session.isConnected()) {
+                    allocate(session);
+                }
+            }
+        };
+        m_refreshFuture = StunRetransmitter.sharedTimer().scheduleWithFixedDelay(
+            refresh, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void cancelRefresh() {
+        final ScheduledFuture<?> refreshFuture = m_refreshFuture;
+        if (refreshFuture != null) {
+            refreshFuture.cancel(false);
+            m_refreshFuture = null;
+        }
+    }
+
+    /**
+     * Accessor for how long {@link TurnClientListener} callbacks take.
+     *
+     * @return The histogram of callback latencies.
+     */
+    public LatencyHistogram getCallbackLatencies() {
+        return m_callbackLatencies;
+    }
+
+    /**
+     * Accessor for how long events wait between being read on the IO
+     * processor thread and being picked up by the thread that processes
+     * them.  This is always empty in {@link TurnExecutionMode#INLINE} mode.
+     *
+     * @return The histogram of dispatch latencies.
+     */
+    public LatencyHistogram getDispatchLatencies() {
+        return m_dispatchLatencies;
+    }
+
+    /**
+     * Accessor for this client's transport settings.
+     *
+     * @return The transport settings.
+     */
+    public TurnTransportConfig getTransportConfig() {
+        return m_transportConfig;
+    }
+
+    public void close() {
+        m_log.debug("Closing UDP TURN client.");
+        closeSession();
+    }
+
+    private void closeSession() {
+        cancelRefresh();
+        final IoSession session = m_ioSession;
+        if (session != null) {
+            final CloseFuture closeFuture = session.close();
+            closeFuture.join();
+        }
+    }
+
+    public void sendConnectRequest(final InetSocketAddress remoteAddress) {
+        final IoSession session = m_ioSession;
+        if (session == null) {
+            throw new IllegalStateException("Not connected to TURN server");
+        }
+        final ConnectRequest request = new ConnectRequest(remoteAddress);
+        if (m_pendingConnects.putIfAbsent(remoteAddress, request) != null) {
+            m_log.debug("Already connecting to: {}", remoteAddress);
+            return;
+        }
+        m_retransmitter.start(request, new StunRetransmitter.Transmitter() {
+            public void transmit(final StunMessage message) {
+                session.write(message);
+            }
+        }, new StunTransactionListener<Object>() {
+            public Object onTransactionSucceeded(final StunMessage message,
+                final StunMessage response) {
+                m_pendingConnects.remove(remoteAddress, request);
+                return null;
+            }
+
+            public Object onTransactionFailed(final StunMessage message,
+                final StunMessage response) {
+                m_log.warn("No answer to Connect Request for: {}",
+                    remoteAddress);
+                m_pendingConnects.remove(remoteAddress, request);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Not supported over UDP, since Send Indications that get lost are
+     * never resent and we'd have no way to tell the caller which parts of
+     * the file never arrived.  Use a {@link TcpTurnClient} instead.
+     *
+     * @throws UnsupportedOperationException Always.
+     */
+    public long sendFile(final InetSocketAddress remoteAddress,
+        final File file, final long offset, final long length) {
+        throw new UnsupportedOperationException(
+            "Sending files needs a reliable transport to the TURN server");
+    }
+
+    public InetSocketAddress getRelayAddress() {
+        return m_relayAddress;
+    }
+
+    public InetSocketAddress getMappedAddress() {
+        return m_mappedAddress;
+    }
+
+    @Override
+    public StunMessage visitAllocateSuccessResponse(
+        final AllocateSuccessResponse response) {
+        m_log.debug("Got successful allocate response: {}", response);
+        // We need to set the relay address before notifying the
+        // listener we're "connected".
+        m_relayAddress = response.getRelayAddress();
+        m_mappedAddress = response.getMappedAddress();
+        m_connected.set(true);
+        synchronized (m_connected) {
+            m_connected.notifyAll();
+        }
+        return null;
+    }
+
+    @Override
+    public StunMessage visitConnectionStatusIndication(
+        final ConnectionStatusIndication indication) {
+        m_log.debug("Visiting connection status message: {}", indication);
+        final ConnectionStatus status = indication.getConnectionStatus();
+        final InetSocketAddress remoteAddress = indication.getRemoteAddress();
+        final ConnectRequest request = m_pendingConnects.get(remoteAddress);
+        if (request != null) {
+            // Any status means the server got the request.
+            m_retransmitter.onResponse(request.getTransactionId(), indication);
+        }
+        switch (status) {
+        case CLOSED:
+            m_turnClientListener.onRemoteAddressClosed(remoteAddress);
+            break;
+        case ESTABLISHED:
+            m_turnClientListener.onRemoteAddressOpened(remoteAddress,
+                m_ioSession);
+            break;
+        case LISTEN:
+            m_log.debug("Got server listening for incoming data from: " +
+                remoteAddress);
+            break;
+        }
+        return null;
+    }
+
+    @Override
+    public StunMessage visitDataIndication(final DataIndication data) {
+        m_log.debug("Visiting Data Indication message: {}", data);
+        if (m_bindingTransactions.onData(data.getData())) {
+            return null;
+        }
+        try {
+            m_turnClientListener.onData(data.getRemoteAddress(), m_ioSession,
+                data.getData());
+        } catch (final Exception e) {
+            m_log.error("Could not process data: {}", data, e);
+        }
+        return null;
+    }
+
+    public void serviceActivated(final IoService service,
+        final SocketAddress serviceAddress, final IoHandler handler,
+        final IoServiceConfig config) {
+        m_log.debug("Service activated...");
+    }
+
+    public void serviceDeactivated(final IoService service,
+        final SocketAddress serviceAddress, final IoHandler handler,
+        final IoServiceConfig config) {
+        m_log.debug("Service deactivated...");
+    }
+
+    public void sessionCreated(final IoSession session) {
+        m_log.debug("Session created...");
+    }
+
+    public void sessionDestroyed(final IoSession session) {
+        m_log.debug("Session destroyed...");
+        if (session != m_ioSession) {
+            return;
+        }
+        cancelRefresh();
+        m_connected.set(false);
+        m_retransmitter.cancelAll();
+        m_turnClientListener.close();
+    }
+
+    public InetAddress getStunServerAddress() {
+        return m_stunServerAddress.getAddress();
+    }
+
+    public InetSocketAddress getHostAddress() {
+        return (InetSocketAddress) m_ioSession.getLocalAddress();
+    }
+
+    public InetSocketAddress getServerReflexiveAddress() {
+        return getMappedAddress();
+    }
+
+    public StunMessage write(final BindingRequest request,
+        final InetSocketAddress remoteAddress) {
+        return write(request, remoteAddress, StunRetransmitter.DEFAULT_RTO);
+    }
+
+    public StunMessage write(final BindingRequest request,
+        final InetSocketAddress remoteAddress, final long rto) {
+        return m_bindingTransactions.write(m_ioSession, request,
+            remoteAddress, rto);
+    }
+
+    /**
+     * Sends a Binding Request to a remote host through the TURN server
+     * without blocking.
+     *
+     * @param request The request.
+     * @param remoteAddress The remote host to send the request to.
+     * @param rto The initial retransmission timeout in milliseconds.
+     * @param listener The listener to notify when the transaction
+     * completes.
+     */
+    public void write(final BindingRequest request,
+        final InetSocketAddress remoteAddress, final long rto,
+        final StunTransactionListener<?> listener) {
+        m_bindingTransactions.write(m_ioSession, request, remoteAddress, rto,
+            listener);
+    }
+
+    public boolean isConnected() {
+        return m_connected.get();
+    }
+
+    public boolean hostPortMapped() {
+        // We don't map ports for clients (only for classes that also accept
+        // incoming connections).
+        return false;
+    }
+
+    public void addIoServiceListener(final IoServiceListener serviceListener) {
+        if (serviceListener == null) {
+            throw new NullPointerException("Null listener");
+        }
+        m_connector.addListener(serviceListener);
+    }
+
+    private final class AllocateTransactionListener
+        implements StunTransactionListener<StunMessage> {
+
+        private final IoSession m_session;
+
+        private AllocateTransactionListener(final IoSession session) {
+            m_session = session;
+        }
+
+        public StunMessage onTransactionSucceeded(final StunMessage request,
+            final StunMessage response) {
+            response.accept(UdpTurnClient.this);
+            if (isConnected()) {
+                scheduleRefresh(m_session);
+            }
+            return null;
+        }
+
+        public StunMessage onTransactionFailed(final StunMessage request,
+            final StunMessage response) {
+            m_log.warn("Allocate transaction failed with: {}", response);
+            if (isConnected()) {
+                // We've lost the allocation, so shut down just as we would
+                // if a TCP connection to the server closed.
+                m_session.close();
+            } else {
+                synchronized (m_connected) {
+                    m_connected.notifyAll();
+                }
+            }
+            return null;
+        }
+    }
+}
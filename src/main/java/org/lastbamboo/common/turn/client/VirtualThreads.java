@@ -0,0 +1,71 @@
+package org.lastbamboo.common.turn.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Utility class for creating executors backed by virtual threads.  We look
+ * up virtual threads reflectively so this library still runs on JVMs that
+ * predate them, in which case we fall back to cached daemon thread pools.
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private VirtualThreads() {}
+
+    /**
+     * Returns whether or not the running JVM supports virtual threads.
+     *
+     * @return <code>true</code> if virtual threads are available, otherwise
+     * <code>false</code>.
+     */
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a new executor that runs each task on its own virtual thread,
+     * or on a cached pool of daemon threads if virtual threads are not
+     * supported.
+     *
+     * @param name The prefix for the names of threads the executor creates.
+     * @return The new executor.
+     */
+    public static ExecutorService newExecutor(final String name) {
+        if (isSupported()) {
+            try {
+                return newVirtualThreadExecutor(name);
+            } catch (final Exception e) {
+                LOG.warn("Could not create virtual thread executor", e);
+            }
+        }
+        LOG.debug("Using cached thread pool for: {}", name);
+        return Executors.newCachedThreadPool(new DaemonThreadFactory(name));
+    }
+
+    private static ExecutorService newVirtualThreadExecutor(final String name)
+        throws Exception {
+        final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        final Method nameMethod =
+            builderClass.getMethod("name", String.class, Long.TYPE);
+        nameMethod.invoke(builder, name + "-", Long.valueOf(0L));
+        final ThreadFactory factory =
+            (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        final Method newExecutor = Executors.class.getMethod(
+            "newThreadPerTaskExecutor", ThreadFactory.class);
+        return (ExecutorService) newExecutor.invoke(null, factory);
+    }
+}
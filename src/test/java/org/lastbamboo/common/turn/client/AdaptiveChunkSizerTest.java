@@ -0,0 +1,50 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test for the class that picks Send Indication chunk sizes.
+ */
+public class AdaptiveChunkSizerTest {
+
+    private static final int MSS = AdaptiveChunkSizer.DEFAULT_MSS;
+
+    @Test
+    public void testInteractiveAndBulkSizes() throws Exception {
+        final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(
+            TurnLocalIoHandler.LENGTH_LIMIT, 256 * 1024);
+
+        // A new or slow peer gets small, segment aligned chunks.
+        final int interactive = sizer.getChunkSize(0);
+        assertAligned(interactive);
+        assertTrue(interactive < 8 * MSS);
+        sizer.onData(100);
+        Thread.sleep(50);
+        sizer.onData(100);
+        assertEquals(interactive, sizer.getChunkSize(0));
+
+        // A peer streaming data quickly gets the largest chunks we allow.
+        for (int i = 0; i < 20; i++) {
+            sizer.onData(64 * 1024);
+        }
+        final int bulk = sizer.getChunkSize(0);
+        assertAligned(bulk);
+        assertTrue(bulk <= TurnLocalIoHandler.LENGTH_LIMIT);
+        assertTrue(bulk > TurnLocalIoHandler.LENGTH_LIMIT - MSS);
+        assertTrue(bulk + AdaptiveChunkSizer.SEND_INDICATION_OVERHEAD < 0xffff);
+
+        // Unless the TURN session is backed up.
+        final int congested = sizer.getChunkSize(1024 * 1024);
+        assertAligned(congested);
+        assertTrue(congested < bulk);
+        assertTrue(congested >= interactive);
+    }
+
+    private void assertAligned(final int chunkSize) {
+        assertEquals(0,
+            (chunkSize + AdaptiveChunkSizer.SEND_INDICATION_OVERHEAD) % MSS);
+    }
+}
@@ -0,0 +1,91 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Test for the listener that opens and closes remote hosts asynchronously.
+ */
+public class AsyncLifecycleTurnClientListenerTest {
+
+    @Test
+    public void testSlowOpenDoesNotBlockOtherPeers() throws Exception {
+        final InetSocketAddress slow = new InetSocketAddress("127.0.0.1", 5000);
+        final InetSocketAddress fast = new InetSocketAddress("127.0.0.1", 5001);
+        final CountDownLatch openStarted = new CountDownLatch(1);
+        final CountDownLatch releaseOpen = new CountDownLatch(1);
+        final CountDownLatch slowClosed = new CountDownLatch(1);
+        final List<String> events = new CopyOnWriteArrayList<String>();
+        final TurnClientListener delegate = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+                events.add(remoteAddress.getPort() + ":data" + data[0]);
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+                events.add(remoteAddress.getPort() + ":closed");
+                if (remoteAddress.equals(slow)) {
+                    slowClosed.countDown();
+                }
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession session) {
+                if (remoteAddress.equals(slow)) {
+                    openStarted.countDown();
+                    try {
+                        releaseOpen.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                events.add(remoteAddress.getPort() + ":opened");
+                return null;
+            }
+        };
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final AsyncLifecycleTurnClientListener listener =
+                new AsyncLifecycleTurnClientListener(delegate, executor);
+
+            listener.onRemoteAddressOpened(fast, null);
+            // Wait for the fast open so its data goes straight through.
+            while (!events.contains("5001:opened")) {
+                Thread.sleep(10);
+            }
+
+            listener.onRemoteAddressOpened(slow, null);
+            assertTrue(openStarted.await(5, TimeUnit.SECONDS));
+            listener.onData(slow, null, new byte[] {1});
+            listener.onData(slow, null, new byte[] {2});
+            listener.onRemoteAddressClosed(slow);
+
+            // Data for the fast peer is delivered on this thread even though
+            // the slow peer is still opening.
+            listener.onData(fast, null, new byte[] {3});
+            assertEquals(Arrays.asList("5001:opened", "5001:data3"), events);
+
+            releaseOpen.countDown();
+            assertTrue(slowClosed.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("5001:opened", "5001:data3",
+                "5000:opened", "5000:data1", "5000:data2", "5000:closed"),
+                events);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+/**
+ * Test for the listener that exposes each remote host as a channel.
+ */
+public class ChannelTurnClientListenerTest {
+
+    private final InetSocketAddress m_remote1 =
+        new InetSocketAddress("47.2.97.34", 2794);
+
+    private final InetSocketAddress m_remote2 =
+        new InetSocketAddress("47.2.97.34", 2795);
+
+    private final Map<InetSocketAddress, TurnPeerChannel> m_opened =
+        new ConcurrentHashMap<InetSocketAddress, TurnPeerChannel>();
+
+    private final TurnPeerChannelListener m_channelListener =
+        new TurnPeerChannelListener() {
+            public void onChannelOpened(final TurnPeerChannel channel) {
+                m_opened.put(channel.getRemoteAddress(), channel);
+            }
+        };
+
+    @Test
+    public void testSlowChannelDoesNotStallOthers() throws Exception {
+        final RecordingIoSession session = new RecordingIoSession();
+        final ChannelTurnClientListener listener =
+            new ChannelTurnClientListener(m_channelListener, 8, 1024, 1024);
+
+        listener.onData(m_remote1, session, new byte[8]);
+        listener.onData(m_remote2, session, new byte[2]);
+        assertFalse("One full channel suspended the session",
+            session.isReadSuspended());
+
+        // Once every channel is full, we suspend until one drains.
+        listener.onData(m_remote2, session, new byte[6]);
+        assertTrue(session.isReadSuspended());
+        m_opened.get(m_remote2).read(ByteBuffer.allocate(4));
+        assertFalse(session.isReadSuspended());
+    }
+
+    @Test
+    public void testSessionLimit() throws Exception {
+        final RecordingIoSession session = new RecordingIoSession();
+        final ChannelTurnClientListener listener =
+            new ChannelTurnClientListener(m_channelListener, 8, 1024, 10);
+
+        listener.onData(m_remote1, session, new byte[6]);
+        listener.onData(m_remote2, session, new byte[4]);
+        assertTrue("Session limit didn't suspend reads",
+            session.isReadSuspended());
+
+        // Reads stay suspended until the channels drain to half the limit.
+        m_opened.get(m_remote1).read(ByteBuffer.allocate(4));
+        assertTrue(session.isReadSuspended());
+        m_opened.get(m_remote1).read(ByteBuffer.allocate(1));
+        assertFalse(session.isReadSuspended());
+
+        // Closing a channel frees what it held.
+        listener.onData(m_remote1, session, new byte[5]);
+        assertTrue(session.isReadSuspended());
+        m_opened.get(m_remote1).close();
+        assertFalse(session.isReadSuspended());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        final RecordingIoSession session = new RecordingIoSession();
+        final ChannelTurnClientListener listener =
+            new ChannelTurnClientListener(m_channelListener);
+
+        listener.onRemoteAddressOpened(m_remote1, session);
+        final TurnPeerChannel first = m_opened.get(m_remote1);
+        first.close();
+        assertTrue(session.getWritten().isEmpty());
+
+        // The server still relays for the remote host, but we drop its data
+        // rather than opening a channel the application didn't ask for.
+        listener.onData(m_remote1, session, new byte[] {6});
+        assertSame(first, m_opened.get(m_remote1));
+
+        // Once it connects again, it gets a new channel.
+        listener.onRemoteAddressOpened(m_remote1, session);
+        listener.onData(m_remote1, session, new byte[] {7});
+        final TurnPeerChannel second = m_opened.get(m_remote1);
+        assertNotSame(first, second);
+        final ByteBuffer dst = ByteBuffer.allocate(1);
+        assertEquals(1, second.read(dst));
+        assertEquals(7, dst.get(0));
+
+        // Closing the old channel again leaves the new one alone.
+        first.close();
+        listener.onRemoteAddressClosed(m_remote1);
+        dst.clear();
+        assertEquals(-1, second.read(dst));
+    }
+}
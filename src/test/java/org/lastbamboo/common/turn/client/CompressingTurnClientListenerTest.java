@@ -0,0 +1,76 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Test for the listener that decompresses data from remote hosts.
+ */
+public class CompressingTurnClientListenerTest {
+
+    @Test
+    public void testSplitAndCoalescedChunks() throws Exception {
+        final InetSocketAddress remote =
+            new InetSocketAddress("10.0.0.1", 5000);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final CompressingTurnClientListener listener =
+            new CompressingTurnClientListener(new TurnClientListener() {
+                public void close() {
+                }
+                public void onData(final InetSocketAddress remoteAddress,
+                    final IoSession session, final byte[] data) {
+                    received.write(data, 0, data.length);
+                }
+                public void onRemoteAddressClosed(
+                    final InetSocketAddress remoteAddress) {
+                }
+                public IoSession onRemoteAddressOpened(
+                    final InetSocketAddress remoteAddress,
+                    final IoSession session) {
+                    return null;
+                }
+            });
+
+        // Mix chunks that deflate with tiny ones that go out raw.
+        final TurnCompressor sender = new TurnCompressor();
+        final ByteArrayOutputStream original = new ByteArrayOutputStream();
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n");
+        }
+        final byte[] text = sb.toString().getBytes("US-ASCII");
+        for (int i = 0; i < 20; i++) {
+            final byte[] data = i % 2 == 0 ? text : new byte[] {(byte) i};
+            original.write(data, 0, data.length);
+            final byte[] chunk = sender.compress(data);
+            wire.write(chunk, 0, chunk.length);
+        }
+        final byte[] sent = wire.toByteArray();
+
+        // The relay hands us the stream in pieces that split chunks, down
+        // to their lengths, and that hold several chunks at once.
+        for (final int size : new int[] {1, 2, 7, 100, 1000, sent.length}) {
+            received.reset();
+            listener.onRemoteAddressOpened(remote, null);
+            for (int offset = 0; offset < sent.length; offset += size) {
+                listener.onData(remote, null, Arrays.copyOfRange(sent, offset,
+                    Math.min(sent.length, offset + size)));
+            }
+            assertTrue("Bad data for piece size: " + size, Arrays.equals(
+                original.toByteArray(), received.toByteArray()));
+            listener.onRemoteAddressClosed(remote);
+        }
+        assertTrue(listener.getCompressors().isEmpty());
+        assertEquals(0, sender.getBypassedChunks());
+        sender.close();
+        listener.close();
+    }
+}
@@ -0,0 +1,34 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test for the histogram we use to compare dispatch latencies.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getPercentileMicros(50));
+
+        // Record 1 through 10000 microseconds.
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(10000L, histogram.getCount());
+        assertEquals(10000L, histogram.getMaxMicros());
+
+        final long p50 = histogram.getPercentileMicros(50);
+        final long p99 = histogram.getPercentileMicros(99);
+        assertTrue("Bad p50: " + p50, p50 >= 5000 && p50 <= 5000 * 1.04);
+        assertTrue("Bad p99: " + p99, p99 >= 9900 && p99 <= 10000);
+        assertEquals(10000L, histogram.getPercentileMicros(100));
+
+        histogram.reset();
+        assertEquals(0L, histogram.getCount());
+    }
+}
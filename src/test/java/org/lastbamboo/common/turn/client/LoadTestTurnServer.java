@@ -0,0 +1,283 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IoHandlerAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptor;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptorConfig;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.littleshoot.stun.stack.message.attributes.turn.ConnectionStatus;
+import org.littleshoot.stun.stack.message.turn.AllocateRequest;
+import org.littleshoot.stun.stack.message.turn.AllocateSuccessResponse;
+import org.littleshoot.stun.stack.message.turn.ConnectRequest;
+import org.littleshoot.stun.stack.message.turn.ConnectionStatusIndication;
+import org.littleshoot.stun.stack.message.turn.DataIndication;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+import org.littleshoot.util.DaemonThreadFactory;
+
+/**
+ * Local stand-in for a TURN server for load testing.  It answers Allocate
+ * Requests, answers each Connect Request as if the remote host connected
+ * right away, and then streams Data Indications from that remote host at a
+ * fixed rate.  The first eight bytes of each Data Indication are the
+ * {@link System#nanoTime()} it was sent at, so clients in the same JVM can
+ * measure delivery latency.  It keeps the data of the Send Indications it
+ * gets for each remote host so tests can check what arrived.
+ */
+public class LoadTestTurnServer extends IoHandlerAdapter {
+
+    private static final String STREAMS_KEY = "LOAD_TEST_STREAMS";
+
+    private final SocketAcceptor m_acceptor = new SocketAcceptor(
+        Runtime.getRuntime().availableProcessors() + 1,
+        Executors.newCachedThreadPool(
+            new DaemonThreadFactory("Load-Test-TURN-Server")));
+
+    private final ScheduledExecutorService m_timer =
+        Executors.newScheduledThreadPool(2,
+            new DaemonThreadFactory("Load-Test-TURN-Server-Timer"));
+
+    private final AtomicInteger m_nextRelayPort = new AtomicInteger(20000);
+
+    private final AtomicLong m_sentMessages = new AtomicLong();
+
+    private final AtomicLong m_skippedMessages = new AtomicLong();
+
+    private final ConcurrentMap<InetSocketAddress, ByteArrayOutputStream>
+        m_received =
+            new ConcurrentHashMap<InetSocketAddress, ByteArrayOutputStream>();
+
+    private final int m_messageSize;
+
+    private final long m_periodNanos;
+
+    private final long m_maxScheduledWriteBytes;
+
+    private InetSocketAddress m_address;
+
+    private volatile boolean m_ignoringAllocates;
+
+    private volatile boolean m_refusingConnects;
+
+    /**
+     * Creates a new server.
+     *
+     * @param messageSize The size of the data in each Data Indication.
+     * @param messagesPerSecond The number of Data Indications to send per
+     * second for each remote host.
+     */
+    public LoadTestTurnServer(final int messageSize,
+        final int messagesPerSecond) {
+        if (messageSize < 8) {
+            throw new IllegalArgumentException("Messages need room for a "
+                + "timestamp: " + messageSize);
+        }
+        m_messageSize = messageSize;
+        m_periodNanos = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+
+        // Don't let a slow client make us buffer without bound.
+        m_maxScheduledWriteBytes = 64L * 1024;
+    }
+
+    /**
+     * Starts the server on a free loopback port.
+     *
+     * @throws IOException If we can't bind.
+     */
+    public void start() throws IOException {
+        final ServerSocket probe = new ServerSocket(0, 1,
+            InetAddress.getByName("127.0.0.1"));
+        final int port = probe.getLocalPort();
+        probe.close();
+        m_address = new InetSocketAddress("127.0.0.1", port);
+        final SocketAcceptorConfig config = new SocketAcceptorConfig();
+        config.setReuseAddress(true);
+        config.getFilterChain().addLast("codec",
+            new ProtocolCodecFilter(new StunProtocolCodecFactory()));
+        m_acceptor.bind(m_address, this, config);
+    }
+
+    /**
+     * Accessor for the address the server listens on.
+     *
+     * @return The address.
+     */
+    public InetSocketAddress getAddress() {
+        return m_address;
+    }
+
+    /**
+     * Accessor for the number of Data Indications sent.
+     *
+     * @return The number of messages sent.
+     */
+    public long getSentMessages() {
+        return m_sentMessages.get();
+    }
+
+    /**
+     * Accessor for the number of Data Indications we skipped because a
+     * client wasn't keeping up.
+     *
+     * @return The number of skipped messages.
+     */
+    public long getSkippedMessages() {
+        return m_skippedMessages.get();
+    }
+
+    /**
+     * Accessor for the data of all the Send Indications for a remote host,
+     * in the order they arrived.
+     *
+     * @param remote The remote host.
+     * @return The data.
+     */
+    public byte[] getReceivedData(final InetSocketAddress remote) {
+        final ByteArrayOutputStream received = m_received.get(remote);
+        if (received == null) {
+            return new byte[0];
+        }
+        synchronized (received) {
+            return received.toByteArray();
+        }
+    }
+
+    /**
+     * Sets whether or not the server ignores Allocate Requests, including
+     * the refreshes clients use to probe its health.
+     *
+     * @param ignoringAllocates Whether or not to ignore Allocate Requests.
+     */
+    public void setIgnoringAllocates(final boolean ignoringAllocates) {
+        m_ignoringAllocates = ignoringAllocates;
+    }
+
+    /**
+     * Sets whether or not the server answers Connect Requests as if the
+     * remote host refused the connection.
+     *
+     * @param refusingConnects Whether or not to refuse connections.
+     */
+    public void setRefusingConnects(final boolean refusingConnects) {
+        m_refusingConnects = refusingConnects;
+    }
+
+    /**
+     * Stops the server.
+     */
+    public void stop() {
+        m_timer.shutdownNow();
+        m_acceptor.unbindAll();
+    }
+
+    @Override
+    public void messageReceived(final IoSession session, final Object message) {
+        if (message instanceof AllocateRequest) {
+            if (m_ignoringAllocates) {
+                return;
+            }
+            final InetSocketAddress relay = new InetSocketAddress(
+                m_address.getAddress(), m_nextRelayPort.getAndIncrement());
+            session.write(new AllocateSuccessResponse(
+                ((AllocateRequest) message).getTransactionId(), relay,
+                (InetSocketAddress) session.getRemoteAddress()));
+        } else if (message instanceof ConnectRequest) {
+            final InetSocketAddress remote =
+                ((ConnectRequest) message).getRemoteAddress();
+            if (m_refusingConnects) {
+                session.write(new ConnectionStatusIndication(remote,
+                    ConnectionStatus.CLOSED));
+                return;
+            }
+            session.write(new ConnectionStatusIndication(remote,
+                ConnectionStatus.LISTEN));
+            session.write(new ConnectionStatusIndication(remote,
+                ConnectionStatus.ESTABLISHED));
+            stream(session, remote);
+        } else if (message instanceof SendIndication) {
+            final SendIndication indication = (SendIndication) message;
+            final InetSocketAddress remote = indication.getRemoteAddress();
+            ByteArrayOutputStream received = m_received.get(remote);
+            if (received == null) {
+                final ByteArrayOutputStream fresh = new ByteArrayOutputStream();
+                received = m_received.putIfAbsent(remote, fresh);
+                if (received == null) {
+                    received = fresh;
+                }
+            }
+            synchronized (received) {
+                final byte[] data = indication.getData();
+                received.write(data, 0, data.length);
+            }
+        }
+    }
+
+    @Override
+    public void sessionClosed(final IoSession session) {
+        final Map<InetSocketAddress, ScheduledFuture<?>> streams =
+            streams(session);
+        for (final ScheduledFuture<?> stream : streams.values()) {
+            stream.cancel(false);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(final IoSession session, final Throwable cause) {
+        session.close();
+    }
+
+    private void stream(final IoSession session,
+        final InetSocketAddress remote) {
+        final Runnable send = new Runnable() {
+            public void run() {
+                if (!session.isConnected()) {
+                    return;
+                }
+                if (session.getScheduledWriteBytes() > m_maxScheduledWriteBytes) {
+                    m_skippedMessages.incrementAndGet();
+                    return;
+                }
+                final byte[] data = new byte[m_messageSize];
+                final long now = System.nanoTime();
+                for (int i = 0; i < 8; i++) {
+                    data[i] = (byte) (now >>> (56 - i * 8));
+                }
+                session.write(new DataIndication(remote, data));
+                m_sentMessages.incrementAndGet();
+            }
+        };
+        streams(session).put(remote, m_timer.scheduleAtFixedRate(send,
+            m_periodNanos, m_periodNanos, TimeUnit.NANOSECONDS));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<InetSocketAddress, ScheduledFuture<?>> streams(
+        final IoSession session) {
+        synchronized (session) {
+            Map<InetSocketAddress, ScheduledFuture<?>> streams =
+                (Map<InetSocketAddress, ScheduledFuture<?>>)
+                    session.getAttribute(STREAMS_KEY);
+            if (streams == null) {
+                streams =
+                    new ConcurrentHashMap<InetSocketAddress, ScheduledFuture<?>>();
+                session.setAttribute(STREAMS_KEY, streams);
+            }
+            return streams;
+        }
+    }
+}
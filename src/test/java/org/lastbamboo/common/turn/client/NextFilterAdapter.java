@@ -0,0 +1,36 @@
+package org.lastbamboo.common.turn.client;
+
+import org.littleshoot.mina.common.IdleStatus;
+import org.littleshoot.mina.common.IoFilter.NextFilter;
+import org.littleshoot.mina.common.IoFilter.WriteRequest;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Next filter that ignores everything, for driving a single filter
+ * directly.
+ */
+class NextFilterAdapter implements NextFilter {
+    public void sessionCreated(final IoSession session) {
+    }
+    public void sessionOpened(final IoSession session) {
+    }
+    public void sessionClosed(final IoSession session) {
+    }
+    public void sessionIdle(final IoSession session,
+        final IdleStatus status) {
+    }
+    public void exceptionCaught(final IoSession session,
+        final Throwable cause) {
+    }
+    public void messageReceived(final IoSession session,
+        final Object message) {
+    }
+    public void messageSent(final IoSession session,
+        final Object message) {
+    }
+    public void filterWrite(final IoSession session,
+        final WriteRequest writeRequest) {
+    }
+    public void filterClose(final IoSession session) {
+    }
+}
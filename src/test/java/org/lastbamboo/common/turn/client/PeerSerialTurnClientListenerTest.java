@@ -0,0 +1,163 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Test for the listener that runs each remote address's events in order on
+ * an executor.
+ */
+public class PeerSerialTurnClientListenerTest {
+
+    private final InetSocketAddress m_slow =
+        new InetSocketAddress("10.0.0.1", 5000);
+
+    private final InetSocketAddress m_other =
+        new InetSocketAddress("10.0.0.1", 5001);
+
+    private final List<Runnable> m_scheduled = new ArrayList<Runnable>();
+
+    private final Executor m_executor = new Executor() {
+        public void execute(final Runnable command) {
+            m_scheduled.add(command);
+        }
+    };
+
+    private final List<String> m_events = new CopyOnWriteArrayList<String>();
+
+    private final TurnClientListener m_delegate = new TurnClientListener() {
+        public void close() {
+            m_events.add("close");
+        }
+        public void onData(final InetSocketAddress remoteAddress,
+            final IoSession session, final byte[] data) {
+            m_events.add("data " + remoteAddress.getPort() + " " + data[0]);
+        }
+        public void onRemoteAddressClosed(
+            final InetSocketAddress remoteAddress) {
+            m_events.add("closed " + remoteAddress.getPort());
+        }
+        public IoSession onRemoteAddressOpened(
+            final InetSocketAddress remoteAddress, final IoSession session) {
+            m_events.add("opened " + remoteAddress.getPort());
+            return null;
+        }
+    };
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final TurnClientListener listener =
+            new PeerSerialTurnClientListener(m_delegate, m_executor, 4, 6);
+        final RecordingIoSession session = new RecordingIoSession();
+
+        // When every peer is full, we stop reading until one drains.
+        for (int i = 0; i < 4; i++) {
+            listener.onData(m_slow, session, new byte[] {(byte) i});
+        }
+        assertTrue(session.isReadSuspended());
+        runScheduled();
+        assertFalse(session.isReadSuspended());
+        assertEquals(4, m_events.size());
+        assertEquals("data 5000 3", m_events.get(3));
+
+        // We also stop when the peers hold too much between them.
+        for (int i = 0; i < 3; i++) {
+            listener.onData(m_slow, session, new byte[] {(byte) i});
+            listener.onData(m_other, session, new byte[] {(byte) i});
+        }
+        assertTrue(session.isReadSuspended());
+        runScheduled();
+        assertFalse(session.isReadSuspended());
+        assertEquals(10, m_events.size());
+    }
+
+    @Test
+    public void testSlowPeerDropped() throws Exception {
+        final TurnClientListener listener =
+            new PeerSerialTurnClientListener(m_delegate, m_executor, 4);
+        final RecordingIoSession session = new RecordingIoSession();
+        listener.onData(m_other, session, new byte[] {0});
+        for (int i = 0; i < 4; i++) {
+            listener.onData(m_slow, session, new byte[] {(byte) i});
+        }
+
+        // The other peer still has room, so we drop the slow one rather
+        // than stalling both.
+        assertFalse(session.isReadSuspended());
+        listener.onData(m_slow, session, new byte[] {4});
+        listener.onData(m_other, session, new byte[] {1});
+        runScheduled();
+        assertEquals(3, m_events.size());
+        assertEquals("data 5001 0", m_events.get(0));
+        assertEquals("data 5001 1", m_events.get(1));
+        assertEquals("closed 5000", m_events.get(2));
+
+        // The delegate already heard the peer closed.
+        listener.onRemoteAddressClosed(m_slow);
+        runScheduled();
+        assertEquals(3, m_events.size());
+
+        listener.onRemoteAddressOpened(m_slow, session);
+        listener.onData(m_slow, session, new byte[] {5});
+        runScheduled();
+        assertEquals("opened 5000", m_events.get(3));
+        assertEquals("data 5000 5", m_events.get(4));
+    }
+
+    @Test
+    public void testRemoteAddressClosed() throws Exception {
+        final TurnClientListener listener =
+            new PeerSerialTurnClientListener(m_delegate, m_executor);
+
+        // Closing a peer we never heard from doesn't queue anything.
+        listener.onRemoteAddressClosed(m_slow);
+        assertTrue(m_scheduled.isEmpty());
+
+        listener.onRemoteAddressOpened(m_slow, null);
+        listener.onRemoteAddressClosed(m_slow);
+        runScheduled();
+        listener.onRemoteAddressClosed(m_slow);
+        assertTrue(m_scheduled.isEmpty());
+        assertEquals(2, m_events.size());
+        assertEquals("closed 5000", m_events.get(1));
+
+        // The peer can connect again.
+        listener.onRemoteAddressOpened(m_slow, null);
+        runScheduled();
+        assertEquals("opened 5000", m_events.get(2));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        final TurnClientListener listener =
+            new PeerSerialTurnClientListener(m_delegate, m_executor, 2);
+        final RecordingIoSession session = new RecordingIoSession();
+        listener.onData(m_slow, session, new byte[] {0});
+        listener.onData(m_slow, session, new byte[] {1});
+        assertTrue(session.isReadSuspended());
+
+        // Closing drops queued events and anything that arrives later.
+        listener.close();
+        assertFalse(session.isReadSuspended());
+        listener.onData(m_other, session, new byte[] {0});
+        runScheduled();
+        assertEquals(1, m_events.size());
+        assertEquals("close", m_events.get(0));
+    }
+
+    private void runScheduled() {
+        while (!m_scheduled.isEmpty()) {
+            m_scheduled.remove(0).run();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test for the primitive keyed peer table.
+ */
+public class PeerTableTest {
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        final PeerTable<Integer> table = new PeerTable<Integer>();
+        final int peers = 5000;
+        for (int i = 0; i < peers; i++) {
+            assertNull(table.put(ipv4(i), Integer.valueOf(i)));
+            assertNull(table.put(ipv6(i), Integer.valueOf(-i)));
+        }
+        assertEquals(peers * 2, table.size());
+        for (int i = 0; i < peers; i++) {
+            assertEquals(Integer.valueOf(i), table.get(ipv4(i)));
+            assertEquals(Integer.valueOf(-i), table.get(ipv6(i)));
+        }
+
+        // The same IPv4 host on another port is another peer.
+        assertNull(table.get(new InetSocketAddress(
+            ipv4(7).getAddress(), 7 + 1)));
+
+        // Removing and re-adding leaves tombstones that resizing cleans up.
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < peers; i += 2) {
+                assertEquals(Integer.valueOf(i), table.remove(ipv4(i)));
+            }
+            for (int i = 0; i < peers; i += 2) {
+                assertNull(table.get(ipv4(i)));
+                assertNull(table.putIfAbsent(ipv4(i), Integer.valueOf(i)));
+                assertEquals(Integer.valueOf(i),
+                    table.putIfAbsent(ipv4(i), Integer.valueOf(-1)));
+            }
+        }
+        assertEquals(peers * 2, table.size());
+        assertEquals(Integer.valueOf(3), table.get(ipv4(3)));
+
+        // Lookups by the packed form match lookups by address.
+        final InetAddress address = ipv4(3).getAddress();
+        assertEquals(Integer.valueOf(3), table.get(
+            PeerTable.highBits(address), PeerTable.lowBits(address),
+            ipv4(3).getPort()));
+        assertEquals(0xFFFF0A000003L, PeerTable.lowBits(address));
+
+        // Everything still in the table comes back once when it's emptied.
+        final List<Integer> removed = table.removeAll();
+        assertEquals(peers * 2, removed.size());
+        assertTrue(removed.contains(Integer.valueOf(3)));
+        assertTrue(removed.contains(Integer.valueOf(-3)));
+        assertEquals(0, table.size());
+        assertNull(table.get(ipv4(3)));
+
+        table.put(ipv4(3), Integer.valueOf(3));
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(ipv4(3)));
+    }
+
+    private InetSocketAddress ipv4(final int i) throws Exception {
+        final byte[] bytes = new byte[] {10, (byte) (i >>> 16),
+            (byte) (i >>> 8), (byte) i};
+        return new InetSocketAddress(InetAddress.getByAddress(bytes), i % 60000);
+    }
+
+    private InetSocketAddress ipv6(final int i) throws Exception {
+        final byte[] bytes = new byte[16];
+        bytes[0] = 0x20;
+        bytes[1] = 0x01;
+        bytes[14] = (byte) (i >>> 8);
+        bytes[15] = (byte) i;
+        return new InetSocketAddress(InetAddress.getByAddress(bytes), i % 60000);
+    }
+}
@@ -0,0 +1,136 @@
+package org.lastbamboo.common.turn.client;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.IoFilter.WriteRequest;
+import org.littleshoot.mina.common.IoFilterChain;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoSessionConfig;
+import org.littleshoot.mina.common.TransportType;
+import org.littleshoot.mina.common.support.BaseIoSession;
+
+/**
+ * Session that isn't connected to anything.  It records what's written to
+ * it and keeps MINA's own bookkeeping for reads being suspended and the
+ * session closing, so tests can check both.  It also counts calls to
+ * suspend and resume reads.
+ */
+class RecordingIoSession extends BaseIoSession {
+
+    private final Queue<Object> m_written = new ConcurrentLinkedQueue<Object>();
+
+    private final SocketAddress m_address =
+        new InetSocketAddress("127.0.0.1", 3478);
+
+    private final AtomicInteger m_suspends = new AtomicInteger();
+
+    private final AtomicInteger m_resumes = new AtomicInteger();
+
+    /**
+     * Accessor for everything written to the session, oldest first.
+     *
+     * @return The written messages.
+     */
+    Queue<Object> getWritten() {
+        return m_written;
+    }
+
+    /**
+     * Returns whether reads are currently suspended.
+     *
+     * @return <code>true</code> if reads are suspended.
+     */
+    boolean isReadSuspended() {
+        return !getTrafficMask().isReadable();
+    }
+
+    /**
+     * Accessor for the number of times reads were suspended.
+     *
+     * @return The number of calls to {@link #suspendRead()}.
+     */
+    int getSuspendCount() {
+        return m_suspends.get();
+    }
+
+    /**
+     * Accessor for the number of times reads were resumed.
+     *
+     * @return The number of calls to {@link #resumeRead()}.
+     */
+    int getResumeCount() {
+        return m_resumes.get();
+    }
+
+    @Override
+    public void suspendRead() {
+        m_suspends.incrementAndGet();
+        super.suspendRead();
+    }
+
+    @Override
+    public void resumeRead() {
+        m_resumes.incrementAndGet();
+        super.resumeRead();
+    }
+
+    @Override
+    protected void write0(final WriteRequest writeRequest) {
+        m_written.add(writeRequest.getMessage());
+        writeRequest.getFuture().setWritten(true);
+    }
+
+    @Override
+    protected void updateTrafficMask() {
+    }
+
+    public IoService getService() {
+        return null;
+    }
+
+    public IoServiceConfig getServiceConfig() {
+        return null;
+    }
+
+    public IoHandler getHandler() {
+        return null;
+    }
+
+    public IoSessionConfig getConfig() {
+        return TurnPipeSession.CONFIG;
+    }
+
+    public IoFilterChain getFilterChain() {
+        return null;
+    }
+
+    public TransportType getTransportType() {
+        return TransportType.SOCKET;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return m_address;
+    }
+
+    public SocketAddress getLocalAddress() {
+        return m_address;
+    }
+
+    public SocketAddress getServiceAddress() {
+        return m_address;
+    }
+
+    public int getScheduledWriteRequests() {
+        return 0;
+    }
+
+    public int getScheduledWriteBytes() {
+        return 0;
+    }
+}
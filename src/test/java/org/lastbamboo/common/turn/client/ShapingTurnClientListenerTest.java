@@ -0,0 +1,85 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Test for the listener that shapes downloads and forgets remote hosts'
+ * buckets as they close.
+ */
+public class ShapingTurnClientListenerTest {
+
+    private final InetSocketAddress m_peer =
+        new InetSocketAddress("10.0.0.1", 80);
+
+    private final AtomicInteger m_closes = new AtomicInteger();
+
+    private final TurnClientListener m_delegate = new TurnClientListener() {
+        public void close() {
+        }
+        public void onData(final InetSocketAddress remoteAddress,
+            final IoSession session, final byte[] data) {
+        }
+        public void onRemoteAddressClosed(
+            final InetSocketAddress remoteAddress) {
+            m_closes.incrementAndGet();
+        }
+        public IoSession onRemoteAddressOpened(
+            final InetSocketAddress remoteAddress, final IoSession session) {
+            return null;
+        }
+    };
+
+    @Test
+    public void testUploadOnlyForgetsClosedPeers() throws Exception {
+        final TurnBandwidthShaper shaper =
+            new TurnBandwidthShaper(100000, 0, 0, 0);
+        assertTrue(shaper.isPeerShaped());
+        final TurnClientListener listener =
+            new ShapingTurnClientListener(m_delegate, shaper);
+        final RecordingIoSession session = new RecordingIoSession();
+
+        // Data from the peer isn't shaped or timed.
+        listener.onData(m_peer, session, new byte[1000]);
+        assertFalse(session.isReadSuspended());
+        assertEquals(0, shaper.getDownloadDelays().getCount());
+
+        assertEquals(0, shaper.reserveUpload(m_peer, 100000));
+        assertTrue(shaper.reserveUpload(m_peer, 1000) > 0);
+
+        // Once the peer closes, a peer at the same address starts with a
+        // fresh bucket.
+        listener.onRemoteAddressClosed(m_peer);
+        assertEquals(1, m_closes.get());
+        assertEquals(0, shaper.reserveUpload(m_peer, 100000));
+    }
+
+    @Test
+    public void testDownloadLimit() throws Exception {
+        final TurnBandwidthShaper shaper =
+            new TurnBandwidthShaper(0, 1000, 0, 0);
+        final TurnClientListener listener =
+            new ShapingTurnClientListener(m_delegate, shaper);
+        final RecordingIoSession session = new RecordingIoSession();
+
+        listener.onData(m_peer, session, new byte[1000]);
+        assertFalse(session.isReadSuspended());
+        listener.onData(m_peer, session, new byte[100]);
+        assertTrue("Going over the limit didn't suspend reads",
+            session.isReadSuspended());
+        assertEquals(2, shaper.getDownloadDelays().getCount());
+
+        final long end = System.currentTimeMillis() + 2000;
+        while (session.isReadSuspended()) {
+            assertTrue("Reads not resumed", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+}
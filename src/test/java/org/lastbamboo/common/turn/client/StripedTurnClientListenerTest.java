@@ -0,0 +1,201 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Test for the listener that dispatches events across stripes keyed by
+ * remote address.
+ */
+public class StripedTurnClientListenerTest {
+
+    private static final int NUM_REMOTE_ADDRESSES = 50;
+    private static final int MESSAGES_PER_ADDRESS = 200;
+
+    @Test
+    public void testPerAddressOrdering() throws Exception {
+        final Map<InetSocketAddress, List<Integer>> received =
+            new ConcurrentHashMap<InetSocketAddress, List<Integer>>();
+        final CountDownLatch latch = new CountDownLatch(
+            NUM_REMOTE_ADDRESSES * MESSAGES_PER_ADDRESS);
+        final TurnClientListener delegate = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+                List<Integer> list = received.get(remoteAddress);
+                if (list == null) {
+                    list = new CopyOnWriteArrayList<Integer>();
+                    received.put(remoteAddress, list);
+                }
+                list.add(Integer.valueOf(data[0] << 8 | (data[1] & 0xff)));
+                latch.countDown();
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress, final IoSession session) {
+                return null;
+            }
+        };
+
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final TurnClientListener listener =
+            new StripedTurnClientListener(delegate, pool, 4, 8);
+        for (int i = 0; i < MESSAGES_PER_ADDRESS; i++) {
+            for (int j = 0; j < NUM_REMOTE_ADDRESSES; j++) {
+                final byte[] data = new byte[] {(byte) (i >> 8), (byte) i};
+                listener.onData(new InetSocketAddress("47.2.97.34", 2794 + j),
+                    null, data);
+            }
+        }
+
+        assertTrue("Not all messages delivered",
+            latch.await(20, TimeUnit.SECONDS));
+        assertEquals(NUM_REMOTE_ADDRESSES, received.size());
+        for (final List<Integer> list : received.values()) {
+            assertEquals(MESSAGES_PER_ADDRESS, list.size());
+            for (int i = 0; i < MESSAGES_PER_ADDRESS; i++) {
+                assertEquals(i, list.get(i).intValue());
+            }
+        }
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final List<Runnable> scheduled = new ArrayList<Runnable>();
+        final Executor executor = new Executor() {
+            public void execute(final Runnable command) {
+                scheduled.add(command);
+            }
+        };
+        final TurnClientListener delegate = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress, final IoSession session) {
+                return null;
+            }
+        };
+        final TurnClientListener listener =
+            new StripedTurnClientListener(delegate, executor, 2, 4);
+
+        // Find a remote address on each stripe.
+        final InetSocketAddress slow = new InetSocketAddress("10.0.0.1", 5000);
+        listener.onRemoteAddressClosed(slow);
+        InetSocketAddress other = null;
+        for (int port = 5001; other == null; port++) {
+            final InetSocketAddress address =
+                new InetSocketAddress("10.0.0.1", port);
+            listener.onRemoteAddressClosed(address);
+            if (scheduled.size() == 2) {
+                other = address;
+            }
+        }
+        final Runnable slowStripe = scheduled.get(0);
+        final Runnable otherStripe = scheduled.get(1);
+        slowStripe.run();
+        otherStripe.run();
+        scheduled.clear();
+
+        // One full stripe doesn't hold up the other.
+        final RecordingIoSession session = new RecordingIoSession();
+        for (int i = 0; i < 7; i++) {
+            listener.onData(slow, session, new byte[1]);
+        }
+        assertFalse(session.isReadSuspended());
+        listener.onData(other, session, new byte[1]);
+        assertFalse(session.isReadSuspended());
+
+        // It can only queue so much on its own, though.
+        listener.onData(slow, session, new byte[1]);
+        assertTrue(session.isReadSuspended());
+        slowStripe.run();
+        assertFalse(session.isReadSuspended());
+
+        // We also stop reading when every stripe is full.  The other stripe
+        // still holds the event from before.
+        for (int i = 0; i < 4; i++) {
+            listener.onData(slow, session, new byte[1]);
+        }
+        assertFalse(session.isReadSuspended());
+        for (int i = 0; i < 3; i++) {
+            listener.onData(other, session, new byte[1]);
+        }
+        assertTrue(session.isReadSuspended());
+        otherStripe.run();
+        assertFalse(session.isReadSuspended());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        final List<Runnable> scheduled = new ArrayList<Runnable>();
+        final Executor executor = new Executor() {
+            public void execute(final Runnable command) {
+                scheduled.add(command);
+            }
+        };
+        final List<String> events = new CopyOnWriteArrayList<String>();
+        final TurnClientListener delegate = new TurnClientListener() {
+            public void close() {
+                events.add("close");
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+                events.add("data");
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+                events.add("closed");
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress, final IoSession session) {
+                events.add("opened");
+                return null;
+            }
+        };
+        final TurnClientListener listener =
+            new StripedTurnClientListener(delegate, executor, 1, 2);
+        final InetSocketAddress remote =
+            new InetSocketAddress("10.0.0.1", 5000);
+        final RecordingIoSession session = new RecordingIoSession();
+        listener.onData(remote, session, new byte[1]);
+        listener.onData(remote, session, new byte[1]);
+        assertTrue(session.isReadSuspended());
+
+        // Closing drops queued events and anything that arrives later.
+        listener.close();
+        assertFalse(session.isReadSuspended());
+        listener.onData(remote, session, new byte[1]);
+        listener.onRemoteAddressClosed(remote);
+        while (!scheduled.isEmpty()) {
+            scheduled.remove(0).run();
+        }
+        assertEquals(1, events.size());
+        assertEquals("close", events.get(0));
+    }
+}
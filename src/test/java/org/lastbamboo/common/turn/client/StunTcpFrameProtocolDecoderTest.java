@@ -0,0 +1,388 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+import org.lastbamboo.common.tcp.frame.TcpFrame;
+import org.lastbamboo.common.tcp.frame.TcpFrameEncoder;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.encoder.StunMessageEncoder;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.transaction.StunTransactionListener;
+import org.littleshoot.util.mina.ByteBufferUtils;
+
+/**
+ * Test for the decoder that classifies STUN messages and TCP frames from
+ * their leading bytes.
+ */
+public class StunTcpFrameProtocolDecoderTest {
+
+    @Test
+    public void testInterleavedMessagesInSmallChunks() throws Exception {
+        final List<ByteBuffer> bufs = new LinkedList<ByteBuffer>();
+        final List<Object> expected = new LinkedList<Object>();
+        final TcpFrameEncoder frameEncoder = new TcpFrameEncoder();
+        final StunMessageEncoder stunEncoder = new StunMessageEncoder();
+        for (int i = 0; i < 50; i++) {
+            // Mix tiny frames, frames whose lengths start with two zero
+            // bits like STUN messages, and frames that don't.
+            final int length = (i % 3 == 0) ? 2 : (i % 3 == 1) ? 300 : 20000;
+            final byte[] data = new byte[length];
+            Arrays.fill(data, (byte) i);
+            bufs.add(frameEncoder.encode(new TcpFrame(data)));
+            expected.add(data);
+
+            final BindingRequest request = new BindingRequest();
+            bufs.add(stunEncoder.encode(request));
+            expected.add(request);
+        }
+        final ByteBuffer combined = ByteBufferUtils.combine(bufs);
+
+        // Large chunks hold whole messages, so they also cover decoding
+        // straight out of the chunk without chaining.
+        for (final int chunkSize : new int[] {1, 4, 7, 10, 13, 16, 19, 1500,
+            30000}) {
+            combined.rewind();
+            final List<Object> decoded = new LinkedList<Object>();
+            final ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+                public void flush() {
+                }
+                public void write(final Object message) {
+                    decoded.add(message);
+                }
+            };
+            final StunTcpFrameProtocolDecoder decoder =
+                new StunTcpFrameProtocolDecoder();
+            while (combined.hasRemaining()) {
+                final int size = Math.min(chunkSize, combined.remaining());
+                final byte[] chunk = new byte[size];
+                combined.get(chunk);
+                if (chunkSize % 2 == 0) {
+                    decoder.decode(null, chunk, out);
+                } else {
+                    decoder.decode(null, ByteBuffer.wrap(chunk), out);
+                }
+            }
+
+            assertEquals(expected.size(), decoded.size());
+            for (int i = 0; i < expected.size(); i++) {
+                final Object exp = expected.get(i);
+                final Object dec = decoded.get(i);
+                if (exp instanceof byte[]) {
+                    assertTrue("Expected frame: " + dec,
+                        dec instanceof ReassembledTcpFrame);
+                    assertTrue(Arrays.equals((byte[]) exp,
+                        ((ReassembledTcpFrame) dec).getData()));
+                } else {
+                    assertTrue("Expected STUN: " + dec, dec instanceof StunMessage);
+                    assertEquals(((StunMessage) exp).getTransactionId(),
+                        ((StunMessage) dec).getTransactionId());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReassemblyBudget() throws Exception {
+        final TurnReassemblyBudget budget =
+            new TurnReassemblyBudget(1000, 1500);
+        final TcpFrameEncoder frameEncoder = new TcpFrameEncoder();
+        final List<Object> decoded = new LinkedList<Object>();
+        final ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+            public void flush() {
+            }
+            public void write(final Object message) {
+                decoded.add(message);
+            }
+        };
+
+        // Frames that fit are reassembled and their bytes released.
+        final StunTcpFrameProtocolDecoder first =
+            new StunTcpFrameProtocolDecoder(budget);
+        final ByteBuffer fits = frameEncoder.encode(new TcpFrame(new byte[700]));
+        while (fits.hasRemaining()) {
+            final byte[] chunk = new byte[Math.min(100, fits.remaining())];
+            fits.get(chunk);
+            first.decode(null, ByteBuffer.wrap(chunk), out);
+            assertTrue(budget.getBufferedBytes() <= 1000);
+        }
+        assertEquals(1, decoded.size());
+        assertEquals(0, budget.getBufferedBytes());
+        assertTrue(budget.getPeakBufferedBytes() > 0);
+
+        // A frame that announces more than a remote host may hold is
+        // refused before we buffer any of it.
+        final ByteBuffer tooBig =
+            frameEncoder.encode(new TcpFrame(new byte[5000]));
+        try {
+            first.decode(null, tooBig, out);
+            fail("Should have refused frame");
+        } catch (final TurnReassemblyBudgetExceededException e) {
+            // Expected.
+        }
+        assertEquals(1, budget.getRejectedFrames());
+        assertEquals(0, budget.getBufferedBytes());
+
+        // Two remote hosts trickling frames that each fit can't both hold
+        // partial frames beyond the total.
+        final StunTcpFrameProtocolDecoder second =
+            new StunTcpFrameProtocolDecoder(budget);
+        final ByteBuffer a = frameEncoder.encode(new TcpFrame(new byte[900]));
+        final ByteBuffer b = frameEncoder.encode(new TcpFrame(new byte[900]));
+        final byte[] chunk = new byte[800];
+        a.get(chunk);
+        first.decode(null, ByteBuffer.wrap(chunk), out);
+        b.get(chunk);
+        try {
+            second.decode(null, ByteBuffer.wrap(chunk), out);
+            fail("Should have gone over the total budget");
+        } catch (final TurnReassemblyBudgetExceededException e) {
+            // Expected.
+        }
+        assertEquals(2, budget.getRejectedFrames());
+        assertEquals(800, budget.getBufferedBytes());
+
+        // The first remote host finishes its frame and releases its bytes.
+        final byte[] rest = new byte[a.remaining()];
+        a.get(rest);
+        first.decode(null, ByteBuffer.wrap(rest), out);
+        assertEquals(2, decoded.size());
+        assertEquals(0, budget.getBufferedBytes());
+    }
+
+    @Test
+    public void testBudgetCountsRetainedArrays() throws Exception {
+        final TurnReassemblyBudget budget =
+            new TurnReassemblyBudget(4000, 8000);
+        final TcpFrameEncoder frameEncoder = new TcpFrameEncoder();
+        final List<Object> decoded = new LinkedList<Object>();
+        final ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+            public void flush() {
+            }
+            public void write(final Object message) {
+                decoded.add(message);
+            }
+        };
+        final StunTcpFrameProtocolDecoder decoder =
+            new StunTcpFrameProtocolDecoder(budget);
+
+        // A whole frame followed by most of the next leaves most of the
+        // array waiting, so we keep the array and pay for all of it.
+        final ByteBuffer next = frameEncoder.encode(new TcpFrame(new byte[900]));
+        final byte[] start = new byte[800];
+        next.get(start);
+        decoder.decode(null, concat(frameEncoder.encode(
+            new TcpFrame(new byte[10])), ByteBuffer.wrap(start)), out);
+        assertEquals(1, decoded.size());
+        assertEquals(12 + 800, budget.getBufferedBytes());
+        final byte[] rest = new byte[next.remaining()];
+        next.get(rest);
+        decoder.decode(null, rest, out);
+        assertEquals(2, decoded.size());
+        assertEquals(0, budget.getBufferedBytes());
+
+        // A few bytes left at the end of a large array are copied rather
+        // than keeping the whole array.
+        final ByteBuffer tail = frameEncoder.encode(new TcpFrame(new byte[900]));
+        final byte[] head = new byte[100];
+        tail.get(head);
+        decoder.decode(null, concat(frameEncoder.encode(
+            new TcpFrame(new byte[1000])), ByteBuffer.wrap(head)), out);
+        assertEquals(3, decoded.size());
+        assertEquals(100, budget.getBufferedBytes());
+
+        // The same goes for an array we chained and then consumed most of.
+        final byte[] chained = new byte[tail.remaining() + 20];
+        final int tailLength = tail.remaining();
+        tail.get(chained, 0, tailLength);
+        frameEncoder.encode(new TcpFrame(new byte[900])).get(chained,
+            tailLength, 20);
+        decoder.decode(null, chained, out);
+        assertEquals(4, decoded.size());
+        assertEquals(20, budget.getBufferedBytes());
+        decoder.dispose(null);
+        assertEquals(0, budget.getBufferedBytes());
+    }
+
+    private static byte[] concat(final ByteBuffer first,
+        final ByteBuffer second) {
+        final byte[] bytes = new byte[first.remaining() + second.remaining()];
+        first.get(bytes, 0, first.remaining());
+        second.get(bytes, bytes.length - second.remaining(),
+            second.remaining());
+        return bytes;
+    }
+
+    @Test
+    public void testBindingResponsesInStream() throws Exception {
+        final InetSocketAddress remote =
+            new InetSocketAddress("10.0.0.1", 5000);
+        final RecordingIoSession session = new RecordingIoSession();
+        session.setAttribute("REMOTE_ADDRESS_MAP",
+            new TurnStunMessageMapperImpl());
+        final StunRetransmitter retransmitter = new StunRetransmitter();
+        final TurnBindingTransactions transactions =
+            new TurnBindingTransactions(retransmitter);
+        session.setAttribute(TurnBindingTransactions.SESSION_KEY,
+            transactions);
+        final BlockingQueue<byte[]> data = new LinkedBlockingQueue<byte[]>();
+        final StunTcpFrameTurnClientListener listener =
+            new StunTcpFrameTurnClientListener(null, new TurnClientListener() {
+                public void close() {
+                }
+                public void onData(final InetSocketAddress remoteAddress,
+                    final IoSession ioSession, final byte[] bytes) {
+                    data.add(bytes);
+                }
+                public void onRemoteAddressClosed(
+                    final InetSocketAddress remoteAddress) {
+                }
+                public IoSession onRemoteAddressOpened(
+                    final InetSocketAddress remoteAddress,
+                    final IoSession ioSession) {
+                    return null;
+                }
+            });
+        final BlockingQueue<StunMessage> responses =
+            new LinkedBlockingQueue<StunMessage>();
+        final StunTransactionListener<Object> transactionListener =
+            new StunTransactionListener<Object>() {
+                public Object onTransactionSucceeded(final StunMessage request,
+                    final StunMessage response) {
+                    responses.add(response);
+                    return null;
+                }
+                public Object onTransactionFailed(final StunMessage request,
+                    final StunMessage response) {
+                    return null;
+                }
+            };
+
+        // A response split across two Data Indications.
+        final BindingRequest first = new BindingRequest();
+        transactions.write(session, first, remote, 60 * 1000,
+            transactionListener);
+        final byte[] split = encodeResponse(first, remote);
+        listener.onData(remote, session, Arrays.copyOfRange(split, 0, 7));
+        assertTrue(responses.isEmpty());
+        listener.onData(remote, session,
+            Arrays.copyOfRange(split, 7, split.length));
+        assertEquals(first.getTransactionId(),
+            responses.poll().getTransactionId());
+        assertTrue(data.isEmpty());
+
+        // A response run together with the frames around it.
+        final BindingRequest second = new BindingRequest();
+        transactions.write(session, second, remote, 60 * 1000,
+            transactionListener);
+        final TcpFrameEncoder frameEncoder = new TcpFrameEncoder();
+        final byte[] before = new byte[] {1, 2, 3};
+        // Frames this long can't be mistaken for STUN, so the last one
+        // doesn't wait for more bytes.
+        final byte[] after = new byte[20000];
+        Arrays.fill(after, (byte) 4);
+        final List<ByteBuffer> bufs = new LinkedList<ByteBuffer>();
+        bufs.add(frameEncoder.encode(new TcpFrame(before)));
+        bufs.add(ByteBuffer.wrap(encodeResponse(second, remote)));
+        bufs.add(frameEncoder.encode(new TcpFrame(after)));
+        final ByteBuffer combined = ByteBufferUtils.combine(bufs);
+        final byte[] coalesced = new byte[combined.remaining()];
+        combined.get(coalesced);
+        listener.onData(remote, session, coalesced);
+        assertEquals(second.getTransactionId(),
+            responses.poll().getTransactionId());
+        assertTrue(Arrays.equals(before, data.poll()));
+        assertTrue(Arrays.equals(after, data.poll()));
+        assertTrue(data.isEmpty());
+        assertEquals(0, retransmitter.getPendingTransactions());
+    }
+
+    @Test
+    public void testListenerReleasesBudget() throws Exception {
+        final TurnReassemblyBudget budget =
+            new TurnReassemblyBudget(1000, 1500);
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        final StunTcpFrameTurnClientListener listener =
+            new StunTcpFrameTurnClientListener(null, new TurnClientListener() {
+                public void close() {
+                    events.add("close");
+                }
+                public void onData(final InetSocketAddress remoteAddress,
+                    final IoSession ioSession, final byte[] bytes) {
+                    events.add("data " + remoteAddress);
+                }
+                public void onRemoteAddressClosed(
+                    final InetSocketAddress remoteAddress) {
+                    events.add("closed " + remoteAddress);
+                }
+                public IoSession onRemoteAddressOpened(
+                    final InetSocketAddress remoteAddress,
+                    final IoSession ioSession) {
+                    return null;
+                }
+            }, budget, 100);
+        final RecordingIoSession session = new RecordingIoSession();
+        final InetSocketAddress slow = new InetSocketAddress("10.0.0.1", 5000);
+        final InetSocketAddress greedy =
+            new InetSocketAddress("10.0.0.2", 5000);
+        final TcpFrameEncoder frameEncoder = new TcpFrameEncoder();
+
+        // One remote host leaves part of a frame behind.
+        final ByteBuffer partial =
+            frameEncoder.encode(new TcpFrame(new byte[900]));
+        final byte[] half = new byte[500];
+        partial.get(half);
+        listener.onData(slow, session, half);
+        assertEquals(500, budget.getBufferedBytes());
+
+        // Another goes over its budget, so we report it closed and ignore
+        // whatever else it relays.
+        final ByteBuffer tooBig =
+            frameEncoder.encode(new TcpFrame(new byte[5000]));
+        final byte[] bytes = new byte[tooBig.remaining()];
+        tooBig.get(bytes);
+        listener.onData(greedy, session, bytes);
+        assertEquals("closed " + greedy, events.poll());
+        assertTrue(session.getWritten().isEmpty());
+        listener.onData(greedy, session, bytes);
+        assertTrue(events.isEmpty());
+
+        // Once it's been quiet for long enough, it starts over.
+        final ByteBuffer small =
+            frameEncoder.encode(new TcpFrame(new byte[10]));
+        final byte[] smallBytes = new byte[small.remaining()];
+        small.get(smallBytes);
+        Thread.sleep(500);
+        listener.onData(greedy, session, smallBytes);
+        assertEquals("data " + greedy, events.poll());
+
+        // Closing releases everything we were still holding.
+        listener.close();
+        assertEquals("close", events.poll());
+        assertEquals(0, budget.getBufferedBytes());
+        assertTrue(events.isEmpty());
+    }
+
+    private static byte[] encodeResponse(final StunMessage request,
+        final InetSocketAddress remote) {
+        final ByteBuffer encoded = new StunMessageEncoder().encode(
+            new BindingSuccessResponse(
+                request.getTransactionId().getRawBytes(), remote));
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+}
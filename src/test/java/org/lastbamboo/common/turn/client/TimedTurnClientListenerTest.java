@@ -0,0 +1,84 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Test for the listener that times callbacks to its delegate.
+ */
+public class TimedTurnClientListenerTest {
+
+    private final InetSocketAddress m_peer =
+        new InetSocketAddress("10.0.0.1", 80);
+
+    @Test
+    public void testRecordsLatencies() throws Exception {
+        final RecordingIoSession session = new RecordingIoSession();
+        final TurnClientListener delegate = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession ioSession, final byte[] data) {
+                pause(50);
+                if (data.length == 0) {
+                    throw new IllegalStateException("No data");
+                }
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+                pause(20);
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession ioSession) {
+                pause(10);
+                return ioSession;
+            }
+        };
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final TimedTurnClientListener listener =
+            new TimedTurnClientListener(delegate, latencies, 40);
+
+        assertSame(session, listener.onRemoteAddressOpened(m_peer, session));
+        assertEquals(1, latencies.getCount());
+        final long openMicros = latencies.getMaxMicros();
+        assertTrue("Open took: " + openMicros, openMicros >= 10000);
+        assertEquals(0, listener.getSlowCallbacks());
+
+        listener.onData(m_peer, session, new byte[1]);
+        assertEquals(2, latencies.getCount());
+        assertTrue(latencies.getMaxMicros() >= 50000);
+        assertEquals(1, listener.getSlowCallbacks());
+
+        listener.onRemoteAddressClosed(m_peer);
+        assertEquals(3, latencies.getCount());
+        assertTrue("Median: " + latencies.getPercentileMicros(50),
+            latencies.getPercentileMicros(50) >= 20000);
+        assertEquals(1, listener.getSlowCallbacks());
+
+        // Callbacks that throw are timed too.
+        try {
+            listener.onData(m_peer, session, new byte[0]);
+            fail("Exception swallowed");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        assertEquals(4, latencies.getCount());
+        assertEquals(2, listener.getSlowCallbacks());
+    }
+
+    private static void pause(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+/**
+ * Test for token bucket bandwidth shaping.
+ */
+public class TurnBandwidthShaperTest {
+
+    @Test
+    public void testPeerAndClientLimits() throws Exception {
+        final InetSocketAddress peer1 = new InetSocketAddress("10.0.0.1", 80);
+        final InetSocketAddress peer2 = new InetSocketAddress("10.0.0.2", 80);
+        final TurnBandwidthShaper shaper =
+            new TurnBandwidthShaper(100000, 0, 150000, 0);
+        assertTrue(shaper.isUploadShaped());
+        assertTrue(!shaper.isDownloadShaped());
+
+        // Each bucket starts with a second's worth of burst.
+        assertEquals(0, shaper.reserveUpload(peer1, 100000));
+        final long peerDelay = shaper.reserveUpload(peer1, 50000);
+        assertTrue("Unexpected delay: " + peerDelay,
+            peerDelay > 400000000L && peerDelay <= 500000000L);
+
+        // The second peer has its own bucket but shares the client's.
+        final long clientDelay = shaper.reserveUpload(peer2, 50000);
+        assertTrue("Unexpected delay: " + clientDelay,
+            clientDelay > 250000000L && clientDelay <= 340000000L);
+        assertEquals(0, shaper.reserveDownload(peer1, 1000000));
+        assertEquals(3, shaper.getUploadDelays().getCount());
+    }
+
+    @Test
+    public void testThrottleSuspendsAndResumes() throws Exception {
+        final RecordingIoSession session = new RecordingIoSession();
+        final TurnBandwidthShaper shaper = new TurnBandwidthShaper(0, 0, 0, 0);
+
+        shaper.throttle(session, 100000000L);
+        // Extending the suspension doesn't suspend again.
+        shaper.throttle(session, 200000000L);
+        assertEquals(1, session.getSuspendCount());
+        Thread.sleep(120);
+        assertEquals("Resumed before extended deadline", 0,
+            session.getResumeCount());
+        Thread.sleep(300);
+        assertEquals(1, session.getResumeCount());
+    }
+}
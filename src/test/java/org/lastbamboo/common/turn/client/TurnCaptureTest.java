@@ -0,0 +1,148 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilter.NextFilter;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.encoder.StunMessageEncoder;
+import org.littleshoot.stun.stack.message.attributes.turn.ConnectionStatus;
+import org.littleshoot.stun.stack.message.turn.ConnectionStatusIndication;
+import org.littleshoot.stun.stack.message.turn.DataIndication;
+import org.littleshoot.util.mina.ByteBufferUtils;
+
+/**
+ * Test for capturing TURN traffic and replaying it.
+ */
+public class TurnCaptureTest {
+
+    @Test
+    public void testCaptureAndReplay() throws Exception {
+        final InetSocketAddress remote =
+            new InetSocketAddress("192.168.1.20", 6000);
+        final File file = File.createTempFile("turn-capture-test", ".bin");
+        file.deleteOnExit();
+        final StunMessageEncoder encoder = new StunMessageEncoder();
+        final List<byte[]> expected = new ArrayList<byte[]>();
+
+        final TurnCapture capture = new TurnCapture(file);
+        capture.record(TurnCaptureFilter.INBOUND, encoder.encode(
+            new ConnectionStatusIndication(remote,
+                ConnectionStatus.ESTABLISHED)));
+
+        // A ChannelBind Request we sent and the server's response.
+        final TurnChannelBindings bindings = new TurnChannelBindings();
+        final ByteBuffer request = bindings.newBindRequest(remote);
+        capture.record(TurnCaptureFilter.OUTBOUND, request);
+        final ByteBuffer response = ByteBuffer.allocate(20);
+        response.putShort(
+            (short) TurnChannelBindings.CHANNEL_BIND_SUCCESS_RESPONSE);
+        response.putShort((short) 0);
+        for (int i = 4; i < 20; i++) {
+            response.put(request.get(i));
+        }
+        response.flip();
+        capture.record(TurnCaptureFilter.INBOUND, response);
+
+        // Data Indications and ChannelData split at awkward places.
+        final List<ByteBuffer> bufs = new LinkedList<ByteBuffer>();
+        for (int i = 0; i < 20; i++) {
+            final byte[] data = new byte[i * 13 + 1];
+            Arrays.fill(data, (byte) i);
+            expected.add(data);
+            if (i % 2 == 0) {
+                bufs.add(encoder.encode(new DataIndication(remote, data)));
+            } else {
+                bufs.add(TurnChannelData.encode(TurnChannelData.MIN_CHANNEL,
+                    data));
+            }
+        }
+        final ByteBuffer combined = ByteBufferUtils.combine(bufs);
+        while (combined.hasRemaining()) {
+            final int size = Math.min(37, combined.remaining());
+            final byte[] chunk = new byte[size];
+            combined.get(chunk);
+            capture.record(TurnCaptureFilter.INBOUND, ByteBuffer.wrap(chunk));
+        }
+        capture.record(TurnCaptureFilter.INBOUND, encoder.encode(
+            new ConnectionStatusIndication(remote, ConnectionStatus.CLOSED)));
+        capture.close().get();
+
+        final List<String> events = new ArrayList<String>();
+        final List<byte[]> received = new ArrayList<byte[]>();
+        final TurnClientListener listener = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+                assertEquals(remote, remoteAddress);
+                received.add(data);
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+                events.add("closed");
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession session) {
+                events.add("opened");
+                return null;
+            }
+        };
+        final TurnCaptureReplayer replayer =
+            new TurnCaptureReplayer(file, listener, null);
+        replayer.replay(false);
+
+        assertEquals(Arrays.asList("opened", "closed"), events);
+        assertEquals(0, replayer.getDroppedChannelData());
+        assertEquals(expected.size(), received.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(Arrays.equals(expected.get(i), received.get(i)));
+        }
+        assertEquals(2, replayer.getStatusMessages());
+    }
+
+    @Test
+    public void testCapturePerSession() throws Exception {
+        final File directory = File.createTempFile("turn-capture-dir", "");
+        assertTrue(directory.delete());
+        final TurnCaptureFilter filter = new TurnCaptureFilter(directory);
+        final NextFilter next = new NextFilterAdapter();
+        final List<File> files = new ArrayList<File>();
+
+        // Reconnecting gives the new session a capture of its own.
+        for (int i = 0; i < 2; i++) {
+            final RecordingIoSession session = new RecordingIoSession();
+            filter.sessionCreated(next, session);
+            final TurnCapture capture = TurnCaptureFilter.getCapture(session);
+            filter.messageReceived(next, session,
+                ByteBuffer.wrap(new byte[] {(byte) i}));
+            filter.sessionClosed(next, session);
+            assertNull(TurnCaptureFilter.getCapture(session));
+            capture.close().get();
+            files.add(capture.getFile());
+        }
+        assertFalse(files.get(0).equals(files.get(1)));
+        for (int i = 0; i < files.size(); i++) {
+            final TurnCaptureReader reader = new TurnCaptureReader(files.get(i));
+            final TurnCaptureReader.Record record = reader.next();
+            assertEquals(TurnCaptureFilter.INBOUND, record.getDirection());
+            assertTrue(Arrays.equals(new byte[] {(byte) i}, record.getData()));
+            assertNull(reader.next());
+            reader.close();
+            assertTrue(files.get(i).delete());
+        }
+        assertTrue(directory.delete());
+    }
+}
@@ -0,0 +1,120 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
+
+/**
+ * Test for the pool of pre-allocated TURN clients.
+ */
+public class TurnClientPoolTest {
+
+    @Test
+    public void testTakeAndReplenish() throws Exception {
+        final LoadTestTurnServer server = new LoadTestTurnServer(64, 10);
+        server.start();
+        final TurnClientPool pool = newPool(server, 60 * 1000);
+        try {
+            pool.start();
+            waitForIdle(pool, 2);
+
+            final BlockingQueue<InetSocketAddress> opened =
+                new LinkedBlockingQueue<InetSocketAddress>();
+            final TcpTurnClient client = pool.take(new TurnClientListener() {
+                public void close() {
+                }
+                public void onData(final InetSocketAddress remoteAddress,
+                    final IoSession session, final byte[] data) {
+                }
+                public void onRemoteAddressClosed(
+                    final InetSocketAddress remoteAddress) {
+                }
+                public IoSession onRemoteAddressOpened(
+                    final InetSocketAddress remoteAddress,
+                    final IoSession session) {
+                    opened.add(remoteAddress);
+                    return null;
+                }
+            });
+            assertTrue(client.isConnected());
+            assertNotNull(client.getRelayAddress());
+            assertEquals(0, pool.getMisses());
+            assertEquals(1, pool.getTimeToRelay().getCount());
+
+            // Events now reach the caller's listener.
+            final InetSocketAddress remote =
+                new InetSocketAddress("10.0.0.1", 5000);
+            client.sendConnectRequests(Collections.singleton(remote),
+                10 * 1000);
+            assertEquals(remote, opened.poll(10, TimeUnit.SECONDS));
+
+            // The pool tops itself back up.
+            waitForIdle(pool, 2);
+            client.close();
+        } finally {
+            pool.close();
+            server.stop();
+        }
+        assertEquals(0, pool.getIdleClients());
+    }
+
+    @Test
+    public void testRetiresIdleClients() throws Exception {
+        final LoadTestTurnServer server = new LoadTestTurnServer(64, 10);
+        server.start();
+        final TurnClientPool pool = newPool(server, 200);
+        try {
+            pool.start();
+            final long end = System.currentTimeMillis() + 10 * 1000;
+            while (pool.getRetiredClients() < 2) {
+                assertTrue("Nothing retired",
+                    System.currentTimeMillis() < end);
+                Thread.sleep(20);
+            }
+            waitForIdle(pool, 2);
+        } finally {
+            pool.close();
+            server.stop();
+        }
+    }
+
+    private static void waitForIdle(final TurnClientPool pool,
+        final int idle) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10 * 1000;
+        while (pool.getIdleClients() < idle) {
+            assertTrue("Pool not filled", System.currentTimeMillis() < end);
+            Thread.sleep(20);
+        }
+    }
+
+    private static TurnClientPool newPool(final LoadTestTurnServer server,
+        final long maxIdleMillis) {
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Collections.singleton(server.getAddress());
+                }
+                public InetSocketAddress getCandidate() {
+                    return server.getAddress();
+                }
+            };
+        return new TurnClientPool(candidates,
+            new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()),
+            TurnTransportConfig.DEFAULT, 2, maxIdleMillis);
+    }
+}
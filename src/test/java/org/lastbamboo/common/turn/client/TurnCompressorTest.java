@@ -0,0 +1,105 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+/**
+ * Test for per-peer compression of relayed data.
+ */
+public class TurnCompressorTest {
+
+    /**
+     * Where the marker sits in a chunk, after the length.
+     */
+    private static final int MARKER = TurnCompressor.OVERHEAD - 1;
+
+    @Test
+    public void testCompressibleData() throws Exception {
+        final TurnCompressor sender = new TurnCompressor();
+        final TurnCompressor receiver = new TurnCompressor();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n");
+        }
+        final byte[] data = sb.toString().getBytes("US-ASCII");
+        for (int i = 0; i < 10; i++) {
+            final byte[] compressed = sender.compress(data);
+            assertEquals(TurnCompressor.DEFLATED, compressed[MARKER]);
+            assertTrue(Arrays.equals(data, receiver.decompress(compressed)));
+        }
+        assertTrue(sender.getCompressionRatio() < 0.1);
+        assertEquals(0, sender.getBypassedChunks());
+
+        // Tiny chunks go out raw.
+        final byte[] small = new byte[] {1, 2, 3};
+        final byte[] raw = sender.compress(small);
+        assertEquals(TurnCompressor.RAW, raw[MARKER]);
+        assertTrue(Arrays.equals(small, receiver.decompress(raw)));
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void testIncompressibleDataIsBypassed() throws Exception {
+        final TurnCompressor sender = new TurnCompressor();
+        final TurnCompressor receiver = new TurnCompressor();
+        final Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            final byte[] data = new byte[4096];
+            random.nextBytes(data);
+            final byte[] sent = sender.compress(data);
+            assertEquals(TurnCompressor.RAW, sent[MARKER]);
+            assertTrue(Arrays.equals(data, receiver.decompress(sent)));
+        }
+        // We should have stopped trying after the first few chunks.
+        assertTrue(sender.getBypassedChunks() > 80);
+        assertTrue(sender.getCompressionRatio() < 1.001);
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void testChunkInflatingTooFar() throws Exception {
+        // A small chunk that inflates to far more than any sender would
+        // ever compress.
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setInput(new byte[1024 * 1024]);
+        deflater.finish();
+        final byte[] deflated = new byte[4096];
+        int length = 0;
+        while (!deflater.finished()) {
+            length += deflater.deflate(deflated, length,
+                deflated.length - length);
+        }
+        deflater.end();
+        final byte[] chunk = new byte[length + TurnCompressor.OVERHEAD];
+        System.arraycopy(deflated, 0, chunk, TurnCompressor.OVERHEAD, length);
+        chunk[0] = (byte) ((chunk.length - 2) >>> 8);
+        chunk[1] = (byte) (chunk.length - 2);
+        chunk[MARKER] = TurnCompressor.DEFLATED;
+
+        final TurnCompressor receiver = new TurnCompressor();
+        try {
+            receiver.decompress(chunk);
+            fail("Should have rejected the chunk");
+        } catch (final DataFormatException e) {
+            // Expected.
+        }
+
+        // Chunks of the largest size a sender compresses still get through.
+        final TurnCompressor sender = new TurnCompressor();
+        final byte[] data = new byte[TurnCompressor.MAX_DATA_LENGTH];
+        assertTrue(Arrays.equals(data,
+            receiver.decompress(sender.compress(data))));
+        sender.close();
+        receiver.close();
+    }
+}
@@ -0,0 +1,166 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.StunMessageDecoder;
+import org.littleshoot.stun.stack.message.attributes.turn.ConnectionStatus;
+import org.littleshoot.stun.stack.message.turn.ConnectRequest;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
+
+/**
+ * Test for correlating pipelined Connect Requests with Connection Status
+ * Indications.
+ */
+public class TurnConnectRequestsTest {
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        final InetSocketAddress a = new InetSocketAddress("10.0.0.1", 1000);
+        final InetSocketAddress b = new InetSocketAddress("10.0.0.2", 2000);
+        final InetSocketAddress c = new InetSocketAddress("10.0.0.3", 3000);
+        final TurnConnectRequests requests = new TurnConnectRequests();
+        final List<TurnConnectFuture> futures =
+            new ArrayList<TurnConnectFuture>();
+        final ByteBuffer buf =
+            requests.newRequests(Arrays.asList(a, b, c), 200, futures);
+        assertEquals(3, futures.size());
+        assertEquals(3, requests.getPendingRequests());
+
+        // All three requests are in the one buffer.
+        final List<Object> decoded = new ArrayList<Object>();
+        new StunMessageDecoder().decode(null, buf,
+            new ProtocolDecoderOutput() {
+                public void flush() {
+                }
+                public void write(final Object message) {
+                    decoded.add(message);
+                }
+            });
+        assertEquals(3, decoded.size());
+        for (final Object message : decoded) {
+            assertTrue(message instanceof ConnectRequest);
+        }
+
+        // Asking again for a pending address reuses its future.
+        final List<TurnConnectFuture> again =
+            new ArrayList<TurnConnectFuture>();
+        assertNull(requests.newRequests(Arrays.asList(a), 200, again));
+        assertSame(futures.get(0), again.get(0));
+
+        requests.onConnectionStatus(a, ConnectionStatus.LISTEN);
+        assertEquals(ConnectionStatus.LISTEN,
+            futures.get(0).get(1, TimeUnit.SECONDS));
+        requests.onConnectionStatus(a, ConnectionStatus.ESTABLISHED);
+        requests.onConnectionStatus(b, ConnectionStatus.ESTABLISHED);
+        assertEquals(ConnectionStatus.ESTABLISHED,
+            futures.get(1).get(1, TimeUnit.SECONDS));
+        assertEquals(2, requests.getTimeToEstablished().getCount());
+
+        // Nothing ever arrives for c.
+        try {
+            futures.get(2).get(5, TimeUnit.SECONDS);
+            fail("Should have timed out");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(0, requests.getPendingRequests());
+    }
+
+    @Test
+    public void testFailAll() throws Exception {
+        final InetSocketAddress a = new InetSocketAddress("10.0.0.1", 1000);
+        final TurnConnectRequests requests = new TurnConnectRequests();
+        final List<TurnConnectFuture> futures =
+            new ArrayList<TurnConnectFuture>();
+        requests.newRequests(Arrays.asList(a), 10000, futures);
+        assertFalse(futures.get(0).isDone());
+        requests.failAll("Closed");
+        assertTrue(futures.get(0).isDone());
+        try {
+            futures.get(0).get();
+            fail("Should have failed");
+        } catch (final ExecutionException e) {
+            // Expected.
+        }
+        assertEquals(0, requests.getPendingRequests());
+    }
+
+    @Test
+    public void testRequestsBeforeConnect() throws Exception {
+        final InetSocketAddress a = new InetSocketAddress("10.0.0.1", 1000);
+        final TcpTurnClient client = newUnconnectedClient();
+        try {
+            client.sendConnectRequests(Arrays.asList(a), 10000);
+            fail("Sent requests before connecting");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            client.sendConnectRequest(a);
+            fail("Sent request before connecting");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            client.bindChannel(a);
+            fail("Bound channel before connecting");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    private static TcpTurnClient newUnconnectedClient() {
+        final InetSocketAddress server =
+            new InetSocketAddress("127.0.0.1", 3478);
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Collections.singleton(server);
+                }
+                public InetSocketAddress getCandidate() {
+                    return server;
+                }
+            };
+        final TurnClientListener listener = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession session) {
+                return null;
+            }
+        };
+        return new TcpTurnClient(listener, candidates,
+            new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()),
+            TurnTransportConfig.DEFAULT);
+    }
+}
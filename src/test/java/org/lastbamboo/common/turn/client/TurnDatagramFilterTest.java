@@ -0,0 +1,95 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.IoFilter.WriteRequest;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.mina.common.support.DefaultWriteFuture;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+
+/**
+ * Test for keeping Send Indications small enough for a single datagram.
+ */
+public class TurnDatagramFilterTest {
+
+    @Test
+    public void testSplitsLargeSendIndications() throws Exception {
+        final InetSocketAddress remote =
+            new InetSocketAddress("192.168.1.20", 6000);
+        final TurnDatagramFilter filter = new TurnDatagramFilter();
+        final RecordingNextFilter next = new RecordingNextFilter();
+        final RecordingIoSession session = new RecordingIoSession();
+
+        // Small enough already, so it goes out as is.
+        final SendIndication small = new SendIndication(remote, new byte[10]);
+        final WriteRequest smallRequest = new WriteRequest(small);
+        filter.filterWrite(next, session, smallRequest);
+        assertEquals(1, next.m_writes.size());
+        assertSame(smallRequest, next.m_writes.get(0));
+        next.m_writes.clear();
+
+        final byte[] data =
+            new byte[TurnDatagramFilter.MAX_DATA_LENGTH * 2 + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final SendIndication large = new SendIndication(remote, data);
+        final WriteFuture future = new DefaultWriteFuture(session);
+        filter.filterWrite(next, session, new WriteRequest(large, future));
+        assertEquals(3, next.m_writes.size());
+        final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (final WriteRequest request : next.m_writes) {
+            final SendIndication part = (SendIndication) request.getMessage();
+            assertEquals(remote, part.getRemoteAddress());
+            assertTrue(part.getData().length <=
+                TurnDatagramFilter.MAX_DATA_LENGTH);
+            joined.write(part.getData());
+        }
+        assertTrue(Arrays.equals(data, joined.toByteArray()));
+
+        // Only the last part carries the caller's future.
+        final WriteRequest last = next.m_writes.get(2);
+        assertSame(future, last.getFuture());
+        assertFalse(future == next.m_writes.get(0).getFuture());
+
+        // The filters above us only hear about what they wrote.
+        for (final WriteRequest request : next.m_writes) {
+            filter.messageSent(next, session, request.getMessage());
+        }
+        filter.messageSent(next, session, small);
+        assertEquals(2, next.m_sent.size());
+        assertSame(large, next.m_sent.get(0));
+        assertSame(small, next.m_sent.get(1));
+    }
+
+    private static final class RecordingNextFilter extends NextFilterAdapter {
+
+        private final List<WriteRequest> m_writes =
+            new ArrayList<WriteRequest>();
+
+        private final List<Object> m_sent = new ArrayList<Object>();
+
+        @Override
+        public void filterWrite(final IoSession session,
+            final WriteRequest writeRequest) {
+            m_writes.add(writeRequest);
+        }
+
+        @Override
+        public void messageSent(final IoSession session,
+            final Object message) {
+            m_sent.add(message);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lastbamboo.common.tcp.frame.TcpFrame;
+import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
+import org.lastbamboo.common.tcp.frame.TcpFrameEncoder;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
+
+/**
+ * Test for moving remote hosts between a TURN client's active and standby
+ * allocations.
+ */
+public class TurnFailoverClientTest {
+
+    private final InetSocketAddress m_remote =
+        new InetSocketAddress("10.0.0.1", 5000);
+
+    @Test
+    public void testPlannedMigration() throws Exception {
+        final LoadTestTurnServer first = new LoadTestTurnServer(64, 10);
+        final LoadTestTurnServer second = new LoadTestTurnServer(64, 10);
+        first.start();
+        second.start();
+        final RecordingListener listener = new RecordingListener(false);
+        final TurnFailoverClient client =
+            newClient(listener, first, second);
+        try {
+            client.connect();
+            final TcpTurnClient active = client.getActiveClient();
+            final TcpTurnClient standby = client.getStandbyClient();
+            assertEquals(first.getAddress(), active.getServerAddress());
+            assertNotNull("No standby", standby);
+            assertEquals(second.getAddress(), standby.getServerAddress());
+
+            client.sendConnectRequests(Collections.singleton(m_remote),
+                10 * 1000);
+            assertEquals("opened " + m_remote, listener.next());
+
+            client.migrate();
+            assertEquals("moved " + m_remote, listener.next());
+            assertEquals(standby, client.getActiveClient());
+
+            // The old server goes once everything moved, and becomes the
+            // new standby.
+            waitFor(client, first);
+            final long end = System.currentTimeMillis() + 10 * 1000;
+            while (active.isConnected()) {
+                assertTrue("Old server still open",
+                    System.currentTimeMillis() < end);
+                Thread.sleep(20);
+            }
+            assertTrue(client.isConnected());
+            assertTrue(listener.m_events.isEmpty());
+        } finally {
+            client.close();
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        final LoadTestTurnServer first = new LoadTestTurnServer(64, 10);
+        final LoadTestTurnServer second = new LoadTestTurnServer(64, 10);
+        first.start();
+        second.start();
+        final RecordingListener listener = new RecordingListener(false);
+        final TurnFailoverClient client =
+            newClient(listener, first, second);
+        try {
+            client.connect();
+            final TcpTurnClient standby = client.getStandbyClient();
+            assertNotNull("No standby", standby);
+            client.sendConnectRequests(Collections.singleton(m_remote),
+                10 * 1000);
+            assertEquals("opened " + m_remote, listener.next());
+
+            // Losing the server closes our connection to it.
+            first.stop();
+            assertEquals("moved " + m_remote, listener.next());
+            assertEquals(standby, client.getActiveClient());
+            assertTrue(client.isConnected());
+
+            // There's nowhere left for a standby.
+            Thread.sleep(200);
+            assertNull(client.getStandbyClient());
+            assertTrue(listener.m_events.isEmpty());
+        } finally {
+            client.close();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void testLocalDataHeldUntilMoved() throws Exception {
+        final RecordingIoSession oldSession = new RecordingIoSession();
+        final RecordingIoSession newSession = new RecordingIoSession();
+        final RecordingIoSession localSession = new RecordingIoSession();
+        final TurnLocalIoHandler handler =
+            new TurnLocalIoHandler(oldSession, m_remote);
+
+        // Once the server is gone, nothing goes out on its session and we
+        // stop reading from the local server.
+        oldSession.close();
+        handler.messageReceived(localSession,
+            ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        assertTrue(oldSession.getWritten().isEmpty());
+        assertTrue(localSession.isReadSuspended());
+
+        handler.setTurnSession(newSession);
+        assertFalse(localSession.isReadSuspended());
+        final SendIndication held =
+            (SendIndication) newSession.getWritten().poll();
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, held.getData()));
+        assertTrue(oldSession.getWritten().isEmpty());
+    }
+
+    @Test
+    public void testMoveDropsPartialFrames() throws Exception {
+        final RecordingListener delegate = new RecordingListener(true);
+        final StunTcpFrameTurnClientListener listener =
+            new StunTcpFrameTurnClientListener(null, delegate);
+        final TcpFrameEncoder encoder = new TcpFrameEncoder();
+        final byte[] frame = new byte[20000];
+        Arrays.fill(frame, (byte) 7);
+
+        // Half a frame on the old connection, then a whole one on the new.
+        final ByteBuffer partial = encoder.encode(new TcpFrame(frame));
+        final byte[] half = new byte[partial.remaining() / 2];
+        partial.get(half);
+        listener.onData(m_remote, null, half);
+        listener.onRemoteAddressMoved(m_remote, null);
+        assertEquals("moved " + m_remote, delegate.next());
+
+        final ByteBuffer whole = encoder.encode(new TcpFrame(frame));
+        final byte[] bytes = new byte[whole.remaining()];
+        whole.get(bytes);
+        listener.onData(m_remote, null, bytes);
+        assertEquals("data " + m_remote + " " + frame.length,
+            delegate.next());
+        assertTrue(delegate.m_events.isEmpty());
+        assertEquals(0, listener.getReassemblyBudget().getBufferedBytes());
+    }
+
+    private static void waitFor(final TurnFailoverClient client,
+        final LoadTestTurnServer server) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10 * 1000;
+        while (client.getStandbyClient() == null) {
+            assertTrue("No new standby", System.currentTimeMillis() < end);
+            Thread.sleep(20);
+        }
+        assertEquals(server.getAddress(),
+            client.getStandbyClient().getServerAddress());
+    }
+
+    private static TurnFailoverClient newClient(
+        final TurnClientListener listener, final LoadTestTurnServer first,
+        final LoadTestTurnServer second) {
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Arrays.asList(first.getAddress(),
+                        second.getAddress());
+                }
+                public InetSocketAddress getCandidate() {
+                    return first.getAddress();
+                }
+            };
+        return new TurnFailoverClient(listener, candidates,
+            new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()));
+    }
+
+    private static final class RecordingListener
+        implements TurnFailoverListener {
+
+        private final BlockingQueue<String> m_events =
+            new LinkedBlockingQueue<String>();
+
+        /**
+         * The load test server streams data, so most tests ignore it.
+         */
+        private final boolean m_recordData;
+
+        private RecordingListener(final boolean recordData) {
+            m_recordData = recordData;
+        }
+
+        private String next() throws InterruptedException {
+            final String event = m_events.poll(10, TimeUnit.SECONDS);
+            assertNotNull("No event", event);
+            return event;
+        }
+
+        public void close() {
+        }
+        public void onData(final InetSocketAddress remoteAddress,
+            final IoSession session, final byte[] data) {
+            if (m_recordData) {
+                m_events.add("data " + remoteAddress + " " + data.length);
+            }
+        }
+        public void onRemoteAddressClosed(
+            final InetSocketAddress remoteAddress) {
+            m_events.add("closed " + remoteAddress);
+        }
+        public IoSession onRemoteAddressOpened(
+            final InetSocketAddress remoteAddress, final IoSession session) {
+            m_events.add("opened " + remoteAddress);
+            return null;
+        }
+        public void onRemoteAddressMoved(
+            final InetSocketAddress remoteAddress, final IoSession session) {
+            m_events.add("moved " + remoteAddress);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
+
+/**
+ * Test for sending file regions straight over the TURN session.
+ */
+public class TurnFileSenderTest {
+
+    @Test
+    public void testSendRegions() throws Exception {
+        final byte[] contents = new byte[600 * 1000];
+        new Random(42).nextBytes(contents);
+        final File file = File.createTempFile("turn-file-sender-test", ".bin");
+        file.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+
+        final LoadTestTurnServer server = new LoadTestTurnServer(64, 10);
+        server.start();
+        final TcpTurnClient client = newClient(server);
+        try {
+            client.connect();
+
+            // A region spanning many chunks, and one smaller than a chunk.
+            final InetSocketAddress large =
+                new InetSocketAddress("10.0.0.1", 5000);
+            assertEquals(400 * 1000,
+                client.sendFile(large, file, 12345, 400 * 1000));
+            assertReceived(server, large,
+                Arrays.copyOfRange(contents, 12345, 12345 + 400 * 1000));
+
+            final InetSocketAddress small =
+                new InetSocketAddress("10.0.0.2", 5000);
+            assertEquals(100, client.sendFile(small, file, 7, 100));
+            assertReceived(server, small,
+                Arrays.copyOfRange(contents, 7, 107));
+
+            // Nothing goes out for a region past the end of the file.
+            final InetSocketAddress past =
+                new InetSocketAddress("10.0.0.3", 5000);
+            try {
+                client.sendFile(past, file, contents.length - 10, 11);
+                fail("Sent region past end of file");
+            } catch (final EOFException e) {
+                // Expected.
+            }
+            assertEquals(0, server.getReceivedData(past).length);
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testUploadLimit() throws Exception {
+        final byte[] contents = new byte[30 * 1000];
+        new Random(42).nextBytes(contents);
+        final File file = File.createTempFile("turn-file-sender-test", ".bin");
+        file.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+
+        // The bucket starts with a second's worth of data, so the rest of
+        // the file has to wait for it to refill.
+        final TurnBandwidthShaper shaper =
+            new TurnBandwidthShaper(20 * 1000, 0, 0, 0);
+        final RecordingIoSession session = new RecordingIoSession();
+        final TurnFileSender sender = new TurnFileSender(session,
+            TurnFileSender.DEFAULT_MAX_QUEUED_BYTES, 1000, shaper);
+        final InetSocketAddress remote =
+            new InetSocketAddress("10.0.0.1", 5000);
+        final long start = System.nanoTime();
+        assertEquals(contents.length,
+            sender.sendFile(remote, file, 0, contents.length));
+        final long elapsed =
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Sent too fast: " + elapsed, elapsed >= 400);
+        assertEquals(30, session.getWritten().size());
+        assertTrue(shaper.getUploadDelays().getCount() >= 30);
+    }
+
+    private static void assertReceived(final LoadTestTurnServer server,
+        final InetSocketAddress remote, final byte[] expected)
+        throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10 * 1000;
+        while (server.getReceivedData(remote).length < expected.length) {
+            assertTrue("Region not received",
+                System.currentTimeMillis() < end);
+            Thread.sleep(20);
+        }
+        assertTrue(Arrays.equals(expected, server.getReceivedData(remote)));
+    }
+
+    private static TcpTurnClient newClient(final LoadTestTurnServer server) {
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Collections.singleton(server.getAddress());
+                }
+                public InetSocketAddress getCandidate() {
+                    return server.getAddress();
+                }
+            };
+        final TurnClientListener listener = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession session) {
+                return null;
+            }
+        };
+        return new TcpTurnClient(listener, candidates,
+            new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()),
+            TurnTransportConfig.DEFAULT);
+    }
+}
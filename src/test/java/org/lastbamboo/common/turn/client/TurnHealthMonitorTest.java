@@ -0,0 +1,162 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
+
+/**
+ * Test for probing the health of the TURN server and moving off it when it
+ * degrades.
+ */
+public class TurnHealthMonitorTest {
+
+    @Test
+    public void testMigratesFromUnresponsiveServer() throws Exception {
+        final LoadTestTurnServer first = new LoadTestTurnServer(64, 10);
+        final LoadTestTurnServer second = new LoadTestTurnServer(64, 10);
+        first.start();
+        second.start();
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Arrays.asList(first.getAddress(),
+                        second.getAddress());
+                }
+                public InetSocketAddress getCandidate() {
+                    return first.getAddress();
+                }
+            };
+        final TcpTurnClient client = new TcpTurnClient(new NoopListener(),
+            candidates, new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()),
+            TurnTransportConfig.DEFAULT.withHealthConfig(
+                TurnHealthConfig.DEFAULT.withProbeIntervalMillis(100)));
+        try {
+            client.connect();
+            final TurnHealthMonitor monitor = client.getHealthMonitor();
+            assertNotNull(monitor);
+            assertEquals(first.getAddress(),
+                monitor.getSession().getRemoteAddress());
+
+            // A healthy server answers every probe.
+            waitFor(monitor, 3);
+            assertFalse(monitor.isDegraded());
+            assertTrue(monitor.getLastRttMillis() >= 0);
+
+            first.setIgnoringAllocates(true);
+            final long end = System.currentTimeMillis() + 10 * 1000;
+            while (client.getHealthMonitor() == null
+                || client.getHealthMonitor() == monitor) {
+                assertTrue("Did not migrate",
+                    System.currentTimeMillis() < end);
+                Thread.sleep(20);
+            }
+            assertTrue(monitor.isDegraded());
+            assertTrue(client.isConnected());
+            assertEquals(second.getAddress(),
+                client.getHealthMonitor().getSession().getRemoteAddress());
+            assertFalse(monitor.getSession().isConnected());
+        } finally {
+            client.close();
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void testMigratesFromServerWithErrors() throws Exception {
+        final LoadTestTurnServer first = new LoadTestTurnServer(64, 10);
+        final LoadTestTurnServer second = new LoadTestTurnServer(64, 10);
+        first.start();
+        second.start();
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Arrays.asList(first.getAddress(),
+                        second.getAddress());
+                }
+                public InetSocketAddress getCandidate() {
+                    return first.getAddress();
+                }
+            };
+        final TcpTurnClient client = new TcpTurnClient(new NoopListener(),
+            candidates, new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()),
+            TurnTransportConfig.DEFAULT.withHealthConfig(
+                TurnHealthConfig.DEFAULT.withProbeIntervalMillis(100)
+                    .withMaxErrors(2)));
+        try {
+            client.connect();
+            final TurnHealthMonitor monitor = client.getHealthMonitor();
+            assertNotNull(monitor);
+
+            // A single refused connection now and then is fine.
+            first.setRefusingConnects(true);
+            client.sendConnectRequest(
+                new InetSocketAddress("127.0.0.1", 30000), 1000);
+            waitFor(monitor, 5);
+            assertFalse(monitor.isDegraded());
+
+            // Refusing every connection is not.
+            int port = 30001;
+            final long end = System.currentTimeMillis() + 10 * 1000;
+            while (client.getHealthMonitor() == null
+                || client.getHealthMonitor() == monitor) {
+                assertTrue("Did not migrate",
+                    System.currentTimeMillis() < end);
+                if (!monitor.isDegraded()) {
+                    client.sendConnectRequests(Arrays.asList(
+                        new InetSocketAddress("127.0.0.1", port++),
+                        new InetSocketAddress("127.0.0.1", port++)), 1000);
+                }
+                Thread.sleep(20);
+            }
+            assertTrue(monitor.isDegraded());
+            assertTrue(client.isConnected());
+            assertEquals(second.getAddress(),
+                client.getHealthMonitor().getSession().getRemoteAddress());
+        } finally {
+            client.close();
+            first.stop();
+            second.stop();
+        }
+    }
+
+    private static void waitFor(final TurnHealthMonitor monitor,
+        final long probes) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10 * 1000;
+        while (monitor.getProbeRtts().getCount() < probes) {
+            assertTrue("Probes not answered",
+                System.currentTimeMillis() < end);
+            Thread.sleep(20);
+        }
+    }
+
+    private static final class NoopListener implements TurnClientListener {
+        public void close() {
+        }
+        public void onData(final InetSocketAddress remoteAddress,
+            final IoSession session, final byte[] data) {
+        }
+        public void onRemoteAddressClosed(
+            final InetSocketAddress remoteAddress) {
+        }
+        public IoSession onRemoteAddressOpened(
+            final InetSocketAddress remoteAddress, final IoSession session) {
+            return null;
+        }
+    }
+}
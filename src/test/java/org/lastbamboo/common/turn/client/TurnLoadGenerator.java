@@ -0,0 +1,324 @@
+package org.lastbamboo.common.turn.client;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
+
+/**
+ * Load generator that ramps up TCP TURN clients against a
+ * {@link LoadTestTurnServer} to find where the library stops scaling.  Each
+ * step adds clients, has each of them connect to a number of remote hosts,
+ * lets the server stream data to them for a while, and then reports
+ * throughput, delivery latency percentiles, time to established, heap use
+ * and thread counts.<p>
+ *
+ * Run it with arguments like <code>clients=1000 steps=10 peers=4
+ * size=1024 rate=50 seconds=10</code>, where <code>clients</code> is the
+ * total number of clients after the last step and <code>rate</code> is
+ * messages per second per remote host.
+ */
+public class TurnLoadGenerator {
+
+    private final int m_totalClients;
+
+    private final int m_steps;
+
+    private final int m_peersPerClient;
+
+    private final int m_messageSize;
+
+    private final int m_messagesPerSecond;
+
+    private final long m_stepSeconds;
+
+    private final PrintStream m_out;
+
+    private final AtomicLong m_receivedMessages = new AtomicLong();
+
+    private final AtomicLong m_receivedBytes = new AtomicLong();
+
+    private final LatencyHistogram m_latencies = new LatencyHistogram();
+
+    private final List<TcpTurnClient> m_clients = new ArrayList<TcpTurnClient>();
+
+    private final List<Step> m_results = new ArrayList<Step>();
+
+    private int m_failedClients;
+
+    /**
+     * The measurements for one step of the ramp.
+     */
+    public static final class Step {
+
+        private final int m_clients;
+        private final long m_messagesPerSecond;
+        private final double m_megabytesPerSecond;
+        private final long m_p50Micros;
+        private final long m_p99Micros;
+        private final long m_p999Micros;
+        private final long m_establishedP99Micros;
+        private final long m_heapBytes;
+        private final int m_threads;
+
+        private Step(final int clients, final long messagesPerSecond,
+            final double megabytesPerSecond, final long p50Micros,
+            final long p99Micros, final long p999Micros,
+            final long establishedP99Micros, final long heapBytes,
+            final int threads) {
+            m_clients = clients;
+            m_messagesPerSecond = messagesPerSecond;
+            m_megabytesPerSecond = megabytesPerSecond;
+            m_p50Micros = p50Micros;
+            m_p99Micros = p99Micros;
+            m_p999Micros = p999Micros;
+            m_establishedP99Micros = establishedP99Micros;
+            m_heapBytes = heapBytes;
+            m_threads = threads;
+        }
+
+        /**
+         * @return The number of connected clients during the step.
+         */
+        public int getClients() {
+            return m_clients;
+        }
+
+        /**
+         * @return The messages delivered to listeners per second.
+         */
+        public long getMessagesPerSecond() {
+            return m_messagesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("clients=%d msgs/s=%d MB/s=%.2f "
+                + "p50=%dus p99=%dus p99.9=%dus established-p99=%dus "
+                + "heap=%dMB threads=%d", m_clients, m_messagesPerSecond,
+                m_megabytesPerSecond, m_p50Micros, m_p99Micros,
+                m_p999Micros, m_establishedP99Micros,
+                m_heapBytes / (1024 * 1024), m_threads);
+        }
+    }
+
+    /**
+     * Creates a new load generator.
+     *
+     * @param totalClients The number of clients after the last step.
+     * @param steps The number of steps to ramp up in.
+     * @param peersPerClient The number of remote hosts for each client.
+     * @param messageSize The size of each relayed message.
+     * @param messagesPerSecond The messages per second per remote host.
+     * @param stepSeconds How long to measure each step.
+     * @param out Where to report results.
+     */
+    public TurnLoadGenerator(final int totalClients, final int steps,
+        final int peersPerClient, final int messageSize,
+        final int messagesPerSecond, final long stepSeconds,
+        final PrintStream out) {
+        m_totalClients = totalClients;
+        m_steps = steps;
+        m_peersPerClient = peersPerClient;
+        m_messageSize = messageSize;
+        m_messagesPerSecond = messagesPerSecond;
+        m_stepSeconds = stepSeconds;
+        m_out = out;
+    }
+
+    /**
+     * Runs the ramp against a new local server.
+     *
+     * @return The measurements for each step.
+     * @throws Exception If the server can't start or we're interrupted.
+     */
+    public List<Step> run() throws Exception {
+        final LoadTestTurnServer server =
+            new LoadTestTurnServer(m_messageSize, m_messagesPerSecond);
+        server.start();
+        final ExecutorService connectors = Executors.newFixedThreadPool(32,
+            new DaemonThreadFactory("Load-Generator-Connect"));
+        try {
+            for (int step = 1; step <= m_steps; step++) {
+                final int target = m_totalClients * step / m_steps;
+                addClients(server.getAddress(), target - m_clients.size(),
+                    connectors);
+                measure(server);
+            }
+        } finally {
+            connectors.shutdownNow();
+            for (final TcpTurnClient client : m_clients) {
+                client.close();
+            }
+            server.stop();
+        }
+        return m_results;
+    }
+
+    private void addClients(final InetSocketAddress serverAddress,
+        final int count, final ExecutorService connectors)
+        throws InterruptedException {
+        final List<Future<TcpTurnClient>> futures =
+            new ArrayList<Future<TcpTurnClient>>();
+        for (int i = 0; i < count; i++) {
+            final int clientIndex = m_clients.size() + i;
+            futures.add(connectors.submit(new Callable<TcpTurnClient>() {
+                public TcpTurnClient call() throws IOException {
+                    return newClient(serverAddress, clientIndex);
+                }
+            }));
+        }
+        for (final Future<TcpTurnClient> future : futures) {
+            try {
+                m_clients.add(future.get());
+            } catch (final Exception e) {
+                m_failedClients++;
+                m_out.println("Client failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private TcpTurnClient newClient(final InetSocketAddress serverAddress,
+        final int clientIndex) throws IOException {
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Collections.singleton(serverAddress);
+                }
+                public InetSocketAddress getCandidate() {
+                    return serverAddress;
+                }
+            };
+        final TcpTurnClient client = new TcpTurnClient(new MeasuringListener(),
+            candidates, new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()));
+        client.connect();
+        final List<InetSocketAddress> peers =
+            new ArrayList<InetSocketAddress>(m_peersPerClient);
+        for (int i = 0; i < m_peersPerClient; i++) {
+            peers.add(new InetSocketAddress("10." + ((clientIndex >> 8) & 0xFF)
+                + "." + (clientIndex & 0xFF) + "." + (i + 1), 5000 + i));
+        }
+        client.sendConnectRequests(peers, 30 * 1000);
+        return client;
+    }
+
+    private void measure(final LoadTestTurnServer server)
+        throws InterruptedException {
+        // Let new clients settle before we start counting.
+        Thread.sleep(1000);
+        m_latencies.reset();
+        final long startMessages = m_receivedMessages.get();
+        final long startBytes = m_receivedBytes.get();
+        final long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(m_stepSeconds));
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long messages = m_receivedMessages.get() - startMessages;
+        final long bytes = m_receivedBytes.get() - startBytes;
+
+        long establishedP99 = 0;
+        for (final TcpTurnClient client : m_clients) {
+            establishedP99 = Math.max(establishedP99,
+                client.getTimeToEstablished().getPercentileMicros(99));
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        final Step step = new Step(m_clients.size(),
+            (long) (messages / seconds), bytes / seconds / (1024 * 1024),
+            m_latencies.getPercentileMicros(50),
+            m_latencies.getPercentileMicros(99),
+            m_latencies.getPercentileMicros(99.9), establishedP99,
+            runtime.totalMemory() - runtime.freeMemory(),
+            ManagementFactory.getThreadMXBean().getThreadCount());
+        m_results.add(step);
+        m_out.println(step + " failed-clients=" + m_failedClients
+            + " server-skipped=" + server.getSkippedMessages());
+    }
+
+    private final class MeasuringListener implements TurnClientListener {
+
+        public void onData(final InetSocketAddress remoteAddress,
+            final IoSession session, final byte[] data) {
+            m_receivedMessages.incrementAndGet();
+            m_receivedBytes.addAndGet(data.length);
+            // Anything shorter than the timestamp the server writes can't
+            // be timed.
+            if (data.length < 8) {
+                return;
+            }
+            long sent = 0;
+            for (int i = 0; i < 8; i++) {
+                sent = (sent << 8) | (data[i] & 0xFF);
+            }
+            m_latencies.record(System.nanoTime() - sent);
+        }
+
+        public IoSession onRemoteAddressOpened(
+            final InetSocketAddress remoteAddress, final IoSession session) {
+            return null;
+        }
+
+        public void onRemoteAddressClosed(
+            final InetSocketAddress remoteAddress) {
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Runs the load generator from the command line.
+     *
+     * @param args Settings as <code>name=value</code> pairs.
+     * @throws Exception If the run fails.
+     */
+    public static void main(final String[] args) throws Exception {
+        int clients = 1000;
+        int steps = 10;
+        int peers = 4;
+        int size = 1024;
+        int rate = 50;
+        long seconds = 10;
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq == -1) {
+                throw new IllegalArgumentException("Bad argument: " + arg);
+            }
+            final String name = arg.substring(0, eq);
+            final long value = Long.parseLong(arg.substring(eq + 1));
+            if ("clients".equals(name)) {
+                clients = (int) value;
+            } else if ("steps".equals(name)) {
+                steps = (int) value;
+            } else if ("peers".equals(name)) {
+                peers = (int) value;
+            } else if ("size".equals(name)) {
+                size = (int) value;
+            } else if ("rate".equals(name)) {
+                rate = (int) value;
+            } else if ("seconds".equals(name)) {
+                seconds = value;
+            } else {
+                throw new IllegalArgumentException("Unknown setting: " + name);
+            }
+        }
+        new TurnLoadGenerator(clients, steps, peers, size, rate, seconds,
+            System.out).run();
+    }
+}
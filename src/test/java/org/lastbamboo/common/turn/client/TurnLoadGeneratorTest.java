@@ -0,0 +1,31 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Small run of the load generator to make sure the harness itself works.
+ */
+public class TurnLoadGeneratorTest {
+
+    @Test
+    public void testSmallRamp() throws Exception {
+        // Capture the report rather than cluttering the build output.
+        final ByteArrayOutputStream report = new ByteArrayOutputStream();
+        final TurnLoadGenerator generator = new TurnLoadGenerator(4, 2, 2,
+            256, 50, 1, new PrintStream(report, true));
+        final List<TurnLoadGenerator.Step> steps = generator.run();
+        assertEquals(2, steps.size());
+        assertEquals(2, steps.get(0).getClients());
+        assertEquals(4, steps.get(1).getClients());
+        assertTrue("No data delivered: " + steps.get(1),
+            steps.get(1).getMessagesPerSecond() > 0);
+        assertTrue("No report written", report.size() > 0);
+    }
+}
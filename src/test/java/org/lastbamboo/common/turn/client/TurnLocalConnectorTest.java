@@ -0,0 +1,124 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.ConnectFuture;
+import org.littleshoot.mina.common.IoAcceptor;
+import org.littleshoot.mina.common.IoHandlerAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptor;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+
+/**
+ * Test for opening the local leg to the HTTP server over sockets and over
+ * in-memory pipes.
+ */
+public class TurnLocalConnectorTest {
+
+    @Test
+    public void testSocketLeg() throws Exception {
+        final ServerSocket probe = new ServerSocket(0, 1,
+            InetAddress.getByName("127.0.0.1"));
+        final int port = probe.getLocalPort();
+        probe.close();
+        final InetSocketAddress address =
+            new InetSocketAddress("127.0.0.1", port);
+        final TurnLocalConnector connector = new TurnLocalConnector(address);
+        assertFalse(connector.isInJvm());
+        relay(new SocketAcceptor(), address, connector);
+    }
+
+    @Test
+    public void testInJvmLeg() throws Exception {
+        final TurnPipeAddress address = new TurnPipeAddress(8107);
+        final TurnLocalConnector connector = new TurnLocalConnector(address);
+        assertTrue(connector.isInJvm());
+
+        // Data flows both ways at once, so run it a few times to give
+        // any reordering a chance to show up.
+        for (int i = 0; i < 20; i++) {
+            relay(new TurnPipeAcceptor(), address, connector);
+        }
+    }
+
+    /**
+     * Sends data through an echoing local HTTP server and checks it comes
+     * back out to the TURN server in Send Indications.
+     */
+    private void relay(final IoAcceptor httpServer,
+        final SocketAddress httpAddress, final TurnLocalConnector connector)
+        throws Exception {
+        httpServer.bind(httpAddress, new IoHandlerAdapter() {
+            @Override
+            public void messageReceived(final IoSession session,
+                final Object message) {
+                final ByteBuffer in = (ByteBuffer) message;
+                final ByteBuffer out = ByteBuffer.allocate(in.remaining());
+                out.put(in);
+                out.flip();
+                session.write(out);
+            }
+        });
+
+        // The TURN server end only needs to collect what the local handler
+        // writes, so a pipe that passes messages through unencoded does.
+        final TurnPipeAddress turnAddress = new TurnPipeAddress(8108);
+        final BlockingQueue<SendIndication> indications =
+            new LinkedBlockingQueue<SendIndication>();
+        final TurnPipeAcceptor turnServer = new TurnPipeAcceptor();
+        turnServer.bind(turnAddress, new IoHandlerAdapter() {
+            @Override
+            public void messageReceived(final IoSession session,
+                final Object message) {
+                indications.add((SendIndication) message);
+            }
+        });
+        final ConnectFuture turnFuture = new TurnPipeConnector().connect(
+            turnAddress, new IoHandlerAdapter());
+        turnFuture.join();
+        final IoSession turnSession = turnFuture.getSession();
+
+        final InetSocketAddress remote =
+            new InetSocketAddress("192.168.1.20", 6000);
+        try {
+            final IoSession local = connector.connect(turnSession, remote);
+            final byte[] data = new byte[200 * 1024];
+            new Random(7).nextBytes(data);
+            for (int i = 0; i < data.length; i += 10000) {
+                final int length = Math.min(10000, data.length - i);
+                local.write(ByteBuffer.wrap(data, i, length));
+            }
+
+            final ByteArrayOutputStream relayed = new ByteArrayOutputStream();
+            while (relayed.size() < data.length) {
+                final SendIndication indication =
+                    indications.poll(10, TimeUnit.SECONDS);
+                assertNotNull("Only relayed " + relayed.size(), indication);
+                assertEquals(remote, indication.getRemoteAddress());
+                relayed.write(indication.getData());
+            }
+            assertTrue(Arrays.equals(data, relayed.toByteArray()));
+            local.close().join();
+        } finally {
+            turnSession.close().join();
+            turnServer.unbindAll();
+            httpServer.unbindAll();
+        }
+    }
+}
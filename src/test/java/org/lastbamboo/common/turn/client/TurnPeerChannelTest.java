@@ -0,0 +1,92 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+
+/**
+ * Test for reading from and writing to a single remote host as a channel.
+ */
+public class TurnPeerChannelTest {
+
+    private final InetSocketAddress m_remote =
+        new InetSocketAddress("47.2.97.34", 2794);
+
+    @Test
+    public void testRead() throws Exception {
+        final RecordingIoSession session = new RecordingIoSession();
+        final TurnPeerChannel channel =
+            new TurnPeerChannel(session, m_remote, 8, 1024);
+
+        // Nothing to read into returns straight away rather than waiting
+        // for data.
+        assertEquals(0, channel.read(ByteBuffer.allocate(0)));
+
+        channel.onData(new byte[] {1, 2, 3});
+        channel.onData(new byte[] {4, 5});
+        final ByteBuffer dst = ByteBuffer.allocate(4);
+        assertEquals(4, channel.read(dst));
+        assertEquals(4, dst.get(3));
+
+        channel.onRemoteClosed();
+        dst.clear();
+        assertEquals(1, channel.read(dst));
+        assertEquals(5, dst.get(0));
+        assertEquals(-1, channel.read(dst));
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final RecordingIoSession session = new RecordingIoSession();
+        final TurnPeerChannel channel =
+            new TurnPeerChannel(session, m_remote, 8, 1024);
+
+        channel.onData(new byte[6]);
+        assertFalse(session.isReadSuspended());
+        channel.onData(new byte[2]);
+        assertTrue("Full channel didn't suspend reads",
+            session.isReadSuspended());
+
+        // We keep reads suspended until the channel drains to half.
+        assertEquals(3, channel.read(ByteBuffer.allocate(3)));
+        assertTrue(session.isReadSuspended());
+        assertEquals(1, channel.read(ByteBuffer.allocate(1)));
+        assertFalse(session.isReadSuspended());
+    }
+
+    @Test
+    public void testWriteAndClose() throws Exception {
+        final RecordingIoSession session = new RecordingIoSession();
+        final TurnPeerChannel channel =
+            new TurnPeerChannel(session, m_remote, 8, 1024);
+        channel.onData(new byte[8]);
+        assertTrue(session.isReadSuspended());
+
+        assertEquals(3, channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3})));
+        assertTrue(session.getWritten().poll() instanceof SendIndication);
+
+        channel.close();
+        channel.close();
+        assertFalse(channel.isOpen());
+        assertFalse("Closing left reads suspended",
+            session.isReadSuspended());
+
+        // There's nothing to tell the server.
+        assertTrue(session.getWritten().isEmpty());
+
+        try {
+            channel.read(ByteBuffer.allocate(1));
+            fail("Read from closed channel");
+        } catch (final ClosedChannelException e) {
+            // Expected.
+        }
+    }
+}
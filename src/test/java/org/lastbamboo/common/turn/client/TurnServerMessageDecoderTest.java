@@ -0,0 +1,94 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.encoder.StunMessageEncoder;
+import org.littleshoot.stun.stack.message.turn.DataIndication;
+import org.littleshoot.util.mina.ByteBufferUtils;
+
+/**
+ * Test for the decoder that frames STUN and ChannelData messages from the
+ * TURN server.
+ */
+public class TurnServerMessageDecoderTest {
+
+    @Test
+    public void testChannelBindingAndMixedMessages() throws Exception {
+        final InetSocketAddress remote =
+            new InetSocketAddress("192.168.1.20", 6000);
+        final TurnChannelBindings bindings = new TurnChannelBindings();
+        final ByteBuffer request = bindings.newBindRequest(remote);
+        assertEquals(TurnChannelBindings.CHANNEL_BIND_REQUEST,
+            request.getUnsignedShort(0));
+        assertEquals(-1, bindings.getChannel(remote));
+
+        // Build the success response the server would send.
+        final ByteBuffer response = ByteBuffer.allocate(20);
+        response.putShort((short) TurnChannelBindings.CHANNEL_BIND_SUCCESS_RESPONSE);
+        response.putShort((short) 0);
+        for (int i = 4; i < 20; i++) {
+            response.put(request.get(i));
+        }
+        response.flip();
+
+        final List<ByteBuffer> bufs = new LinkedList<ByteBuffer>();
+        final List<byte[]> expected = new LinkedList<byte[]>();
+        bufs.add(response);
+        final StunMessageEncoder encoder = new StunMessageEncoder();
+        for (int i = 0; i < 30; i++) {
+            // Odd lengths make sure we skip the padding.
+            final byte[] data = new byte[i * 7 + 1];
+            Arrays.fill(data, (byte) i);
+            bufs.add(TurnChannelData.encode(TurnChannelData.MIN_CHANNEL, data));
+            expected.add(data);
+            bufs.add(encoder.encode(new DataIndication(remote, data)));
+            expected.add(data);
+        }
+        final ByteBuffer combined = ByteBufferUtils.combine(bufs);
+
+        for (int chunkSize = 1; chunkSize < 40; chunkSize += 7) {
+            combined.rewind();
+            final List<byte[]> decoded = new LinkedList<byte[]>();
+            final ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+                public void flush() {
+                }
+                public void write(final Object message) {
+                    if (message instanceof TurnChannelData) {
+                        final TurnChannelData channelData =
+                            (TurnChannelData) message;
+                        assertEquals(remote, bindings.getRemoteAddress(
+                            channelData.getChannelNumber()));
+                        decoded.add(channelData.getData());
+                    } else {
+                        final DataIndication indication =
+                            (DataIndication) message;
+                        assertEquals(remote, indication.getRemoteAddress());
+                        decoded.add(indication.getData());
+                    }
+                }
+            };
+            final TurnServerMessageDecoder decoder =
+                new TurnServerMessageDecoder(bindings);
+            while (combined.hasRemaining()) {
+                final int size = Math.min(chunkSize, combined.remaining());
+                final byte[] chunk = new byte[size];
+                combined.get(chunk);
+                decoder.decode(null, ByteBuffer.wrap(chunk), out);
+            }
+            assertEquals(TurnChannelData.MIN_CHANNEL, bindings.getChannel(remote));
+            assertEquals(expected.size(), decoded.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertTrue(Arrays.equals(expected.get(i), decoded.get(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Test;
+import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilter.NextFilter;
+import org.littleshoot.mina.common.IoFilter.WriteRequest;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.mina.common.support.DefaultWriteFuture;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.StunMessageDecoder;
+import org.littleshoot.stun.stack.encoder.StunMessageEncoder;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.turn.AllocateRequest;
+import org.littleshoot.stun.stack.message.turn.AllocateSuccessResponse;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
+
+/**
+ * Test for TCP TURN clients talking TLS to a loopback server with a self
+ * signed certificate.
+ */
+public class TurnTlsTest {
+
+    private static final char[] PASSWORD = "turntest".toCharArray();
+
+    @After
+    public void tearDown() {
+        TurnClientConfig.setUseTls(false);
+        TurnClientConfig.setTlsContextFactory(null);
+    }
+
+    @Test
+    public void testAllocateAndResume() throws Exception {
+        final KeyStore keyStore = loadKeyStore();
+        final LoopbackTlsTurnServer server =
+            new LoopbackTlsTurnServer(keyStore);
+        server.start();
+
+        TurnClientConfig.setUseTls(true);
+        TurnClientConfig.setTlsContextFactory(newContextFactory(keyStore));
+
+        // The certificate is for localhost, so that's the name we use.
+        final InetSocketAddress address = new InetSocketAddress("localhost",
+            server.getAddress().getPort());
+        final TurnTlsSessionCache cache = TurnTlsSessionCache.shared();
+        try {
+            for (int i = 0; i < 3; i++) {
+                final TcpTurnClient client = newClient(address);
+                try {
+                    client.connect();
+                    assertTrue(client.isConnected());
+                    assertEquals(server.getRelay(), client.getRelayAddress());
+                } finally {
+                    client.close();
+                }
+            }
+            assertEquals(3, server.getAllocateRequests());
+            assertEquals(1, cache.getFullHandshakes(address));
+            assertEquals(2, cache.getResumedHandshakes(address));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testWrongHostRejected() throws Exception {
+        final KeyStore keyStore = loadKeyStore();
+        final LoopbackTlsTurnServer server =
+            new LoopbackTlsTurnServer(keyStore);
+        server.start();
+        TurnClientConfig.setUseTls(true);
+        TurnClientConfig.setTlsContextFactory(newContextFactory(keyStore));
+
+        // We trust the certificate's issuer, but the certificate is for
+        // localhost and we asked for an address it doesn't list.
+        final TcpTurnClient client = newClient(server.getAddress());
+        final long start = System.currentTimeMillis();
+        try {
+            client.connect();
+            fail("Connected to server with certificate for another host");
+        } catch (final IOException e) {
+            // Expected.
+        } finally {
+            client.close();
+            server.close();
+        }
+        assertFalse(client.isConnected());
+        assertEquals(0, server.getAllocateRequests());
+        assertTrue("Took too long to give up",
+            System.currentTimeMillis() - start < 20 * 1000);
+    }
+
+    @Test
+    public void testPendingWritesFailOnClose() throws Exception {
+        final InetSocketAddress server =
+            new InetSocketAddress("127.0.0.1", 3478);
+        final TurnTlsFilter filter = new TurnTlsFilter(
+            new TurnTlsSessionCache(newContextFactory(loadKeyStore())),
+            server);
+        final NextFilter next = new NextFilterAdapter();
+        final RecordingIoSession session = new RecordingIoSession();
+        filter.sessionCreated(next, session);
+
+        // Writes wait for the handshake, which never finishes here.
+        final WriteFuture future = new DefaultWriteFuture(session);
+        filter.filterWrite(next, session, new WriteRequest(
+            ByteBuffer.wrap(new byte[] {1, 2, 3}), future));
+        assertFalse(future.isReady());
+        filter.sessionClosed(next, session);
+        assertTrue(future.isReady());
+        assertFalse(future.isWritten());
+    }
+
+    @Test
+    public void testHostnameMatching() throws Exception {
+        assertTrue(TurnTlsHostnameVerifier.matches("turn.example.com",
+            "TURN.example.com."));
+        assertTrue(TurnTlsHostnameVerifier.matches("turn.example.com",
+            "*.example.com"));
+        assertFalse(TurnTlsHostnameVerifier.matches("a.turn.example.com",
+            "*.example.com"));
+        assertFalse(TurnTlsHostnameVerifier.matches("example.com",
+            "*.example.com"));
+        assertFalse(TurnTlsHostnameVerifier.matches("turn.com", "*.com"));
+        assertFalse(TurnTlsHostnameVerifier.matches("evil.example.org",
+            "turn.example.com"));
+        assertEquals("localhost",
+            TurnTlsHostnameVerifier.getCommonName("CN=localhost, O=Test"));
+        assertEquals("127.0.0.1", TurnTlsHostnameVerifier.getHost(
+            new InetSocketAddress("127.0.0.1", 3478)));
+        assertEquals("localhost", TurnTlsHostnameVerifier.getHost(
+            new InetSocketAddress("localhost", 3478)));
+    }
+
+    private KeyStore loadKeyStore() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        final InputStream is = getClass().getResourceAsStream("/turn-test.jks");
+        try {
+            keyStore.load(is, PASSWORD);
+        } finally {
+            is.close();
+        }
+        return keyStore;
+    }
+
+    private static TurnTlsContextFactory newContextFactory(
+        final KeyStore keyStore) {
+        return new TurnTlsContextFactory() {
+            public SSLContext newContext(final InetSocketAddress address)
+                throws GeneralSecurityException {
+                final TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+                    TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(keyStore);
+                final SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, tmf.getTrustManagers(), null);
+                return context;
+            }
+        };
+    }
+
+    private TcpTurnClient newClient(final InetSocketAddress address) {
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Collections.singleton(address);
+                }
+                public InetSocketAddress getCandidate() {
+                    return address;
+                }
+            };
+        final TurnClientListener listener = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession session) {
+                return null;
+            }
+        };
+        return new TcpTurnClient(listener, candidates,
+            new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()));
+    }
+
+    /**
+     * Just enough of a TURN server to answer Allocate Requests over TLS.
+     */
+    private static final class LoopbackTlsTurnServer extends Thread {
+
+        private final SSLServerSocket m_socket;
+        private final InetSocketAddress m_relay =
+            new InetSocketAddress("127.0.0.1", 42345);
+        private final AtomicInteger m_allocateRequests = new AtomicInteger();
+        private final StunMessageEncoder m_encoder = new StunMessageEncoder();
+
+        private LoopbackTlsTurnServer(final KeyStore keyStore)
+            throws Exception {
+            super("Loopback-TLS-TURN-Server");
+            setDaemon(true);
+            final KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, PASSWORD);
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            m_socket = (SSLServerSocket) context.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+
+        private InetSocketAddress getAddress() {
+            return (InetSocketAddress) m_socket.getLocalSocketAddress();
+        }
+
+        private InetSocketAddress getRelay() {
+            return m_relay;
+        }
+
+        private int getAllocateRequests() {
+            return m_allocateRequests.get();
+        }
+
+        @Override
+        public void run() {
+            while (!m_socket.isClosed()) {
+                try {
+                    final Socket sock = m_socket.accept();
+                    final Thread reader = new Thread(new Runnable() {
+                        public void run() {
+                            serve(sock);
+                        }
+                    }, "Loopback-TLS-TURN-Connection");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (final IOException e) {
+                    // Closed.
+                }
+            }
+        }
+
+        private void serve(final Socket sock) {
+            try {
+                final DataInputStream in =
+                    new DataInputStream(sock.getInputStream());
+                final OutputStream out = sock.getOutputStream();
+                final byte[] header = new byte[20];
+                while (true) {
+                    in.readFully(header);
+                    final int length =
+                        ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+                    final byte[] message = new byte[20 + length];
+                    System.arraycopy(header, 0, message, 0, 20);
+                    in.readFully(message, 20, length);
+                    for (final StunMessage msg : decode(message)) {
+                        if (!(msg instanceof AllocateRequest)) {
+                            continue;
+                        }
+                        m_allocateRequests.incrementAndGet();
+                        final ByteBuffer encoded = m_encoder.encode(
+                            new AllocateSuccessResponse(
+                                msg.getTransactionId(), m_relay,
+                                (InetSocketAddress) sock.getRemoteSocketAddress()));
+                        final byte[] bytes = new byte[encoded.remaining()];
+                        encoded.get(bytes);
+                        out.write(bytes);
+                        out.flush();
+                    }
+                }
+            } catch (final Exception e) {
+                // Closed.
+            } finally {
+                try {
+                    sock.close();
+                } catch (final IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+
+        private List<StunMessage> decode(final byte[] data) throws Exception {
+            final List<StunMessage> messages = new LinkedList<StunMessage>();
+            final ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+                public void flush() {
+                }
+                public void write(final Object message) {
+                    messages.add((StunMessage) message);
+                }
+            };
+            new StunMessageDecoder().decode(null, ByteBuffer.wrap(data), out);
+            return messages;
+        }
+
+        private void close() throws IOException {
+            m_socket.close();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.transport.socket.nio.SocketSessionConfig;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
+
+/**
+ * Test for per-client transport settings.
+ */
+public class TurnTransportConfigTest {
+
+    @Test
+    public void testProfiles() throws Exception {
+        assertTrue(TurnTransportConfig.LOW_LATENCY.isTcpNoDelay());
+        assertFalse(TurnTransportConfig.BULK_THROUGHPUT.isTcpNoDelay());
+        assertTrue(TurnTransportConfig.LOW_LATENCY.getChunkSize() <
+            TurnTransportConfig.BULK_THROUGHPUT.getChunkSize());
+        assertTrue(TurnTransportConfig.LOW_LATENCY.getMaxQueuedBytes() <
+            TurnTransportConfig.BULK_THROUGHPUT.getMaxQueuedBytes());
+
+        final TurnTransportConfig tuned = TurnTransportConfig.LOW_LATENCY
+            .withBufferSizes(8192, 16384).withChunkSize(4096)
+            .withExecutionMode(TurnExecutionMode.INLINE);
+        assertEquals(8192, tuned.getSendBufferSize());
+        assertEquals(16384, tuned.getReceiveBufferSize());
+        assertEquals(4096, tuned.getChunkSize());
+        assertEquals(TurnExecutionMode.INLINE, tuned.getExecutionMode());
+        assertTrue(tuned.isTcpNoDelay());
+
+        // The profile itself is untouched.
+        assertEquals(64 * 1024,
+            TurnTransportConfig.LOW_LATENCY.getSendBufferSize());
+        assertEquals(TurnExecutionMode.EXECUTOR,
+            TurnTransportConfig.LOW_LATENCY.getExecutionMode());
+
+        try {
+            TurnTransportConfig.DEFAULT.withChunkSize(100);
+            fail("Accepted chunk smaller than a segment");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            TurnTransportConfig.DEFAULT.withBufferSizes(-1, 0);
+            fail("Accepted negative buffer size");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testClientsTunedIndependently() throws Exception {
+        final LoadTestTurnServer server = new LoadTestTurnServer(64, 10);
+        server.start();
+        try {
+            final int[] lowLatency =
+                connect(server.getAddress(), TurnTransportConfig.LOW_LATENCY);
+            final int[] bulk = connect(server.getAddress(),
+                TurnTransportConfig.BULK_THROUGHPUT);
+            assertEquals(1, lowLatency[0]);
+            assertEquals(0, bulk[0]);
+
+            // The operating system may round buffer sizes, but the bulk
+            // buffers should still be the bigger ones.
+            assertTrue(bulk[1] > lowLatency[1]);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testEventsAfterReconnect() throws Exception {
+        final LoadTestTurnServer server = new LoadTestTurnServer(64, 10);
+        server.start();
+        final InetSocketAddress address = server.getAddress();
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Collections.singleton(address);
+                }
+                public InetSocketAddress getCandidate() {
+                    return address;
+                }
+            };
+        final BlockingQueue<InetSocketAddress> opened =
+            new LinkedBlockingQueue<InetSocketAddress>();
+        final TurnClientListener listener = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession session) {
+                opened.add(remoteAddress);
+                return null;
+            }
+        };
+        final TcpTurnClient client = new TcpTurnClient(listener, candidates,
+            new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()),
+            TurnTransportConfig.DEFAULT.withExecutionMode(
+                TurnExecutionMode.VIRTUAL_THREADS));
+        try {
+            client.connect();
+            final InetSocketAddress first =
+                new InetSocketAddress("10.0.0.1", 5000);
+            client.sendConnectRequest(first, 10 * 1000);
+            assertEquals(first, opened.poll(10, TimeUnit.SECONDS));
+
+            // Ending the first session closes its listeners, but the next
+            // session still delivers events.
+            client.migrate();
+            final InetSocketAddress second =
+                new InetSocketAddress("10.0.0.2", 5000);
+            client.sendConnectRequest(second, 10 * 1000);
+            assertEquals(second, opened.poll(10, TimeUnit.SECONDS));
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * Connects a client and reads back its socket options.
+     *
+     * @return TCP_NODELAY as 0 or 1 followed by the receive buffer size.
+     */
+    private int[] connect(final InetSocketAddress address,
+        final TurnTransportConfig transportConfig) throws Exception {
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Collections.singleton(address);
+                }
+                public InetSocketAddress getCandidate() {
+                    return address;
+                }
+            };
+        final TurnClientListener listener = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession session) {
+                return null;
+            }
+        };
+        final TcpTurnClient client = new TcpTurnClient(listener, candidates,
+            new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()), transportConfig);
+        assertEquals(transportConfig, client.getTransportConfig());
+        final BlockingQueue<IoSession> sessions =
+            new LinkedBlockingQueue<IoSession>();
+        client.addIoServiceListener(new IoServiceListener() {
+            public void serviceActivated(final IoService service,
+                final SocketAddress serviceAddress,
+                final IoHandler handler,
+                final IoServiceConfig config) {
+            }
+            public void serviceDeactivated(final IoService service,
+                final SocketAddress serviceAddress,
+                final IoHandler handler,
+                final IoServiceConfig config) {
+            }
+            public void sessionCreated(final IoSession session) {
+                sessions.add(session);
+            }
+            public void sessionDestroyed(final IoSession session) {
+            }
+        });
+        try {
+            client.connect();
+            final IoSession session = sessions.poll(10, TimeUnit.SECONDS);
+            assertNotNull("No session", session);
+            final SocketSessionConfig config =
+                (SocketSessionConfig) session.getConfig();
+            return new int[] {config.isTcpNoDelay() ? 1 : 0,
+                config.getReceiveBufferSize()};
+        } finally {
+            client.close();
+        }
+    }
+}
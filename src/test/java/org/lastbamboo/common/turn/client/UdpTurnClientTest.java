@@ -0,0 +1,281 @@
+package org.lastbamboo.common.turn.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lastbamboo.common.tcp.frame.TcpFrameCodecFactory;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.StunMessageDecoder;
+import org.littleshoot.stun.stack.encoder.StunMessageEncoder;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.attributes.turn.ConnectionStatus;
+import org.littleshoot.stun.stack.message.turn.AllocateRequest;
+import org.littleshoot.stun.stack.message.turn.AllocateSuccessResponse;
+import org.littleshoot.stun.stack.message.turn.ConnectRequest;
+import org.littleshoot.stun.stack.message.turn.ConnectionStatusIndication;
+import org.littleshoot.stun.stack.message.turn.DataIndication;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.mina.DemuxingProtocolCodecFactory;
+
+/**
+ * Test for the UDP TURN client against a minimal loopback TURN server.
+ */
+public class UdpTurnClientTest {
+
+    @Test
+    public void testAllocateWithLossAndReceiveData() throws Exception {
+        final InetSocketAddress relay =
+            new InetSocketAddress("127.0.0.1", 41234);
+        final InetSocketAddress remote =
+            new InetSocketAddress("127.0.0.1", 51234);
+        final LoopbackTurnServer server = new LoopbackTurnServer(relay);
+        server.start();
+
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+        final BlockingQueue<InetSocketAddress> opened =
+            new LinkedBlockingQueue<InetSocketAddress>();
+        final TurnClientListener listener = new TurnClientListener() {
+            public void close() {
+            }
+            public void onData(final InetSocketAddress remoteAddress,
+                final IoSession session, final byte[] data) {
+                assertEquals(remote, remoteAddress);
+                received.add(data);
+            }
+            public void onRemoteAddressClosed(
+                final InetSocketAddress remoteAddress) {
+            }
+            public IoSession onRemoteAddressOpened(
+                final InetSocketAddress remoteAddress,
+                final IoSession session) {
+                opened.add(remoteAddress);
+                return null;
+            }
+        };
+        final CandidateProvider<InetSocketAddress> candidates =
+            new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Collections.singleton(server.getAddress());
+                }
+                public InetSocketAddress getCandidate() {
+                    return server.getAddress();
+                }
+            };
+        // Dispatching inline also checks we follow our own transport
+        // settings rather than the global ones.
+        final UdpTurnClient client = new UdpTurnClient(listener, candidates,
+            new DemuxingProtocolCodecFactory(
+                new TurnStunDemuxableProtocolCodecFactory(),
+                new TcpFrameCodecFactory()),
+            TurnTransportConfig.DEFAULT
+                .withExecutionMode(TurnExecutionMode.INLINE)
+                .withBufferSizes(64 * 1024, 64 * 1024));
+        try {
+            client.connect();
+            assertTrue(client.isConnected());
+            assertEquals(relay, client.getRelayAddress());
+            assertNotNull(client.getMappedAddress());
+
+            // The server dropped the first request, so we only got here
+            // because the client retransmitted.
+            assertTrue(server.getAllocateRequests() >= 2);
+            assertEquals(0, client.getDispatchLatencies().getCount());
+
+            final byte[] data = new byte[] {1, 2, 3, 4, 5};
+            server.sendDataIndication(remote, data);
+            final byte[] read = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull("Did not receive data", read);
+            assertTrue(Arrays.equals(data, read));
+
+            // Binding checks go to the remote host in Send Indications, and
+            // the server drops the first one.
+            final BindingRequest request = new BindingRequest();
+            final StunMessage response = client.write(request, remote, 100);
+            assertTrue("Unexpected response: " + response,
+                response instanceof BindingSuccessResponse);
+            assertEquals(request.getTransactionId(),
+                response.getTransactionId());
+            assertEquals(remote,
+                ((BindingSuccessResponse) response).getMappedAddress());
+            assertEquals(2, server.getBindingRequests());
+            assertTrue("Response should not reach the listener",
+                received.isEmpty());
+
+            // The server drops the first Connect Request too, and we stop
+            // sending them once it answers.
+            client.sendConnectRequest(remote);
+            assertEquals(remote, opened.poll(10, TimeUnit.SECONDS));
+            assertEquals(2, server.getConnectRequests());
+            Thread.sleep(2 * StunRetransmitter.DEFAULT_RTO);
+            assertEquals(2, server.getConnectRequests());
+
+            try {
+                client.sendFile(remote, new File("unused"), 0, 1);
+                fail("Sent a file over UDP");
+            } catch (final UnsupportedOperationException e) {
+                // Expected.
+            }
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Just enough of a TURN server to answer Allocate and Connect Requests
+     * over UDP and to answer Binding Requests sent to remote hosts as if it
+     * were the remote host.  It drops the first request of each type it sees to
+     * simulate loss.
+     */
+    private static final class LoopbackTurnServer extends Thread {
+
+        private final DatagramSocket m_socket;
+        private final InetSocketAddress m_relay;
+        private final AtomicInteger m_allocateRequests = new AtomicInteger();
+        private final AtomicInteger m_bindingRequests = new AtomicInteger();
+        private final AtomicInteger m_connectRequests = new AtomicInteger();
+        private final StunMessageEncoder m_encoder = new StunMessageEncoder();
+        private volatile InetSocketAddress m_client;
+
+        private LoopbackTurnServer(final InetSocketAddress relay)
+            throws IOException {
+            super("Loopback-TURN-Server");
+            setDaemon(true);
+            m_relay = relay;
+            m_socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        }
+
+        private InetSocketAddress getAddress() {
+            return (InetSocketAddress) m_socket.getLocalSocketAddress();
+        }
+
+        private int getAllocateRequests() {
+            return m_allocateRequests.get();
+        }
+
+        private int getBindingRequests() {
+            return m_bindingRequests.get();
+        }
+
+        private int getConnectRequests() {
+            return m_connectRequests.get();
+        }
+
+        @Override
+        public void run() {
+            final byte[] buf = new byte[2048];
+            while (!m_socket.isClosed()) {
+                final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    m_socket.receive(packet);
+                    final List<StunMessage> messages = decode(
+                        Arrays.copyOf(buf, packet.getLength()));
+                    for (final StunMessage message : messages) {
+                        if (message instanceof SendIndication) {
+                            onSendIndication((SendIndication) message);
+                            continue;
+                        }
+                        if (message instanceof ConnectRequest) {
+                            onConnectRequest((ConnectRequest) message);
+                            continue;
+                        }
+                        if (!(message instanceof AllocateRequest)) {
+                            continue;
+                        }
+                        if (m_allocateRequests.incrementAndGet() == 1) {
+                            continue;
+                        }
+                        final InetSocketAddress client =
+                            (InetSocketAddress) packet.getSocketAddress();
+                        m_client = client;
+                        send(new AllocateSuccessResponse(
+                            message.getTransactionId(), m_relay, client));
+                    }
+                } catch (final Exception e) {
+                    // Closed.
+                }
+            }
+        }
+
+        private void onConnectRequest(final ConnectRequest request)
+            throws Exception {
+            if (m_connectRequests.incrementAndGet() == 1) {
+                return;
+            }
+            send(new ConnectionStatusIndication(request.getRemoteAddress(),
+                ConnectionStatus.ESTABLISHED));
+        }
+
+        private void onSendIndication(final SendIndication indication)
+            throws Exception {
+            final InetSocketAddress remote = indication.getRemoteAddress();
+            for (final StunMessage inner : decode(indication.getData())) {
+                if (!(inner instanceof BindingRequest)) {
+                    continue;
+                }
+                if (m_bindingRequests.incrementAndGet() == 1) {
+                    continue;
+                }
+                final ByteBuffer response = m_encoder.encode(
+                    new BindingSuccessResponse(
+                        inner.getTransactionId().getRawBytes(), remote));
+                final byte[] bytes = new byte[response.remaining()];
+                response.get(bytes);
+                sendDataIndication(remote, bytes);
+            }
+        }
+
+        private void sendDataIndication(final InetSocketAddress remote,
+            final byte[] data) throws Exception {
+            send(new DataIndication(remote, data));
+        }
+
+        private void send(final StunMessage message) throws Exception {
+            final ByteBuffer encoded = m_encoder.encode(message);
+            final byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            m_socket.send(new DatagramPacket(bytes, bytes.length, m_client));
+        }
+
+        private List<StunMessage> decode(final byte[] data) throws Exception {
+            final List<StunMessage> messages = new LinkedList<StunMessage>();
+            final ProtocolDecoderOutput out = new ProtocolDecoderOutput() {
+                public void flush() {
+                }
+                public void write(final Object message) {
+                    messages.add((StunMessage) message);
+                }
+            };
+            new StunMessageDecoder().decode(null, ByteBuffer.wrap(data), out);
+            return messages;
+        }
+
+        private void close() {
+            m_socket.close();
+        }
+    }
+}